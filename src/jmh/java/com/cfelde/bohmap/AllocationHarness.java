@@ -0,0 +1,458 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Reports the bytes allocated on the heap per operation for the public
+ * methods of BOHMap, OHMap and their iterators, next to HashMap and
+ * ConcurrentHashMap doing the same.
+ *
+ * Each operation is first run enough times for the JIT to compile it, and
+ * then measured with ThreadMXBean.getThreadAllocatedBytes. Iteration,
+ * forEach and snapshots are reported per entry. Results are printed, and
+ * written as csv to the file given as the first argument, if any.
+ *
+ * The BOHMap methods taking or copying into buffers and addresses, and not
+ * returning a Binary, are expected to allocate nothing. If any of them
+ * does, the harness exits with a non-zero status, failing the build task
+ * running it.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class AllocationHarness {
+    private static final int ENTRIES = 10000;
+    private static final int WARMUP = 50000;
+    private static final int OPERATIONS = 100000;
+    private static final int ITERATIONS = 50;
+    private static final int KEY_SIZE = 8;
+    private static final int VALUE_SIZE = 32;
+
+    /**
+     * Results are written here so the JIT can't drop the work, with
+     * primitive results kept apart so they aren't boxed.
+     */
+    static volatile Object sink;
+    static volatile long primitiveSink;
+
+    private final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long threadId = Thread.currentThread().getId();
+    private final List<String[]> results = new ArrayList<>();
+    private final List<String> regressions = new ArrayList<>();
+
+    private final Binary[] keys = new Binary[ENTRIES];
+    private final Binary[] missingKeys = new Binary[ENTRIES];
+    private final Binary value;
+
+    private AllocationHarness() {
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = key(i);
+            missingKeys[i] = key(ENTRIES + i);
+        }
+
+        final byte[] data = new byte[VALUE_SIZE];
+        for (int i = 0; i < VALUE_SIZE; i++) {
+            data[i] = (byte) i;
+        }
+        value = new Binary(data);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final AllocationHarness harness = new AllocationHarness();
+
+        harness.run();
+        harness.print(System.out);
+
+        if (args.length > 0) {
+            final Path path = Paths.get(args[0]);
+
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+
+            try (PrintStream out = new PrintStream(Files.newOutputStream(path))) {
+                harness.writeCsv(out);
+            }
+        }
+
+        if (!harness.regressions.isEmpty()) {
+            System.err.println("Allocating where nothing should be allocated: " + harness.regressions);
+            System.exit(1);
+        }
+    }
+
+    private void run() throws IOException {
+        try (BOHMap map = new BOHMap(ENTRIES)) {
+            measureBinaryMap("BOHMap", map);
+            measureBOHMap(map);
+        }
+
+        measureBinaryMap("HashMap", new HashMap<>());
+        measureBinaryMap("ConcurrentHashMap", new ConcurrentHashMap<>());
+
+        try (OHMap<String, String> map = new OHMap<>(ENTRIES)) {
+            measureObjectMap("OHMap", map);
+        }
+
+        measureObjectMap("HashMap<String,String>", new HashMap<>());
+    }
+
+    private static Binary key(int index) {
+        return new Binary(ByteBuffer.allocate(KEY_SIZE).putLong(index).array());
+    }
+
+    /**
+     * Runs the given operation with a running index, first to warm up and
+     * then measured, and records the bytes allocated per operation divided
+     * by the given number of items each operation handles.
+     */
+    private String measure(String map, String method, int operations, int items, IntConsumer operation) {
+        for (int i = 0; i < Math.max(WARMUP / items, 10); i++) {
+            operation.accept(i % ENTRIES);
+        }
+
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+
+        for (int i = 0; i < operations; i++) {
+            operation.accept(i % ENTRIES);
+        }
+
+        final long after = threadBean.getThreadAllocatedBytes(threadId);
+        final double bytes = (double) (after - before) / ((long) operations * items);
+
+        final String reported = String.format(Locale.ROOT, "%.1f", bytes);
+
+        results.add(new String[] {map, method, reported});
+
+        return reported;
+    }
+
+    private void measure(String map, String method, IntConsumer operation) {
+        measure(map, method, OPERATIONS, 1, operation);
+    }
+
+    /**
+     * Measures an operation expected to allocate nothing, recording it as a
+     * regression if it reports more than zero bytes per operation.
+     */
+    private void measureAllocationFree(String map, String method, IntConsumer operation) {
+        if (Double.parseDouble(measure(map, method, OPERATIONS, 1, operation)) > 0)
+            regressions.add(map + " " + method);
+    }
+
+    /**
+     * Measures the Map methods, and those of the key, value and entry
+     * iterators, on a map of Binary keys and values.
+     */
+    private void measureBinaryMap(String name, Map<Binary, Binary> map) {
+        for (Binary key : keys) {
+            map.put(key, value);
+        }
+
+        final Map<Binary, Binary> single = Collections.singletonMap(missingKeys[0], value);
+
+        measure(name, "get hit", i -> sink = map.get(keys[i]));
+        measure(name, "get miss", i -> sink = map.get(missingKeys[i]));
+        measure(name, "containsKey", i -> primitiveSink = map.containsKey(keys[i]) ? 1 : 0);
+        measure(name, "containsValue", ITERATIONS, 1, i -> primitiveSink = map.containsValue(missingKeys[i]) ? 1 : 0);
+        measure(name, "put existing", i -> sink = map.put(keys[i], value));
+        measure(name, "put new and remove", i -> {
+            map.put(missingKeys[i], value);
+            sink = map.remove(missingKeys[i]);
+        });
+        measure(name, "remove and put back", i -> {
+            sink = map.remove(keys[i]);
+            map.put(keys[i], value);
+        });
+        measure(name, "putAll single and remove", i -> {
+            map.putAll(single);
+            sink = map.remove(missingKeys[0]);
+        });
+        measure(name, "getOrDefault", i -> sink = map.getOrDefault(missingKeys[i], value));
+        measure(name, "putIfAbsent existing", i -> sink = map.putIfAbsent(keys[i], value));
+        measure(name, "compute existing", i -> sink = map.compute(keys[i], (k, v) -> value));
+        measure(name, "merge existing", i -> sink = map.merge(keys[i], value, (v, w) -> w));
+        measure(name, "size", i -> primitiveSink = map.size());
+        measure(name, "isEmpty", i -> primitiveSink = map.isEmpty() ? 1 : 0);
+        measure(name, "forEach", ITERATIONS, ENTRIES, i -> map.forEach((k, v) -> sink = v));
+        measure(name, "keySet iterator", i -> sink = map.keySet().iterator());
+        measure(name, "keySet iteration", ITERATIONS, ENTRIES, i -> {
+            for (Binary key : map.keySet()) {
+                sink = key;
+            }
+        });
+        measure(name, "values iteration", ITERATIONS, ENTRIES, i -> {
+            for (Binary v : map.values()) {
+                sink = v;
+            }
+        });
+        measure(name, "entrySet iteration", ITERATIONS, ENTRIES, i -> {
+            for (Entry<Binary, Binary> entry : map.entrySet()) {
+                sink = entry.getKey();
+                sink = entry.getValue();
+            }
+        });
+        measure(name, "clear and put", ITERATIONS, 1, i -> {
+            map.clear();
+            map.put(keys[i], value);
+        });
+
+        map.clear();
+    }
+
+    /**
+     * Measures the BOHMap methods taking buffers or addresses, which have no
+     * counterpart on the heap, and its snapshot support.
+     */
+    private void measureBOHMap(BOHMap map) throws IOException {
+        final String name = "BOHMap";
+
+        for (Binary key : keys) {
+            map.put(key, value);
+        }
+
+        final ByteBuffer[] keyBuffers = new ByteBuffer[ENTRIES];
+        final long keysAddress = Memory.UNSAFE.allocateMemory((long) ENTRIES * KEY_SIZE);
+        final long valueAddress = Memory.UNSAFE.allocateMemory(VALUE_SIZE);
+
+        try {
+            for (int i = 0; i < ENTRIES; i++) {
+                keyBuffers[i] = ByteBuffer.allocateDirect(KEY_SIZE);
+                keyBuffers[i].put(keys[i].getValue()).flip();
+                Memory.copyFromArray(keys[i].getValue(), 0, keysAddress + (long) i * KEY_SIZE, KEY_SIZE);
+            }
+            Memory.copyFromArray(value.getValue(), 0, valueAddress, VALUE_SIZE);
+
+            final ByteBuffer valueBuffer = ByteBuffer.allocateDirect(VALUE_SIZE);
+            valueBuffer.put(value.getValue()).flip();
+            final ByteBuffer dst = ByteBuffer.allocateDirect(VALUE_SIZE);
+
+            measure(name, "get(ByteBuffer)", i -> sink = map.get(keyBuffers[i]));
+            measure(name, "get(long, int)", i -> sink = map.get(keysAddress + (long) i * KEY_SIZE, KEY_SIZE));
+            measureAllocationFree(name, "get(Binary, ByteBuffer)", i -> {
+                dst.clear();
+                primitiveSink = map.get(keys[i], dst);
+            });
+            measureAllocationFree(name, "get(ByteBuffer, ByteBuffer)", i -> {
+                dst.clear();
+                primitiveSink = map.get(keyBuffers[i], dst);
+            });
+            measureAllocationFree(name, "get(long, int, ByteBuffer)", i -> {
+                dst.clear();
+                primitiveSink = map.get(keysAddress + (long) i * KEY_SIZE, KEY_SIZE, dst);
+            });
+            measureAllocationFree(name, "containsKey(ByteBuffer)", i -> primitiveSink = map.containsKey(keyBuffers[i]) ? 1 : 0);
+            measureAllocationFree(name, "containsKey(long, int)", i -> primitiveSink = map.containsKey(keysAddress + (long) i * KEY_SIZE, KEY_SIZE) ? 1 : 0);
+            measureAllocationFree(name, "put(ByteBuffer, ByteBuffer)", i -> primitiveSink = map.put(keyBuffers[i], valueBuffer) ? 1 : 0);
+            measureAllocationFree(name, "put(long, int, long, int)", i -> primitiveSink = map.put(keysAddress + (long) i * KEY_SIZE, KEY_SIZE, valueAddress, VALUE_SIZE) ? 1 : 0);
+            measureAllocationFree(name, "remove(ByteBuffer) and put back", i -> {
+                primitiveSink = map.remove(keyBuffers[i]) ? 1 : 0;
+                map.put(keyBuffers[i], valueBuffer);
+            });
+            measureAllocationFree(name, "remove(long, int) and put back", i -> {
+                final long keyAddress = keysAddress + (long) i * KEY_SIZE;
+
+                primitiveSink = map.remove(keyAddress, KEY_SIZE) ? 1 : 0;
+                map.put(keyAddress, KEY_SIZE, valueAddress, VALUE_SIZE);
+            });
+            measure(name, "getUsedBytes", i -> primitiveSink = map.getUsedBytes());
+            measure(name, "getAllocatedBytes", i -> primitiveSink = map.getAllocatedBytes());
+            measure(name, "getEvictionCount", i -> primitiveSink = map.getEvictionCount());
+            measure(name, "getStats", ITERATIONS, 1, i -> sink = map.getStats());
+            measure(name, "writeSnapshot", ITERATIONS, ENTRIES, i -> {
+                try {
+                    map.writeSnapshot(new DiscardingChannel());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            final ReplayChannel snapshot = new ReplayChannel(map);
+            measure(name, "readSnapshot", ITERATIONS, ENTRIES, i -> {
+                try {
+                    snapshot.rewind();
+                    primitiveSink = map.readSnapshot(snapshot);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            measure(name, "put with ttl", i -> sink = map.put(keys[i], value, 3_600_000));
+            measure(name, "expire", i -> map.expire());
+        } finally {
+            Memory.UNSAFE.freeMemory(keysAddress);
+            Memory.UNSAFE.freeMemory(valueAddress);
+        }
+
+        map.clear();
+    }
+
+    /**
+     * Measures the Map methods on a map of String keys and values, which
+     * OHMap has to serialize.
+     */
+    private void measureObjectMap(String name, Map<String, String> map) {
+        final String[] objectKeys = new String[ENTRIES];
+        final String[] missingObjectKeys = new String[ENTRIES];
+        final String objectValue = new String(new char[VALUE_SIZE]).replace('\0', 'v');
+
+        for (int i = 0; i < ENTRIES; i++) {
+            objectKeys[i] = "key-" + i;
+            missingObjectKeys[i] = "missing-" + i;
+            map.put(objectKeys[i], objectValue);
+        }
+
+        final Map<String, String> single = Collections.singletonMap(missingObjectKeys[0], objectValue);
+
+        measure(name, "get hit", i -> sink = map.get(objectKeys[i]));
+        measure(name, "get miss", i -> sink = map.get(missingObjectKeys[i]));
+        measure(name, "containsKey", i -> primitiveSink = map.containsKey(objectKeys[i]) ? 1 : 0);
+        measure(name, "containsValue", ITERATIONS, 1, i -> primitiveSink = map.containsValue(missingObjectKeys[i]) ? 1 : 0);
+        measure(name, "put existing", i -> sink = map.put(objectKeys[i], objectValue));
+        measure(name, "remove and put back", i -> {
+            sink = map.remove(objectKeys[i]);
+            map.put(objectKeys[i], objectValue);
+        });
+        measure(name, "putAll single and remove", i -> {
+            map.putAll(single);
+            sink = map.remove(missingObjectKeys[0]);
+        });
+        measure(name, "size", i -> primitiveSink = map.size());
+        measure(name, "isEmpty", i -> primitiveSink = map.isEmpty() ? 1 : 0);
+        measure(name, "keySet iteration", ITERATIONS, ENTRIES, i -> {
+            for (String key : map.keySet()) {
+                sink = key;
+            }
+        });
+        measure(name, "values iteration", ITERATIONS, ENTRIES, i -> {
+            for (String v : map.values()) {
+                sink = v;
+            }
+        });
+        measure(name, "entrySet iteration", ITERATIONS, ENTRIES, i -> {
+            for (Entry<String, String> entry : map.entrySet()) {
+                sink = entry.getKey();
+                sink = entry.getValue();
+            }
+        });
+        measure(name, "clear and put", ITERATIONS, 1, i -> {
+            map.clear();
+            map.put(objectKeys[i], objectValue);
+        });
+
+        map.clear();
+    }
+
+    private void print(PrintStream out) {
+        for (String[] result : results) {
+            out.printf("%-24s %-36s %12s bytes/op%n", result[0], result[1], result[2]);
+        }
+    }
+
+    private void writeCsv(PrintStream out) {
+        out.println("map,method,bytesPerOp");
+
+        for (String[] result : results) {
+            out.println(result[0] + "," + result[1] + "," + result[2]);
+        }
+    }
+
+    /**
+     * A channel reading a snapshot of the given map, written up front, over
+     * and over again.
+     */
+    private static class ReplayChannel implements ReadableByteChannel {
+        private final ByteBuffer snapshot;
+
+        ReplayChannel(BOHMap map) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            map.writeSnapshot(Channels.newChannel(out));
+
+            snapshot = ByteBuffer.wrap(out.toByteArray());
+        }
+
+        void rewind() {
+            snapshot.rewind();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!snapshot.hasRemaining())
+                return -1;
+
+            final int size = Math.min(dst.remaining(), snapshot.remaining());
+            final int limit = snapshot.limit();
+
+            snapshot.limit(snapshot.position() + size);
+            dst.put(snapshot);
+            snapshot.limit(limit);
+
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A channel throwing away everything written to it.
+     */
+    private static class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            final int remaining = src.remaining();
+            src.position(src.limit());
+
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
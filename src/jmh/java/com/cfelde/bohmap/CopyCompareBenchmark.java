@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the byte by byte Unsafe loops BOHMap used to copy and compare
+ * keys and values with the bulk copy and word-wise compare in Memory.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyCompareBenchmark {
+    @Param({"16", "256", "1024", "4096"})
+    public int size;
+
+    private byte[] data;
+    private byte[] target;
+    private long address;
+
+    private BOHMap map;
+    private Binary key;
+    private ByteBuffer buffer;
+    private ByteBuffer keyBuffer;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        data = new byte[size];
+        random.nextBytes(data);
+        target = new byte[size];
+
+        address = Memory.UNSAFE.allocateMemory(size);
+        Memory.copyFromArray(data, 0, address, size);
+
+        map = new BOHMap(1024);
+        key = new Binary(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        map.put(key, new Binary(data));
+        buffer = ByteBuffer.allocateDirect(size);
+        keyBuffer = ByteBuffer.allocateDirect(key.getValue().length);
+        keyBuffer.put(key.getValue()).flip();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Memory.UNSAFE.freeMemory(address);
+        map.close();
+    }
+
+    @Benchmark
+    public byte[] copyToArrayByteLoop() {
+        for (int offset = 0; offset < size; offset++) {
+            target[offset] = Memory.UNSAFE.getByte(address + offset);
+        }
+
+        return target;
+    }
+
+    @Benchmark
+    public byte[] copyToArrayBulk() {
+        Memory.copyToArray(address, target, 0, size);
+
+        return target;
+    }
+
+    @Benchmark
+    public long copyFromArrayByteLoop() {
+        for (int offset = 0; offset < size; offset++) {
+            Memory.UNSAFE.putByte(address + offset, data[offset]);
+        }
+
+        return address;
+    }
+
+    @Benchmark
+    public long copyFromArrayBulk() {
+        Memory.copyFromArray(data, 0, address, size);
+
+        return address;
+    }
+
+    @Benchmark
+    public boolean compareByteLoop() {
+        for (int offset = 0; offset < size; offset++) {
+            if (data[offset] != Memory.UNSAFE.getByte(address + offset))
+                return false;
+        }
+
+        return true;
+    }
+
+    @Benchmark
+    public boolean compareWords() {
+        return Memory.equals(data, address);
+    }
+
+    @Benchmark
+    public Binary mapGet() {
+        return map.get(key);
+    }
+
+    @Benchmark
+    public int mapGetIntoBuffer() {
+        buffer.clear();
+
+        return map.get(key, buffer);
+    }
+
+    @Benchmark
+    public int mapGetBufferKeyIntoBuffer() {
+        buffer.clear();
+
+        return map.get(keyBuffer, buffer);
+    }
+}
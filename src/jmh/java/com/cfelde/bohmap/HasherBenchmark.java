@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the built-in hashers with Arrays::hashCode, hashing both a byte
+ * array and the same bytes off heap.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HasherBenchmark {
+    @Param({"8", "16", "64", "256", "4096"})
+    public int size;
+
+    private final BinaryHasher xxHash64 = new XXHash64Hasher();
+    private final BinaryHasher wyhash = new WyHasher();
+    private final BinaryHasher murmur3 = new Murmur3Hasher();
+
+    private byte[] data;
+    private long address;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+
+        address = Memory.UNSAFE.allocateMemory(size);
+        Memory.copyFromArray(data, 0, address, size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Memory.UNSAFE.freeMemory(address);
+    }
+
+    @Benchmark
+    public int arraysHashCode() {
+        return Arrays.hashCode(data);
+    }
+
+    @Benchmark
+    public long defaultAddress() {
+        return BinaryHasher.DEFAULT.hash(address, size);
+    }
+
+    @Benchmark
+    public long xxHash64Array() {
+        return xxHash64.hash(data);
+    }
+
+    @Benchmark
+    public long xxHash64Address() {
+        return xxHash64.hash(address, size);
+    }
+
+    @Benchmark
+    public long wyhashArray() {
+        return wyhash.hash(data);
+    }
+
+    @Benchmark
+    public long wyhashAddress() {
+        return wyhash.hash(address, size);
+    }
+
+    @Benchmark
+    public long murmur3Array() {
+        return murmur3.hash(data);
+    }
+
+    @Benchmark
+    public long murmur3Address() {
+        return murmur3.hash(address, size);
+    }
+}
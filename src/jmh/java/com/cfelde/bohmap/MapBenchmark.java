@@ -0,0 +1,242 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Compares get, put, remove and iteration on the binary off-heap maps with
+ * HashMap and ConcurrentHashMap holding the same Binary keys and values.
+ *
+ * The map is shared by all benchmark threads, so thread counts can be
+ * varied with the JMH -t option. Maps that are not thread-safe are wrapped
+ * with Collections.synchronizedMap when run with more than one thread.
+ *
+ * Lookups are made with a mix of keys in the map and keys never put,
+ * as given by the hit ratio. The partition count only applies to BOHMap
+ * and ConcurrentBOHMap, the other maps are sized for the number of entries,
+ * so narrow it down with -p when comparing the others.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+    @Param({"bohmap", "concurrentbohmap", "probingbohmap", "hashmap", "concurrenthashmap"})
+    public String impl;
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"8", "32"})
+    public int keySize;
+
+    @Param({"16", "256", "1024"})
+    public int valueSize;
+
+    @Param({"1024", "131072"})
+    public int partitionCount;
+
+    @Param({"1.0", "0.5"})
+    public double hitRatio;
+
+    private Map<Binary, Binary> map;
+    private Map<Binary, Binary> unwrapped;
+    private Binary[] keys;
+    private Binary[] missingKeys;
+    private Binary[] lookups;
+    private Binary value;
+    private boolean synchronizedMap;
+
+    /**
+     * Where each benchmark thread is in the key arrays.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setUp() {
+            next = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+        }
+
+        int next(int bound) {
+            next = next + 1 == Integer.MAX_VALUE ? 0 : next + 1;
+
+            return next % bound;
+        }
+    }
+
+    @Setup
+    public void setUp(BenchmarkParams params) {
+        final Random random = new Random(42);
+
+        keys = new Binary[size];
+        missingKeys = new Binary[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = key(random, i);
+            missingKeys[i] = key(random, size + i);
+        }
+
+        final byte[] data = new byte[valueSize];
+        random.nextBytes(data);
+        value = new Binary(data);
+
+        final int hits = (int) (size * hitRatio);
+
+        lookups = new Binary[size];
+        for (int i = 0; i < size; i++) {
+            lookups[i] = i < hits ? keys[i] : missingKeys[i];
+        }
+        Collections.shuffle(Arrays.asList(lookups), random);
+
+        map = unwrapped = createMap(impl, partitionCount, size);
+        synchronizedMap = params.getThreads() > 1 && !(map instanceof ConcurrentHashMap) && !(map instanceof ConcurrentBOHMap);
+        if (synchronizedMap)
+            map = Collections.synchronizedMap(map);
+
+        for (Binary key : keys) {
+            map.put(key, value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        map.clear();
+
+        if (unwrapped instanceof AutoCloseable)
+            ((AutoCloseable) unwrapped).close();
+    }
+
+    /**
+     * Returns a map of the given kind, sized for the given number of entries
+     * where the implementation takes an initial size.
+     */
+    static Map<Binary, Binary> createMap(String impl, int partitionCount, int size) {
+        switch (impl) {
+            case "bohmap":
+                return new BOHMap(partitionCount);
+            case "concurrentbohmap":
+                return new ConcurrentBOHMap(partitionCount);
+            case "probingbohmap":
+                return new ProbingBOHMap(size);
+            case "hashmap":
+                return new HashMap<>(size);
+            case "concurrenthashmap":
+                return new ConcurrentHashMap<>(size);
+            default:
+                throw new IllegalArgumentException("Unknown map: " + impl);
+        }
+    }
+
+    /**
+     * Returns a key of the current key size, unique to the given index.
+     */
+    private Binary key(Random random, int index) {
+        final byte[] data = new byte[keySize];
+        random.nextBytes(data);
+        ByteBuffer.wrap(data).putInt(index);
+
+        return new Binary(data);
+    }
+
+    @Benchmark
+    public Binary get(Cursor cursor) {
+        return map.get(lookups[cursor.next(size)]);
+    }
+
+    @Benchmark
+    public boolean containsKey(Cursor cursor) {
+        return map.containsKey(lookups[cursor.next(size)]);
+    }
+
+    @Benchmark
+    public Binary putExisting(Cursor cursor) {
+        return map.put(keys[cursor.next(size)], value);
+    }
+
+    @Benchmark
+    public Binary putAndRemove(Cursor cursor) {
+        final Binary key = missingKeys[cursor.next(size)];
+
+        map.put(key, value);
+
+        return map.remove(key);
+    }
+
+    @Benchmark
+    public Binary removeAndPut(Cursor cursor) {
+        final Binary key = keys[cursor.next(size)];
+        final Binary old = map.remove(key);
+
+        // Put back for the next round, unless another thread beat us to it
+        if (old != null)
+            map.put(key, old);
+
+        return old;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long iterate() {
+        // Synchronized maps must be held while iterating
+        if (synchronizedMap) {
+            synchronized (map) {
+                return sumValueSizes();
+            }
+        }
+
+        return sumValueSizes();
+    }
+
+    private long sumValueSizes() {
+        long bytes = 0;
+
+        for (Entry<Binary, Binary> entry : map.entrySet()) {
+            bytes += entry.getValue().getValue().length;
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Compares OHMap, paying for Java serialization on every call, with
+ * HashMap and ConcurrentHashMap holding the same String keys and values.
+ *
+ * As with MapBenchmark, the map is shared by all benchmark threads, each
+ * with its own cursor, and maps that are not thread-safe are wrapped with
+ * Collections.synchronizedMap when run with more than one thread. The key
+ * size is in chars, and the partition count only applies to OHMap.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OHMapBenchmark {
+    @Param({"ohmap", "hashmap", "concurrenthashmap"})
+    public String impl;
+
+    @Param({"10000"})
+    public int size;
+
+    @Param({"8", "32"})
+    public int keySize;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    @Param({"1024", "16384"})
+    public int partitionCount;
+
+    @Param({"1.0", "0.5"})
+    public double hitRatio;
+
+    private Map<String, String> map;
+    private Map<String, String> unwrapped;
+    private String[] keys;
+    private String[] lookups;
+    private String value;
+    private boolean synchronizedMap;
+
+    @Setup
+    public void setUp(BenchmarkParams params) {
+        final Random random = new Random(42);
+
+        keys = new String[size];
+        final String[] missingKeys = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = key(random, i);
+            missingKeys[i] = key(random, size + i);
+        }
+
+        final int hits = (int) (size * hitRatio);
+
+        lookups = new String[size];
+        for (int i = 0; i < size; i++) {
+            lookups[i] = i < hits ? keys[i] : missingKeys[i];
+        }
+        Collections.shuffle(Arrays.asList(lookups), random);
+
+        value = letters(random, valueSize);
+
+        switch (impl) {
+            case "ohmap":
+                map = new OHMap<>(partitionCount);
+                break;
+            case "hashmap":
+                map = new HashMap<>(size);
+                break;
+            case "concurrenthashmap":
+                map = new ConcurrentHashMap<>(size);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown map: " + impl);
+        }
+
+        unwrapped = map;
+        synchronizedMap = params.getThreads() > 1 && !(map instanceof ConcurrentHashMap);
+        if (synchronizedMap)
+            map = Collections.synchronizedMap(map);
+
+        for (String key : keys) {
+            map.put(key, value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        map.clear();
+
+        if (unwrapped instanceof AutoCloseable)
+            ((AutoCloseable) unwrapped).close();
+    }
+
+    /**
+     * Returns a key of the current key size, unique to the given index.
+     */
+    private String key(Random random, int index) {
+        final String prefix = index + "-";
+
+        return prefix + letters(random, Math.max(keySize - prefix.length(), 0));
+    }
+
+    private static String letters(Random random, int length) {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+
+        return new String(chars);
+    }
+
+    @Benchmark
+    public String get(MapBenchmark.Cursor cursor) {
+        return map.get(lookups[cursor.next(size)]);
+    }
+
+    @Benchmark
+    public boolean containsKey(MapBenchmark.Cursor cursor) {
+        return map.containsKey(lookups[cursor.next(size)]);
+    }
+
+    @Benchmark
+    public String put(MapBenchmark.Cursor cursor) {
+        return map.put(keys[cursor.next(size)], value);
+    }
+
+    @Benchmark
+    public String removeAndPut(MapBenchmark.Cursor cursor) {
+        final String key = keys[cursor.next(size)];
+        final String old = map.remove(key);
+
+        // Put back for the next round, unless another thread beat us to it
+        if (old != null)
+            map.put(key, old);
+
+        return old;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long iterate() {
+        // Synchronized maps must be held while iterating
+        if (synchronizedMap) {
+            synchronized (map) {
+                return sumValueLengths();
+            }
+        }
+
+        return sumValueLengths();
+    }
+
+    private long sumValueLengths() {
+        long chars = 0;
+
+        for (Entry<String, String> entry : map.entrySet()) {
+            chars += entry.getValue().length();
+        }
+
+        return chars;
+    }
+}
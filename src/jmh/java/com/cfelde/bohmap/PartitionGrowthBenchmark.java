@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fills a map with a fixed partition count, and so ever longer partitions,
+ * and then churns through puts and removes. Keys are either spread evenly
+ * or drawn from a skewed distribution where a few partitions get most of
+ * the keys, which is where reallocating the partition on every insert and
+ * remove hurts the most. The slab allocator copies on every reallocation,
+ * where the system allocator may often resize in place.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionGrowthBenchmark {
+    private static final int KEY_COUNT = 4096;
+
+    @Param({"16", "1024"})
+    public int partitionCount;
+
+    @Param({"uniform", "skewed"})
+    public String distribution;
+
+    @Param({"unsafe", "slab"})
+    public String allocator;
+
+    private Binary[] keys;
+    private Binary value;
+    private BOHMap map;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+
+        keys = new Binary[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            // Most skewed keys hash to one of eight partitions
+            final int hash = "skewed".equals(distribution) && random.nextInt(10) != 0 ? random.nextInt(8) : random.nextInt();
+            keys[i] = new Binary(new byte[] {(byte) (hash >>> 24), (byte) (hash >>> 16), (byte) (hash >>> 8), (byte) hash, (byte) i, (byte) (i >>> 8)});
+        }
+
+        final byte[] data = new byte[32];
+        random.nextBytes(data);
+        value = new Binary(data);
+
+        // Takes the key's first four bytes as its hash, big-endian as written
+        final BinaryHasher hasher = new BinaryHasher() {
+            @Override
+            public long hash(byte[] data, int offset, int length) {
+                return toBigEndian(Memory.UNSAFE.getInt(data, Memory.BYTE_ARRAY_OFFSET + offset)) & 0xFFFFFFFFL;
+            }
+
+            @Override
+            public long hash(long address, int length) {
+                return toBigEndian(Memory.UNSAFE.getInt(address)) & 0xFFFFFFFFL;
+            }
+        };
+
+        map = new BOHMap(partitionCount, Float.POSITIVE_INFINITY, hasher, "slab".equals(allocator) ? new SlabAllocator() : new UnsafeAllocator());
+        next = 0;
+    }
+
+    private static int toBigEndian(int nativeInt) {
+        return ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? nativeInt : Integer.reverseBytes(nativeInt);
+    }
+
+    @TearDown
+    public void tearDown() {
+        map.close();
+    }
+
+    @Benchmark
+    public int fill() {
+        map.clear();
+
+        for (Binary key : keys) {
+            map.put(key, value);
+        }
+
+        return map.size();
+    }
+
+    @Benchmark
+    public Binary churn() {
+        final Binary key = keys[next];
+        next = (next + 1) % KEY_COUNT;
+
+        // Half the time the key is there and goes away, otherwise comes back
+        final Binary old = map.remove(key);
+
+        if (old == null)
+            map.put(key, value);
+
+        return old;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+/**
+ * Provides off-heap memory to {@code BOHMap} and {@code ProbingBOHMap}.
+ *
+ * The size of a block must be given again when it is reallocated or freed,
+ * which lets implementations avoid keeping their own per-block headers.
+ *
+ * An allocator belongs to a single map and, like the maps, is not
+ * thread-safe.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public interface Allocator {
+    /**
+     * Allocates a block of uninitialized memory.
+     *
+     * @param size Size in bytes
+     * @return Address of the block
+     */
+    long allocate(long size);
+
+    /**
+     * Resizes a block, keeping its content up to the smaller of the two sizes.
+     *
+     * @param address Address of the block
+     * @param oldSize Size the block was allocated with
+     * @param newSize New size in bytes
+     * @return Address of the resized block, which may have moved
+     */
+    long reallocate(long address, long oldSize, long newSize);
+
+    /**
+     * Frees a block.
+     *
+     * @param address Address of the block
+     * @param size Size the block was allocated with
+     */
+    void free(long address, long size);
+
+    /**
+     * Returns all memory held by this allocator back to the system. Any
+     * blocks not yet freed become invalid.
+     */
+    void release();
+
+    /**
+     * @return Number of bytes currently reserved from the system
+     */
+    long getAllocatedBytes();
+
+    /**
+     * @return Number of bytes currently handed out and not yet freed
+     */
+    long getUsedBytes();
+}
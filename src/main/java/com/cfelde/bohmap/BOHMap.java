@@ -16,7 +16,10 @@
  */
 package com.cfelde.bohmap;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
@@ -24,25 +27,27 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Function;
 
 import sun.misc.Unsafe;
 
 /**
- * Uses off-heap memory (i.e., memory not managed by GC) to store 
+ * Uses off-heap memory (i.e., memory not managed by GC) to store
  * binary keys and values.
  *
  * The internal memory structure is as follows:
  *
  * A set of partitions (like in a hash map) are used where map entries are
- * mapped to one of these. The number of partitions are specified at map
- * construction, and should be scaled according to the expected number of
- * entries stored in the map. Too few partitions and performance will suffer,
- * too many and you're wasting memory.
+ * mapped to one of these. The initial number of partitions are specified at
+ * map construction, and should be scaled according to the expected number of
+ * entries stored in the map. Once the number of entries grows past the number
+ * of partitions times the load factor, the partition table is doubled in size.
  *
  * By default the hash of the key using Arrays::hashCode is used to
- * determin the location of the entry. But alternative hash code functions
- * can be used during map construction.
+ * determin the location of the entry. But alternative hashers can be used
+ * during map construction. A BinaryHasher hashes keys given as a byte array,
+ * buffer or address in place, without boxing.
  *
  * The partition address points to the first address location of the
  * first partition. This address will be zero if the partition has yet to be
@@ -50,28 +55,176 @@ import sun.misc.Unsafe;
  * 8 bytes down (assuming 64-bit addressing, otherwise 4 bytes).
  *
  * At the partition location, an int (4 bytes) will first announce the
- * size of the partition. Thereafter two address values are used
- * to indicate the address of the entry key and the entry value.
+ * number of entries in the partition, followed by an int announcing how
+ * many entries there is room for. The room doubles whenever a full
+ * partition needs one more entry, and is only halved once no more than a
+ * quarter of it is in use, so a run of inserts or removes does not
+ * reallocate the partition each time. Thereafter each entry holds the key
+ * hash (an int), the key size (an int), 24 bytes for the entry record,
+ * and the expiry time of the entry (a long, zero if it never expires).
+ * Keeping the hash and key size next to the record lets lookups skip most
+ * non-matching entries without touching record memory, and lets the
+ * partition table grow without calling the hash function again.
  *
- * At the entry key and entry value locations, an int is again used to
- * announce the size (in bytes) of either the key or value.
+ * The entry record holds both key and value in a single allocation. Three
+ * ints announce the key size, the value size (-1 for a null value) and the
+ * room there is for the value, followed by the key and value bytes. So an
+ * insert allocates once, and a read follows a single address to get at both
+ * key and value. A value replaced by one that fits the room of the old
+ * value, while using at least half of it, is written in place.
+ *
+ * Where key and value together take up no more than 23 bytes, the record
+ * is held inline, in the 24 bytes of the entry otherwise holding the record
+ * address. A byte announcing the value size plus one (zero for a null
+ * value) is followed by the key and value bytes, and the second highest bit
+ * of the key size is set. Such entries need no allocation of their own, and
+ * a read never leaves the partition. Records move in and out of the entry
+ * as their values change size. A map can be created without inline
+ * records, its entries then holding just the 8 byte record address, for
+ * 24 byte entries rather than 40 when few records are small enough.
+ *
+ * All memory is taken from the map's {@code Allocator}. By default this is
+ * an {@code UnsafeAllocator}, using malloc for every record and partition,
+ * but a {@code SlabAllocator} can be given at construction to
+ * cut down on malloc overhead and fragmentation with many small entries.
+ *
+ * When the partition table grows, the previous table is kept around while
+ * its partitions are moved over to the new table, a few partitions at a time
+ * on each put and remove. Partitions in the old table below the migration
+ * offset have been moved, the rest have not. This avoids having a single
+ * put pause while every entry in the map is rehashed.
+ *
+ * Entries put with a time to live are expired lazily, as reads treat an
+ * entry past its expiry time as missing, and writes reclaim it. A timer
+ * wheel, moved forward on each write, also reclaims expired entries
+ * without being asked, looking only at the entries due.
+ *
+ * A map can be given a budget for the memory used by its keys, values and
+ * partitions. Once a put takes the map over budget, entries are evicted
+ * until it's back within, picked using the CLOCK algorithm. Each entry has
+ * a reference bit, set when the entry is put or looked up, kept in the top
+ * bit of the key size held by the entry. A clock hand moves over the
+ * partitions, old table first while growing, clearing the bit of each
+ * entry it passes, and evicts the first entry found without it. Entries in
+ * use are so given a second chance, and the hand picks up where it left
+ * off, so no eviction needs to scan the whole map.
+ *
+ * The map should be closed once no longer needed, freeing all its memory
+ * right away. A map that's never closed has its memory freed some time
+ * after it's garbage collected, but as GC doesn't see the off-heap memory,
+ * that may take a long time.
  *
  * No attampts are made at making this map implementation thread-safe, but
- * concurrent read operations will not cause any concurrency issues.
+ * concurrent read operations will not cause any concurrency issues. This
+ * holds unless lookup counting is enabled, as every lookup then writes
+ * to the map.
  *
  * The map accepts null values but not null keys.
  *
  * @author cfelde (Christian Felde, cfelde.com)
  */
-public class BOHMap implements Map<Binary, Binary> {
+public class BOHMap implements Map<Binary, Binary>, AutoCloseable {
+    /**
+     * Default average number of entries per partition before the
+     * partition table grows.
+     */
+    public static final float DEFAULT_LOAD_FACTOR = 1.0f;
+
+    private static final int MAX_PARTITION_COUNT = 1 << 30;
+
+    // Number of old partitions moved over on each put or remove while growing
+    private static final int MIGRATION_STEP = 8;
+
+    // Entries the partition table is first presized for when reading a
+    // snapshot, doubling as more are read
+    private static final int PRESIZE_STEP = 1 << 16;
+
+    // Offsets within a partition, with the entry count and the number of
+    // entries there's room for ahead of the entries themselves
+    private static final int PARTITION_COUNT_OFFSET = 0;
+    private static final int PARTITION_CAPACITY_OFFSET = Integer.BYTES;
+    private static final int PARTITION_HEADER_SIZE = Integer.BYTES * 2;
+
+    // Offsets within a partition entry, with 24 bytes for either the record
+    // address or a record held inline, or just the record address in maps
+    // not holding records inline
+    private static final int HASH_OFFSET = 0;
+    private static final int KEY_SIZE_OFFSET = Integer.BYTES;
+    private static final int RECORD_OFFSET = Integer.BYTES * 2;
+    private static final int INLINE_EXPIRY_OFFSET = RECORD_OFFSET + 24;
+    private static final int EXPIRY_OFFSET = RECORD_OFFSET + Long.BYTES;
+
+    // Room for a record held inline, past the byte holding its value size
+    private static final int INLINE_SIZE = INLINE_EXPIRY_OFFSET - RECORD_OFFSET - 1;
+
+    // Offsets within an entry record, with the key right after the header
+    // and the value right after the key
+    private static final int RECORD_KEY_SIZE_OFFSET = 0;
+    private static final int RECORD_VALUE_SIZE_OFFSET = Integer.BYTES;
+    private static final int RECORD_CAPACITY_OFFSET = Integer.BYTES * 2;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 3;
+
+    // Top bit of the key size in an entry, set when recently used
+    private static final int REFERENCED = Integer.MIN_VALUE;
+
+    // Second highest bit of the key size in an entry, set when the record
+    // is held inline, leaving the bits below for the key size itself
+    private static final int INLINED = 1 << 30;
+    private static final int KEY_SIZE_MASK = INLINED - 1;
+
+    // Low bit set on the address of an entry holding its record inline,
+    // to tell it apart from a record address, as entries and records are
+    // both at even addresses
+    private static final long INLINE_RECORD = 1;
+
+    /**
+     * Largest key size in bytes, as the top bits of the key size of each
+     * entry are used for flags.
+     */
+    public static final int MAX_KEY_SIZE = KEY_SIZE_MASK;
+
     private final Unsafe unsafe;
     private final int addressSize;
-    private final int partitionCount;
-    private final long partitionAddress;
-    private final Function<byte[], Integer> hashFunction;
+    private final int entrySize;
+    private final int expiryOffset;
+    private final boolean inlineRecords;
+    private final float loadFactor;
+    private final BinaryHasher hasher;
+    private final Allocator allocator;
+    private final long maxBytes;
+    private final EvictionListener evictionListener;
+    private final TimerWheel timerWheel;
+    private final TimerWheel.Expirer expirer;
+    private final Resources resources;
+    private final OffHeapCleaner.Cleanable cleanable;
+
+    private int partitionCount;
+    private long partitionAddress;
+    private long growThreshold;
+
+    private int oldPartitionCount;
+    private long oldPartitionAddress;
+    private int migrationOffset;
 
     private long itemCount;
 
+    // Position of the clock hand, as partition table (0 for the old one),
+    // partition and entry within the partition
+    private int clockTable = 1;
+    private int clockOffset;
+    private int clockEntry;
+
+    private long evictionCount;
+
+    // Operation counts, as reported by getStats, lookups only if enabled
+    private boolean lookupCounting;
+    private long lookupCount;
+    private long lookupHitCount;
+    private long putCount;
+    private long removeCount;
+    private long expirationCount;
+    private long growCount;
+
     /**
      * Create a new binary off-heap hash map with the specified number of
      * partitions. Assuming a uniform distribution of key hashes each partition
@@ -85,7 +238,7 @@ public class BOHMap implements Map<Binary, Binary> {
      * @param partitionCount A positive number of partitions
      */
     public BOHMap(int partitionCount) {
-        this(partitionCount, Arrays::hashCode);
+        this(partitionCount, BinaryHasher.DEFAULT);
     }
 
     /**
@@ -100,507 +253,2000 @@ public class BOHMap implements Map<Binary, Binary> {
      * @param hashFunction Hash function to use when calculating key hashes
      */
     public BOHMap(int partitionCount, Function<byte[], Integer> hashFunction) {
-        this.unsafe = getUnsafe();
-        this.addressSize = unsafe.addressSize();
-        this.partitionCount = partitionCount;
-        this.hashFunction = hashFunction;
+        this(partitionCount, DEFAULT_LOAD_FACTOR, hashFunction);
+    }
 
-        this.partitionAddress = allocate(this.partitionCount * addressSize, true);
+    /**
+     * Create a new binary off-heap hash map with the specified number of
+     * partitions, using the given hasher to calculate key hashes.
+     *
+     * @param partitionCount A positive number of partitions
+     * @param hasher Hasher to use when calculating key hashes
+     */
+    public BOHMap(int partitionCount, BinaryHasher hasher) {
+        this(partitionCount, DEFAULT_LOAD_FACTOR, hasher, new UnsafeAllocator());
     }
 
-    private Unsafe getUnsafe() {
-        try {
-            Field singleoneInstanceField = Unsafe.class.getDeclaredField("theUnsafe");
-            singleoneInstanceField.setAccessible(true);
-            return (Unsafe) singleoneInstanceField.get(null);
-        } catch (IllegalArgumentException | SecurityException | NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException(e.getMessage(), e);
+    /**
+     * Create a new binary off-heap hash map with the specified initial number
+     * of partitions and load factor.
+     *
+     * When the number of entries exceeds the number of partitions times the
+     * load factor, the partition table is doubled in size. Existing entries
+     * are moved over to the new table incrementally on later put and remove
+     * calls. A load factor of Float.POSITIVE_INFINITY disables growth.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param loadFactor Average number of entries per partition before growing
+     * @param hashFunction Hash function to use when calculating key hashes
+     */
+    public BOHMap(int partitionCount, float loadFactor, Function<byte[], Integer> hashFunction) {
+        this(partitionCount, loadFactor, hashFunction, new UnsafeAllocator());
+    }
+
+    /**
+     * Create a new binary off-heap hash map with the specified initial number
+     * of partitions and load factor, taking all its memory from the given
+     * allocator.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param loadFactor Average number of entries per partition before growing
+     * @param hashFunction Hash function to use when calculating key hashes
+     * @param allocator Allocator used for keys, values and partitions
+     */
+    public BOHMap(int partitionCount, float loadFactor, Function<byte[], Integer> hashFunction, Allocator allocator) {
+        this(partitionCount, loadFactor, BinaryHasher.fromFunction(hashFunction), allocator);
+    }
+
+    /**
+     * Create a new binary off-heap hash map with the specified initial number
+     * of partitions and load factor, using the given hasher to calculate key
+     * hashes and taking all its memory from the given allocator.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param loadFactor Average number of entries per partition before growing
+     * @param hasher Hasher to use when calculating key hashes
+     * @param allocator Allocator used for keys, values and partitions
+     */
+    public BOHMap(int partitionCount, float loadFactor, BinaryHasher hasher, Allocator allocator) {
+        this(partitionCount, loadFactor, hasher, allocator, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Create a new binary off-heap hash map with the specified initial number
+     * of partitions and load factor, keeping the memory used for its keys,
+     * values and partitions within the given budget.
+     *
+     * Whenever a put takes the map over budget, entries are evicted until
+     * it's back within, as reported to the eviction listener. An entry too
+     * large to ever fit is evicted right away, replacing and so removing
+     * any previous mapping for its key. The budget is measured by the used
+     * bytes of the allocator, so memory an allocator holds on to for reuse
+     * isn't counted.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param loadFactor Average number of entries per partition before growing
+     * @param hasher Hasher to use when calculating key hashes
+     * @param allocator Allocator used for keys, values and partitions
+     * @param maxBytes A positive budget in bytes, or Long.MAX_VALUE for none
+     * @param evictionListener Listener told about evicted entries, or null
+     */
+    public BOHMap(int partitionCount, float loadFactor, BinaryHasher hasher, Allocator allocator, long maxBytes, EvictionListener evictionListener) {
+        this(partitionCount, loadFactor, hasher, allocator, maxBytes, evictionListener, true);
+    }
+
+    /**
+     * Create a new binary off-heap hash map as above, choosing whether
+     * small records are held inline.
+     *
+     * Holding records of up to 23 bytes of key and value inline saves an
+     * allocation and a pointer chase for each, but takes 40 bytes for every
+     * entry rather than 24. A map with few records that small is better off
+     * without.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param loadFactor Average number of entries per partition before growing
+     * @param hasher Hasher to use when calculating key hashes
+     * @param allocator Allocator used for keys, values and partitions
+     * @param maxBytes A positive budget in bytes, or Long.MAX_VALUE for none
+     * @param evictionListener Listener told about evicted entries, or null
+     * @param inlineRecords True to hold small records inline
+     */
+    public BOHMap(int partitionCount, float loadFactor, BinaryHasher hasher, Allocator allocator, long maxBytes, EvictionListener evictionListener, boolean inlineRecords) {
+        if (partitionCount <= 0)
+            throw new IllegalArgumentException("partitionCount must be positive");
+
+        if (!(loadFactor > 0))
+            throw new IllegalArgumentException("loadFactor must be positive");
+
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+
+        this.unsafe = Memory.UNSAFE;
+        this.addressSize = unsafe.addressSize();
+        this.expiryOffset = inlineRecords ? INLINE_EXPIRY_OFFSET : EXPIRY_OFFSET;
+        this.entrySize = expiryOffset + Long.BYTES;
+        this.inlineRecords = inlineRecords;
+        this.loadFactor = loadFactor;
+        this.hasher = hasher;
+        this.allocator = allocator;
+        this.maxBytes = maxBytes;
+        this.evictionListener = evictionListener;
+        this.timerWheel = new TimerWheel(System.currentTimeMillis());
+        this.expirer = this::expireEntry;
+
+        this.partitionCount = Math.min(partitionCount, MAX_PARTITION_COUNT);
+        this.partitionAddress = allocate((long) this.partitionCount * addressSize, true);
+        this.growThreshold = getGrowThreshold(this.partitionCount);
+
+        this.resources = new Resources(allocator, addressSize, entrySize);
+        this.cleanable = OffHeapCleaner.register(this, resources);
+
+        trackTables();
+    }
+
+    /**
+     * Everything needed to free the memory of a map, without referring to
+     * the map itself, so it can be run by the cleaner once the map is
+     * unreachable.
+     */
+    private static final class Resources implements Runnable {
+        private final Allocator allocator;
+        private final int addressSize;
+        private final int entrySize;
+
+        // Copies of the partition table fields of the map
+        private long partitionAddress;
+        private int partitionCount;
+        private long oldPartitionAddress;
+        private int oldPartitionCount;
+
+        private Resources(Allocator allocator, int addressSize, int entrySize) {
+            this.allocator = allocator;
+            this.addressSize = addressSize;
+            this.entrySize = entrySize;
+        }
+
+        @Override
+        public void run() {
+            final Unsafe unsafe = Memory.UNSAFE;
+
+            // For each partition table, where partitions already moved over
+            // from the old one have a zero address..
+            final long[] tableAddresses = {oldPartitionAddress, partitionAddress};
+            final int[] tableCounts = {oldPartitionCount, partitionCount};
+
+            for (int table = 0; table < tableAddresses.length; table++) {
+                if (tableAddresses[table] == 0)
+                    continue;
+
+                // ..free each partition and its entries..
+                for (long offset = 0; offset < tableCounts[table]; offset++) {
+                    final long locationAddress = unsafe.getAddress(tableAddresses[table] + (offset * addressSize));
+
+                    if (locationAddress == 0)
+                        continue;
+
+                    final int entryCount = unsafe.getInt(locationAddress);
+
+                    for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+                        final long entryAddress = locationAddress + PARTITION_HEADER_SIZE + (locationOffset * entrySize);
+
+                        // Records held inline go with the partition
+                        if ((unsafe.getInt(entryAddress + KEY_SIZE_OFFSET) & INLINED) != 0)
+                            continue;
+
+                        final long recordAddress = unsafe.getAddress(entryAddress + RECORD_OFFSET);
+
+                        allocator.free(recordAddress, getRecordSize(recordAddress));
+                    }
+
+                    final int capacity = unsafe.getInt(locationAddress + PARTITION_CAPACITY_OFFSET);
+
+                    allocator.free(locationAddress, PARTITION_HEADER_SIZE + ((long) capacity * entrySize));
+                }
+
+                // ..and then the table itself
+                allocator.free(tableAddresses[table], (long) tableCounts[table] * addressSize);
+            }
+
+            // And anything the allocator still holds on to
+            allocator.release();
         }
     }
 
+    /**
+     * Keeps the copies of the partition table fields used by the cleaner
+     * up to date. Called whenever a partition table is allocated or freed.
+     */
+    private void trackTables() {
+        resources.partitionAddress = partitionAddress;
+        resources.partitionCount = partitionCount;
+        resources.oldPartitionAddress = oldPartitionAddress;
+        resources.oldPartitionCount = oldPartitionCount;
+    }
+
+    /**
+     * Fails fast on any use of a closed map, rather than touching memory
+     * already freed.
+     */
+    private void checkOpen() {
+        if (partitionAddress == 0)
+            throw new IllegalStateException("Map is closed");
+    }
+
     private long allocate(long size, boolean init) {
-        final long address = unsafe.allocateMemory(size);
+        final long address = allocator.allocate(size);
 
-        for (long offset = 0; init && offset < size; offset++) {
-            unsafe.putByte(address + offset, (byte) 0);
-        }
+        if (init)
+            unsafe.setMemory(address, size, (byte) 0);
 
         return address;
     }
 
-    private long getPartitionOffset(byte[] keyData) {
-        return Math.abs(hashFunction.apply(keyData) % partitionCount);
+    /**
+     * Returns the number of bytes allocated for the record at the given
+     * address.
+     */
+    private static long getRecordSize(long recordAddress) {
+        final Unsafe unsafe = Memory.UNSAFE;
+
+        return RECORD_HEADER_SIZE + (long) unsafe.getInt(recordAddress + RECORD_KEY_SIZE_OFFSET) + unsafe.getInt(recordAddress + RECORD_CAPACITY_OFFSET);
     }
 
-    @Override
-    public int size() {
-        if (itemCount > Integer.MAX_VALUE)
-            return Integer.MAX_VALUE;
+    /**
+     * Frees the given record, unless held inline.
+     */
+    private void freeRecord(long record) {
+        if ((record & INLINE_RECORD) == 0)
+            allocator.free(record, getRecordSize(record));
+    }
 
-        return (int) itemCount;
+    /**
+     * Returns true if a record with the given key and value size can be
+     * held inline.
+     */
+    private boolean fitsInline(int keySize, int valueSize) {
+        return inlineRecords && (long) keySize + Math.max(valueSize, 0) <= INLINE_SIZE;
     }
 
-    @Override
-    public boolean isEmpty() {
-        return itemCount == 0;
+    private long getPartitionSize(int capacity) {
+        return PARTITION_HEADER_SIZE + ((long) capacity * entrySize);
     }
 
-    @Override
-    public boolean containsKey(Object key) {
-        if (!(key instanceof Binary))
-            return false;
+    /**
+     * Frees the partition at the given location, leaving its entries alone.
+     */
+    private void freePartition(long locationAddress) {
+        allocator.free(locationAddress, getPartitionSize(unsafe.getInt(locationAddress + PARTITION_CAPACITY_OFFSET)));
+    }
 
-        final Binary bKey = (Binary) key;
-        final byte[] keyData = bKey.getValue();
-        final int keySize = keyData.length;
+    private long getGrowThreshold(int partitionCount) {
+        if (partitionCount >= MAX_PARTITION_COUNT)
+            return Long.MAX_VALUE;
 
-        final long offset = getPartitionOffset(keyData);
+        final double threshold = (double) partitionCount * loadFactor;
 
-        // This is the location of the partition on which the entry key belongs
-        long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+        return threshold >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) threshold;
+    }
 
-        // Skip if unallocated
-        if (locationAddress == 0)
-            return false;
+    private static long getPartitionOffset(int hash, int partitionCount) {
+        // Unsigned, as Math.abs would fold hash and -hash onto one partition
+        return Integer.remainderUnsigned(hash, partitionCount);
+    }
 
-        // Read how many entries we expect in this partition
-        int entryCount = unsafe.getInt(locationAddress);
+    /**
+     * Returns the address of the partition table slot holding the partition
+     * the given key hash belongs to.
+     */
+    private long getPartitionSlot(int hash) {
+        // While growing, partitions not yet moved still live in the old table
+        if (oldPartitionAddress != 0) {
+            final long oldOffset = getPartitionOffset(hash, oldPartitionCount);
+
+            if (oldOffset >= migrationOffset)
+                return oldPartitionAddress + (oldOffset * addressSize);
+        }
+
+        return partitionAddress + (getPartitionOffset(hash, partitionCount) * addressSize);
+    }
+
+    /**
+     * Returns the address of the given entry within a partition.
+     */
+    private long getEntryAddress(long locationAddress, long locationOffset) {
+        return locationAddress + PARTITION_HEADER_SIZE + (locationOffset * entrySize);
+    }
 
-        // Move pointer past size int
-        locationAddress += Integer.BYTES;
+    /**
+     * Returns the offset of the entry with the given key and key hash within
+     * the partition at the given location, or -1 if not found.
+     */
+    private long findEntry(long locationAddress, Object keyBase, long keyOffset, int keySize, int hash) {
+        // Read how many entries we expect in this partition
+        final int entryCount = unsafe.getInt(locationAddress);
 
         for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
-            // Address of key within partition
-            long keyAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2));
+            final long entryAddress = getEntryAddress(locationAddress, locationOffset);
 
-            // Get size of key
-            int size = unsafe.getInt(keyAddress);
+            final int keyField = unsafe.getInt(entryAddress + KEY_SIZE_OFFSET);
 
-            // If size of this key is different than the one
+            // If hash or size of this key is different than the one
             // we're looking for, continue..
-            if (size != keySize)
+            if (unsafe.getInt(entryAddress + HASH_OFFSET) != hash || (keyField & KEY_SIZE_MASK) != keySize)
                 continue;
 
-            // Move pointer past size int
-            keyAddress += Integer.BYTES;
+            // Address of key, inline or moved past the record header
+            final long keyAddress = (keyField & INLINED) != 0
+                    ? entryAddress + RECORD_OFFSET + 1
+                    : unsafe.getAddress(entryAddress + RECORD_OFFSET) + RECORD_HEADER_SIZE;
 
-            // Scan each byte to check for differences
-            boolean isEqual = true;
-            for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
-                if (keyData[keyOffset] != unsafe.getByte(keyAddress + keyOffset)) {
-                    isEqual = false;
-                    break;
-                }
+            // Compare key content, 8 bytes at a time
+            if (Memory.equals(keyBase, keyOffset, null, keyAddress, keySize))
+                return locationOffset;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the entry with the given key and key hash without holding any
+     * lock, returning its address, or 0 if not found.
+     *
+     * Used by ConcurrentBOHMap for optimistic reads. A concurrent writer may
+     * change any field or memory read here, so the stamp is validated before
+     * following each address found. Memory freed by a writer in the meantime
+     * stays readable, as ConcurrentBOHMap defers frees until no reader can
+     * still see them. Returns 0 as soon as the stamp fails to validate, so
+     * the caller must validate the stamp again before trusting the result.
+     */
+    long findEntryAddress(byte[] keyData, int hash, StampedLock lock, long stamp) {
+        final long slotAddress = getPartitionSlot(hash);
+
+        // The partition table fields may have been read mid-update
+        if (!lock.validate(stamp))
+            return 0;
+
+        final long locationAddress = unsafe.getAddress(slotAddress);
+
+        if (locationAddress == 0 || !lock.validate(stamp))
+            return 0;
+
+        final int keySize = keyData.length;
+        final int entryCount = unsafe.getInt(locationAddress);
+
+        for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+            final long entryAddress = getEntryAddress(locationAddress, locationOffset);
+
+            final int keyField = unsafe.getInt(entryAddress + KEY_SIZE_OFFSET);
+
+            if (unsafe.getInt(entryAddress + HASH_OFFSET) != hash || (keyField & KEY_SIZE_MASK) != keySize)
+                continue;
+
+            // An inline key is within the partition, read as is
+            if ((keyField & INLINED) != 0) {
+                if (Memory.equals(keyData, entryAddress + RECORD_OFFSET + 1))
+                    return entryAddress;
+
+                continue;
             }
 
-            // Check if we found the key
-            if (isEqual)
-                return true;
+            final long recordAddress = unsafe.getAddress(entryAddress + RECORD_OFFSET);
+
+            if (!lock.validate(stamp))
+                return 0;
+
+            if (Memory.equals(keyData, recordAddress + RECORD_HEADER_SIZE))
+                return entryAddress;
         }
 
-        return false;
+        return 0;
     }
 
-    @Override
-    public boolean containsValue(Object value) {
-        if (value != null && !(value instanceof Binary))
-            return false;
+    /**
+     * Copies the given number of bytes from the given base and offset (or
+     * null base and address) onto the heap.
+     */
+    private static Binary copyBinary(Object base, long offset, int size) {
+        final byte[] data = new byte[size];
 
-        final Binary bValue = (Binary) value;
-        final byte[] valueData = bValue == null ? null : bValue.getValue();
-        final int valueSize = valueData == null ? -1 : valueData.length;
+        Memory.copy(base, offset, data, Memory.BYTE_ARRAY_OFFSET, size);
 
-        // For each partition..
-        for (long offset = 0; offset < partitionCount; offset++) {
-            // ..get partition address
-            long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+        return new Binary(data);
+    }
 
-            // Skip if unallocated
-            if (locationAddress == 0)
-                continue;
+    /**
+     * Returns the record of the given entry, being the address of the
+     * record, or the address of the entry with the low bit set if the record
+     * is held inline.
+     */
+    long getRecord(long entryAddress) {
+        if ((unsafe.getInt(entryAddress + KEY_SIZE_OFFSET) & INLINED) != 0)
+            return entryAddress | INLINE_RECORD;
 
-            // Read how many entries we expect in this partition
-            int entryCount = unsafe.getInt(locationAddress);
+        return unsafe.getAddress(entryAddress + RECORD_OFFSET);
+    }
 
-            // Move pointer past size int
-            locationAddress += Integer.BYTES;
+    /**
+     * Returns the key size of the given record.
+     */
+    private int getKeySize(long record) {
+        if ((record & INLINE_RECORD) != 0)
+            return unsafe.getInt(record - INLINE_RECORD + KEY_SIZE_OFFSET) & KEY_SIZE_MASK;
 
-            // Move pointer past key address in key/value pair
-            locationAddress += addressSize;
+        return unsafe.getInt(record + RECORD_KEY_SIZE_OFFSET);
+    }
 
-            for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
-                // Address of value within partition
-                long valueAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2));
+    /**
+     * Returns the value size of the given record, -1 for a null value.
+     */
+    private int getValueSize(long record) {
+        if ((record & INLINE_RECORD) == 0)
+            return unsafe.getInt(record + RECORD_VALUE_SIZE_OFFSET);
 
-                // Check if null value
-                if (valueAddress == 0) {
-                    if (bValue == null)
-                        return true;
-                    else
-                        continue;
-                }
+        final int size = (unsafe.getByte(record - INLINE_RECORD + RECORD_OFFSET) & 0xFF) - 1;
 
-                // Size of value
-                int size = unsafe.getInt(valueAddress);
+        // Only ever out of bounds when read by ConcurrentBOHMap while a
+        // writer moves entries around, for the caller to throw away
+        return getKeySize(record) + size <= INLINE_SIZE ? size : -1;
+    }
 
-                // If size of this value is different than the one
-                // we're looking for, continue..
-                if (size != valueSize)
-                    continue;
+    /**
+     * Returns the address of the key within the given record.
+     */
+    private static long getKeyAddress(long record) {
+        if ((record & INLINE_RECORD) != 0)
+            return record - INLINE_RECORD + RECORD_OFFSET + 1;
 
-                // Move pointer past size int
-                valueAddress += Integer.BYTES;
+        return record + RECORD_HEADER_SIZE;
+    }
 
-                // Scan each byte to check for differences
-                boolean isEqual = true;
-                for (int valueOffset = 0; valueOffset < valueSize; valueOffset++) {
-                    if (valueData[valueOffset] != unsafe.getByte(valueAddress + valueOffset)) {
-                        isEqual = false;
-                        break;
-                    }
-                }
+    /**
+     * Returns the address of the value within the given record.
+     */
+    private long getValueAddress(long record) {
+        return getKeyAddress(record) + getKeySize(record);
+    }
+
+    /**
+     * Reads the key of the given record.
+     */
+    private Binary readKey(long record) {
+        return copyBinary(null, getKeyAddress(record), getKeySize(record));
+    }
+
+    /**
+     * Reads the value of the given record, where a zero record, as for a
+     * missing entry, reads as a null value.
+     */
+    Binary readValue(long record) {
+        if (record == 0)
+            return null;
+
+        final int size = getValueSize(record);
+
+        return size < 0 ? null : copyBinary(null, getValueAddress(record), size);
+    }
+
+    /**
+     * Copies the value of the given record into the given buffer, returning
+     * the number of bytes copied, or -1 for a null value or a zero record.
+     */
+    int readValue(long record, ByteBuffer dst) {
+        if (record == 0)
+            return -1;
+
+        final int size = getValueSize(record);
+
+        if (size < 0)
+            return -1;
+
+        Memory.copyToBuffer(getValueAddress(record), dst, size);
+
+        return size;
+    }
+
+    /**
+     * Allocates a record for the given key and value, each given as a base
+     * object and offset (or null base and address), returning its address.
+     * A null value has a size of -1.
+     */
+    private long writeRecord(Object keyBase, long keyOffset, int keySize, Object valueBase, long valueOffset, int valueSize) {
+        final int capacity = Math.max(valueSize, 0);
+        final long recordAddress = allocate(RECORD_HEADER_SIZE + (long) keySize + capacity, false);
+
+        unsafe.putInt(recordAddress + RECORD_KEY_SIZE_OFFSET, keySize);
+        unsafe.putInt(recordAddress + RECORD_VALUE_SIZE_OFFSET, valueSize);
+        unsafe.putInt(recordAddress + RECORD_CAPACITY_OFFSET, capacity);
+
+        Memory.copy(keyBase, keyOffset, null, recordAddress + RECORD_HEADER_SIZE, keySize);
+        Memory.copy(valueBase, valueOffset, null, recordAddress + RECORD_HEADER_SIZE + keySize, capacity);
+
+        return recordAddress;
+    }
+
+    /**
+     * Writes a record for the given key and value inline in the given entry,
+     * each given as a base object and offset (or null base and address). A
+     * null value has a size of -1. The key may already be in place.
+     */
+    private void writeInline(long entryAddress, Object keyBase, long keyOffset, int keySize, Object valueBase, long valueOffset, int valueSize) {
+        final long keyAddress = entryAddress + RECORD_OFFSET + 1;
+
+        unsafe.putInt(entryAddress + KEY_SIZE_OFFSET, keySize | INLINED);
+        unsafe.putByte(entryAddress + RECORD_OFFSET, (byte) (valueSize + 1));
+
+        Memory.copy(keyBase, keyOffset, null, keyAddress, keySize);
+        Memory.copy(valueBase, valueOffset, null, keyAddress + keySize, Math.max(valueSize, 0));
+    }
+
+    /**
+     * Replaces the value of the given entry. The record is held inline if
+     * key and value fit. Otherwise the value is written in place
+     * when it fits the room in the record, using at least half of it, or
+     * else the record is moved to one with the right room, keeping the key.
+     */
+    private void writeValue(long entryAddress, Object valueBase, long valueOffset, int valueSize) {
+        final int keyField = unsafe.getInt(entryAddress + KEY_SIZE_OFFSET);
+        final int keySize = keyField & KEY_SIZE_MASK;
+
+        if ((keyField & INLINED) != 0) {
+            final long keyAddress = entryAddress + RECORD_OFFSET + 1;
+
+            if (fitsInline(keySize, valueSize)) {
+                writeInline(entryAddress, null, keyAddress, keySize, valueBase, valueOffset, valueSize);
+            } else {
+                // Moved out to a record of its own, along with the key
+                final long recordAddress = writeRecord(null, keyAddress, keySize, valueBase, valueOffset, valueSize);
 
-                if (isEqual)
-                    return true;
+                unsafe.putInt(entryAddress + KEY_SIZE_OFFSET, keyField & ~INLINED);
+                unsafe.putAddress(entryAddress + RECORD_OFFSET, recordAddress);
             }
+
+            return;
         }
 
-        return false;
-    }
+        long recordAddress = unsafe.getAddress(entryAddress + RECORD_OFFSET);
 
-    @Override
-    public Binary get(Object key) {
-        if (!(key instanceof Binary))
-            return null;
+        if (fitsInline(keySize, valueSize)) {
+            // Key taken from the record before it's freed
+            writeInline(entryAddress, null, recordAddress + RECORD_HEADER_SIZE, keySize, valueBase, valueOffset, valueSize);
+            freeRecord(recordAddress);
 
-        final Binary bKey = (Binary) key;
-        final byte[] keyData = bKey.getValue();
-        final int keySize = keyData.length;
+            return;
+        }
 
-        final long offset = getPartitionOffset(keyData);
+        final int capacity = unsafe.getInt(recordAddress + RECORD_CAPACITY_OFFSET);
+        final int size = Math.max(valueSize, 0);
 
-        // This is the location of the partition on which the entry key belongs
-        long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+        if (size > capacity || size < capacity / 2) {
+            final long newRecordAddress = allocate(RECORD_HEADER_SIZE + (long) keySize + size, false);
 
-        // Skip if unallocated
-        if (locationAddress == 0)
-            return null;
+            unsafe.copyMemory(recordAddress, newRecordAddress, RECORD_HEADER_SIZE + keySize);
+            unsafe.putInt(newRecordAddress + RECORD_CAPACITY_OFFSET, size);
+
+            freeRecord(recordAddress);
+
+            recordAddress = newRecordAddress;
+            unsafe.putAddress(entryAddress + RECORD_OFFSET, recordAddress);
+        }
+
+        unsafe.putInt(recordAddress + RECORD_VALUE_SIZE_OFFSET, valueSize);
+
+        Memory.copy(valueBase, valueOffset, null, recordAddress + RECORD_HEADER_SIZE + keySize, size);
+    }
+
+    /**
+     * Makes room for one more entry at the end of the partition in the given
+     * partition table slot, allocating the partition if needed. Returns the
+     * address of the new entry, which the caller must fill in.
+     */
+    private long appendEntry(long slotAddress) {
+        long locationAddress = unsafe.getAddress(slotAddress);
+
+        // Read how many entries we have and have room for in this partition
+        final int entryCount = locationAddress == 0 ? 0 : unsafe.getInt(locationAddress + PARTITION_COUNT_OFFSET);
+        final int capacity = locationAddress == 0 ? 0 : unsafe.getInt(locationAddress + PARTITION_CAPACITY_OFFSET);
+
+        // Allocate or grow partition if full, doubling its room
+        if (entryCount == capacity) {
+            final int newCapacity = capacity == 0 ? 1 : (int) Math.min((long) capacity << 1, Integer.MAX_VALUE);
+
+            if (locationAddress == 0) {
+                locationAddress = allocate(getPartitionSize(newCapacity), false);
+            } else {
+                locationAddress = allocator.reallocate(locationAddress, getPartitionSize(capacity), getPartitionSize(newCapacity));
+            }
+
+            unsafe.putInt(locationAddress + PARTITION_CAPACITY_OFFSET, newCapacity);
+
+            // Update pointer to partition
+            unsafe.putAddress(slotAddress, locationAddress);
+        }
+
+        // Update entry count
+        unsafe.putInt(locationAddress + PARTITION_COUNT_OFFSET, entryCount + 1);
+
+        return getEntryAddress(locationAddress, entryCount);
+    }
+
+    /**
+     * Removes the entry at the given offset from the
+     * partition in the given partition table slot, shrinking or freeing the
+     * partition. The key and value themselves are not freed.
+     */
+    private void removeEntry(long slotAddress, long locationOffset) {
+        long locationAddress = unsafe.getAddress(slotAddress);
+
+        final int entryCount = unsafe.getInt(locationAddress + PARTITION_COUNT_OFFSET);
+        final int capacity = unsafe.getInt(locationAddress + PARTITION_CAPACITY_OFFSET);
+
+        // Only move if the entry we're removing isn't already
+        // the last one in the partition
+        if (locationOffset < entryCount - 1) {
+            // Move last entry to this entry position
+            unsafe.copyMemory(getEntryAddress(locationAddress, entryCount - 1), getEntryAddress(locationAddress, locationOffset), entrySize);
+        }
+
+        if ((entryCount - 1) == 0) {
+            // Free location address as no entries
+            allocator.free(locationAddress, getPartitionSize(capacity));
+            unsafe.putAddress(slotAddress, 0);
+        } else {
+            // Decrease partition counter value
+            unsafe.putInt(locationAddress + PARTITION_COUNT_OFFSET, entryCount - 1);
+
+            // Halve partition memory once no more than a quarter is in use,
+            // leaving room for the partition to grow again before reallocating
+            if (entryCount - 1 <= capacity / 4) {
+                final int newCapacity = capacity / 2;
+
+                locationAddress = allocator.reallocate(locationAddress, getPartitionSize(capacity), getPartitionSize(newCapacity));
+                unsafe.putInt(locationAddress + PARTITION_CAPACITY_OFFSET, newCapacity);
+                unsafe.putAddress(slotAddress, locationAddress);
+            }
+        }
+    }
+
+    /**
+     * Sets the reference bit of the given entry, if the map has a budget.
+     */
+    private void reference(long entryAddress) {
+        if (maxBytes == Long.MAX_VALUE)
+            return;
+
+        final int keySize = unsafe.getInt(entryAddress + KEY_SIZE_OFFSET);
+
+        // Only write if not already set, keeping hot entries read-only
+        if ((keySize & REFERENCED) == 0)
+            unsafe.putInt(entryAddress + KEY_SIZE_OFFSET, keySize | REFERENCED);
+    }
+
+    /**
+     * Evicts entries until the map is back within its budget, if any.
+     */
+    private void enforceBudget() {
+        if (maxBytes == Long.MAX_VALUE)
+            return;
+
+        // Expired entries go first
+        if (allocator.getUsedBytes() > maxBytes)
+            expireDue();
+
+        while (itemCount > 0 && allocator.getUsedBytes() > maxBytes) {
+            evictNext();
+        }
+    }
+
+    /**
+     * Returns true if an entry with the given key and value size could
+     * never fit in the budget, leaving out partition overhead.
+     */
+    private boolean exceedsBudget(int keySize, int valueSize) {
+        if (maxBytes == Long.MAX_VALUE)
+            return false;
+
+        if (fitsInline(keySize, valueSize))
+            return entrySize > maxBytes;
+
+        return entrySize + RECORD_HEADER_SIZE + (long) keySize + Math.max(valueSize, 0) > maxBytes;
+    }
+
+    /**
+     * Moves the clock hand forward until it finds an entry without its
+     * reference bit set, clearing the bit of each entry it passes, and
+     * evicts that entry. There must be at least one entry in the map.
+     */
+    private void evictNext() {
+        while (true) {
+            final long tableAddress = clockTable == 0 ? oldPartitionAddress : partitionAddress;
+            final int tableCount = clockTable == 0 ? oldPartitionCount : partitionCount;
+
+            // Move on to the other table at the end of this one, skipping
+            // the old table unless growing
+            if (tableAddress == 0 || clockOffset >= tableCount) {
+                clockTable ^= 1;
+                clockOffset = 0;
+                clockEntry = 0;
+                continue;
+            }
+
+            // Old partitions below the migration offset have been moved
+            if (clockTable == 0 && clockOffset < migrationOffset) {
+                clockOffset = migrationOffset;
+                clockEntry = 0;
+                continue;
+            }
+
+            final long slotAddress = tableAddress + ((long) clockOffset * addressSize);
+            final long locationAddress = unsafe.getAddress(slotAddress);
+
+            if (locationAddress == 0 || clockEntry >= unsafe.getInt(locationAddress)) {
+                clockOffset++;
+                clockEntry = 0;
+                continue;
+            }
+
+            final long entryAddress = getEntryAddress(locationAddress, clockEntry);
+            final int keySize = unsafe.getInt(entryAddress + KEY_SIZE_OFFSET);
+
+            if ((keySize & REFERENCED) != 0) {
+                // Used since the hand last passed, give it another chance
+                unsafe.putInt(entryAddress + KEY_SIZE_OFFSET, keySize & ~REFERENCED);
+                clockEntry++;
+                continue;
+            }
+
+            // The last entry of the partition takes its place, so the hand
+            // stays where it is
+            evictEntry(slotAddress, clockEntry);
+
+            return;
+        }
+    }
+
+    /**
+     * Removes the entry at the given offset within the partition in the
+     * given partition table slot, freeing its record.
+     */
+    private void removeAt(long slotAddress, long locationOffset) {
+        final long entryAddress = getEntryAddress(unsafe.getAddress(slotAddress), locationOffset);
+
+        freeRecord(getRecord(entryAddress));
+
+        removeEntry(slotAddress, locationOffset);
+
+        itemCount--;
+    }
+
+    /**
+     * Removes the given entry, as found by findEntryForWrite for the given
+     * key hash, freeing its record.
+     */
+    private void removeAt(long entryAddress, int hash) {
+        final long slotAddress = getPartitionSlot(hash);
+        final long locationAddress = unsafe.getAddress(slotAddress);
+
+        removeAt(slotAddress, (entryAddress - getEntryAddress(locationAddress, 0)) / entrySize);
+    }
+
+    /**
+     * Removes the expired entry at the given offset within the partition in
+     * the given partition table slot, freeing its record.
+     */
+    private void expireAt(long slotAddress, long locationOffset) {
+        removeAt(slotAddress, locationOffset);
+
+        expirationCount++;
+    }
+
+    /**
+     * Returns true if the given entry has an expiry time which has passed.
+     */
+    private boolean isExpired(long entryAddress) {
+        final long expiry = unsafe.getLong(entryAddress + expiryOffset);
+
+        return expiry != 0 && expiry <= System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if the given entry has an expiry time at or before the
+     * given time.
+     */
+    private boolean isExpired(long entryAddress, long now) {
+        final long expiry = unsafe.getLong(entryAddress + expiryOffset);
+
+        return expiry != 0 && expiry <= now;
+    }
+
+    /**
+     * Sets the expiry time of a new entry, starting a timer for it unless
+     * zero.
+     */
+    private void setExpiry(long entryAddress, int hash, long expiry) {
+        unsafe.putLong(entryAddress + expiryOffset, expiry);
+
+        if (expiry != 0)
+            timerWheel.schedule(getRecord(entryAddress), hash, expiry);
+    }
+
+    /**
+     * Sets the expiry time of an existing entry, given its record and expiry
+     * time before its value was written. Its timer is kept if it still finds
+     * the entry and isn't due after the new time, being moved on once due,
+     * so refreshing an entry doesn't set a timer each time.
+     */
+    private void setExpiry(long entryAddress, int hash, long expiry, long previousRecord, long previousExpiry) {
+        if (previousExpiry != 0 && expiry >= previousExpiry && getRecord(entryAddress) == previousRecord)
+            unsafe.putLong(entryAddress + expiryOffset, expiry);
+        else
+            setExpiry(entryAddress, hash, expiry);
+    }
+
+    /**
+     * Moves the timer wheel forward, reclaiming the entries due, unless no
+     * entry has been given a time to live.
+     */
+    private void expireDue() {
+        if (timerWheel.size() != 0)
+            timerWheel.advance(System.currentTimeMillis(), expirer);
+    }
+
+    /**
+     * Removes the entry a timer was set for, if it's still there with the
+     * same expiry time, or moves the timer on if the entry has since been
+     * given a later one. The entry may instead have been removed, or given
+     * an earlier expiry time with a timer of its own.
+     */
+    private long expireEntry(long record, int hash, long expiry) {
+        final long slotAddress = getPartitionSlot(hash);
+        final long locationAddress = unsafe.getAddress(slotAddress);
+
+        if (locationAddress == 0)
+            return 0;
+
+        final int entryCount = unsafe.getInt(locationAddress);
+
+        // Inline records move along with their entry, so are matched on
+        // hash, with any entry of that hash and expiry time being expired.
+        // Failing that, the timer is moved on to the earliest later expiry
+        // time of such entries, which may since have been refreshed.
+        long laterExpiry = 0;
+
+        // Other records are matched on address, no need to compare keys
+        for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+            final long entryAddress = getEntryAddress(locationAddress, locationOffset);
+            final long entryExpiry = unsafe.getLong(entryAddress + expiryOffset);
+
+            if ((record & INLINE_RECORD) != 0) {
+                if ((unsafe.getInt(entryAddress + KEY_SIZE_OFFSET) & INLINED) == 0
+                        || unsafe.getInt(entryAddress + HASH_OFFSET) != hash)
+                    continue;
+
+                if (entryExpiry == expiry) {
+                    expireAt(slotAddress, locationOffset);
+
+                    return 0;
+                }
+
+                if (entryExpiry > expiry && (laterExpiry == 0 || entryExpiry < laterExpiry))
+                    laterExpiry = entryExpiry;
+            } else if (getRecord(entryAddress) == record) {
+                if (entryExpiry == expiry)
+                    expireAt(slotAddress, locationOffset);
+
+                return entryExpiry > expiry ? entryExpiry : 0;
+            }
+        }
+
+        return laterExpiry;
+    }
+
+    /**
+     * Removes every expired entry, walking the whole map.
+     */
+    private void removeExpired() {
+        final long now = System.currentTimeMillis();
+
+        final long[] tableAddresses = {oldPartitionAddress, partitionAddress};
+        final int[] tableCounts = {oldPartitionCount, partitionCount};
+
+        for (int table = 0; table < tableAddresses.length; table++) {
+            if (tableAddresses[table] == 0)
+                continue;
+
+            for (long offset = 0; offset < tableCounts[table]; offset++) {
+                final long slotAddress = tableAddresses[table] + (offset * addressSize);
+
+                // The partition shrinks, and may go away, as entries are removed
+                for (long locationOffset = 0; ; ) {
+                    final long locationAddress = unsafe.getAddress(slotAddress);
+
+                    if (locationAddress == 0 || locationOffset >= unsafe.getInt(locationAddress))
+                        break;
+
+                    if (isExpired(getEntryAddress(locationAddress, locationOffset), now))
+                        expireAt(slotAddress, locationOffset);
+                    else
+                        locationOffset++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and frees the entry at the given offset within the partition
+     * in the given partition table slot, telling the eviction listener.
+     */
+    private void evictEntry(long slotAddress, long locationOffset) {
+        final long entryAddress = getEntryAddress(unsafe.getAddress(slotAddress), locationOffset);
+        final long record = getRecord(entryAddress);
+
+        // Only copied onto the heap if someone's listening
+        final Binary key = evictionListener == null ? null : readKey(record);
+        final Binary value = evictionListener == null ? null : readValue(record);
+
+        removeAt(slotAddress, locationOffset);
+
+        evictionCount++;
+
+        if (evictionListener != null)
+            evictionListener.onEviction(key, value);
+    }
+
+    /**
+     * Starts moving entries over to a partition table twice the current size.
+     * Any migration already in progress is completed first.
+     */
+    private void grow() {
+        if (oldPartitionAddress != 0)
+            migrate(oldPartitionCount);
+
+        if (partitionCount >= MAX_PARTITION_COUNT)
+            return;
+
+        growCount++;
+
+        oldPartitionAddress = partitionAddress;
+        oldPartitionCount = partitionCount;
+        migrationOffset = 0;
+
+        partitionCount = (int) Math.min(partitionCount * 2L, MAX_PARTITION_COUNT);
+        partitionAddress = allocate((long) partitionCount * addressSize, true);
+        growThreshold = getGrowThreshold(partitionCount);
+
+        trackTables();
+    }
+
+    /**
+     * Moves up to the given number of partitions from the old partition table
+     * over to the current one, freeing the old table once all are moved.
+     */
+    private void migrate(int partitions) {
+        for (; partitions > 0 && oldPartitionAddress != 0; partitions--) {
+            final long oldSlotAddress = oldPartitionAddress + ((long) migrationOffset * addressSize);
+
+            long locationAddress = unsafe.getAddress(oldSlotAddress);
+
+            if (locationAddress != 0) {
+                final int entryCount = unsafe.getInt(locationAddress);
+
+                for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+                    final long entryAddress = getEntryAddress(locationAddress, locationOffset);
+
+                    // Use the stored hash, no need to read the key
+                    final int hash = unsafe.getInt(entryAddress + HASH_OFFSET);
+                    final long slotAddress = partitionAddress + (getPartitionOffset(hash, partitionCount) * addressSize);
+
+                    unsafe.copyMemory(entryAddress, appendEntry(slotAddress), entrySize);
+                }
+
+                freePartition(locationAddress);
+                unsafe.putAddress(oldSlotAddress, 0);
+            }
+
+            migrationOffset++;
+
+            if (migrationOffset >= oldPartitionCount) {
+                allocator.free(oldPartitionAddress, (long) oldPartitionCount * addressSize);
+
+                oldPartitionAddress = 0;
+                oldPartitionCount = 0;
+                migrationOffset = 0;
+
+                trackTables();
+            }
+        }
+    }
+
+    /**
+     * Grows the partition table right away to fit the given number of
+     * entries, so it won't need to grow while they're added. Entries already
+     * in the map are moved over immediately.
+     */
+    private void presize(long expectedCount) {
+        int targetCount = partitionCount;
+        while (getGrowThreshold(targetCount) < expectedCount) {
+            targetCount = (int) Math.min(targetCount * 2L, MAX_PARTITION_COUNT);
+        }
+
+        resize(targetCount);
+    }
+
+    /**
+     * Shrinks the partition table back towards the given partition count,
+     * keeping it large enough for the entries in the map, so a presize that
+     * wasn't needed after all doesn't hold on to its table.
+     */
+    private void undoPresize(int originalCount) {
+        int targetCount = originalCount;
+        while (getGrowThreshold(targetCount) < itemCount) {
+            targetCount = (int) Math.min(targetCount * 2L, MAX_PARTITION_COUNT);
+        }
+
+        if (targetCount < partitionCount)
+            resize(targetCount);
+    }
+
+    /**
+     * Moves all entries over to a partition table of the given size right
+     * away, any growing already in progress completed first.
+     */
+    private void resize(int targetCount) {
+        // Finish off any growing, leaving us with a single partition table
+        migrate(oldPartitionCount);
+
+        if (targetCount == partitionCount)
+            return;
+
+        oldPartitionAddress = partitionAddress;
+        oldPartitionCount = partitionCount;
+        migrationOffset = 0;
+
+        partitionCount = targetCount;
+        partitionAddress = allocate((long) partitionCount * addressSize, true);
+        growThreshold = getGrowThreshold(partitionCount);
+
+        trackTables();
+
+        migrate(oldPartitionCount);
+    }
+
+    /**
+     * Returns the number of partitions in the current partition table.
+     */
+    int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Returns the number of timers set, including stale ones.
+     */
+    long getTimerCount() {
+        return timerWheel.size();
+    }
+
+    /**
+     * Returns the hash of the given key data, as used to place its entry.
+     */
+    int hash(byte[] keyData) {
+        return BinaryHasher.toInt(hasher.hash(keyData, 0, keyData.length));
+    }
+
+    /**
+     * Returns the hash of the key at the given base and offset (or null base
+     * and address), which is always either a byte array or off-heap memory.
+     */
+    private int hash(Object keyBase, long keyOffset, int keySize) {
+        if (keyBase == null)
+            return BinaryHasher.toInt(hasher.hash(keyOffset, keySize));
+
+        return BinaryHasher.toInt(hasher.hash((byte[]) keyBase, (int) (keyOffset - Memory.BYTE_ARRAY_OFFSET), keySize));
+    }
+
+    /**
+     * Returns true while entries are being moved to a larger partition table.
+     */
+    boolean isGrowing() {
+        return oldPartitionAddress != 0;
+    }
+
+    /**
+     * Returns the number of bytes the allocator of this map has reserved
+     * from the system, including any memory it holds on to for reuse.
+     *
+     * @return Allocated off-heap bytes
+     */
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of bytes currently used for keys, values, partitions
+     * and partition tables.
+     *
+     * @return Used off-heap bytes
+     */
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * Returns the budget for the memory used by keys, values and
+     * partitions, or Long.MAX_VALUE if there is none.
+     *
+     * @return Budget in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the budget.
+     *
+     * @return Number of evicted entries
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Enables or disables counting of get and containsKey calls, as
+     * reported by getStats. Counting is off by default, as it writes to the
+     * map on every lookup, making concurrent reads unsafe. Only enable it
+     * where reads are made by a single thread at a time.
+     *
+     * @param enabled True to count lookups
+     */
+    public void setLookupCounting(boolean enabled) {
+        lookupCounting = enabled;
+    }
+
+    /**
+     * Returns a snapshot of the off-heap memory used by the map, split by
+     * what it holds, how entries are spread over partitions, and how many
+     * operations of each kind have been made. Every partition is visited, so
+     * this takes time in proportion to the size of the map.
+     *
+     * @return Statistics for the map
+     */
+    public BOHMapStats getStats() {
+        checkOpen();
+
+        long partitionBytes = 0;
+        long keyBytes = 0;
+        long valueBytes = 0;
+        long recordHeaderBytes = 0;
+
+        final long[] histogram = new long[BOHMapStats.getOccupancyBucket(Integer.MAX_VALUE) + 1];
+        int longestPartition = 0;
+
+        // For each partition table, old one first if growing..
+        final long[] tableAddresses = {oldPartitionAddress, partitionAddress};
+        final int[] tableCounts = {oldPartitionCount, partitionCount};
+
+        for (int table = 0; table < tableAddresses.length; table++) {
+            if (tableAddresses[table] == 0)
+                continue;
+
+            // ..and each partition not yet moved..
+            for (long offset = table == 0 ? migrationOffset : 0; offset < tableCounts[table]; offset++) {
+                // ..leaving out new partitions still waiting for the entries
+                // of the old partition at the same offset, left empty until
+                // then, so no entry is counted in both tables..
+                if (table == 1 && tableAddresses[0] != 0 && offset % tableCounts[0] >= migrationOffset)
+                    continue;
+
+                final long locationAddress = unsafe.getAddress(tableAddresses[table] + (offset * addressSize));
+                final int entryCount = locationAddress == 0 ? 0 : unsafe.getInt(locationAddress + PARTITION_COUNT_OFFSET);
+
+                histogram[BOHMapStats.getOccupancyBucket(entryCount)]++;
+                longestPartition = Math.max(longestPartition, entryCount);
+
+                if (locationAddress == 0)
+                    continue;
+
+                partitionBytes += getPartitionSize(unsafe.getInt(locationAddress + PARTITION_CAPACITY_OFFSET));
+
+                // ..adding up the records not held inline
+                for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+                    final long entryAddress = getEntryAddress(locationAddress, locationOffset);
+
+                    if ((unsafe.getInt(entryAddress + KEY_SIZE_OFFSET) & INLINED) != 0)
+                        continue;
+
+                    final long recordAddress = unsafe.getAddress(entryAddress + RECORD_OFFSET);
+
+                    keyBytes += unsafe.getInt(recordAddress + RECORD_KEY_SIZE_OFFSET);
+                    valueBytes += unsafe.getInt(recordAddress + RECORD_CAPACITY_OFFSET);
+                    recordHeaderBytes += RECORD_HEADER_SIZE;
+                }
+            }
+        }
+
+        final long tableBytes = ((long) partitionCount + (oldPartitionAddress == 0 ? 0 : oldPartitionCount)) * addressSize;
+
+        return new BOHMapStats(itemCount, partitionCount,
+                tableBytes, partitionBytes, keyBytes, valueBytes, recordHeaderBytes,
+                Arrays.copyOf(histogram, BOHMapStats.getOccupancyBucket(longestPartition) + 1), longestPartition,
+                lookupCount, lookupHitCount, putCount, removeCount,
+                evictionCount, expirationCount, growCount);
+    }
+
+    /**
+     * Writes every entry in the map to the given channel, as a snapshot
+     * that can be read back with readSnapshot. Each block of the snapshot
+     * carries a checksum.
+     *
+     * @param channel Channel to write to, left open
+     * @throws IOException If writing to the channel fails
+     */
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        writeSnapshot(channel, true);
+    }
+
+    /**
+     * Writes every entry in the map to the given channel, as a snapshot
+     * that can be read back with readSnapshot.
+     *
+     * Entries are streamed in a compact format, each holding its key size,
+     * value size, value and key, gathered into blocks of 1 MB in a direct
+     * buffer. Keys and values are copied straight from off-heap memory into
+     * the buffer, so nothing is allocated on the heap per entry.
+     *
+     * @param channel Channel to write to, left open
+     * @param checksums True to add a CRC32 checksum to each block
+     * @throws IOException If writing to the channel fails
+     */
+    public void writeSnapshot(WritableByteChannel channel, boolean checksums) throws IOException {
+        checkOpen();
+
+        // Nothing expired is written, keeping the entry count exact
+        if (timerWheel.size() != 0)
+            removeExpired();
+
+        final SnapshotWriter writer = new SnapshotWriter(channel, itemCount, SnapshotWriter.DEFAULT_BLOCK_SIZE, checksums);
+
+        // For each partition table, old one first if growing..
+        final long[] tableAddresses = {oldPartitionAddress, partitionAddress};
+        final int[] tableCounts = {oldPartitionCount, partitionCount};
+
+        for (int table = 0; table < tableAddresses.length; table++) {
+            if (tableAddresses[table] == 0)
+                continue;
+
+            // ..and each partition..
+            for (long offset = 0; offset < tableCounts[table]; offset++) {
+                final long locationAddress = unsafe.getAddress(tableAddresses[table] + (offset * addressSize));
+
+                // Skip if unallocated
+                if (locationAddress == 0)
+                    continue;
+
+                final int entryCount = unsafe.getInt(locationAddress);
+
+                for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+                    final long record = getRecord(getEntryAddress(locationAddress, locationOffset));
+
+                    writer.writeEntry(getKeyAddress(record), getKeySize(record),
+                            getValueAddress(record), getValueSize(record));
+                }
+            }
+        }
+
+        writer.finish();
+    }
+
+    /**
+     * Reads every entry from a snapshot written by writeSnapshot on the
+     * given channel, adding them to this map. Existing entries with the
+     * same keys are replaced.
+     *
+     * The partition table is grown ahead of the entries as they're read,
+     * in steps of doubling size up to the entry count in the snapshot
+     * header, so it won't grow while loading. Stepping keeps a damaged or
+     * forged entry count from allocating a table the snapshot can't fill.
+     *
+     * Keys and values are read straight into the off-heap records of their
+     * entries, so nothing is allocated on the heap per entry. The header
+     * checksum is always verified, and block checksums are verified if the
+     * snapshot has them.
+     *
+     * The map must be created with the same hasher the snapshot entries
+     * are expected to be found with, but needn't have the same hasher as
+     * the map the snapshot was written from.
+     *
+     * If the snapshot turns out to be damaged, the entries read before the
+     * damage was found are left in the map.
+     *
+     * @param channel Channel to read from, left open
+     * @return Number of entries read
+     * @throws IOException If reading from the channel fails, or the
+     * snapshot is damaged or in an unsupported format
+     */
+    public long readSnapshot(ReadableByteChannel channel) throws IOException {
+        checkOpen();
+
+        final SnapshotReader reader = new SnapshotReader(channel);
+        final long entryCount = reader.getEntryCount();
+
+        final int originalCount = partitionCount;
+
+        try {
+            long presized = 0;
+
+            for (long entry = 0; entry < entryCount; entry++) {
+                if (entry == presized) {
+                    presized = Math.min(entryCount, Math.max(PRESIZE_STEP, presized * 2));
+
+                    presize(itemCount + presized - entry);
+                }
+
+                final int keySize = reader.readInt();
+                final int valueSize = reader.readInt();
+
+                if (keySize < 0 || keySize > MAX_KEY_SIZE || valueSize < -1)
+                    throw new IOException("Invalid snapshot entry");
+
+                final int capacity = Math.max(valueSize, 0);
+                final long recordAddress = allocate(RECORD_HEADER_SIZE + (long) keySize + capacity, false);
+
+                unsafe.putInt(recordAddress + RECORD_KEY_SIZE_OFFSET, keySize);
+                unsafe.putInt(recordAddress + RECORD_VALUE_SIZE_OFFSET, valueSize);
+                unsafe.putInt(recordAddress + RECORD_CAPACITY_OFFSET, capacity);
+
+                // Value comes first in the snapshot, placed after the key
+                try {
+                    reader.readBytes(recordAddress + RECORD_HEADER_SIZE + keySize, capacity);
+                    reader.readBytes(recordAddress + RECORD_HEADER_SIZE, keySize);
+                } catch (IOException e) {
+                    freeRecord(recordAddress);
+
+                    throw e;
+                }
+
+                putRecord(recordAddress);
+            }
+
+            reader.finish();
+        } catch (IOException e) {
+            undoPresize(originalCount);
+
+            throw e;
+        }
+
+        return entryCount;
+    }
+
+    @Override
+    public int size() {
+        checkOpen();
+
+        if (itemCount > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+
+        return (int) itemCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        checkOpen();
+
+        return itemCount == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof Binary))
+            return false;
+
+        final byte[] keyData = ((Binary) key).getValue();
+
+        return containsKey(keyData, hash(keyData));
+    }
+
+    /**
+     * Same as containsKey, with the key hash already calculated.
+     */
+    boolean containsKey(byte[] keyData, int hash) {
+        return findRecord(keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length, hash) != 0;
+    }
+
+    /**
+     * Returns true if the map contains the key held by the given buffer,
+     * between its position and limit. The buffer position is left as is.
+     *
+     * @param key Heap or direct buffer holding the key
+     * @return True if the key is found
+     */
+    public boolean containsKey(ByteBuffer key) {
+        final Object keyBase = Memory.getBase(key);
+        final long keyOffset = Memory.getOffset(key);
+        final int keySize = key.remaining();
+
+        return findRecord(keyBase, keyOffset, keySize, hash(keyBase, keyOffset, keySize)) != 0;
+    }
+
+    /**
+     * Returns true if the map contains the key of the given size held at the
+     * given off-heap address.
+     *
+     * @param keyAddress Address of the key
+     * @param keySize Size of the key in bytes
+     * @return True if the key is found
+     */
+    public boolean containsKey(long keyAddress, int keySize) {
+        return findRecord(null, keyAddress, keySize, hash(null, keyAddress, keySize)) != 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (value != null && !(value instanceof Binary))
+            return false;
+
+        final Binary bValue = (Binary) value;
+        final byte[] valueData = bValue == null ? null : bValue.getValue();
+        final int valueSize = valueData == null ? -1 : valueData.length;
+
+        checkOpen();
+
+        // For each partition table, old one first if growing..
+        final long[] tableAddresses = {oldPartitionAddress, partitionAddress};
+        final int[] tableCounts = {oldPartitionCount, partitionCount};
+
+        for (int table = 0; table < tableAddresses.length; table++) {
+            if (tableAddresses[table] == 0)
+                continue;
+
+            // ..and each partition..
+            for (long offset = 0; offset < tableCounts[table]; offset++) {
+                // ..get partition address
+                long locationAddress = unsafe.getAddress(tableAddresses[table] + (offset * addressSize));
+
+                // Skip if unallocated
+                if (locationAddress == 0)
+                    continue;
+
+                // Read how many entries we expect in this partition
+                int entryCount = unsafe.getInt(locationAddress);
+
+                for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+                    long entryAddress = getEntryAddress(locationAddress, locationOffset);
+
+                    // Skip if expired
+                    if (isExpired(entryAddress))
+                        continue;
+
+                    // The entry record, inline or not
+                    long record = getRecord(entryAddress);
+
+                    // Size of value, -1 if a null value
+                    int size = getValueSize(record);
+
+                    // If size of this value is different than the one
+                    // we're looking for, continue..
+                    if (size != valueSize)
+                        continue;
+
+                    // Compare value content, unless both are null
+                    if (bValue == null || Memory.equals(valueData, getValueAddress(record)))
+                        return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Binary get(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+
+        return get(keyData, hash(keyData));
+    }
+
+    /**
+     * Same as get, with the key hash already calculated.
+     */
+    Binary get(byte[] keyData, int hash) {
+        return readValue(findRecord(keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length, hash));
+    }
+
+    /**
+     * Returns the value for the key held by the given buffer, between its
+     * position and limit. The buffer position is left as is.
+     *
+     * @param key Heap or direct buffer holding the key
+     * @return The value, or null if not found or a null value
+     */
+    public Binary get(ByteBuffer key) {
+        final Object keyBase = Memory.getBase(key);
+        final long keyOffset = Memory.getOffset(key);
+        final int keySize = key.remaining();
+
+        return readValue(findRecord(keyBase, keyOffset, keySize, hash(keyBase, keyOffset, keySize)));
+    }
+
+    /**
+     * Returns the value for the key of the given size held at the given
+     * off-heap address.
+     *
+     * @param keyAddress Address of the key
+     * @param keySize Size of the key in bytes
+     * @return The value, or null if not found or a null value
+     */
+    public Binary get(long keyAddress, int keySize) {
+        return readValue(findRecord(null, keyAddress, keySize, hash(null, keyAddress, keySize)));
+    }
+
+    /**
+     * Copies the value for the given key into the given buffer, at its
+     * current position, without allocating anything on the heap.
+     *
+     * The buffer position is moved past the copied bytes. The bytes belong
+     * to the caller from then on, and are not affected by later changes to
+     * the map. If there's no value for the key, either because the key is
+     * missing or mapped to null, nothing is copied and -1 is returned. If the
+     * value doesn't fit in the remaining buffer, nothing is copied and a
+     * BufferOverflowException is thrown, leaving the buffer as it was.
+     *
+     * @param key Key to look up
+     * @param dst Heap or direct buffer to copy the value into
+     * @return Number of bytes copied, or -1 if there's no value for the key
+     * @throws java.nio.BufferOverflowException If the value doesn't fit
+     * @throws java.nio.ReadOnlyBufferException If a value is found but the
+     * buffer is read-only
+     */
+    public int get(Binary key, ByteBuffer dst) {
+        final byte[] keyData = key.getValue();
+
+        return get(keyData, hash(keyData), dst);
+    }
+
+    /**
+     * Same as get into a buffer, with the key hash already calculated.
+     */
+    int get(byte[] keyData, int hash, ByteBuffer dst) {
+        return readValue(findRecord(keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length, hash), dst);
+    }
+
+    /**
+     * Copies the value for the key held by the given key buffer into the
+     * given buffer, as with get(Binary, ByteBuffer). The key is read between
+     * the position and limit of the key buffer, leaving its position as is.
+     * Neither buffer is copied onto the heap.
+     *
+     * @param key Heap or direct buffer holding the key
+     * @param dst Heap or direct buffer to copy the value into
+     * @return Number of bytes copied, or -1 if there's no value for the key
+     * @throws java.nio.BufferOverflowException If the value doesn't fit
+     * @throws java.nio.ReadOnlyBufferException If a value is found but the
+     * buffer is read-only
+     */
+    public int get(ByteBuffer key, ByteBuffer dst) {
+        final Object keyBase = Memory.getBase(key);
+        final long keyOffset = Memory.getOffset(key);
+        final int keySize = key.remaining();
+
+        return readValue(findRecord(keyBase, keyOffset, keySize, hash(keyBase, keyOffset, keySize)), dst);
+    }
+
+    /**
+     * Copies the value for the key of the given size held at the given
+     * off-heap address into the given buffer, as with get(Binary, ByteBuffer).
+     *
+     * @param keyAddress Address of the key
+     * @param keySize Size of the key in bytes
+     * @param dst Heap or direct buffer to copy the value into
+     * @return Number of bytes copied, or -1 if there's no value for the key
+     * @throws java.nio.BufferOverflowException If the value doesn't fit
+     * @throws java.nio.ReadOnlyBufferException If a value is found but the
+     * buffer is read-only
+     */
+    public int get(long keyAddress, int keySize, ByteBuffer dst) {
+        return readValue(findRecord(null, keyAddress, keySize, hash(null, keyAddress, keySize)), dst);
+    }
+
+    /**
+     * Returns the record for the given key, or 0 if not found. The
+     * key is given as a base object and offset, or as a null base and an
+     * absolute address.
+     */
+    private long findRecord(Object keyBase, long keyOffset, int keySize, int hash) {
+        checkOpen();
 
-        // Read how many entries we expect in this partition
-        int entryCount = unsafe.getInt(locationAddress);
+        if (lookupCounting)
+            lookupCount++;
 
-        // Move pointer past size int
-        locationAddress += Integer.BYTES;
+        // This is the location of the partition on which the entry key belongs
+        final long locationAddress = unsafe.getAddress(getPartitionSlot(hash));
 
-        for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
-            // Address of key within partition
-            long keyAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2));
+        // Skip if unallocated
+        if (locationAddress == 0)
+            return 0;
 
-            // Get size of key
-            int size = unsafe.getInt(keyAddress);
+        final long locationOffset = findEntry(locationAddress, keyBase, keyOffset, keySize, hash);
 
-            // If size of this key is different than the one
-            // we're looking for, continue..
-            if (size != keySize)
-                continue;
+        if (locationOffset < 0)
+            return 0;
 
-            // Move pointer past size int
-            keyAddress += Integer.BYTES;
+        final long entryAddress = getEntryAddress(locationAddress, locationOffset);
 
-            // Scan each byte to check for differences
-            boolean isEqual = true;
-            for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
-                if (keyData[keyOffset] != unsafe.getByte(keyAddress + keyOffset)) {
-                    isEqual = false;
-                    break;
-                }
-            }
+        // Left for a write to reclaim
+        if (isExpired(entryAddress))
+            return 0;
 
-            // Check if we found the key
-            if (isEqual) {
-                long valueAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2) + addressSize);
+        reference(entryAddress);
 
-                // Check if this is a null value
-                if (valueAddress == 0)
-                    return null;
+        if (lookupCounting)
+            lookupHitCount++;
 
-                int valueSize = unsafe.getInt(valueAddress);
+        return getRecord(entryAddress);
+    }
 
-                byte[] valueData = new byte[valueSize];
+    @Override
+    public Binary put(Binary key, Binary value) {
+        return put(key, hash(key.getValue()), value);
+    }
 
-                // Move pointer past size int
-                valueAddress += Integer.BYTES;
+    /**
+     * Same as put, with the key hash already calculated.
+     */
+    Binary put(Binary key, int hash, Binary value) {
+        return put(key, hash, value, 0);
+    }
 
-                for (int valueOffset = 0; valueOffset < valueSize; valueOffset++) {
-                    valueData[valueOffset] = unsafe.getByte(valueAddress + valueOffset);
-                }
+    /**
+     * Associates the given value with the given key for the given time,
+     * after which the entry expires, as if removed. Any time to live the
+     * key had before is replaced.
+     *
+     * Expired entries take up memory until reclaimed, either by a later
+     * write to the same key, by the timer wheel moving forward on any put
+     * or remove, or by expire. Until then, they're counted by size. A map
+     * read from a snapshot doesn't keep the expiry times.
+     *
+     * @param key Key
+     * @param value Value, or null
+     * @param ttlMillis Positive time to live in milliseconds
+     * @return The previous value, or null if none or a null value
+     */
+    public Binary put(Binary key, Binary value, long ttlMillis) {
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("ttlMillis must be positive");
 
-                return new Binary(valueData);
-            }
-        }
+        final long now = System.currentTimeMillis();
+        final long expiry = ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis;
 
-        return null;
+        return put(key, hash(key.getValue()), value, expiry);
     }
 
-    @Override
-    public Binary put(Binary key, Binary value) {
+    /**
+     * Same as put, with the key hash already calculated and the expiry time
+     * of the entry given, or zero for none.
+     */
+    private Binary put(Binary key, int hash, Binary value, long expiry) {
+        putCount++;
+
         final byte[] keyData = key.getValue();
-        final int keySize = keyData.length;
+        final byte[] valueData = value == null ? null : value.getValue();
 
-        final long offset = getPartitionOffset(keyData);
+        final long entryAddress = findEntryForWrite(keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length, hash);
 
-        // This is the location of the partition on which the entry key belongs
-        long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+        // Read old value if we have one, before it's overwritten
+        final Binary oldValue = entryAddress == 0 ? null : readValue(getRecord(entryAddress));
 
-        // Read how many entries we expect in this partition
-        int entryCount = locationAddress == 0 ? 0 : unsafe.getInt(locationAddress);
+        putValue(entryAddress, keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length, hash,
+                valueData, Memory.BYTE_ARRAY_OFFSET, valueData == null ? -1 : valueData.length, expiry);
 
-        // Move pointer past size int
-        locationAddress += Integer.BYTES;
+        return oldValue;
+    }
 
-        for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
-            // Address of key within partition
-            long keyAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2));
+    /**
+     * Associates the value held by the given value buffer with the key held
+     * by the given key buffer, both between their position and limit. The
+     * buffer positions are left as is.
+     *
+     * Unlike put(Binary, Binary) the previous value isn't returned, as that
+     * would mean copying it onto the heap.
+     *
+     * @param key Heap or direct buffer holding the key
+     * @param value Heap or direct buffer holding the value, or null
+     * @return True if the key already had a mapping, which was replaced
+     */
+    public boolean put(ByteBuffer key, ByteBuffer value) {
+        final Object keyBase = Memory.getBase(key);
+        final long keyOffset = Memory.getOffset(key);
+        final int keySize = key.remaining();
+        final int hash = hash(keyBase, keyOffset, keySize);
 
-            // Get size of key
-            int size = unsafe.getInt(keyAddress);
+        putCount++;
 
-            // If size of this key is different than the one
-            // we're looking for, continue..
-            if (size != keySize)
-                continue;
+        final long entryAddress = findEntryForWrite(keyBase, keyOffset, keySize, hash);
 
-            // Move pointer past size int
-            keyAddress += Integer.BYTES;
+        if (value == null)
+            putValue(entryAddress, keyBase, keyOffset, keySize, hash, null, 0, -1, 0);
+        else
+            putValue(entryAddress, keyBase, keyOffset, keySize, hash, Memory.getBase(value), Memory.getOffset(value), value.remaining(), 0);
 
-            // Scan each byte to check for differences
-            boolean isEqual = true;
-            for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
-                if (keyData[keyOffset] != unsafe.getByte(keyAddress + keyOffset)) {
-                    isEqual = false;
-                    break;
-                }
-            }
+        return entryAddress != 0;
+    }
 
-            // Check if we found the key
-            if (isEqual) {
-                long valueAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2) + addressSize);
+    /**
+     * Associates the value of the given size held at the given off-heap
+     * address with the key of the given size held at the given off-heap
+     * address. Both are copied into the map.
+     *
+     * Unlike put(Binary, Binary) the previous value isn't returned, as that
+     * would mean copying it onto the heap.
+     *
+     * @param keyAddress Address of the key
+     * @param keySize Size of the key in bytes
+     * @param valueAddress Address of the value
+     * @param valueSize Size of the value in bytes
+     * @return True if the key already had a mapping, which was replaced
+     */
+    public boolean put(long keyAddress, int keySize, long valueAddress, int valueSize) {
+        final int hash = hash(null, keyAddress, keySize);
 
-                Binary oldValue = null;
+        putCount++;
 
-                // Read old value if we have one
-                if (valueAddress != 0) {
-                    int valueSize = unsafe.getInt(valueAddress);
+        final long entryAddress = findEntryForWrite(null, keyAddress, keySize, hash);
 
-                    byte[] valueData = new byte[valueSize];
+        putValue(entryAddress, null, keyAddress, keySize, hash, null, valueAddress, valueSize, 0);
 
-                    // Move pointer past size int
-                    valueAddress += Integer.BYTES;
+        return entryAddress != 0;
+    }
 
-                    for (int valueOffset = 0; valueOffset < valueSize; valueOffset++) {
-                        valueData[valueOffset] = unsafe.getByte(valueAddress + valueOffset);
-                    }
+    /**
+     * Gets ready for a write to the given key, moving the timer wheel and
+     * any growing forward, and returns the address of its entry, or 0 if
+     * not found. An expired entry is reclaimed, and counts as not found.
+     */
+    private long findEntryForWrite(Object keyBase, long keyOffset, int keySize, int hash) {
+        checkOpen();
 
-                    oldValue = new Binary(valueData);
+        expireDue();
 
-                    // Move pointer back to start
-                    valueAddress -= Integer.BYTES;
+        // Move a few more partitions over if we're growing
+        migrate(MIGRATION_STEP);
 
-                    // Free old value
-                    unsafe.freeMemory(valueAddress);
-                }
+        // This is the slot of the partition on which the entry key belongs
+        final long slotAddress = getPartitionSlot(hash);
+        final long locationAddress = unsafe.getAddress(slotAddress);
 
-                if (value != null) {
-                    // Deal with inserting new value
-                    byte[] valueData = value.getValue();
-                    int valueSize = valueData.length;
+        // Skip if unallocated
+        if (locationAddress == 0)
+            return 0;
 
-                    // Allocate new value space
-                    valueAddress = allocate(Integer.BYTES + valueSize, false);
+        final long locationOffset = findEntry(locationAddress, keyBase, keyOffset, keySize, hash);
 
-                    // Copy data over
-                    unsafe.putInt(valueAddress, valueSize);
+        if (locationOffset < 0)
+            return 0;
 
-                    for (int valueOffset = 0; valueOffset < valueSize; valueOffset++) {
-                        unsafe.putByte(valueAddress + valueOffset + Integer.BYTES, valueData[valueOffset]);
-                    }
-                } else {
-                    valueAddress = 0;
-                }
+        final long entryAddress = getEntryAddress(locationAddress, locationOffset);
 
-                // Update value address in partition
-                unsafe.putAddress(locationAddress + (locationOffset * addressSize * 2) + addressSize, valueAddress);
+        if (isExpired(entryAddress)) {
+            expireAt(slotAddress, locationOffset);
 
-                // Return old value
-                return oldValue;
-            }
+            return 0;
         }
 
-        // Existing entry not found on key, insert new
-        itemCount++;
+        return entryAddress;
+    }
+
+    /**
+     * Associates the given value and expiry time with the given key, where
+     * the entry found for the key by findEntryForWrite is given, or 0 if
+     * none. The key and value are each given as a base object and offset,
+     * or as a null base and an absolute address, and a null value has a
+     * size of -1.
+     */
+    private void putValue(long entryAddress, Object keyBase, long keyOffset, int keySize, int hash, Object valueBase, long valueOffset, int valueSize, long expiry) {
+        if (keySize > MAX_KEY_SIZE)
+            throw new IllegalArgumentException("Key size exceeds " + MAX_KEY_SIZE + " bytes");
 
-        // Move partition pointer back to start
-        locationAddress -= Integer.BYTES;
+        // Evicted right away if it could never fit, rather than after
+        // evicting every other entry first
+        if (exceedsBudget(keySize, valueSize)) {
+            if (entryAddress != 0)
+                removeAt(entryAddress, hash);
 
-        // Allocate and copy key
-        long keyAddress = allocate(Integer.BYTES + keySize, false);
-        unsafe.putInt(keyAddress, keySize);
-        for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
-            unsafe.putByte(keyAddress + Integer.BYTES + keyOffset, keyData[keyOffset]);
-        }
+            evictionCount++;
 
-        // Allocate and copy value
-        long valueAddress = 0;
+            if (evictionListener != null)
+                evictionListener.onEviction(copyBinary(keyBase, keyOffset, keySize), valueSize < 0 ? null : copyBinary(valueBase, valueOffset, valueSize));
 
-        if (value != null) {
-            byte[] valueData = value.getValue();
-            int valueSize = valueData.length;
-            valueAddress = allocate(Integer.BYTES + valueSize, false);
-            unsafe.putInt(valueAddress, valueSize);
-            for (int valueOffset = 0; valueOffset < valueSize; valueOffset++) {
-                unsafe.putByte(valueAddress + Integer.BYTES + valueOffset, valueData[valueOffset]);
-            }
+            return;
         }
 
-        // Allocate or reallocate partition
-        if (locationAddress == 0) {
-            locationAddress = allocate(Integer.BYTES + addressSize + addressSize, false);
+        if (entryAddress != 0) {
+            final long previousRecord = getRecord(entryAddress);
+            final long previousExpiry = unsafe.getLong(entryAddress + expiryOffset);
+
+            // Value first, as it may move the record
+            writeValue(entryAddress, valueBase, valueOffset, valueSize);
+            setExpiry(entryAddress, hash, expiry, previousRecord, previousExpiry);
+
+            reference(entryAddress);
+        } else if (fitsInline(keySize, valueSize)) {
+            // Existing entry not found on key, insert new with the record inline
+            final long newEntryAddress = appendEntry(getPartitionSlot(hash));
+
+            unsafe.putInt(newEntryAddress + HASH_OFFSET, hash);
+            writeInline(newEntryAddress, keyBase, keyOffset, keySize, valueBase, valueOffset, valueSize);
+
+            addEntry(newEntryAddress, hash, expiry);
         } else {
-            locationAddress = unsafe.reallocateMemory(locationAddress, Integer.BYTES + (addressSize * 2 * (entryCount + 1)));
+            // Existing entry not found on key, insert new
+            insertEntry(hash, keySize, writeRecord(keyBase, keyOffset, keySize, valueBase, valueOffset, valueSize), expiry);
         }
 
-        // Insert key and value pointers
-        unsafe.putAddress(locationAddress + Integer.BYTES + (addressSize * 2 * entryCount), keyAddress);
-        unsafe.putAddress(locationAddress + Integer.BYTES + (addressSize * 2 * entryCount) + addressSize, valueAddress);
+        enforceBudget();
+    }
 
-        // Update entry count
-        unsafe.putInt(locationAddress, entryCount + 1);
+    /**
+     * Puts the entry held by the record at the given address, as read from
+     * a snapshot, which is owned by the map from here on. Any entry for the
+     * same key is replaced.
+     */
+    private void putRecord(long recordAddress) {
+        final int keySize = unsafe.getInt(recordAddress + RECORD_KEY_SIZE_OFFSET);
+        final int valueSize = unsafe.getInt(recordAddress + RECORD_VALUE_SIZE_OFFSET);
+        final long keyAddress = recordAddress + RECORD_HEADER_SIZE;
+        final int hash = hash(null, keyAddress, keySize);
 
-        // Update pointer to partition
-        unsafe.putAddress(partitionAddress + (offset * addressSize), locationAddress);
+        final long entryAddress = findEntryForWrite(null, keyAddress, keySize, hash);
 
-        return null;
-    }
+        // Copied inline, or evicted, rather than kept as is
+        if (fitsInline(keySize, valueSize) || exceedsBudget(keySize, valueSize)) {
+            putValue(entryAddress, null, keyAddress, keySize, hash, null, getValueAddress(recordAddress), valueSize, 0);
+            freeRecord(recordAddress);
 
-    @Override
-    public Binary remove(Object key) {
-        if (!(key instanceof Binary))
-            return null;
+            return;
+        }
 
-        final Binary bKey = (Binary) key;
-        final byte[] keyData = bKey.getValue();
-        final int keySize = keyData.length;
+        if (entryAddress != 0) {
+            // Swap in the new record
+            freeRecord(getRecord(entryAddress));
+            unsafe.putInt(entryAddress + KEY_SIZE_OFFSET, keySize);
+            unsafe.putAddress(entryAddress + RECORD_OFFSET, recordAddress);
+            setExpiry(entryAddress, hash, 0);
+
+            reference(entryAddress);
+        } else {
+            insertEntry(hash, keySize, recordAddress, 0);
+        }
 
-        final long offset = getPartitionOffset(keyData);
+        enforceBudget();
+    }
 
-        // This is the location of the partition on which the entry key belongs
-        long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+    /**
+     * Inserts a new entry for the record at the given address, holding a
+     * key not yet in the map.
+     */
+    private void insertEntry(int hash, int keySize, long recordAddress, long expiry) {
+        final long entryAddress = appendEntry(getPartitionSlot(hash));
 
-        // Skip if unallocated
-        if (locationAddress == 0)
-            return null;
+        unsafe.putInt(entryAddress + HASH_OFFSET, hash);
+        unsafe.putInt(entryAddress + KEY_SIZE_OFFSET, keySize);
+        unsafe.putAddress(entryAddress + RECORD_OFFSET, recordAddress);
 
-        // Read how many entries we expect in this partition
-        int entryCount = unsafe.getInt(locationAddress);
+        addEntry(entryAddress, hash, expiry);
+    }
 
-        // Move pointer past size int
-        locationAddress += Integer.BYTES;
+    /**
+     * Completes the insert of the given entry, its hash and record already
+     * written, setting its expiry time and growing the map if needed.
+     */
+    private void addEntry(long entryAddress, int hash, long expiry) {
+        setExpiry(entryAddress, hash, expiry);
 
-        for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
-            // Address of key within partition
-            long keyAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2));
+        reference(entryAddress);
 
-            // Get size of key
-            int size = unsafe.getInt(keyAddress);
+        itemCount++;
 
-            // If size of this key is different than the one
-            // we're looking for, continue..
-            if (size != keySize)
-                continue;
+        if (itemCount > growThreshold)
+            grow();
+    }
+
+    @Override
+    public Binary remove(Object key) {
+        if (!(key instanceof Binary))
+            return null;
 
-            // Move pointer past size int
-            keyAddress += Integer.BYTES;
+        final byte[] keyData = ((Binary) key).getValue();
 
-            // Scan each byte to check for differences
-            boolean isEqual = true;
-            for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
-                if (keyData[keyOffset] != unsafe.getByte(keyAddress + keyOffset)) {
-                    isEqual = false;
-                    break;
-                }
-            }
+        return remove(keyData, hash(keyData));
+    }
 
-            // Check if we found the key
-            if (isEqual) {
-                // Move key address back to start + free it
-                keyAddress -= Integer.BYTES;
-                unsafe.freeMemory(keyAddress);
+    /**
+     * Same as remove, with the key hash already calculated.
+     */
+    Binary remove(byte[] keyData, int hash) {
+        removeCount++;
 
-                long valueAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2) + addressSize);
+        final long entryAddress = findEntryForWrite(keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length, hash);
 
-                Binary removedValue = null;
+        if (entryAddress == 0)
+            return null;
 
-                // Check if this is a null value
-                if (valueAddress != 0) {
-                    int valueSize = unsafe.getInt(valueAddress);
+        final Binary removedValue = readValue(getRecord(entryAddress));
 
-                    byte[] valueData = new byte[valueSize];
+        removeAt(entryAddress, hash);
 
-                    // Move pointer past size int
-                    valueAddress += Integer.BYTES;
+        return removedValue;
+    }
 
-                    for (int valueOffset = 0; valueOffset < valueSize; valueOffset++) {
-                        valueData[valueOffset] = unsafe.getByte(valueAddress + valueOffset);
-                    }
+    /**
+     * Removes the mapping for the key held by the given buffer, between its
+     * position and limit. The buffer position is left as is.
+     *
+     * Unlike remove(Object) the removed value isn't returned, as that would
+     * mean copying it onto the heap.
+     *
+     * @param key Heap or direct buffer holding the key
+     * @return True if a mapping was removed
+     */
+    public boolean remove(ByteBuffer key) {
+        final Object keyBase = Memory.getBase(key);
+        final long keyOffset = Memory.getOffset(key);
+        final int keySize = key.remaining();
+        final int hash = hash(keyBase, keyOffset, keySize);
 
-                    removedValue = new Binary(valueData);
+        removeCount++;
 
-                    // Move value address back to start + free it
-                    valueAddress -= Integer.BYTES;
-                    unsafe.freeMemory(valueAddress);
-                }
+        final long entryAddress = findEntryForWrite(keyBase, keyOffset, keySize, hash);
 
-                // Next remove entry and shrink the partition
-                // But only move if the entry we're removing isn't already
-                // the last one in the partition
-                if (locationOffset < entryCount - 1) {
-                    // Move last entry to this entry position
-                    // Key
-                    long address = unsafe.getAddress(locationAddress + ((entryCount - 1) * addressSize * 2));
-                    unsafe.putAddress(locationAddress + (locationOffset * addressSize * 2), address);
-
-                    // Value
-                    address = unsafe.getAddress(locationAddress + ((entryCount - 1) * addressSize * 2) + addressSize);
-                    unsafe.putAddress(locationAddress + (locationOffset * addressSize * 2) + addressSize, address);
-                }
+        if (entryAddress != 0)
+            removeAt(entryAddress, hash);
 
-                // Move location back to start
-                locationAddress -= Integer.BYTES;
+        return entryAddress != 0;
+    }
 
-                if ((entryCount - 1) == 0) {
-                    // Free location address as no entries
-                    unsafe.freeMemory(locationAddress);
-                    unsafe.putAddress(partitionAddress + (offset * addressSize), 0);
-                } else {
-                    // Decrease partition counter value
-                    unsafe.putInt(locationAddress, entryCount - 1);
+    /**
+     * Removes the mapping for the key of the given size held at the given
+     * off-heap address.
+     *
+     * Unlike remove(Object) the removed value isn't returned, as that would
+     * mean copying it onto the heap.
+     *
+     * @param keyAddress Address of the key
+     * @param keySize Size of the key in bytes
+     * @return True if a mapping was removed
+     */
+    public boolean remove(long keyAddress, int keySize) {
+        final int hash = hash(null, keyAddress, keySize);
 
-                    // Shrink partition memory
-                    locationAddress = unsafe.reallocateMemory(locationAddress, Integer.BYTES + (addressSize * 2 * (entryCount - 1)));
-                    unsafe.putAddress(partitionAddress + (offset * addressSize), locationAddress);
-                }
+        removeCount++;
 
-                itemCount--;
+        final long entryAddress = findEntryForWrite(null, keyAddress, keySize, hash);
 
-                return removedValue;
-            }
-        }
+        if (entryAddress != 0)
+            removeAt(entryAddress, hash);
 
-        return null;
+        return entryAddress != 0;
     }
 
     @Override
     public void clear() {
+        checkOpen();
+
+        // Finish off any growing, leaving us with a single partition table
+        migrate(oldPartitionCount);
+
         // For each partition..
         for (long offset = 0; offset < partitionCount; offset++) {
             // ..get partition address
@@ -613,41 +2259,54 @@ public class BOHMap implements Map<Binary, Binary> {
             // Read how many entries we expect in this partition
             int entryCount = unsafe.getInt(locationAddress);
 
-            // Move pointer past size int
-            locationAddress += Integer.BYTES;
-
             for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
-                long keyAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2));
-
-                if (keyAddress != 0)
-                    unsafe.freeMemory(keyAddress);
-
-                long valueAddress = unsafe.getAddress(locationAddress + (locationOffset * addressSize * 2) + addressSize);
-
-                if (valueAddress != 0)
-                    unsafe.freeMemory(valueAddress);
+                freeRecord(getRecord(getEntryAddress(locationAddress, locationOffset)));
             }
 
-            locationAddress -= Integer.BYTES;
-
-            unsafe.freeMemory(locationAddress);
+            freePartition(locationAddress);
 
             unsafe.putAddress(partitionAddress + (offset * addressSize), 0);
         }
 
-        // Reset item counter
+        timerWheel.clear();
+
+        // Reset item counter and clock hand
         itemCount = 0;
+        clockTable = 1;
+        clockOffset = 0;
+        clockEntry = 0;
+    }
+
+    /**
+     * Reclaims the memory of entries whose time to live has passed, as far
+     * as the timer wheel has got. This happens on every put and remove as
+     * well, so only needs calling on a map that's otherwise only read from.
+     * An entry is reclaimed up to 16 ms after it expires.
+     */
+    public void expire() {
+        checkOpen();
+
+        expireDue();
     }
 
+    /**
+     * Frees every key, value and partition along with the partition table,
+     * and hands anything the allocator still holds on to back to the
+     * system. Any later use of the map throws an IllegalStateException.
+     * Closing an already closed map has no effect.
+     */
     @Override
-    protected void finalize() throws Throwable {
-        // clear() will free all memory but the partition area itself
-        clear();
+    public void close() {
+        if (partitionAddress == 0)
+            return;
 
-        // Finally free the partition area itself
-        unsafe.freeMemory(partitionAddress);
+        cleanable.clean();
 
-        super.finalize();
+        partitionAddress = 0;
+        oldPartitionAddress = 0;
+        oldPartitionCount = 0;
+        migrationOffset = 0;
+        itemCount = 0;
     }
 
     @Override
@@ -779,73 +2438,89 @@ public class BOHMap implements Map<Binary, Binary> {
         }
     }
 
-    private class KeySetIterator implements Iterator<Binary> {
-        private final BOHMap map;
+    /**
+     * Walks every entry in the map, visiting the old partition table first
+     * if the map is currently growing.
+     */
+    private abstract class PartitionIterator<T> implements Iterator<T> {
+        protected final BOHMap map;
+
+        private final long now = System.currentTimeMillis();
 
+        private int table;
         private long offset, locationOffset;
 
-        private KeySetIterator(BOHMap map) {
+        private PartitionIterator(BOHMap map) {
             this.map = map;
         }
 
-        @Override
-        public boolean hasNext() {
-            while (offset < map.partitionCount) {
-                long locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
+        /**
+         * Moves forward to the next partition holding an entry at the current
+         * location offset, returning its address, or zero if no more.
+         */
+        private long seek() {
+            map.checkOpen();
+
+            while (table < 2) {
+                final long tableAddress = table == 0 ? map.oldPartitionAddress : map.partitionAddress;
+                final long tableCount = table == 0 ? map.oldPartitionCount : map.partitionCount;
+
+                while (tableAddress != 0 && offset < tableCount) {
+                    long locationAddress = map.unsafe.getAddress(tableAddress + (offset * map.addressSize));
+
+                    if (locationAddress != 0 && locationOffset < map.unsafe.getInt(locationAddress)) {
+                        // Skip past entries expired when iteration started
+                        if (!map.isExpired(map.getEntryAddress(locationAddress, locationOffset), now))
+                            return locationAddress;
+
+                        locationOffset++;
+                        continue;
+                    }
 
-                if (locationAddress == 0) {
+                    locationOffset = 0;
                     offset++;
-                    continue;
                 }
 
-                break;
+                offset = 0;
+                table++;
             }
 
-            return offset < map.partitionCount;
+            return 0;
         }
 
         @Override
-        public Binary next() {
-            if (offset >= map.partitionCount)
-                throw new NoSuchElementException();
-
-            long locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-
-            while (locationAddress == 0) {
-                offset++;
-
-                if (offset >= map.partitionCount)
-                    throw new NoSuchElementException();
-
-                locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-            }
+        public boolean hasNext() {
+            return seek() != 0;
+        }
 
-            // Read how many entries we expect in this partition
-            int entryCount = map.unsafe.getInt(locationAddress);
+        @Override
+        public T next() {
+            final long locationAddress = seek();
 
-            // Move pointer past size int
-            locationAddress += Integer.BYTES;
+            if (locationAddress == 0)
+                throw new NoSuchElementException();
 
-            long keyAddress = map.unsafe.getAddress(locationAddress + (locationOffset * map.addressSize * 2));
+            final long entryAddress = map.getEntryAddress(locationAddress, locationOffset);
 
-            // Get size of key
-            int keyDataSize = map.unsafe.getInt(keyAddress);
+            locationOffset++;
 
-            // Move pointer past size int
-            keyAddress += Integer.BYTES;
+            return read(entryAddress);
+        }
 
-            locationOffset++;
-            if (locationOffset >= entryCount) {
-                locationOffset = 0;
-                offset++;
-            }
+        /**
+         * Reads the entry at the given address within a partition.
+         */
+        protected abstract T read(long entryAddress);
+    }
 
-            byte[] keyData = new byte[keyDataSize];
-            for (int keyOffset = 0; keyOffset < keyDataSize; keyOffset++) {
-                keyData[keyOffset] = map.unsafe.getByte(keyAddress + keyOffset);
-            }
+    private class KeySetIterator extends PartitionIterator<Binary> {
+        private KeySetIterator(BOHMap map) {
+            super(map);
+        }
 
-            return new Binary(keyData);
+        @Override
+        protected Binary read(long entryAddress) {
+            return map.readKey(map.getRecord(entryAddress));
         }
     }
 
@@ -946,77 +2621,14 @@ public class BOHMap implements Map<Binary, Binary> {
         }
     }
 
-    private class ValuesIterator implements Iterator<Binary> {
-        private final BOHMap map;
-
-        private long offset, locationOffset;
-
+    private class ValuesIterator extends PartitionIterator<Binary> {
         private ValuesIterator(BOHMap map) {
-            this.map = map;
-        }
-
-        @Override
-        public boolean hasNext() {
-            while (offset < map.partitionCount) {
-                long locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-
-                if (locationAddress == 0) {
-                    offset++;
-                    continue;
-                }
-
-                break;
-            }
-
-            return offset < map.partitionCount;
+            super(map);
         }
 
         @Override
-        public Binary next() {
-            if (offset >= map.partitionCount)
-                throw new NoSuchElementException();
-
-            long locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-
-            while (locationAddress == 0) {
-                offset++;
-
-                if (offset >= map.partitionCount)
-                    throw new NoSuchElementException();
-
-                locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-            }
-
-            // Read how many entries we expect in this partition
-            int entryCount = map.unsafe.getInt(locationAddress);
-
-            // Move pointer past size int
-            locationAddress += Integer.BYTES;
-
-            long valueAddress = map.unsafe.getAddress(locationAddress + (locationOffset * map.addressSize * 2) + map.addressSize);
-
-            locationOffset++;
-            if (locationOffset >= entryCount) {
-                locationOffset = 0;
-                offset++;
-            }
-
-            // Check if null value
-            if (valueAddress == 0)
-                return null;
-
-            // Get size of value
-            int valueDataSize = map.unsafe.getInt(valueAddress);
-
-            // Move pointer past size int
-            valueAddress += Integer.BYTES;
-
-            byte[] valueData = new byte[valueDataSize];
-            for (int valueOffset = 0; valueOffset < valueDataSize; valueOffset++) {
-                valueData[valueOffset] = map.unsafe.getByte(valueAddress + valueOffset);
-            }
-
-            return new Binary(valueData);
+        protected Binary read(long entryAddress) {
+            return map.readValue(map.getRecord(entryAddress));
         }
     }
 
@@ -1132,107 +2744,16 @@ public class BOHMap implements Map<Binary, Binary> {
         }
     }
 
-    private class EntrySetIterator implements Iterator<Entry<Binary, Binary>> {
-        private final BOHMap map;
-
-        private long offset, locationOffset;
-
+    private class EntrySetIterator extends PartitionIterator<Entry<Binary, Binary>> {
         private EntrySetIterator(BOHMap map) {
-            this.map = map;
-        }
-
-        @Override
-        public boolean hasNext() {
-            while (offset < map.partitionCount) {
-                long locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-
-                if (locationAddress == 0) {
-                    offset++;
-                    continue;
-                }
-
-                break;
-            }
-
-            return offset < map.partitionCount;
+            super(map);
         }
 
         @Override
-        public Entry<Binary, Binary> next() {
-            if (offset >= map.partitionCount)
-                throw new NoSuchElementException();
-
-            long locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-
-            while (locationAddress == 0) {
-                offset++;
-
-                if (offset >= map.partitionCount)
-                    throw new NoSuchElementException();
-
-                locationAddress = map.unsafe.getAddress(map.partitionAddress + (offset * map.addressSize));
-            }
-
-            // Read how many entries we expect in this partition
-            int entryCount = map.unsafe.getInt(locationAddress);
-
-            // Move pointer past size int
-            locationAddress += Integer.BYTES;
-
-            long keyAddress = map.unsafe.getAddress(locationAddress + (locationOffset * map.addressSize * 2));
-            long valueAddress = map.unsafe.getAddress(locationAddress + (locationOffset * map.addressSize * 2) + map.addressSize);
-
-            locationOffset++;
-            if (locationOffset >= entryCount) {
-                locationOffset = 0;
-                offset++;
-            }
-
-            // Get size of key
-            int keyDataSize = map.unsafe.getInt(keyAddress);
-
-            // Move pointer past size int
-            keyAddress += Integer.BYTES;
-
-            byte[] keyData = new byte[keyDataSize];
-            for (int keyOffset = 0; keyOffset < keyDataSize; keyOffset++) {
-                keyData[keyOffset] = map.unsafe.getByte(keyAddress + keyOffset);
-            }
-
-            final Binary key = new Binary(keyData);
-
-            // Check if null value
-            if (valueAddress == 0) {
-                return new Map.Entry<Binary, Binary>() {
-                    @Override
-                    public Binary getKey() {
-                        return key;
-                    }
-
-                    @Override
-                    public Binary getValue() {
-                        return null;
-                    }
-
-                    @Override
-                    public Binary setValue(Binary value) {
-                        throw new UnsupportedOperationException();
-                    }
-                };
-            }
-
-            // Get size of value
-            int valueDataSize = map.unsafe.getInt(valueAddress);
-
-            // Move pointer past size int
-            valueAddress += Integer.BYTES;
-
-            byte[] valueData = new byte[valueDataSize];
-            for (int valueOffset = 0; valueOffset < valueDataSize; valueOffset++) {
-                valueData[valueOffset] = map.unsafe.getByte(valueAddress + valueOffset);
-            }
-
-            final Binary value = new Binary(valueData);
+        protected Entry<Binary, Binary> read(long entryAddress) {
+            final long record = map.getRecord(entryAddress);
+            final Binary key = map.readKey(record);
+            final Binary value = map.readValue(record);
 
             return new Map.Entry<Binary, Binary>() {
                 @Override
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the statistics of a BOHMap as a JMX MBean.
+ *
+ * Snapshots are taken through the given supplier, usually calling
+ * BOHMap.getStats. The supplier is called from JMX threads, so must hold
+ * whatever lock guards the map, e.g.
+ * {@code new BOHMapMonitor(() -> { synchronized (map) { return map.getStats(); } })}.
+ * A snapshot is reused for all attributes read within the given maximum
+ * age, as taking one visits every partition of the map.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class BOHMapMonitor implements BOHMapMonitorMXBean {
+    private final Supplier<BOHMapStats> statsSupplier;
+    private final long maxAgeMillis;
+
+    private BOHMapStats stats;
+    private long statsTime;
+
+    private ObjectName objectName;
+
+    /**
+     * Create a new monitor taking snapshots with the given supplier, reusing
+     * each for up to a second.
+     *
+     * @param statsSupplier Supplier of map snapshots
+     */
+    public BOHMapMonitor(Supplier<BOHMapStats> statsSupplier) {
+        this(statsSupplier, 1000);
+    }
+
+    /**
+     * Create a new monitor taking snapshots with the given supplier, reusing
+     * each for up to the given time.
+     *
+     * @param statsSupplier Supplier of map snapshots
+     * @param maxAgeMillis Time in milliseconds to reuse a snapshot for, zero
+     * for a new snapshot on every attribute read
+     */
+    public BOHMapMonitor(Supplier<BOHMapStats> statsSupplier, long maxAgeMillis) {
+        if (maxAgeMillis < 0)
+            throw new IllegalArgumentException("maxAgeMillis can't be negative");
+
+        this.statsSupplier = statsSupplier;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns the object name a monitor with the given name is registered
+     * under, com.cfelde.bohmap:type=BOHMap,name=(quoted name).
+     *
+     * @param name Name of the map
+     * @return Object name of the monitor
+     * @throws MalformedObjectNameException Not thrown for a quoted name
+     */
+    public static ObjectName getObjectName(String name) throws MalformedObjectNameException {
+        return new ObjectName("com.cfelde.bohmap:type=BOHMap,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Registers this monitor with the platform MBean server under the given
+     * map name.
+     *
+     * @param name Name of the map
+     * @throws JMException If a monitor is already registered by that name
+     */
+    public synchronized void register(String name) throws JMException {
+        if (objectName != null)
+            throw new IllegalStateException("Already registered as " + objectName);
+
+        final ObjectName newName = getObjectName(name);
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+
+        objectName = newName;
+    }
+
+    /**
+     * Removes this monitor from the platform MBean server, if registered.
+     *
+     * @throws JMException If removing it fails
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName == null)
+            return;
+
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+
+        objectName = null;
+    }
+
+    /**
+     * Returns the current snapshot, taking a new one if it's too old.
+     *
+     * @return Map snapshot
+     */
+    public synchronized BOHMapStats getStats() {
+        final long now = System.currentTimeMillis();
+
+        if (stats == null || now - statsTime >= maxAgeMillis) {
+            stats = statsSupplier.get();
+            statsTime = now;
+        }
+
+        return stats;
+    }
+
+    @Override
+    public synchronized void refresh() {
+        stats = null;
+
+        getStats();
+    }
+
+    @Override
+    public long getEntryCount() {
+        return getStats().getEntryCount();
+    }
+
+    @Override
+    public int getPartitionCount() {
+        return getStats().getPartitionCount();
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return getStats().getTotalBytes();
+    }
+
+    @Override
+    public long getTableBytes() {
+        return getStats().getTableBytes();
+    }
+
+    @Override
+    public long getPartitionBytes() {
+        return getStats().getPartitionBytes();
+    }
+
+    @Override
+    public long getKeyBytes() {
+        return getStats().getKeyBytes();
+    }
+
+    @Override
+    public long getValueBytes() {
+        return getStats().getValueBytes();
+    }
+
+    @Override
+    public long getRecordHeaderBytes() {
+        return getStats().getRecordHeaderBytes();
+    }
+
+    @Override
+    public long[] getOccupancyHistogram() {
+        return getStats().getOccupancyHistogram();
+    }
+
+    @Override
+    public String[] getOccupancyBuckets() {
+        final String[] buckets = new String[getStats().getOccupancyHistogram().length];
+
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            final int lower = BOHMapStats.getOccupancyLowerBound(bucket);
+            final int upper = BOHMapStats.getOccupancyUpperBound(bucket);
+
+            buckets[bucket] = lower == upper ? Integer.toString(lower) : lower + "-" + upper;
+        }
+
+        return buckets;
+    }
+
+    @Override
+    public int getLongestPartition() {
+        return getStats().getLongestPartition();
+    }
+
+    @Override
+    public double getAveragePartitionLength() {
+        return getStats().getAveragePartitionLength();
+    }
+
+    @Override
+    public long getLookupCount() {
+        return getStats().getLookupCount();
+    }
+
+    @Override
+    public long getLookupHitCount() {
+        return getStats().getLookupHitCount();
+    }
+
+    @Override
+    public long getPutCount() {
+        return getStats().getPutCount();
+    }
+
+    @Override
+    public long getRemoveCount() {
+        return getStats().getRemoveCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return getStats().getEvictionCount();
+    }
+
+    @Override
+    public long getExpirationCount() {
+        return getStats().getExpirationCount();
+    }
+
+    @Override
+    public long getGrowCount() {
+        return getStats().getGrowCount();
+    }
+}
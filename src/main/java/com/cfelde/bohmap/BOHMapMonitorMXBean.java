@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+/**
+ * The JMX view of a BOHMap, as registered by BOHMapMonitor. Attributes
+ * are those of BOHMapStats.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public interface BOHMapMonitorMXBean {
+    long getEntryCount();
+
+    int getPartitionCount();
+
+    long getTotalBytes();
+
+    long getTableBytes();
+
+    long getPartitionBytes();
+
+    long getKeyBytes();
+
+    long getValueBytes();
+
+    long getRecordHeaderBytes();
+
+    /**
+     * @return Partition count per bucket of the occupancy histogram
+     */
+    long[] getOccupancyHistogram();
+
+    /**
+     * @return Range of entry counts of each bucket of the occupancy
+     * histogram, such as "2-4"
+     */
+    String[] getOccupancyBuckets();
+
+    int getLongestPartition();
+
+    double getAveragePartitionLength();
+
+    long getLookupCount();
+
+    long getLookupHitCount();
+
+    long getPutCount();
+
+    long getRemoveCount();
+
+    long getEvictionCount();
+
+    long getExpirationCount();
+
+    long getGrowCount();
+
+    /**
+     * Takes a new snapshot of the map right away.
+     */
+    void refresh();
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the state of a BOHMap, as returned by BOHMap.getStats.
+ *
+ * The off-heap bytes used are split into the partition tables, the
+ * partitions themselves, and the keys, values and headers of the entry
+ * records. Keys and values held inline are part of the partition bytes.
+ *
+ * The occupancy histogram counts partitions by number of entries. The first
+ * bucket counts empty partitions and the second those with one entry.
+ * After that each bucket covers twice the entry counts of the one before:
+ * 2 to 4, 5 to 8, 9 to 16 and so on, up to the bucket holding the longest
+ * partition. Many long partitions mean the partition count is undersized
+ * for the number of entries. While the map grows, the partitions of the
+ * new table still waiting for their entries aren't counted, so the
+ * histogram covers those of the old table not yet moved and those of the
+ * new table moved to.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public final class BOHMapStats {
+    private final long entryCount;
+    private final int partitionCount;
+
+    private final long tableBytes;
+    private final long partitionBytes;
+    private final long keyBytes;
+    private final long valueBytes;
+    private final long recordHeaderBytes;
+
+    private final long[] occupancyHistogram;
+    private final int longestPartition;
+
+    private final long lookupCount;
+    private final long lookupHitCount;
+    private final long putCount;
+    private final long removeCount;
+    private final long evictionCount;
+    private final long expirationCount;
+    private final long growCount;
+
+    BOHMapStats(long entryCount, int partitionCount,
+            long tableBytes, long partitionBytes, long keyBytes, long valueBytes, long recordHeaderBytes,
+            long[] occupancyHistogram, int longestPartition,
+            long lookupCount, long lookupHitCount, long putCount, long removeCount,
+            long evictionCount, long expirationCount, long growCount) {
+        this.entryCount = entryCount;
+        this.partitionCount = partitionCount;
+        this.tableBytes = tableBytes;
+        this.partitionBytes = partitionBytes;
+        this.keyBytes = keyBytes;
+        this.valueBytes = valueBytes;
+        this.recordHeaderBytes = recordHeaderBytes;
+        this.occupancyHistogram = occupancyHistogram;
+        this.longestPartition = longestPartition;
+        this.lookupCount = lookupCount;
+        this.lookupHitCount = lookupHitCount;
+        this.putCount = putCount;
+        this.removeCount = removeCount;
+        this.evictionCount = evictionCount;
+        this.expirationCount = expirationCount;
+        this.growCount = growCount;
+    }
+
+    /**
+     * Returns the histogram bucket counting partitions with the given
+     * number of entries.
+     *
+     * @param entries Number of entries in a partition
+     * @return Index of the bucket
+     */
+    public static int getOccupancyBucket(int entries) {
+        if (entries <= 1)
+            return entries;
+
+        return Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(entries - 1));
+    }
+
+    /**
+     * Returns the smallest number of entries counted by the given bucket.
+     *
+     * @param bucket Index of the bucket
+     * @return Smallest entry count of the bucket
+     */
+    public static int getOccupancyLowerBound(int bucket) {
+        if (bucket <= 2)
+            return bucket;
+
+        return (1 << (bucket - 1)) + 1;
+    }
+
+    /**
+     * Returns the largest number of entries counted by the given bucket.
+     *
+     * @param bucket Index of the bucket
+     * @return Largest entry count of the bucket
+     */
+    public static int getOccupancyUpperBound(int bucket) {
+        if (bucket <= 1)
+            return bucket;
+
+        return bucket >= Integer.SIZE - 1 ? Integer.MAX_VALUE : 1 << bucket;
+    }
+
+    /**
+     * @return Number of entries, counting expired entries not yet reclaimed
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return Number of partitions in the current partition table
+     */
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * @return Sum of the off-heap bytes below
+     */
+    public long getTotalBytes() {
+        return tableBytes + partitionBytes + keyBytes + valueBytes + recordHeaderBytes;
+    }
+
+    /**
+     * @return Bytes used by the partition tables, both of them while growing
+     */
+    public long getTableBytes() {
+        return tableBytes;
+    }
+
+    /**
+     * @return Bytes used by partitions, including any room for more entries
+     */
+    public long getPartitionBytes() {
+        return partitionBytes;
+    }
+
+    /**
+     * @return Bytes used by keys not held inline
+     */
+    public long getKeyBytes() {
+        return keyBytes;
+    }
+
+    /**
+     * @return Bytes used by values not held inline, including any room left
+     * by smaller values written in place
+     */
+    public long getValueBytes() {
+        return valueBytes;
+    }
+
+    /**
+     * @return Bytes used by the headers of records not held inline
+     */
+    public long getRecordHeaderBytes() {
+        return recordHeaderBytes;
+    }
+
+    /**
+     * Returns the number of partitions in each bucket of the occupancy
+     * histogram, the last bucket holding the longest partition.
+     *
+     * @return Partition count per bucket
+     */
+    public long[] getOccupancyHistogram() {
+        return occupancyHistogram.clone();
+    }
+
+    /**
+     * @return Number of entries in the longest partition
+     */
+    public int getLongestPartition() {
+        return longestPartition;
+    }
+
+    /**
+     * @return Average number of entries in partitions holding any
+     */
+    public double getAveragePartitionLength() {
+        long used = 0;
+
+        for (int bucket = 1; bucket < occupancyHistogram.length; bucket++) {
+            used += occupancyHistogram[bucket];
+        }
+
+        return used == 0 ? 0 : (double) entryCount / used;
+    }
+
+    /**
+     * @return Number of get and containsKey calls, while lookup counting
+     * is enabled
+     */
+    public long getLookupCount() {
+        return lookupCount;
+    }
+
+    /**
+     * @return Number of get and containsKey calls finding the key, while
+     * lookup counting is enabled
+     */
+    public long getLookupHitCount() {
+        return lookupHitCount;
+    }
+
+    /**
+     * @return Number of put calls
+     */
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * @return Number of remove calls
+     */
+    public long getRemoveCount() {
+        return removeCount;
+    }
+
+    /**
+     * @return Number of entries evicted to stay within the memory budget
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return Number of expired entries reclaimed
+     */
+    public long getExpirationCount() {
+        return expirationCount;
+    }
+
+    /**
+     * @return Number of times the partition table has grown
+     */
+    public long getGrowCount() {
+        return growCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BOHMapStats{" + "entryCount=" + entryCount + ", partitionCount=" + partitionCount
+                + ", totalBytes=" + getTotalBytes() + ", tableBytes=" + tableBytes + ", partitionBytes=" + partitionBytes
+                + ", keyBytes=" + keyBytes + ", valueBytes=" + valueBytes + ", recordHeaderBytes=" + recordHeaderBytes
+                + ", occupancyHistogram=" + Arrays.toString(occupancyHistogram) + ", longestPartition=" + longestPartition
+                + ", lookupCount=" + lookupCount + ", lookupHitCount=" + lookupHitCount + ", putCount=" + putCount
+                + ", removeCount=" + removeCount + ", evictionCount=" + evictionCount + ", expirationCount=" + expirationCount
+                + ", growCount=" + growCount + "}";
+    }
+}
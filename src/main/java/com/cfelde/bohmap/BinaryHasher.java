@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Calculates key hashes, either from a byte array or from off-heap memory,
+ * returning a primitive long so no boxing takes place.
+ *
+ * Both methods must return the same hash for the same bytes, as a map may
+ * be given keys either way. Maps fold the hash down to an int using
+ * toInt, so a hasher only returning int values (as unsigned) gives the
+ * same int hash back.
+ *
+ * Implementations must be thread-safe.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public interface BinaryHasher {
+    /**
+     * The default hasher, giving the same hash as Arrays::hashCode.
+     */
+    BinaryHasher DEFAULT = new BinaryHasher() {
+        @Override
+        public long hash(byte[] data, int offset, int length) {
+            return Memory.hashCode(data, Memory.BYTE_ARRAY_OFFSET + offset, length) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public long hash(long address, int length) {
+            return Memory.hashCode(null, address, length) & 0xFFFFFFFFL;
+        }
+    };
+
+    /**
+     * Returns the hash of the given range of bytes in the given array.
+     *
+     * @param data Array holding the bytes
+     * @param offset Offset of the first byte in the array
+     * @param length Number of bytes
+     * @return Hash of the bytes
+     */
+    long hash(byte[] data, int offset, int length);
+
+    /**
+     * Returns the hash of the given number of bytes at the given off-heap
+     * address.
+     *
+     * @param address Address of the first byte
+     * @param length Number of bytes
+     * @return Hash of the bytes
+     */
+    long hash(long address, int length);
+
+    /**
+     * Returns the hash of all bytes in the given array.
+     *
+     * @param data Array holding the bytes
+     * @return Hash of the bytes
+     */
+    default long hash(byte[] data) {
+        return hash(data, 0, data.length);
+    }
+
+    /**
+     * Folds a hash down to the int used by the maps, mixing in the high bits.
+     *
+     * @param hash Hash from a hasher
+     * @return Int hash
+     */
+    static int toInt(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Adapts a hash function taking a byte array into a hasher. Hashing off
+     * heap memory, or part of an array, copies the bytes into a new array
+     * first, and each hash is boxed by the function itself, so prefer a
+     * BinaryHasher implementation where that matters.
+     *
+     * @param hashFunction Hash function to adapt
+     * @return Hasher calling the hash function
+     */
+    static BinaryHasher fromFunction(Function<byte[], Integer> hashFunction) {
+        return new BinaryHasher() {
+            @Override
+            public long hash(byte[] data, int offset, int length) {
+                if (offset != 0 || length != data.length)
+                    data = Arrays.copyOfRange(data, offset, offset + length);
+
+                return hashFunction.apply(data) & 0xFFFFFFFFL;
+            }
+
+            @Override
+            public long hash(long address, int length) {
+                final byte[] data = new byte[length];
+
+                Memory.copyToArray(address, data, 0, length);
+
+                return hashFunction.apply(data) & 0xFFFFFFFFL;
+            }
+        };
+    }
+}
@@ -0,0 +1,858 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe binary off-heap hash map, made up of a number of segments.
+ *
+ * Each segment is a BOHMap holding its own share of the partitions, with its
+ * own lock and its own allocator. A key is placed in a segment by the high
+ * bits of its (spread) hash, and within the segment by its partition as
+ * usual, so the key hash is only calculated once per operation.
+ *
+ * Writes take the write lock of their segment, so threads working on
+ * different segments never wait on each other. The get and containsKey
+ * calls don't take any lock, but read optimistically using a StampedLock
+ * stamp, validated before following any address read from the segment, and
+ * again once the value is copied out, as a value may be updated in place.
+ * If a writer got in the way, the read is retried under the read lock.
+ * Other reads take the read lock.
+ *
+ * Since an optimistic reader may still be looking at memory a writer has
+ * just freed, frees are deferred. Each reader announces the epoch it entered
+ * in, and memory freed by a segment is kept until every reader has moved on
+ * to a later epoch, after which it's handed back to the segment allocator.
+ *
+ * The compound operations from ConcurrentMap, like putIfAbsent, replace,
+ * compute and merge, are atomic, running entirely under the write lock of
+ * the segment. The functions given to these must not access this map.
+ *
+ * Iterators are weakly consistent. The entries of one segment at a time are
+ * copied out under its read lock, so an iterator will never fail with a
+ * ConcurrentModificationException, but may or may not reflect changes made
+ * to segments after it was created.
+ *
+ * Closing the map frees the memory of every segment, once any reader still
+ * looking at a segment is done.
+ *
+ * The map accepts null values but not null keys. As with Map, the compound
+ * operations treat a key mapped to null as absent.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class ConcurrentBOHMap extends AbstractMap<Binary, Binary> implements ConcurrentMap<Binary, Binary>, AutoCloseable {
+    /**
+     * Default number of segments.
+     */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private static final int MAX_SEGMENT_COUNT = 1 << 16;
+
+    // Number of retired blocks in a segment before trying to free them
+    private static final int RECLAIM_THRESHOLD = 64;
+
+    private final BinaryHasher hasher;
+    private final EpochTracker epochs;
+    private final DeferredAllocator[] allocators;
+    private final BOHMap[] segments;
+    private final StampedLock[] locks;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    private volatile boolean closed;
+
+    /**
+     * Create a new concurrent binary off-heap hash map with the specified
+     * total number of partitions, split over the default number of segments.
+     *
+     * The default Arrays::hashCode method is used to calculate key hashes.
+     *
+     * @param partitionCount A positive initial number of partitions
+     */
+    public ConcurrentBOHMap(int partitionCount) {
+        this(partitionCount, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Create a new concurrent binary off-heap hash map with the specified
+     * total number of partitions, split over at least the given number of
+     * segments.
+     *
+     * The default Arrays::hashCode method is used to calculate key hashes.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param concurrencyLevel Expected number of concurrently updating threads
+     */
+    public ConcurrentBOHMap(int partitionCount, int concurrencyLevel) {
+        this(partitionCount, concurrencyLevel, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, UnsafeAllocator::new);
+    }
+
+    /**
+     * Create a new concurrent binary off-heap hash map with the specified
+     * total number of partitions, split over at least the given number of
+     * segments.
+     *
+     * The segment count is rounded up to a power of two, and the partitions
+     * are shared evenly among them. Each segment grows its own partition
+     * table by the given load factor, and is given its own allocator from
+     * the allocator supplier.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param concurrencyLevel Expected number of concurrently updating threads
+     * @param loadFactor Average number of entries per partition before growing
+     * @param hashFunction Hash function to use when calculating key hashes
+     * @param allocatorSupplier Supplies a new allocator for each segment
+     */
+    public ConcurrentBOHMap(int partitionCount, int concurrencyLevel, float loadFactor, Function<byte[], Integer> hashFunction, Supplier<Allocator> allocatorSupplier) {
+        this(partitionCount, concurrencyLevel, loadFactor, BinaryHasher.fromFunction(hashFunction), allocatorSupplier);
+    }
+
+    /**
+     * Create a new concurrent binary off-heap hash map with the specified
+     * total number of partitions, split over at least the given number of
+     * segments.
+     *
+     * The segment count is rounded up to a power of two, and the partitions
+     * are shared evenly among them. Each segment grows its own partition
+     * table by the given load factor, and is given its own allocator from
+     * the allocator supplier.
+     *
+     * @param partitionCount A positive initial number of partitions
+     * @param concurrencyLevel Expected number of concurrently updating threads
+     * @param loadFactor Average number of entries per partition before growing
+     * @param hasher Hasher to use when calculating key hashes
+     * @param allocatorSupplier Supplies a new allocator for each segment
+     */
+    public ConcurrentBOHMap(int partitionCount, int concurrencyLevel, float loadFactor, BinaryHasher hasher, Supplier<Allocator> allocatorSupplier) {
+        if (partitionCount <= 0)
+            throw new IllegalArgumentException("partitionCount must be positive");
+
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("concurrencyLevel must be positive");
+
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel && segmentCount < MAX_SEGMENT_COUNT) {
+            segmentCount <<= 1;
+        }
+
+        final int segmentPartitions = Math.max(1, (int) (((long) partitionCount + segmentCount - 1) / segmentCount));
+
+        this.hasher = hasher;
+        this.epochs = new EpochTracker();
+        this.allocators = new DeferredAllocator[segmentCount];
+        this.segments = new BOHMap[segmentCount];
+        this.locks = new StampedLock[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.segmentMask = segmentCount - 1;
+
+        for (int i = 0; i < segmentCount; i++) {
+            allocators[i] = new DeferredAllocator(allocatorSupplier.get(), epochs);
+            segments[i] = new BOHMap(segmentPartitions, loadFactor, hasher, allocators[i]);
+            locks[i] = new StampedLock();
+        }
+    }
+
+    private int hash(byte[] keyData) {
+        return BinaryHasher.toInt(hasher.hash(keyData, 0, keyData.length));
+    }
+
+    /**
+     * Returns the segment index for the given key hash. The high bits of the
+     * spread hash are used, leaving the low bits of the hash to pick the
+     * partition within the segment.
+     */
+    private int getSegmentIndex(int hash) {
+        // Shifting by 32 is a no-op, hence also the mask
+        return (ProbingBOHMap.spread(hash) >>> segmentShift) & segmentMask;
+    }
+
+    /**
+     * Frees whatever memory the segment has retired that no reader can see
+     * any more, and releases its write lock.
+     */
+    private void unlockWrite(int index, long stamp) {
+        final DeferredAllocator allocator = allocators[index];
+
+        if (allocator.getRetiredCount() >= RECLAIM_THRESHOLD)
+            allocator.reclaim(epochs.advance());
+
+        locks[index].unlockWrite(stamp);
+    }
+
+    /**
+     * Fails fast on a lock-free read of a closed map. Must be called after
+     * entering the current epoch, so close either sees the reader or the
+     * reader sees the map closed.
+     */
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Map is closed");
+    }
+
+    /**
+     * Returns the number of segments.
+     */
+    int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Returns the number of bytes the allocators of this map have reserved
+     * from the system, including any memory they hold on to for reuse.
+     *
+     * @return Allocated off-heap bytes
+     */
+    public long getAllocatedBytes() {
+        long allocatedBytes = 0;
+
+        for (int i = 0; i < segments.length; i++) {
+            final long stamp = locks[i].readLock();
+            try {
+                allocatedBytes += segments[i].getAllocatedBytes();
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the number of bytes currently used for keys, values, partitions
+     * and partition tables.
+     *
+     * @return Used off-heap bytes
+     */
+    public long getUsedBytes() {
+        long usedBytes = 0;
+
+        for (int i = 0; i < segments.length; i++) {
+            final long stamp = locks[i].readLock();
+            try {
+                usedBytes += segments[i].getUsedBytes();
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+
+        return usedBytes;
+    }
+
+    @Override
+    public int size() {
+        long itemCount = 0;
+
+        for (int i = 0; i < segments.length; i++) {
+            final long stamp = locks[i].readLock();
+            try {
+                itemCount += segments[i].size();
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+
+        return (int) Math.min(itemCount, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < segments.length; i++) {
+            final long stamp = locks[i].readLock();
+            try {
+                if (!segments[i].isEmpty())
+                    return false;
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof Binary))
+            return false;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final StampedLock lock = locks[index];
+        final BOHMap segment = segments[index];
+
+        epochs.enter();
+        try {
+            checkOpen();
+
+            final long stamp = lock.tryOptimisticRead();
+
+            if (stamp != 0) {
+                final boolean found = segment.findEntryAddress(keyData, hash, lock, stamp) != 0;
+
+                if (lock.validate(stamp))
+                    return found;
+            }
+        } finally {
+            epochs.exit();
+        }
+
+        // A writer got in the way, fall back to the read lock
+        final long stamp = lock.readLock();
+        try {
+            return segment.containsKey(keyData, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (int i = 0; i < segments.length; i++) {
+            final long stamp = locks[i].readLock();
+            try {
+                if (segments[i].containsValue(value))
+                    return true;
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Binary get(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final StampedLock lock = locks[index];
+        final BOHMap segment = segments[index];
+
+        epochs.enter();
+        try {
+            checkOpen();
+
+            final long stamp = lock.tryOptimisticRead();
+
+            if (stamp != 0) {
+                final long entryAddress = segment.findEntryAddress(keyData, hash, lock, stamp);
+                final long record = entryAddress == 0 ? 0 : segment.getRecord(entryAddress);
+
+                // Once validated, the record can be read even if freed since,
+                // but the value is only good if not updated in place meanwhile
+                if (lock.validate(stamp)) {
+                    final Binary value = segment.readValue(record);
+
+                    if (lock.validate(stamp))
+                        return value;
+                }
+            }
+        } finally {
+            epochs.exit();
+        }
+
+        // A writer got in the way, fall back to the read lock
+        final long stamp = lock.readLock();
+        try {
+            return segment.get(keyData, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies the value for the given key into the given buffer, at its
+     * current position, without allocating anything on the heap. The same
+     * rules as for BOHMap apply.
+     *
+     * @param key Key to look up
+     * @param dst Heap or direct buffer to copy the value into
+     * @return Number of bytes copied, or -1 if there's no value for the key
+     * @throws java.nio.BufferOverflowException If the value doesn't fit
+     * @throws java.nio.ReadOnlyBufferException If a value is found but the
+     * buffer is read-only
+     * @see BOHMap#get(Binary, ByteBuffer)
+     */
+    public int get(Binary key, ByteBuffer dst) {
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final StampedLock lock = locks[index];
+        final BOHMap segment = segments[index];
+
+        epochs.enter();
+        try {
+            checkOpen();
+
+            final long stamp = lock.tryOptimisticRead();
+
+            if (stamp != 0) {
+                final long entryAddress = segment.findEntryAddress(keyData, hash, lock, stamp);
+                final long record = entryAddress == 0 ? 0 : segment.getRecord(entryAddress);
+
+                if (lock.validate(stamp)) {
+                    final int position = dst.position();
+
+                    try {
+                        final int size = segment.readValue(record, dst);
+
+                        if (lock.validate(stamp))
+                            return size;
+                    } catch (BufferOverflowException | ReadOnlyBufferException ex) {
+                        // Left for the read below to throw, if still so
+                    }
+
+                    // Undo what was copied of a value updated in place
+                    dst.position(position);
+                }
+            }
+        } finally {
+            epochs.exit();
+        }
+
+        // A writer got in the way, fall back to the read lock
+        final long stamp = lock.readLock();
+        try {
+            return segment.get(keyData, hash, dst);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Binary getOrDefault(Object key, Binary defaultValue) {
+        if (!(key instanceof Binary))
+            return defaultValue;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].readLock();
+        try {
+            final BOHMap segment = segments[index];
+            final Binary value = segment.get(keyData, hash);
+
+            return value != null || segment.containsKey(keyData, hash) ? value : defaultValue;
+        } finally {
+            locks[index].unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Binary put(Binary key, Binary value) {
+        final int hash = hash(key.getValue());
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            return segments[index].put(key, hash, value);
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public Binary remove(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            return segments[index].remove(keyData, hash);
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < segments.length; i++) {
+            final long stamp = locks[i].writeLock();
+            try {
+                segments[i].clear();
+            } finally {
+                unlockWrite(i, stamp);
+            }
+        }
+    }
+
+    /**
+     * Frees the memory of every segment, as with BOHMap.close. Any later use
+     * of the map throws an IllegalStateException. Closing an already closed
+     * map has no effect.
+     *
+     * Waits for every segment write lock, and for any lock-free reader to
+     * leave, before freeing anything. Must not be called from within a
+     * function given to one of the compound operations.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+
+        closed = true;
+
+        final long[] stamps = new long[segments.length];
+
+        for (int i = 0; i < segments.length; i++) {
+            stamps[i] = locks[i].writeLock();
+        }
+
+        try {
+            // Readers that saw the map open entered no later than this
+            final long epoch = epochs.getEpoch();
+
+            while (epochs.advance() <= epoch) {
+                Thread.yield();
+            }
+
+            for (BOHMap segment : segments) {
+                segment.close();
+            }
+        } finally {
+            for (int i = 0; i < segments.length; i++) {
+                locks[i].unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    @Override
+    public Binary putIfAbsent(Binary key, Binary value) {
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+            final Binary oldValue = segment.get(keyData, hash);
+
+            if (oldValue == null)
+                segment.put(key, hash, value);
+
+            return oldValue;
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof Binary))
+            return false;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+
+            if (!segment.containsKey(keyData, hash) || !Objects.equals(segment.get(keyData, hash), value))
+                return false;
+
+            segment.remove(keyData, hash);
+
+            return true;
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public boolean replace(Binary key, Binary oldValue, Binary newValue) {
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+
+            if (!segment.containsKey(keyData, hash) || !Objects.equals(segment.get(keyData, hash), oldValue))
+                return false;
+
+            segment.put(key, hash, newValue);
+
+            return true;
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public Binary replace(Binary key, Binary value) {
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+
+            if (!segment.containsKey(keyData, hash))
+                return null;
+
+            return segment.put(key, hash, value);
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public Binary computeIfAbsent(Binary key, Function<? super Binary, ? extends Binary> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+            final Binary oldValue = segment.get(keyData, hash);
+
+            if (oldValue != null)
+                return oldValue;
+
+            final Binary newValue = mappingFunction.apply(key);
+
+            if (newValue != null)
+                segment.put(key, hash, newValue);
+
+            return newValue;
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public Binary computeIfPresent(Binary key, BiFunction<? super Binary, ? super Binary, ? extends Binary> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+            final Binary oldValue = segment.get(keyData, hash);
+
+            if (oldValue == null)
+                return null;
+
+            final Binary newValue = remappingFunction.apply(key, oldValue);
+
+            if (newValue == null)
+                segment.remove(keyData, hash);
+            else
+                segment.put(key, hash, newValue);
+
+            return newValue;
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public Binary compute(Binary key, BiFunction<? super Binary, ? super Binary, ? extends Binary> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+            final Binary oldValue = segment.get(keyData, hash);
+            final Binary newValue = remappingFunction.apply(key, oldValue);
+
+            if (newValue != null)
+                segment.put(key, hash, newValue);
+            else if (oldValue != null || segment.containsKey(keyData, hash))
+                segment.remove(keyData, hash);
+
+            return newValue;
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public Binary merge(Binary key, Binary value, BiFunction<? super Binary, ? super Binary, ? extends Binary> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = getSegmentIndex(hash);
+
+        final long stamp = locks[index].writeLock();
+        try {
+            final BOHMap segment = segments[index];
+            final Binary oldValue = segment.get(keyData, hash);
+            final Binary newValue = oldValue == null ? value : remappingFunction.apply(oldValue, value);
+
+            if (newValue == null)
+                segment.remove(keyData, hash);
+            else
+                segment.put(key, hash, newValue);
+
+            return newValue;
+        } finally {
+            unlockWrite(index, stamp);
+        }
+    }
+
+    @Override
+    public Set<Entry<Binary, Binary>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * Returns a copy of all entries in the given segment.
+     */
+    private List<Entry<Binary, Binary>> copySegment(int index) {
+        final long stamp = locks[index].readLock();
+        try {
+            final BOHMap segment = segments[index];
+            final List<Entry<Binary, Binary>> entries = new ArrayList<>(segment.size());
+
+            // Entries from BOHMap are read eagerly, so safe to keep past the lock
+            for (Entry<Binary, Binary> entry : segment.entrySet()) {
+                entries.add(entry);
+            }
+
+            return entries;
+        } finally {
+            locks[index].unlockRead(stamp);
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Entry<Binary, Binary>> {
+        @Override
+        public Iterator<Entry<Binary, Binary>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+
+            final Entry<?, ?> entry = (Entry<?, ?>) o;
+            final Object key = entry.getKey();
+
+            if (!(key instanceof Binary))
+                return false;
+
+            final Binary value = getOrDefault(key, null);
+
+            return Objects.equals(value, entry.getValue()) && (value != null || containsKey(key));
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+
+            final Entry<?, ?> entry = (Entry<?, ?>) o;
+
+            return ConcurrentBOHMap.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentBOHMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ConcurrentBOHMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentBOHMap.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Entry<Binary, Binary>> {
+        private int segmentIndex;
+        private Iterator<Entry<Binary, Binary>> entries = Collections.emptyIterator();
+        private Entry<Binary, Binary> last;
+
+        @Override
+        public boolean hasNext() {
+            // Copy out the next non-empty segment once done with the current
+            while (!entries.hasNext() && segmentIndex < segments.length) {
+                entries = copySegment(segmentIndex++).iterator();
+            }
+
+            return entries.hasNext();
+        }
+
+        @Override
+        public Entry<Binary, Binary> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            return last = entries.next();
+        }
+
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+
+            ConcurrentBOHMap.this.remove(last.getKey());
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+
+/**
+ * An allocator which defers every free until no lock-free reader can still
+ * see the memory, passing everything else on to the allocator it wraps.
+ *
+ * Freed blocks are retired along with the current epoch of the given
+ * tracker, and only handed on to the wrapped allocator by reclaim, once
+ * every reader has moved past that epoch. For the same reason a reallocate
+ * never resizes in place, but copies into a new block and retires the old.
+ *
+ * Retired blocks are still counted as used until reclaimed.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class DeferredAllocator implements Allocator {
+    private final Allocator allocator;
+    private final EpochTracker epochs;
+
+    // Address, size and epoch of each retired block
+    private long[] retired = new long[3 * 64];
+    private int retiredCount;
+
+    DeferredAllocator(Allocator allocator, EpochTracker epochs) {
+        this.allocator = allocator;
+        this.epochs = epochs;
+    }
+
+    @Override
+    public long allocate(long size) {
+        return allocator.allocate(size);
+    }
+
+    @Override
+    public long reallocate(long address, long oldSize, long newSize) {
+        if (oldSize == newSize)
+            return address;
+
+        final long newAddress = allocator.allocate(newSize);
+
+        Memory.UNSAFE.copyMemory(address, newAddress, Math.min(oldSize, newSize));
+
+        free(address, oldSize);
+
+        return newAddress;
+    }
+
+    @Override
+    public void free(long address, long size) {
+        if (retiredCount * 3 == retired.length)
+            retired = Arrays.copyOf(retired, retired.length * 2);
+
+        final int index = retiredCount++ * 3;
+
+        retired[index] = address;
+        retired[index + 1] = size;
+        retired[index + 2] = epochs.getEpoch();
+    }
+
+    /**
+     * Returns the number of blocks waiting to be freed.
+     */
+    int getRetiredCount() {
+        return retiredCount;
+    }
+
+    /**
+     * Frees all retired blocks from before the given epoch, keeping the
+     * rest for later.
+     */
+    void reclaim(long safeEpoch) {
+        int kept = 0;
+
+        for (int i = 0; i < retiredCount; i++) {
+            final int index = i * 3;
+
+            if (retired[index + 2] < safeEpoch) {
+                allocator.free(retired[index], retired[index + 1]);
+            } else {
+                System.arraycopy(retired, index, retired, kept * 3, 3);
+                kept++;
+            }
+        }
+
+        retiredCount = kept;
+    }
+
+    @Override
+    public void release() {
+        // Only called on close, or once the map is unreachable, with no readers left
+        reclaim(Long.MAX_VALUE);
+
+        allocator.release();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+}
@@ -0,0 +1,508 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A {@code BOHMap} made durable by a write-ahead log, recording every put
+ * and remove in log files on disk before the call returns.
+ *
+ * The directory holds at most one snapshot, written by checkpoint, and the
+ * log segments written since. On opening, the latest snapshot is loaded,
+ * and the segments after it are replayed on top, so the map is as it was
+ * when the last record made it to disk. A record cut short by a crash is
+ * dropped, along with anything after it.
+ *
+ * The log is written by a thread of its own, in batches holding every
+ * record appended since the previous batch, so concurrent callers share a
+ * single write and fsync. When the log is synced depends on the policy:
+ *
+ * EVERY_OPERATION makes each put and remove wait until its record is
+ * synced. INTERVAL syncs at most every given number of milliseconds, so a
+ * crash may lose the operations of the last interval. NONE writes at the
+ * same interval but leaves syncing to the operating system, and so only
+ * protects against the process crashing, not the machine.
+ *
+ * A checkpoint writes a snapshot of the map and starts a new segment,
+ * after which all older segments and snapshots are deleted.
+ *
+ * The put and remove methods taking buffers don't allocate anything on
+ * the heap, neither for the map nor the log.
+ *
+ * All methods are thread-safe, with each call holding a lock on the map
+ * while it runs, except for the wait for its record to be synced.
+ *
+ * The map accepts null values but not null keys.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class DurableBOHMap extends AbstractMap<Binary, Binary> implements Closeable {
+    /**
+     * When the log is synced to disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * Every put and remove waits until its record is synced.
+         */
+        EVERY_OPERATION,
+
+        /**
+         * The log is synced at most every sync interval.
+         */
+        INTERVAL,
+
+        /**
+         * The log is written every sync interval, but never explicitly
+         * synced until closed.
+         */
+        NONE
+    }
+
+    /**
+     * Default time between log writes, unless syncing every operation.
+     */
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private final Path directory;
+    private final BOHMap map;
+    private final SyncPolicy policy;
+    private final WriteAheadLog log;
+
+    /**
+     * Open the map in the given directory, creating it if needed, and
+     * syncing every operation.
+     *
+     * @param directory Directory holding the snapshot and log
+     * @throws IOException If the directory can't be read, or holds damaged
+     * files
+     */
+    public DurableBOHMap(Path directory) throws IOException {
+        this(directory, new BOHMap(1024), SyncPolicy.EVERY_OPERATION, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Open the map in the given directory, creating it if needed, loading
+     * all entries into the given map.
+     *
+     * The given map should be empty, and is owned by this map from here on.
+     *
+     * @param directory Directory holding the snapshot and log
+     * @param map Map to hold the entries
+     * @param policy When the log is synced
+     * @param syncIntervalMillis Time between log writes, unless syncing
+     * every operation
+     * @throws IOException If the directory can't be read, or holds damaged
+     * files
+     */
+    public DurableBOHMap(Path directory, BOHMap map, SyncPolicy policy, long syncIntervalMillis) throws IOException {
+        if (syncIntervalMillis <= 0)
+            throw new IllegalArgumentException("syncIntervalMillis must be positive");
+
+        this.directory = directory;
+        this.map = map;
+        this.policy = policy;
+
+        Files.createDirectories(directory);
+
+        this.log = new WriteAheadLog(directory, recover(), policy, syncIntervalMillis);
+    }
+
+    private static String getSnapshotName(long segment) {
+        return String.format(SNAPSHOT_PREFIX + "%020d" + SNAPSHOT_SUFFIX, segment);
+    }
+
+    /**
+     * Loads the latest snapshot and replays the log segments after it,
+     * returning the number of the next segment to write.
+     */
+    private long recover() throws IOException {
+        final TreeMap<Long, Path> snapshots = new TreeMap<>();
+        final TreeMap<Long, Path> segments = new TreeMap<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+
+                if (name.matches(SNAPSHOT_PREFIX + "\\d{20}\\" + SNAPSHOT_SUFFIX))
+                    snapshots.put(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), SNAPSHOT_PREFIX.length() + 20)), file);
+                else if (WriteAheadLog.getSegment(name) >= 0)
+                    segments.put(WriteAheadLog.getSegment(name), file);
+            }
+        }
+
+        // A snapshot holds everything logged before its segment
+        long nextSegment = 0;
+
+        if (!snapshots.isEmpty()) {
+            nextSegment = snapshots.lastKey();
+
+            try (FileChannel channel = FileChannel.open(snapshots.lastEntry().getValue(), StandardOpenOption.READ)) {
+                map.readSnapshot(channel);
+            }
+        }
+
+        final WriteAheadLog.Replay replay = this::replay;
+
+        for (Long segment : segments.tailMap(nextSegment).keySet()) {
+            // Only the last segment may have been cut short
+            WriteAheadLog.replay(segments.get(segment), segment.equals(segments.lastKey()), replay);
+        }
+
+        if (!segments.isEmpty())
+            nextSegment = Math.max(nextSegment, segments.lastKey() + 1);
+
+        // Clean up after a checkpoint interrupted before it was done
+        if (!snapshots.isEmpty())
+            deleteBefore(snapshots.lastKey());
+
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_PREFIX + "tmp"));
+
+        return nextSegment;
+    }
+
+    private void replay(byte type, long keyAddress, int keySize, long valueAddress, int valueSize) throws IOException {
+        switch (type) {
+            case WriteAheadLog.PUT:
+                if (valueAddress == 0)
+                    map.put(new Binary(readBytes(keyAddress, keySize)), null);
+                else
+                    map.put(keyAddress, keySize, valueAddress, valueSize);
+                break;
+            case WriteAheadLog.REMOVE:
+                map.remove(keyAddress, keySize);
+                break;
+            case WriteAheadLog.CLEAR:
+                map.clear();
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log record type " + type);
+        }
+    }
+
+    private static byte[] readBytes(long address, int size) {
+        final byte[] data = new byte[size];
+
+        Memory.copyToArray(address, data, 0, size);
+
+        return data;
+    }
+
+    /**
+     * Deletes every snapshot and log segment before the given segment.
+     */
+    private void deleteBefore(long segment) throws IOException {
+        final List<Path> obsolete = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+
+                final long fileSegment = name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)
+                        ? Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()))
+                        : WriteAheadLog.getSegment(name);
+
+                if (fileSegment >= 0 && fileSegment < segment)
+                    obsolete.add(file);
+            }
+        }
+
+        for (Path file : obsolete) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Waits for the record at the given position to be synced, if the
+     * policy says so.
+     */
+    private void awaitDurable(long position) {
+        if (policy == SyncPolicy.EVERY_OPERATION)
+            log.awaitDurable(position);
+    }
+
+    /**
+     * Writes and syncs every operation so far, whatever the policy.
+     *
+     * @throws UncheckedIOException If writing the log has failed
+     */
+    public void sync() {
+        log.sync();
+    }
+
+    /**
+     * Writes a snapshot of the map, after which the log segments before it
+     * are no longer needed and deleted. Other calls wait while the snapshot
+     * is written.
+     *
+     * @throws IOException If writing the snapshot fails
+     */
+    public void checkpoint() throws IOException {
+        final long segment;
+
+        synchronized (this) {
+            // Every operation so far is in the segments before this one
+            segment = log.rotate();
+
+            final Path temporary = directory.resolve(SNAPSHOT_PREFIX + "tmp");
+
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                map.writeSnapshot(channel);
+                channel.force(true);
+            }
+
+            Files.move(temporary, directory.resolve(getSnapshotName(segment)), StandardCopyOption.ATOMIC_MOVE);
+            WriteAheadLog.syncDirectory(directory);
+        }
+
+        deleteBefore(segment);
+    }
+
+    /**
+     * Writes and syncs every operation so far, stops the log writer, and
+     * closes the map given at construction, freeing its memory.
+     *
+     * @throws IOException If writing the log fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            log.close();
+        } finally {
+            synchronized (this) {
+                map.close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return map.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean containsValue(Object value) {
+        return map.containsValue(value);
+    }
+
+    @Override
+    public synchronized Binary get(Object key) {
+        return map.get(key);
+    }
+
+    /**
+     * Copies the value for the given key into the given buffer, as with
+     * BOHMap.get(Binary, ByteBuffer).
+     *
+     * @param key Key to look up
+     * @param dst Heap or direct buffer to copy the value into
+     * @return Number of bytes copied, or -1 if there's no value for the key
+     */
+    public synchronized int get(Binary key, ByteBuffer dst) {
+        return map.get(key, dst);
+    }
+
+    @Override
+    public Binary put(Binary key, Binary value) {
+        final byte[] keyData = key.getValue();
+        final byte[] valueData = value == null ? null : value.getValue();
+
+        final Binary oldValue;
+        final long position;
+
+        synchronized (this) {
+            position = log.append(WriteAheadLog.PUT, keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length,
+                    valueData, Memory.BYTE_ARRAY_OFFSET, valueData == null ? -1 : valueData.length);
+
+            oldValue = map.put(key, value);
+        }
+
+        awaitDurable(position);
+
+        return oldValue;
+    }
+
+    /**
+     * Associates the value held by the given value buffer with the key held
+     * by the given key buffer, as with BOHMap.put(ByteBuffer, ByteBuffer),
+     * without allocating anything on the heap.
+     *
+     * @param key Heap or direct buffer holding the key
+     * @param value Heap or direct buffer holding the value, or null
+     * @return True if the key already had a mapping, which was replaced
+     */
+    public boolean put(ByteBuffer key, ByteBuffer value) {
+        final boolean replaced;
+        final long position;
+
+        synchronized (this) {
+            position = log.append(WriteAheadLog.PUT, Memory.getBase(key), Memory.getOffset(key), key.remaining(),
+                    value == null ? null : Memory.getBase(value), value == null ? 0 : Memory.getOffset(value), value == null ? -1 : value.remaining());
+
+            replaced = map.put(key, value);
+        }
+
+        awaitDurable(position);
+
+        return replaced;
+    }
+
+    @Override
+    public Binary remove(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+
+        final Binary removedValue;
+        final long position;
+
+        synchronized (this) {
+            if (!map.containsKey(key))
+                return null;
+
+            position = log.append(WriteAheadLog.REMOVE, keyData, Memory.BYTE_ARRAY_OFFSET, keyData.length, null, 0, -1);
+
+            removedValue = map.remove(key);
+        }
+
+        awaitDurable(position);
+
+        return removedValue;
+    }
+
+    /**
+     * Removes the mapping for the key held by the given buffer, as with
+     * BOHMap.remove(ByteBuffer), without allocating anything on the heap.
+     *
+     * @param key Heap or direct buffer holding the key
+     * @return True if a mapping was removed
+     */
+    public boolean remove(ByteBuffer key) {
+        final long position;
+
+        synchronized (this) {
+            if (!map.containsKey(key))
+                return false;
+
+            position = log.append(WriteAheadLog.REMOVE, Memory.getBase(key), Memory.getOffset(key), key.remaining(), null, 0, -1);
+
+            map.remove(key);
+        }
+
+        awaitDurable(position);
+
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        final long position;
+
+        synchronized (this) {
+            position = log.append(WriteAheadLog.CLEAR, null, 0, 0, null, 0, -1);
+
+            map.clear();
+        }
+
+        awaitDurable(position);
+    }
+
+    /**
+     * Returns the entries of the map. Iterating takes a copy of all entries
+     * when started, and removing through the iterator removes from the map.
+     */
+    @Override
+    public Set<Entry<Binary, Binary>> entrySet() {
+        return new AbstractSet<Entry<Binary, Binary>>() {
+            @Override
+            public int size() {
+                return DurableBOHMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                DurableBOHMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Entry<Binary, Binary>> iterator() {
+                final List<Entry<Binary, Binary>> entries;
+
+                synchronized (DurableBOHMap.this) {
+                    entries = new ArrayList<>(map.entrySet());
+                }
+
+                final Iterator<Entry<Binary, Binary>> iterator = entries.iterator();
+
+                return new Iterator<Entry<Binary, Binary>>() {
+                    private Entry<Binary, Binary> last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<Binary, Binary> next() {
+                        last = iterator.next();
+
+                        return last;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null)
+                            throw new IllegalStateException();
+
+                        DurableBOHMap.this.remove(last.getKey());
+                        last = null;
+                    }
+                };
+            }
+        };
+    }
+}
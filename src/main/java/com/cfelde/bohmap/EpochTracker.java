@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of which epoch each lock-free reader entered in, so that
+ * memory retired by a writer is only freed once no reader can still see it.
+ *
+ * Each reader thread gets its own record, where it announces the current
+ * epoch on enter and clears it again on exit. Readers only ever write to
+ * their own record. Writers tag retired memory with the current epoch, and
+ * may free it once every reader still inside entered in a later epoch.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class EpochTracker {
+    // Epoch of a reader not currently inside
+    private static final long IDLE = Long.MAX_VALUE;
+
+    private final AtomicLong epoch = new AtomicLong();
+    private final Queue<Reader> readers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Reader> reader = ThreadLocal.withInitial(this::register);
+
+    private static final class Reader {
+        private final WeakReference<Thread> thread = new WeakReference<>(Thread.currentThread());
+
+        private volatile long epoch = IDLE;
+    }
+
+    private Reader register() {
+        final Reader newReader = new Reader();
+
+        readers.add(newReader);
+
+        return newReader;
+    }
+
+    /**
+     * Announces the calling thread as a reader in the current epoch. Must
+     * be followed by exit, and may not be nested.
+     */
+    void enter() {
+        // A volatile write, so no memory is read before this is visible
+        reader.get().epoch = epoch.get();
+    }
+
+    /**
+     * Announces the calling thread is done reading.
+     */
+    void exit() {
+        reader.get().epoch = IDLE;
+    }
+
+    /**
+     * Returns the current epoch.
+     */
+    long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Moves on to the next epoch, returning the oldest epoch any reader is
+     * still inside. Memory retired in an epoch before the returned one can
+     * safely be freed.
+     */
+    long advance() {
+        final long current = epoch.incrementAndGet();
+
+        long oldest = current;
+
+        for (Iterator<Reader> iterator = readers.iterator(); iterator.hasNext(); ) {
+            final Reader next = iterator.next();
+            final long readerEpoch = next.epoch;
+
+            if (readerEpoch != IDLE) {
+                oldest = Math.min(oldest, readerEpoch);
+            } else {
+                // Drop records of threads no longer around
+                final Thread thread = next.thread.get();
+
+                if (thread == null || !thread.isAlive())
+                    iterator.remove();
+            }
+        }
+
+        return oldest;
+    }
+}
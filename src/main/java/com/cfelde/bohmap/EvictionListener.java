@@ -0,0 +1,37 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+/**
+ * Told about every entry a map with a memory budget evicts to stay within
+ * it.
+ *
+ * The listener is called on the thread doing the put that went over budget,
+ * after the entry is gone from the map. It must not modify the map.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+@FunctionalInterface
+public interface EvictionListener {
+    /**
+     * Called for each evicted entry.
+     *
+     * @param key Key of the evicted entry
+     * @param value Value of the evicted entry, possibly null
+     */
+    void onEviction(Binary key, Binary value);
+}
@@ -0,0 +1,683 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import sun.misc.Unsafe;
+
+/**
+ * An alternative to {@code BOHMap} for keys and values that all have the
+ * same size, such as 16 byte UUIDs mapped to fixed size records. The key
+ * and value widths are given at construction, and every entry is kept in a
+ * single dense off-heap slot array, with no size headers and no memory
+ * allocated per entry.
+ *
+ * The internal memory structure is as follows:
+ *
+ * The slot address points to an array of slots, where the number of slots
+ * is always a power of two. Each slot holds the key hash (an int), the slot
+ * state (an int), and then the key and value bytes, padded to a multiple of
+ * 8 bytes. The state is zero for an empty slot, and otherwise tells whether
+ * the value is null.
+ *
+ * As with {@code ProbingBOHMap}, keys are placed using linear probing from
+ * the slot given by their hash, and on remove, following entries are
+ * shifted back into the freed slot where possible, so no tombstones are
+ * needed. The stored hashes are used when the slot array grows, so no keys
+ * are rehashed, and let most slots belonging to other keys be skipped
+ * without comparing keys. Keys and values are read straight out of the slot
+ * they're in, so a lookup usually touches a single cache line.
+ *
+ * As with {@code BOHMap}, the map should be closed once no longer needed,
+ * freeing all its memory right away rather than once garbage collected.
+ *
+ * No attampts are made at making this map implementation thread-safe, but
+ * concurrent read operations will not cause any concurrency issues.
+ *
+ * The map accepts null values but not null keys. Keys and values of any
+ * other size than declared are rejected with an IllegalArgumentException.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class FixedWidthBOHMap extends AbstractMap<Binary, Binary> implements AutoCloseable {
+    /**
+     * Default fraction of slots in use before the slot array grows.
+     */
+    public static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // Offsets within a slot, with the value right after the key
+    private static final int HASH_OFFSET = 0;
+    private static final int STATE_OFFSET = Integer.BYTES;
+    private static final int KEY_OFFSET = Integer.BYTES * 2;
+
+    // Slot states
+    private static final int EMPTY = 0;
+    private static final int VALUE = 1;
+    private static final int NULL_VALUE = 2;
+
+    private final Unsafe unsafe;
+    private final int keyWidth;
+    private final int valueWidth;
+    private final int valueOffset;
+    private final int slotSize;
+    private final float loadFactor;
+    private final BinaryHasher hasher;
+    private final Allocator allocator;
+    private final Resources resources;
+    private final OffHeapCleaner.Cleanable cleanable;
+
+    private int capacity;
+    private long slotAddress;
+    private long growThreshold;
+
+    private long itemCount;
+
+    /**
+     * Create a new fixed width binary off-heap hash map, with room for at
+     * least the given number of entries before it needs to grow.
+     *
+     * The default Arrays::hashCode method is used to calculate key hashes.
+     *
+     * @param keyWidth Size in bytes of every key, at least 1
+     * @param valueWidth Size in bytes of every non-null value
+     * @param expectedSize Expected number of entries
+     */
+    public FixedWidthBOHMap(int keyWidth, int valueWidth, int expectedSize) {
+        this(keyWidth, valueWidth, expectedSize, DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, new UnsafeAllocator());
+    }
+
+    /**
+     * Create a new fixed width binary off-heap hash map, with room for at
+     * least the given number of entries before it needs to grow, using the
+     * given hasher to calculate key hashes and taking all its memory from the
+     * given allocator.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param keyWidth Size in bytes of every key, at least 1
+     * @param valueWidth Size in bytes of every non-null value
+     * @param expectedSize Expected number of entries
+     * @param loadFactor Fraction of slots in use before growing, between 0 and 1
+     * @param hasher Hasher to use when calculating key hashes
+     * @param allocator Allocator used for the slot array
+     */
+    public FixedWidthBOHMap(int keyWidth, int valueWidth, int expectedSize, float loadFactor, BinaryHasher hasher, Allocator allocator) {
+        if (keyWidth <= 0)
+            throw new IllegalArgumentException("keyWidth must be positive");
+
+        if (valueWidth < 0)
+            throw new IllegalArgumentException("valueWidth must not be negative");
+
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("expectedSize must not be negative");
+
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("loadFactor must be between 0 and 1");
+
+        final long slotSize = (KEY_OFFSET + (long) keyWidth + valueWidth + 7) & ~7L;
+
+        if (slotSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("keyWidth and valueWidth too large");
+
+        this.unsafe = Memory.UNSAFE;
+        this.keyWidth = keyWidth;
+        this.valueWidth = valueWidth;
+        this.valueOffset = KEY_OFFSET + keyWidth;
+        this.slotSize = (int) slotSize;
+        this.loadFactor = loadFactor;
+        this.hasher = hasher;
+        this.allocator = allocator;
+
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * (double) loadFactor < expectedSize) {
+            capacity <<= 1;
+        }
+
+        this.capacity = capacity;
+        this.slotAddress = allocate((long) capacity * slotSize);
+        this.growThreshold = getGrowThreshold(capacity);
+
+        this.resources = new Resources(allocator, this.slotSize);
+        this.cleanable = OffHeapCleaner.register(this, resources);
+
+        trackSlots();
+    }
+
+    /**
+     * Everything needed to free the memory of a map, without referring to
+     * the map itself, so it can be run by the cleaner once the map is
+     * unreachable.
+     */
+    private static final class Resources implements Runnable {
+        private final Allocator allocator;
+        private final int slotSize;
+
+        // Copies of the slot array fields of the map
+        private long slotAddress;
+        private int capacity;
+
+        private Resources(Allocator allocator, int slotSize) {
+            this.allocator = allocator;
+            this.slotSize = slotSize;
+        }
+
+        @Override
+        public void run() {
+            // Entries live in the slot array, so only that needs freeing..
+            allocator.free(slotAddress, (long) capacity * slotSize);
+
+            // ..along with anything the allocator still holds on to
+            allocator.release();
+        }
+    }
+
+    /**
+     * Keeps the copies of the slot array fields used by the cleaner up to
+     * date. Called whenever the slot array is replaced.
+     */
+    private void trackSlots() {
+        resources.slotAddress = slotAddress;
+        resources.capacity = capacity;
+    }
+
+    /**
+     * Fails fast on any use of a closed map, rather than touching memory
+     * already freed.
+     */
+    private void checkOpen() {
+        if (slotAddress == 0)
+            throw new IllegalStateException("Map is closed");
+    }
+
+    /**
+     * Allocates zeroed memory, so every slot starts out empty.
+     */
+    private long allocate(long size) {
+        final long address = allocator.allocate(size);
+
+        unsafe.setMemory(address, size, (byte) 0);
+
+        return address;
+    }
+
+    private long getGrowThreshold(int capacity) {
+        return capacity >= MAX_CAPACITY ? capacity - 1 : (long) (capacity * (double) loadFactor);
+    }
+
+    private int hash(byte[] keyData) {
+        return BinaryHasher.toInt(hasher.hash(keyData, 0, keyData.length));
+    }
+
+    private long getSlot(int index) {
+        return slotAddress + ((long) index * slotSize);
+    }
+
+    private byte[] checkKey(Binary key) {
+        final byte[] keyData = key.getValue();
+
+        if (keyData.length != keyWidth)
+            throw new IllegalArgumentException("Key must be " + keyWidth + " bytes");
+
+        return keyData;
+    }
+
+    private byte[] checkValue(Binary value) {
+        if (value == null)
+            return null;
+
+        final byte[] valueData = value.getValue();
+
+        if (valueData.length != valueWidth)
+            throw new IllegalArgumentException("Value must be " + valueWidth + " bytes");
+
+        return valueData;
+    }
+
+    /**
+     * Returns the index of the slot holding the given key, or if not found,
+     * -(index + 1) where index is the empty slot the key would go in.
+     */
+    private int findSlot(byte[] keyData, int hash) {
+        checkOpen();
+
+        final int mask = capacity - 1;
+
+        for (int index = ProbingBOHMap.spread(hash) & mask; ; index = (index + 1) & mask) {
+            final long slot = getSlot(index);
+
+            // An empty slot ends the probe
+            if (unsafe.getInt(slot + STATE_OFFSET) == EMPTY)
+                return -(index + 1);
+
+            // Compare key content if the hash matches, 8 bytes at a time
+            if (unsafe.getInt(slot + HASH_OFFSET) == hash && Memory.equals(keyData, slot + KEY_OFFSET))
+                return index;
+        }
+    }
+
+    /**
+     * Returns the index of the slot holding the given key, or -1 if not
+     * found. Keys of the wrong size are never found.
+     */
+    private int findKey(Object key) {
+        if (!(key instanceof Binary))
+            return -1;
+
+        final byte[] keyData = ((Binary) key).getValue();
+
+        if (keyData.length != keyWidth) {
+            checkOpen();
+
+            return -1;
+        }
+
+        return Math.max(findSlot(keyData, hash(keyData)), -1);
+    }
+
+    private Binary readKey(long slot) {
+        final byte[] data = new byte[keyWidth];
+
+        Memory.copyToArray(slot + KEY_OFFSET, data, 0, keyWidth);
+
+        return new Binary(data);
+    }
+
+    private Binary readValue(long slot) {
+        if (unsafe.getInt(slot + STATE_OFFSET) == NULL_VALUE)
+            return null;
+
+        final byte[] data = new byte[valueWidth];
+
+        Memory.copyToArray(slot + valueOffset, data, 0, valueWidth);
+
+        return new Binary(data);
+    }
+
+    /**
+     * Writes the given value, or null, into the given slot.
+     */
+    private void writeValue(long slot, byte[] valueData) {
+        if (valueData == null) {
+            unsafe.putInt(slot + STATE_OFFSET, NULL_VALUE);
+        } else {
+            unsafe.putInt(slot + STATE_OFFSET, VALUE);
+            Memory.copyFromArray(valueData, 0, slot + valueOffset, valueWidth);
+        }
+    }
+
+    /**
+     * Doubles the slot array, moving every entry over using its stored hash.
+     */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY)
+            return;
+
+        final long oldSlotAddress = slotAddress;
+        final int oldCapacity = capacity;
+
+        capacity = capacity << 1;
+        slotAddress = allocate((long) capacity * slotSize);
+        growThreshold = getGrowThreshold(capacity);
+
+        final int mask = capacity - 1;
+
+        for (long oldIndex = 0; oldIndex < oldCapacity; oldIndex++) {
+            final long oldSlot = oldSlotAddress + (oldIndex * slotSize);
+
+            if (unsafe.getInt(oldSlot + STATE_OFFSET) == EMPTY)
+                continue;
+
+            int index = ProbingBOHMap.spread(unsafe.getInt(oldSlot + HASH_OFFSET)) & mask;
+            while (unsafe.getInt(getSlot(index) + STATE_OFFSET) != EMPTY) {
+                index = (index + 1) & mask;
+            }
+
+            unsafe.copyMemory(oldSlot, getSlot(index), slotSize);
+        }
+
+        allocator.free(oldSlotAddress, (long) oldCapacity * slotSize);
+
+        trackSlots();
+    }
+
+    /**
+     * Empties the slot at the given index, shifting any following entries
+     * that were displaced from their home slot back into the gap.
+     */
+    private void removeSlot(int index) {
+        final int mask = capacity - 1;
+
+        int hole = index;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            final long nextSlot = getSlot(next);
+
+            if (unsafe.getInt(nextSlot + STATE_OFFSET) == EMPTY)
+                break;
+
+            final int home = ProbingBOHMap.spread(unsafe.getInt(nextSlot + HASH_OFFSET)) & mask;
+
+            // Only move the entry if the hole lies between its home slot and
+            // where it currently is
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                unsafe.copyMemory(nextSlot, getSlot(hole), slotSize);
+                hole = next;
+            }
+        }
+
+        unsafe.putInt(getSlot(hole) + STATE_OFFSET, EMPTY);
+    }
+
+    /**
+     * @return Size in bytes of every key
+     */
+    public int getKeyWidth() {
+        return keyWidth;
+    }
+
+    /**
+     * @return Size in bytes of every non-null value
+     */
+    public int getValueWidth() {
+        return valueWidth;
+    }
+
+    /**
+     * Returns the number of bytes the allocator of this map has reserved
+     * from the system, including any memory it holds on to for reuse.
+     *
+     * @return Allocated off-heap bytes
+     */
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of bytes currently used for the slot array.
+     *
+     * @return Used off-heap bytes
+     */
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * Returns the number of slots in the slot array.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int size() {
+        checkOpen();
+
+        if (itemCount > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+
+        return (int) itemCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        checkOpen();
+
+        return itemCount == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return findKey(key) >= 0;
+    }
+
+    @Override
+    public Binary get(Object key) {
+        final int index = findKey(key);
+
+        if (index < 0)
+            return null;
+
+        return readValue(getSlot(index));
+    }
+
+    /**
+     * Copies the value for the given key into the given buffer, at its
+     * current position, without allocating anything on the heap. The same
+     * rules as for BOHMap apply.
+     *
+     * @param key Key to look up
+     * @param dst Heap or direct buffer to copy the value into
+     * @return Number of bytes copied, or -1 if there's no value for the key
+     * @throws java.nio.BufferOverflowException If the value doesn't fit
+     * @throws java.nio.ReadOnlyBufferException If a value is found but the
+     * buffer is read-only
+     * @see BOHMap#get(Binary, ByteBuffer)
+     */
+    public int get(Binary key, ByteBuffer dst) {
+        final int index = findKey(key);
+
+        if (index < 0)
+            return -1;
+
+        final long slot = getSlot(index);
+
+        if (unsafe.getInt(slot + STATE_OFFSET) == NULL_VALUE)
+            return -1;
+
+        Memory.copyToBuffer(slot + valueOffset, dst, valueWidth);
+
+        return valueWidth;
+    }
+
+    @Override
+    public Binary put(Binary key, Binary value) {
+        final byte[] keyData = checkKey(key);
+        final byte[] valueData = checkValue(value);
+        final int hash = hash(keyData);
+        final int index = findSlot(keyData, hash);
+
+        if (index >= 0) {
+            final long slot = getSlot(index);
+
+            // Read old value, before it's overwritten in place
+            final Binary oldValue = readValue(slot);
+
+            writeValue(slot, valueData);
+
+            return oldValue;
+        }
+
+        // Keep a slot empty, as that's what ends the probe for a missing key
+        if (itemCount + 1 >= capacity)
+            throw new IllegalStateException("Map is full");
+
+        // Existing entry not found on key, insert new in the empty slot
+        final long slot = getSlot(-(index + 1));
+
+        unsafe.putInt(slot + HASH_OFFSET, hash);
+        Memory.copyFromArray(keyData, 0, slot + KEY_OFFSET, keyWidth);
+        writeValue(slot, valueData);
+
+        itemCount++;
+
+        if (itemCount > growThreshold)
+            grow();
+
+        return null;
+    }
+
+    @Override
+    public Binary remove(Object key) {
+        final int index = findKey(key);
+
+        if (index < 0)
+            return null;
+
+        final Binary removedValue = readValue(getSlot(index));
+
+        removeSlot(index);
+
+        itemCount--;
+
+        return removedValue;
+    }
+
+    @Override
+    public void clear() {
+        checkOpen();
+
+        unsafe.setMemory(slotAddress, (long) capacity * slotSize, (byte) 0);
+
+        // Reset item counter
+        itemCount = 0;
+    }
+
+    /**
+     * Frees the slot array, and hands anything the allocator still holds on
+     * to back to the system. Any later use of the map throws an
+     * IllegalStateException. Closing an already closed map has no effect.
+     */
+    @Override
+    public void close() {
+        if (slotAddress == 0)
+            return;
+
+        cleanable.clean();
+
+        slotAddress = 0;
+        itemCount = 0;
+    }
+
+    @Override
+    public Set<Binary> keySet() {
+        return new AbstractSet<Binary>() {
+            @Override
+            public int size() {
+                return FixedWidthBOHMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!containsKey(o))
+                    return false;
+
+                FixedWidthBOHMap.this.remove(o);
+
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                FixedWidthBOHMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Binary> iterator() {
+                return new SlotIterator<Binary>() {
+                    @Override
+                    protected Binary read(long slot) {
+                        return readKey(slot);
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Binary, Binary>> entrySet() {
+        return new AbstractSet<Entry<Binary, Binary>>() {
+            @Override
+            public int size() {
+                return FixedWidthBOHMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                FixedWidthBOHMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Entry<Binary, Binary>> iterator() {
+                return new SlotIterator<Entry<Binary, Binary>>() {
+                    @Override
+                    protected Entry<Binary, Binary> read(long slot) {
+                        return new SimpleImmutableEntry<>(readKey(slot), readValue(slot));
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Walks every occupied slot in the slot array.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private long index;
+
+        /**
+         * Moves forward to the next occupied slot, returning its address, or
+         * zero if no more.
+         */
+        private long seek() {
+            checkOpen();
+
+            for (; index < capacity; index++) {
+                final long slot = slotAddress + (index * slotSize);
+
+                if (unsafe.getInt(slot + STATE_OFFSET) != EMPTY)
+                    return slot;
+            }
+
+            return 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return seek() != 0;
+        }
+
+        @Override
+        public T next() {
+            final long slot = seek();
+
+            if (slot == 0)
+                throw new NoSuchElementException();
+
+            index++;
+
+            return read(slot);
+        }
+
+        /**
+         * Reads the entry in the given slot.
+         */
+        protected abstract T read(long slot);
+    }
+}
@@ -0,0 +1,683 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+
+import sun.misc.Unsafe;
+
+/**
+ * An off-heap hash map from primitive long keys to binary values, for when
+ * keys would otherwise be encoded as 8 byte binaries. Keys are never boxed
+ * or copied onto the heap, and take no memory beyond their slot.
+ *
+ * The internal memory structure is as follows:
+ *
+ * The slot address points to an array of fixed width slots, where the
+ * number of slots is always a power of two. Each slot holds the key (a
+ * long) followed by the address of the value. A key of zero marks an empty
+ * slot, so an entry for the zero key is kept in fields of the map instead.
+ *
+ * At the value location, an int is used to announce the size (in bytes) of
+ * the value, like with {@code ProbingBOHMap}. A null value has a zero
+ * address. All memory is taken from the map's {@code Allocator}.
+ *
+ * Keys are placed as with {@code LongLongOffHeapMap}, using linear probing
+ * and shifting following entries back on remove.
+ *
+ * Int keys are simply widened to long.
+ *
+ * As with {@code BOHMap}, the map should be closed once no longer needed,
+ * freeing all its memory right away rather than once garbage collected.
+ *
+ * No attampts are made at making this map implementation thread-safe, but
+ * concurrent read operations will not cause any concurrency issues.
+ *
+ * The map accepts null values.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class LongBinaryOffHeapMap implements AutoCloseable {
+    /**
+     * Default fraction of slots in use before the slot array grows.
+     */
+    public static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // Offset of the key within a slot, with the value address right after
+    private static final int KEY_OFFSET = 0;
+    private static final int VALUE_OFFSET = Long.BYTES;
+
+    // Returned by putAddress when there was no previous mapping, as no
+    // value can be at an odd address
+    private static final long NO_MAPPING = -1;
+
+    /**
+     * Told about each entry when iterating with forEach.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        /**
+         * Called for each entry in the map.
+         *
+         * @param key Key
+         * @param value Value, or null
+         */
+        void accept(long key, Binary value);
+    }
+
+    private final Unsafe unsafe;
+    private final int slotSize;
+    private final float loadFactor;
+    private final Allocator allocator;
+    private final Resources resources;
+    private final OffHeapCleaner.Cleanable cleanable;
+
+    private int capacity;
+    private long slotAddress;
+    private long growThreshold;
+
+    private long itemCount;
+
+    // The entry for the zero key, which can't be held in a slot
+    private boolean hasZeroKey;
+    private long zeroValueAddress;
+
+    /**
+     * Create a new long to binary off-heap hash map, with room for at least
+     * the given number of entries before it needs to grow.
+     *
+     * @param expectedSize Expected number of entries
+     */
+    public LongBinaryOffHeapMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOAD_FACTOR, new UnsafeAllocator());
+    }
+
+    /**
+     * Create a new long to binary off-heap hash map, with room for at least
+     * the given number of entries before it needs to grow, taking all its
+     * memory from the given allocator.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param expectedSize Expected number of entries
+     * @param loadFactor Fraction of slots in use before growing, between 0 and 1
+     * @param allocator Allocator used for values and the slot array
+     */
+    public LongBinaryOffHeapMap(int expectedSize, float loadFactor, Allocator allocator) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("expectedSize must not be negative");
+
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("loadFactor must be between 0 and 1");
+
+        this.unsafe = Memory.UNSAFE;
+        this.slotSize = Long.BYTES + unsafe.addressSize();
+        this.loadFactor = loadFactor;
+        this.allocator = allocator;
+
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * (double) loadFactor < expectedSize) {
+            capacity <<= 1;
+        }
+
+        this.capacity = capacity;
+        this.slotAddress = allocate((long) capacity * slotSize, true);
+        this.growThreshold = getGrowThreshold(capacity);
+
+        this.resources = new Resources(allocator, slotSize);
+        this.cleanable = OffHeapCleaner.register(this, resources);
+
+        trackSlots();
+    }
+
+    /**
+     * Everything needed to free the memory of a map, without referring to
+     * the map itself, so it can be run by the cleaner once the map is
+     * unreachable.
+     */
+    private static final class Resources implements Runnable {
+        private final Allocator allocator;
+        private final int slotSize;
+
+        // Copies of the slot array and zero key fields of the map
+        private long slotAddress;
+        private int capacity;
+        private long zeroValueAddress;
+
+        private Resources(Allocator allocator, int slotSize) {
+            this.allocator = allocator;
+            this.slotSize = slotSize;
+        }
+
+        @Override
+        public void run() {
+            final Unsafe unsafe = Memory.UNSAFE;
+
+            // Free each value..
+            for (long index = 0; index < capacity; index++) {
+                final long slot = slotAddress + (index * slotSize);
+
+                if (unsafe.getLong(slot + KEY_OFFSET) != 0)
+                    free(unsafe.getAddress(slot + VALUE_OFFSET));
+            }
+
+            free(zeroValueAddress);
+
+            // ..then the slot array itself..
+            allocator.free(slotAddress, (long) capacity * slotSize);
+
+            // ..and anything the allocator still holds on to
+            allocator.release();
+        }
+
+        private void free(long address) {
+            if (address != 0)
+                allocator.free(address, Integer.BYTES + Memory.UNSAFE.getInt(address));
+        }
+    }
+
+    /**
+     * Keeps the copies of the slot array and zero key fields used by the
+     * cleaner up to date. Called whenever either changes.
+     */
+    private void trackSlots() {
+        resources.slotAddress = slotAddress;
+        resources.capacity = capacity;
+        resources.zeroValueAddress = zeroValueAddress;
+    }
+
+    /**
+     * Fails fast on any use of a closed map, rather than touching memory
+     * already freed.
+     */
+    private void checkOpen() {
+        if (slotAddress == 0)
+            throw new IllegalStateException("Map is closed");
+    }
+
+    private long allocate(long size, boolean init) {
+        final long address = allocator.allocate(size);
+
+        if (init)
+            unsafe.setMemory(address, size, (byte) 0);
+
+        return address;
+    }
+
+    /**
+     * Frees the value at the given address, if not a null value.
+     */
+    private void freeBinary(long address) {
+        if (address != 0)
+            allocator.free(address, Integer.BYTES + unsafe.getInt(address));
+    }
+
+    private long getGrowThreshold(int capacity) {
+        return capacity >= MAX_CAPACITY ? capacity - 1 : (long) (capacity * (double) loadFactor);
+    }
+
+    private long getSlot(int index) {
+        return slotAddress + ((long) index * slotSize);
+    }
+
+    /**
+     * Returns the index of the slot holding the given non-zero key, or if
+     * not found, -(index + 1) where index is the empty slot the key would
+     * go in.
+     */
+    private int findSlot(long key) {
+        checkOpen();
+
+        final int mask = capacity - 1;
+
+        for (int index = LongLongOffHeapMap.spread(key) & mask; ; index = (index + 1) & mask) {
+            final long slotKey = unsafe.getLong(getSlot(index) + KEY_OFFSET);
+
+            if (slotKey == key)
+                return index;
+
+            // An empty slot ends the probe
+            if (slotKey == 0)
+                return -(index + 1);
+        }
+    }
+
+    /**
+     * Returns the value address for the given key, or 0 if not found or a
+     * null value.
+     */
+    private long findValue(long key) {
+        if (key == 0) {
+            checkOpen();
+
+            return zeroValueAddress;
+        }
+
+        final int index = findSlot(key);
+
+        return index < 0 ? 0 : unsafe.getAddress(getSlot(index) + VALUE_OFFSET);
+    }
+
+    /**
+     * Reads the value at the given address, where a zero address represents
+     * a null value.
+     */
+    private Binary readBinary(long address) {
+        if (address == 0)
+            return null;
+
+        final int size = unsafe.getInt(address);
+
+        byte[] data = new byte[size];
+
+        // Copy everything past the size int in one go
+        Memory.copyToArray(address + Integer.BYTES, data, 0, size);
+
+        return new Binary(data);
+    }
+
+    /**
+     * Allocates and copies the value given as a base object and offset (or
+     * null base and address), returning its address.
+     */
+    private long writeBinary(Object base, long offset, int size) {
+        final long address = allocate(Integer.BYTES + (long) size, false);
+
+        unsafe.putInt(address, size);
+        Memory.copy(base, offset, null, address + Integer.BYTES, size);
+
+        return address;
+    }
+
+    /**
+     * Associates the value at the given address, owned by the map from here
+     * on, with the given key, returning the address of the value it
+     * replaced, 0 for a null value, or NO_MAPPING if the key wasn't found.
+     */
+    private long putAddress(long key, long valueAddress) {
+        if (key == 0) {
+            final long oldValueAddress = hasZeroKey ? zeroValueAddress : NO_MAPPING;
+
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                itemCount++;
+            }
+
+            zeroValueAddress = valueAddress;
+
+            trackSlots();
+
+            return oldValueAddress;
+        }
+
+        final int index = findSlot(key);
+
+        if (index >= 0) {
+            final long valuePointer = getSlot(index) + VALUE_OFFSET;
+            final long oldValueAddress = unsafe.getAddress(valuePointer);
+
+            unsafe.putAddress(valuePointer, valueAddress);
+
+            return oldValueAddress;
+        }
+
+        // Keep a slot empty, as that's what ends the probe for a missing key.
+        // The zero key is held outside the slots
+        if (itemCount - (hasZeroKey ? 1 : 0) + 1 >= capacity) {
+            freeBinary(valueAddress);
+
+            throw new IllegalStateException("Map is full");
+        }
+
+        // Existing entry not found on key, insert new in the empty slot
+        final long slot = getSlot(-(index + 1));
+
+        unsafe.putLong(slot + KEY_OFFSET, key);
+        unsafe.putAddress(slot + VALUE_OFFSET, valueAddress);
+
+        itemCount++;
+
+        if (itemCount > growThreshold)
+            grow();
+
+        return NO_MAPPING;
+    }
+
+    /**
+     * Doubles the slot array, moving every entry over.
+     */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY)
+            return;
+
+        final long oldSlotAddress = slotAddress;
+        final int oldCapacity = capacity;
+
+        capacity = capacity << 1;
+        slotAddress = allocate((long) capacity * slotSize, true);
+        growThreshold = getGrowThreshold(capacity);
+
+        final int mask = capacity - 1;
+
+        for (long oldIndex = 0; oldIndex < oldCapacity; oldIndex++) {
+            final long oldSlot = oldSlotAddress + (oldIndex * slotSize);
+            final long key = unsafe.getLong(oldSlot + KEY_OFFSET);
+
+            if (key == 0)
+                continue;
+
+            int index = LongLongOffHeapMap.spread(key) & mask;
+            while (unsafe.getLong(getSlot(index) + KEY_OFFSET) != 0) {
+                index = (index + 1) & mask;
+            }
+
+            unsafe.copyMemory(oldSlot, getSlot(index), slotSize);
+        }
+
+        allocator.free(oldSlotAddress, (long) oldCapacity * slotSize);
+
+        trackSlots();
+    }
+
+    /**
+     * Empties the slot at the given index, shifting any following entries
+     * that were displaced from their home slot back into the gap.
+     */
+    private void removeSlot(int index) {
+        final int mask = capacity - 1;
+
+        int hole = index;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            final long nextSlot = getSlot(next);
+            final long key = unsafe.getLong(nextSlot + KEY_OFFSET);
+
+            if (key == 0)
+                break;
+
+            final int home = LongLongOffHeapMap.spread(key) & mask;
+
+            // Only move the entry if the hole lies between its home slot and
+            // where it currently is
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                unsafe.copyMemory(nextSlot, getSlot(hole), slotSize);
+                hole = next;
+            }
+        }
+
+        unsafe.setMemory(getSlot(hole), slotSize, (byte) 0);
+    }
+
+    /**
+     * Returns the number of bytes the allocator of this map has reserved
+     * from the system, including any memory it holds on to for reuse.
+     *
+     * @return Allocated off-heap bytes
+     */
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of bytes currently used for values and the slot
+     * array.
+     *
+     * @return Used off-heap bytes
+     */
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * Returns the number of slots in the slot array.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of entries, or Integer.MAX_VALUE if more
+     */
+    public int size() {
+        checkOpen();
+
+        if (itemCount > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+
+        return (int) itemCount;
+    }
+
+    /**
+     * @return True if the map holds no entries
+     */
+    public boolean isEmpty() {
+        checkOpen();
+
+        return itemCount == 0;
+    }
+
+    /**
+     * Returns true if the map contains the given key.
+     *
+     * @param key Key
+     * @return True if the key is found
+     */
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            checkOpen();
+
+            return hasZeroKey;
+        }
+
+        return findSlot(key) >= 0;
+    }
+
+    /**
+     * Returns the value for the given key.
+     *
+     * @param key Key
+     * @return The value, or null if not found or a null value
+     */
+    public Binary get(long key) {
+        return readBinary(findValue(key));
+    }
+
+    /**
+     * Copies the value for the given key into the given buffer, at its
+     * current position, without allocating anything on the heap. The same
+     * rules as for BOHMap apply.
+     *
+     * @param key Key to look up
+     * @param dst Heap or direct buffer to copy the value into
+     * @return Number of bytes copied, or -1 if there's no value for the key
+     * @throws java.nio.BufferOverflowException If the value doesn't fit
+     * @throws java.nio.ReadOnlyBufferException If a value is found but the
+     * buffer is read-only
+     * @see BOHMap#get(Binary, ByteBuffer)
+     */
+    public int get(long key, ByteBuffer dst) {
+        final long valueAddress = findValue(key);
+
+        if (valueAddress == 0)
+            return -1;
+
+        final int size = unsafe.getInt(valueAddress);
+
+        Memory.copyToBuffer(valueAddress + Integer.BYTES, dst, size);
+
+        return size;
+    }
+
+    /**
+     * Associates the given value with the given key.
+     *
+     * @param key Key
+     * @param value Value, or null
+     * @return The previous value, or null if none or a null value
+     */
+    public Binary put(long key, Binary value) {
+        checkOpen();
+
+        final byte[] valueData = value == null ? null : value.getValue();
+        final long valueAddress = valueData == null ? 0 : writeBinary(valueData, Memory.BYTE_ARRAY_OFFSET, valueData.length);
+
+        final long oldValueAddress = putAddress(key, valueAddress);
+
+        if (oldValueAddress == NO_MAPPING)
+            return null;
+
+        final Binary oldValue = readBinary(oldValueAddress);
+
+        freeBinary(oldValueAddress);
+
+        return oldValue;
+    }
+
+    /**
+     * Associates the value held by the given buffer, between its position
+     * and limit, with the given key. The buffer position is left as is.
+     *
+     * Unlike put(long, Binary) the previous value isn't returned, as that
+     * would mean copying it onto the heap.
+     *
+     * @param key Key
+     * @param value Heap or direct buffer holding the value, or null
+     * @return True if the key already had a mapping, which was replaced
+     */
+    public boolean put(long key, ByteBuffer value) {
+        checkOpen();
+
+        final long valueAddress = value == null ? 0
+                : writeBinary(Memory.getBase(value), Memory.getOffset(value), value.remaining());
+
+        final long oldValueAddress = putAddress(key, valueAddress);
+
+        if (oldValueAddress == NO_MAPPING)
+            return false;
+
+        freeBinary(oldValueAddress);
+
+        return true;
+    }
+
+    /**
+     * Removes the mapping for the given key.
+     *
+     * @param key Key
+     * @return The removed value, or null if none or a null value
+     */
+    public Binary remove(long key) {
+        final long valueAddress;
+
+        if (key == 0) {
+            checkOpen();
+
+            if (!hasZeroKey)
+                return null;
+
+            valueAddress = zeroValueAddress;
+
+            hasZeroKey = false;
+            zeroValueAddress = 0;
+
+            trackSlots();
+        } else {
+            final int index = findSlot(key);
+
+            if (index < 0)
+                return null;
+
+            valueAddress = unsafe.getAddress(getSlot(index) + VALUE_OFFSET);
+
+            removeSlot(index);
+        }
+
+        itemCount--;
+
+        final Binary removedValue = readBinary(valueAddress);
+
+        freeBinary(valueAddress);
+
+        return removedValue;
+    }
+
+    /**
+     * Calls the given consumer for each entry in the map, copying each value
+     * onto the heap. The map must not be changed until done.
+     *
+     * @param consumer Consumer told about each entry
+     */
+    public void forEach(EntryConsumer consumer) {
+        checkOpen();
+
+        if (hasZeroKey)
+            consumer.accept(0, readBinary(zeroValueAddress));
+
+        for (long index = 0; index < capacity; index++) {
+            final long slot = slotAddress + (index * slotSize);
+            final long key = unsafe.getLong(slot + KEY_OFFSET);
+
+            if (key != 0)
+                consumer.accept(key, readBinary(unsafe.getAddress(slot + VALUE_OFFSET)));
+        }
+    }
+
+    /**
+     * Removes every entry, keeping the slot array at its current size.
+     */
+    public void clear() {
+        checkOpen();
+
+        for (long index = 0; index < capacity; index++) {
+            final long slot = slotAddress + (index * slotSize);
+
+            if (unsafe.getLong(slot + KEY_OFFSET) != 0)
+                freeBinary(unsafe.getAddress(slot + VALUE_OFFSET));
+        }
+
+        unsafe.setMemory(slotAddress, (long) capacity * slotSize, (byte) 0);
+
+        freeBinary(zeroValueAddress);
+
+        hasZeroKey = false;
+        zeroValueAddress = 0;
+
+        trackSlots();
+
+        // Reset item counter
+        itemCount = 0;
+    }
+
+    /**
+     * Frees every value along with the slot array, and hands anything the
+     * allocator still holds on to back to the system. Any later use of the
+     * map throws an IllegalStateException. Closing an already closed map
+     * has no effect.
+     */
+    @Override
+    public void close() {
+        if (slotAddress == 0)
+            return;
+
+        cleanable.clean();
+
+        slotAddress = 0;
+        itemCount = 0;
+    }
+}
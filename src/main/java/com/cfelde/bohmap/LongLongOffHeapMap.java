@@ -0,0 +1,560 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import sun.misc.Unsafe;
+
+/**
+ * An off-heap hash map from primitive long keys to primitive long values,
+ * for when keys and values would otherwise be encoded as 8 byte binaries.
+ * Nothing is boxed or allocated on the heap per operation, and no memory is
+ * allocated per entry.
+ *
+ * The internal memory structure is as follows:
+ *
+ * The slot address points to an array of fixed width slots, where the
+ * number of slots is always a power of two. Each slot holds the key (a
+ * long) followed by the value (a long). A key of zero marks an empty slot,
+ * so an entry for the zero key is kept in fields of the map instead.
+ *
+ * As with {@code ProbingBOHMap}, keys are placed using linear probing from
+ * the slot given by their hash, and on remove, following entries are
+ * shifted back into the freed slot where possible, so no tombstones are
+ * needed. Hashes are not stored, as they're cheap to calculate again from
+ * the key when the slot array grows.
+ *
+ * Int keys are simply widened to long.
+ *
+ * As with {@code BOHMap}, the map should be closed once no longer needed,
+ * freeing all its memory right away rather than once garbage collected.
+ *
+ * No attampts are made at making this map implementation thread-safe, but
+ * concurrent read operations will not cause any concurrency issues.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class LongLongOffHeapMap implements AutoCloseable {
+    /**
+     * Default fraction of slots in use before the slot array grows.
+     */
+    public static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // Offsets within a slot
+    private static final int KEY_OFFSET = 0;
+    private static final int VALUE_OFFSET = Long.BYTES;
+    private static final int SLOT_SIZE = Long.BYTES * 2;
+
+    /**
+     * Told about each entry when iterating with forEach.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        /**
+         * Called for each entry in the map.
+         *
+         * @param key Key
+         * @param value Value
+         */
+        void accept(long key, long value);
+    }
+
+    private final Unsafe unsafe;
+    private final float loadFactor;
+    private final Allocator allocator;
+    private final Resources resources;
+    private final OffHeapCleaner.Cleanable cleanable;
+
+    private int capacity;
+    private long slotAddress;
+    private long growThreshold;
+
+    private long itemCount;
+
+    // The entry for the zero key, which can't be held in a slot
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    /**
+     * Create a new long to long off-heap hash map, with room for at least the
+     * given number of entries before it needs to grow.
+     *
+     * @param expectedSize Expected number of entries
+     */
+    public LongLongOffHeapMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOAD_FACTOR, new UnsafeAllocator());
+    }
+
+    /**
+     * Create a new long to long off-heap hash map, with room for at least the
+     * given number of entries before it needs to grow, taking all its memory
+     * from the given allocator.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param expectedSize Expected number of entries
+     * @param loadFactor Fraction of slots in use before growing, between 0 and 1
+     * @param allocator Allocator used for the slot array
+     */
+    public LongLongOffHeapMap(int expectedSize, float loadFactor, Allocator allocator) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("expectedSize must not be negative");
+
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("loadFactor must be between 0 and 1");
+
+        this.unsafe = Memory.UNSAFE;
+        this.loadFactor = loadFactor;
+        this.allocator = allocator;
+
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * (double) loadFactor < expectedSize) {
+            capacity <<= 1;
+        }
+
+        this.capacity = capacity;
+        this.slotAddress = allocate((long) capacity * SLOT_SIZE);
+        this.growThreshold = getGrowThreshold(capacity);
+
+        this.resources = new Resources(allocator);
+        this.cleanable = OffHeapCleaner.register(this, resources);
+
+        trackSlots();
+    }
+
+    /**
+     * Everything needed to free the memory of a map, without referring to
+     * the map itself, so it can be run by the cleaner once the map is
+     * unreachable.
+     */
+    private static final class Resources implements Runnable {
+        private final Allocator allocator;
+
+        // Copies of the slot array fields of the map
+        private long slotAddress;
+        private int capacity;
+
+        private Resources(Allocator allocator) {
+            this.allocator = allocator;
+        }
+
+        @Override
+        public void run() {
+            // Entries live in the slot array, so only that needs freeing..
+            allocator.free(slotAddress, (long) capacity * SLOT_SIZE);
+
+            // ..along with anything the allocator still holds on to
+            allocator.release();
+        }
+    }
+
+    /**
+     * Keeps the copies of the slot array fields used by the cleaner up to
+     * date. Called whenever the slot array is replaced.
+     */
+    private void trackSlots() {
+        resources.slotAddress = slotAddress;
+        resources.capacity = capacity;
+    }
+
+    /**
+     * Fails fast on any use of a closed map, rather than touching memory
+     * already freed.
+     */
+    private void checkOpen() {
+        if (slotAddress == 0)
+            throw new IllegalStateException("Map is closed");
+    }
+
+    /**
+     * Allocates zeroed memory, so every slot starts out empty.
+     */
+    private long allocate(long size) {
+        final long address = allocator.allocate(size);
+
+        unsafe.setMemory(address, size, (byte) 0);
+
+        return address;
+    }
+
+    private long getGrowThreshold(int capacity) {
+        return capacity >= MAX_CAPACITY ? capacity - 1 : (long) (capacity * (double) loadFactor);
+    }
+
+    /**
+     * Mixes all bits of the key into the hash, so that sequential keys
+     * don't end up in neighbouring slots.
+     */
+    static int spread(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+
+        return (int) key;
+    }
+
+    private long getSlot(int index) {
+        return slotAddress + ((long) index * SLOT_SIZE);
+    }
+
+    /**
+     * Returns the index of the slot holding the given non-zero key, or if
+     * not found, -(index + 1) where index is the empty slot the key would
+     * go in.
+     */
+    private int findSlot(long key) {
+        checkOpen();
+
+        final int mask = capacity - 1;
+
+        for (int index = spread(key) & mask; ; index = (index + 1) & mask) {
+            final long slotKey = unsafe.getLong(getSlot(index) + KEY_OFFSET);
+
+            if (slotKey == key)
+                return index;
+
+            // An empty slot ends the probe
+            if (slotKey == 0)
+                return -(index + 1);
+        }
+    }
+
+    /**
+     * Doubles the slot array, moving every entry over.
+     */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY)
+            return;
+
+        final long oldSlotAddress = slotAddress;
+        final int oldCapacity = capacity;
+
+        capacity = capacity << 1;
+        slotAddress = allocate((long) capacity * SLOT_SIZE);
+        growThreshold = getGrowThreshold(capacity);
+
+        final int mask = capacity - 1;
+
+        for (long oldIndex = 0; oldIndex < oldCapacity; oldIndex++) {
+            final long oldSlot = oldSlotAddress + (oldIndex * SLOT_SIZE);
+            final long key = unsafe.getLong(oldSlot + KEY_OFFSET);
+
+            if (key == 0)
+                continue;
+
+            int index = spread(key) & mask;
+            while (unsafe.getLong(getSlot(index) + KEY_OFFSET) != 0) {
+                index = (index + 1) & mask;
+            }
+
+            unsafe.copyMemory(oldSlot, getSlot(index), SLOT_SIZE);
+        }
+
+        allocator.free(oldSlotAddress, (long) oldCapacity * SLOT_SIZE);
+
+        trackSlots();
+    }
+
+    /**
+     * Empties the slot at the given index, shifting any following entries
+     * that were displaced from their home slot back into the gap.
+     */
+    private void removeSlot(int index) {
+        final int mask = capacity - 1;
+
+        int hole = index;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            final long nextSlot = getSlot(next);
+            final long key = unsafe.getLong(nextSlot + KEY_OFFSET);
+
+            if (key == 0)
+                break;
+
+            final int home = spread(key) & mask;
+
+            // Only move the entry if the hole lies between its home slot and
+            // where it currently is
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                unsafe.copyMemory(nextSlot, getSlot(hole), SLOT_SIZE);
+                hole = next;
+            }
+        }
+
+        unsafe.putLong(getSlot(hole) + KEY_OFFSET, 0);
+        unsafe.putLong(getSlot(hole) + VALUE_OFFSET, 0);
+    }
+
+    /**
+     * Returns the number of bytes the allocator of this map has reserved
+     * from the system, including any memory it holds on to for reuse.
+     *
+     * @return Allocated off-heap bytes
+     */
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of bytes currently used for the slot array.
+     *
+     * @return Used off-heap bytes
+     */
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * Returns the number of slots in the slot array.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of entries, or Integer.MAX_VALUE if more
+     */
+    public int size() {
+        checkOpen();
+
+        if (itemCount > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+
+        return (int) itemCount;
+    }
+
+    /**
+     * @return True if the map holds no entries
+     */
+    public boolean isEmpty() {
+        checkOpen();
+
+        return itemCount == 0;
+    }
+
+    /**
+     * Returns true if the map contains the given key.
+     *
+     * @param key Key
+     * @return True if the key is found
+     */
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            checkOpen();
+
+            return hasZeroKey;
+        }
+
+        return findSlot(key) >= 0;
+    }
+
+    /**
+     * Returns the value for the given key, or the given default value if
+     * the key isn't found.
+     *
+     * @param key Key
+     * @param defaultValue Value returned if the key isn't found
+     * @return The value, or the default value
+     */
+    public long getOrDefault(long key, long defaultValue) {
+        if (key == 0) {
+            checkOpen();
+
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+
+        final int index = findSlot(key);
+
+        if (index < 0)
+            return defaultValue;
+
+        return unsafe.getLong(getSlot(index) + VALUE_OFFSET);
+    }
+
+    /**
+     * Associates the given value with the given key.
+     *
+     * Unlike Map::put the previous value isn't returned, as a long can't
+     * tell a missing value apart from any other.
+     *
+     * @param key Key
+     * @param value Value
+     * @return True if the key already had a mapping, which was replaced
+     */
+    public boolean put(long key, long value) {
+        if (key == 0) {
+            checkOpen();
+
+            final boolean replaced = hasZeroKey;
+
+            zeroValue = value;
+
+            if (!replaced) {
+                hasZeroKey = true;
+                itemCount++;
+            }
+
+            return replaced;
+        }
+
+        final int index = findSlot(key);
+
+        if (index >= 0) {
+            unsafe.putLong(getSlot(index) + VALUE_OFFSET, value);
+
+            return true;
+        }
+
+        // Keep a slot empty, as that's what ends the probe for a missing key.
+        // The zero key is held outside the slots
+        if (itemCount - (hasZeroKey ? 1 : 0) + 1 >= capacity)
+            throw new IllegalStateException("Map is full");
+
+        // Existing entry not found on key, insert new in the empty slot
+        final long slot = getSlot(-(index + 1));
+
+        unsafe.putLong(slot + KEY_OFFSET, key);
+        unsafe.putLong(slot + VALUE_OFFSET, value);
+
+        itemCount++;
+
+        if (itemCount > growThreshold)
+            grow();
+
+        return false;
+    }
+
+    /**
+     * Adds the given delta to the value of the given key, starting from zero
+     * if the key isn't found, so counters can be kept without a get and a put.
+     *
+     * @param key Key
+     * @param delta Amount to add
+     * @return The new value
+     */
+    public long addTo(long key, long delta) {
+        if (key == 0) {
+            final long value = getOrDefault(0, 0) + delta;
+
+            put(0, value);
+
+            return value;
+        }
+
+        final int index = findSlot(key);
+
+        if (index >= 0) {
+            final long valueAddress = getSlot(index) + VALUE_OFFSET;
+            final long value = unsafe.getLong(valueAddress) + delta;
+
+            unsafe.putLong(valueAddress, value);
+
+            return value;
+        }
+
+        put(key, delta);
+
+        return delta;
+    }
+
+    /**
+     * Removes the mapping for the given key.
+     *
+     * @param key Key
+     * @return True if a mapping was removed
+     */
+    public boolean remove(long key) {
+        if (key == 0) {
+            checkOpen();
+
+            if (!hasZeroKey)
+                return false;
+
+            hasZeroKey = false;
+            zeroValue = 0;
+            itemCount--;
+
+            return true;
+        }
+
+        final int index = findSlot(key);
+
+        if (index < 0)
+            return false;
+
+        removeSlot(index);
+
+        itemCount--;
+
+        return true;
+    }
+
+    /**
+     * Calls the given consumer for each entry in the map, without boxing.
+     * The map must not be changed until done.
+     *
+     * @param consumer Consumer told about each entry
+     */
+    public void forEach(EntryConsumer consumer) {
+        checkOpen();
+
+        if (hasZeroKey)
+            consumer.accept(0, zeroValue);
+
+        for (long index = 0; index < capacity; index++) {
+            final long slot = slotAddress + (index * SLOT_SIZE);
+            final long key = unsafe.getLong(slot + KEY_OFFSET);
+
+            if (key != 0)
+                consumer.accept(key, unsafe.getLong(slot + VALUE_OFFSET));
+        }
+    }
+
+    /**
+     * Removes every entry, keeping the slot array at its current size.
+     */
+    public void clear() {
+        checkOpen();
+
+        unsafe.setMemory(slotAddress, (long) capacity * SLOT_SIZE, (byte) 0);
+
+        hasZeroKey = false;
+        zeroValue = 0;
+
+        // Reset item counter
+        itemCount = 0;
+    }
+
+    /**
+     * Frees the slot array, and hands anything the allocator still holds on
+     * to back to the system. Any later use of the map throws an
+     * IllegalStateException. Closing an already closed map has no effect.
+     */
+    @Override
+    public void close() {
+        if (slotAddress == 0)
+            return;
+
+        cleanable.clean();
+
+        slotAddress = 0;
+        itemCount = 0;
+    }
+}
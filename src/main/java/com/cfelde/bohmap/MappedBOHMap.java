@@ -0,0 +1,855 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import sun.misc.Unsafe;
+
+/**
+ * A persistent binary hash map keeping all its data in a memory-mapped
+ * file, so a restarted process can reopen the file and serve reads right
+ * away instead of loading every entry again.
+ *
+ * The internal memory structure is as follows:
+ *
+ * The file is mapped in chunks of equal size, a power of two. Everything in
+ * the file is located by its offset from the start of the file, never by
+ * address, so the file can be mapped anywhere. An offset is turned into an
+ * address by looking up the address its chunk is mapped at.
+ *
+ * The file starts with a header, holding a magic number, the format
+ * version, the chunk size, a check value for the hasher, and the state of
+ * the map. The rest of the file holds the slot array and the entry
+ * records, appended one after the other as they're written.
+ *
+ * Like with {@code ProbingBOHMap}, the slot array is an open addressing
+ * table with linear probing, where the number of slots is always a power of
+ * two. Each slot holds the key hash (an int), the key size (an int) and the
+ * offset of the entry record (a long). A record offset of zero marks an
+ * empty slot. The slot array may span several chunks.
+ *
+ * Each entry record holds the key size and value size (both ints, with a
+ * value size of -1 for a null value), followed by the key and value bytes.
+ * A record never spans two chunks, so an entry can't be larger than a
+ * chunk.
+ *
+ * Space is never reused while the map is open. Replacing a value with one
+ * of the same size happens in place, but otherwise a new record is
+ * appended, and the space of removed records and of old slot arrays is
+ * only counted as garbage. A clear makes all space available again.
+ *
+ * The header is only brought up to date by force and close. Until then,
+ * the file is marked as being modified, and a file left like that, say by a
+ * process that crashed, is refused when opened again.
+ *
+ * Once closed, the file is unmapped, and any use of the map throws an
+ * IllegalStateException.
+ *
+ * No attampts are made at making this map implementation thread-safe, but
+ * concurrent read operations will not cause any concurrency issues. Only
+ * one map may have a file open at a time.
+ *
+ * The map accepts null values but not null keys.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class MappedBOHMap extends AbstractMap<Binary, Binary> implements Closeable {
+    /**
+     * Current version of the file format.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Default size of each mapped chunk of the file.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * Smallest allowed size of each mapped chunk of the file.
+     */
+    public static final int MIN_CHUNK_SIZE = 1 << 12;
+
+    private static final long MAGIC = 0x424F484D61707065L;
+
+    // Header layout
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int CHUNK_SHIFT_OFFSET = 12;
+    private static final int HASHER_CHECK_OFFSET = 16;
+    private static final int CAPACITY_OFFSET = 24;
+    private static final int STATE_OFFSET = 28;
+    private static final int SLOT_OFFSET_OFFSET = 32;
+    private static final int ITEM_COUNT_OFFSET = 40;
+    private static final int DATA_END_OFFSET = 48;
+    private static final int GARBAGE_OFFSET = 56;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int CLEAN = 0;
+    private static final int MODIFIED = 1;
+
+    private static final int SLOT_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final byte[] HASHER_CHECK_DATA = "MappedBOHMap".getBytes(StandardCharsets.US_ASCII);
+
+    private final Unsafe unsafe;
+    private final float loadFactor;
+    private final BinaryHasher hasher;
+    private final FileChannel channel;
+
+    private final int chunkShift;
+    private final long chunkMask;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private long[] chunkAddresses = new long[0];
+
+    private int capacity;
+    private long slotOffset;
+    private long growThreshold;
+
+    private long itemCount;
+    private long dataEnd;
+    private long garbage;
+
+    private boolean modified;
+
+    /**
+     * Open the map in the given file, or create a new one if the file is
+     * missing or empty.
+     *
+     * The default Arrays::hashCode method is used to calculate key hashes.
+     *
+     * @param path File holding the map
+     * @throws IOException If the file can't be opened, or doesn't hold a
+     * map in a supported format
+     */
+    public MappedBOHMap(Path path) throws IOException {
+        this(path, 16, ProbingBOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Open the map in the given file, or create a new one if the file is
+     * missing or empty.
+     *
+     * The expected size and chunk size are only used when creating a new
+     * map; an existing file keeps the chunk size it was created with. The
+     * hasher must be the same each time the file is opened, as key hashes
+     * are stored in the file.
+     *
+     * @param path File holding the map
+     * @param expectedSize Expected number of entries
+     * @param loadFactor Fraction of slots in use before growing, between 0 and 1
+     * @param hasher Hasher to use when calculating key hashes
+     * @param chunkSize Size of each mapped chunk, a power of two of at least
+     * MIN_CHUNK_SIZE, and so also the largest possible entry
+     * @throws IOException If the file can't be opened, or doesn't hold a
+     * map in a supported format
+     * @throws IllegalArgumentException If the file was written using a
+     * different hasher
+     */
+    public MappedBOHMap(Path path, int expectedSize, float loadFactor, BinaryHasher hasher, int chunkSize) throws IOException {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("expectedSize must not be negative");
+
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("loadFactor must be between 0 and 1");
+
+        if (chunkSize < MIN_CHUNK_SIZE || Integer.bitCount(chunkSize) != 1)
+            throw new IllegalArgumentException("chunkSize must be a power of two of at least " + MIN_CHUNK_SIZE);
+
+        this.unsafe = Memory.UNSAFE;
+        this.loadFactor = loadFactor;
+        this.hasher = hasher;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            final long fileSize = channel.size();
+
+            if (fileSize == 0) {
+                this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+                this.chunkMask = chunkSize - 1;
+
+                create(expectedSize);
+            } else {
+                this.chunkShift = readChunkShift(fileSize);
+                this.chunkMask = (1L << chunkShift) - 1;
+
+                open(fileSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Reads and checks the header of an existing file, returning its chunk
+     * shift.
+     */
+    private int readChunkShift(long fileSize) throws IOException {
+        final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, HEADER_SIZE));
+
+        try {
+            final long headerAddress = Memory.getOffset(header);
+
+            if (fileSize < HEADER_SIZE || unsafe.getLong(headerAddress + MAGIC_OFFSET) != MAGIC)
+                throw new IOException("Not a MappedBOHMap file");
+
+            final int version = unsafe.getInt(headerAddress + VERSION_OFFSET);
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported format version " + version + ", expected " + FORMAT_VERSION);
+
+            final int shift = unsafe.getInt(headerAddress + CHUNK_SHIFT_OFFSET);
+            if (shift < Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) || shift > 30)
+                throw new IOException("Invalid chunk size in header");
+
+            return shift;
+        } finally {
+            Memory.unmap(header);
+        }
+    }
+
+    private void create(int expectedSize) throws IOException {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * (double) loadFactor < expectedSize) {
+            capacity <<= 1;
+        }
+
+        dataEnd = HEADER_SIZE;
+        ensureMapped(dataEnd);
+
+        final long header = getAddress(0);
+
+        unsafe.putLong(header + MAGIC_OFFSET, MAGIC);
+        unsafe.putInt(header + VERSION_OFFSET, FORMAT_VERSION);
+        unsafe.putInt(header + CHUNK_SHIFT_OFFSET, chunkShift);
+        unsafe.putLong(header + HASHER_CHECK_OFFSET, hasher.hash(HASHER_CHECK_DATA));
+
+        setCapacity(capacity, allocateSlots(capacity));
+
+        writeHeader();
+    }
+
+    private void open(long fileSize) throws IOException {
+        ensureMapped(fileSize);
+
+        final long header = getAddress(0);
+
+        if (unsafe.getLong(header + HASHER_CHECK_OFFSET) != hasher.hash(HASHER_CHECK_DATA))
+            throw new IllegalArgumentException("File was written using a different hasher");
+
+        if (unsafe.getInt(header + STATE_OFFSET) != CLEAN)
+            throw new IOException("File was not closed or forced after its last modification");
+
+        final int capacity = unsafe.getInt(header + CAPACITY_OFFSET);
+        final long slotOffset = unsafe.getLong(header + SLOT_OFFSET_OFFSET);
+
+        itemCount = unsafe.getLong(header + ITEM_COUNT_OFFSET);
+        dataEnd = unsafe.getLong(header + DATA_END_OFFSET);
+        garbage = unsafe.getLong(header + GARBAGE_OFFSET);
+
+        if (Integer.bitCount(capacity) != 1 || dataEnd > fileSize || slotOffset + (long) capacity * SLOT_SIZE > dataEnd)
+            throw new IOException("Invalid header");
+
+        setCapacity(capacity, slotOffset);
+    }
+
+    /**
+     * Maps more chunks of the file, growing it as needed, until everything
+     * up to the given offset is mapped.
+     */
+    private void ensureMapped(long end) throws IOException {
+        while (((long) chunks.size() << chunkShift) < end) {
+            final long position = (long) chunks.size() << chunkShift;
+            final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkMask + 1);
+
+            chunks.add(chunk);
+
+            chunkAddresses = Arrays.copyOf(chunkAddresses, chunks.size());
+            chunkAddresses[chunks.size() - 1] = Memory.getOffset(chunk);
+        }
+    }
+
+    /**
+     * Returns the address the given file offset is mapped at.
+     */
+    private long getAddress(long offset) {
+        return chunkAddresses[(int) (offset >>> chunkShift)] + (offset & chunkMask);
+    }
+
+    /**
+     * Reserves the given number of bytes at the end of the data, returning
+     * the offset. A contiguous block never spans two chunks.
+     */
+    private long allocate(long size, int alignment, boolean contiguous) {
+        long offset = (dataEnd + alignment - 1) & -alignment;
+
+        if (contiguous) {
+            if (size > chunkMask + 1)
+                throw new IllegalArgumentException("Entry of " + size + " bytes is larger than the chunk size");
+
+            // Move on to the next chunk if this one doesn't have room
+            if ((offset & chunkMask) + size > chunkMask + 1)
+                offset = (offset | chunkMask) + 1;
+        }
+
+        try {
+            ensureMapped(offset + size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to grow file: " + e.getMessage(), e);
+        }
+
+        dataEnd = offset + size;
+
+        return offset;
+    }
+
+    /**
+     * Allocates and zeroes a slot array of the given capacity.
+     */
+    private long allocateSlots(int capacity) {
+        final long size = (long) capacity * SLOT_SIZE;
+        final long offset = allocate(size, SLOT_SIZE, false);
+
+        // Zero one chunk at a time, as the slot array may span several
+        for (long position = offset; position < offset + size; ) {
+            final long length = Math.min(offset + size - position, (chunkMask + 1) - (position & chunkMask));
+
+            unsafe.setMemory(getAddress(position), length, (byte) 0);
+
+            position += length;
+        }
+
+        return offset;
+    }
+
+    private void setCapacity(int capacity, long slotOffset) {
+        this.capacity = capacity;
+        this.slotOffset = slotOffset;
+        this.growThreshold = capacity >= MAX_CAPACITY ? capacity - 1 : (long) (capacity * (double) loadFactor);
+    }
+
+    private void writeHeader() {
+        final long header = getAddress(0);
+
+        unsafe.putInt(header + CAPACITY_OFFSET, capacity);
+        unsafe.putLong(header + SLOT_OFFSET_OFFSET, slotOffset);
+        unsafe.putLong(header + ITEM_COUNT_OFFSET, itemCount);
+        unsafe.putLong(header + DATA_END_OFFSET, dataEnd);
+        unsafe.putLong(header + GARBAGE_OFFSET, garbage);
+    }
+
+    /**
+     * Marks the file as being modified, before the first modification since
+     * it was opened or last forced.
+     */
+    private void markModified() {
+        if (modified)
+            return;
+
+        unsafe.putInt(getAddress(STATE_OFFSET), MODIFIED);
+        chunks.get(0).force();
+
+        modified = true;
+    }
+
+    /**
+     * Fails fast on any use of a closed map, rather than touching memory
+     * already unmapped.
+     */
+    private void checkOpen() {
+        if (chunkAddresses == null)
+            throw new IllegalStateException("Map is closed");
+    }
+
+    private int hash(byte[] keyData) {
+        return BinaryHasher.toInt(hasher.hash(keyData, 0, keyData.length));
+    }
+
+    private long getSlot(long index) {
+        return getAddress(slotOffset + index * SLOT_SIZE);
+    }
+
+    private static long getRecordOffset(long slot) {
+        return Memory.UNSAFE.getLong(slot + Integer.BYTES * 2);
+    }
+
+    private static long getRecordSize(long record) {
+        final int valueSize = Memory.UNSAFE.getInt(record + Integer.BYTES);
+
+        return RECORD_HEADER_SIZE + Memory.UNSAFE.getInt(record) + Math.max(valueSize, 0);
+    }
+
+    /**
+     * Returns the index of the slot holding the given key, or if not found,
+     * -(index + 1) where index is the empty slot the key would go in.
+     */
+    private int findSlot(byte[] keyData, int hash) {
+        checkOpen();
+
+        final int keySize = keyData.length;
+        final int mask = capacity - 1;
+
+        for (int index = ProbingBOHMap.spread(hash) & mask; ; index = (index + 1) & mask) {
+            final long slot = getSlot(index);
+
+            final long recordOffset = getRecordOffset(slot);
+
+            // An empty slot ends the probe
+            if (recordOffset == 0)
+                return -(index + 1);
+
+            // Skip entries with a different hash or key size
+            if (unsafe.getInt(slot) != hash || unsafe.getInt(slot + Integer.BYTES) != keySize)
+                continue;
+
+            if (Memory.equals(keyData, getAddress(recordOffset) + RECORD_HEADER_SIZE))
+                return index;
+        }
+    }
+
+    private static Binary readKey(long record) {
+        final byte[] data = new byte[Memory.UNSAFE.getInt(record)];
+
+        Memory.copyToArray(record + RECORD_HEADER_SIZE, data, 0, data.length);
+
+        return new Binary(data);
+    }
+
+    private static Binary readValue(long record) {
+        final int keySize = Memory.UNSAFE.getInt(record);
+        final int valueSize = Memory.UNSAFE.getInt(record + Integer.BYTES);
+
+        if (valueSize < 0)
+            return null;
+
+        final byte[] data = new byte[valueSize];
+
+        Memory.copyToArray(record + RECORD_HEADER_SIZE + keySize, data, 0, valueSize);
+
+        return new Binary(data);
+    }
+
+    /**
+     * Appends a record holding the given key and value, returning its
+     * offset.
+     */
+    private long writeRecord(byte[] keyData, Binary value) {
+        final byte[] valueData = value == null ? null : value.getValue();
+        final int valueSize = valueData == null ? 0 : valueData.length;
+
+        final long offset = allocate(RECORD_HEADER_SIZE + (long) keyData.length + valueSize, Long.BYTES, true);
+        final long record = getAddress(offset);
+
+        unsafe.putInt(record, keyData.length);
+        unsafe.putInt(record + Integer.BYTES, valueData == null ? -1 : valueSize);
+        Memory.copyFromArray(keyData, 0, record + RECORD_HEADER_SIZE, keyData.length);
+
+        if (valueData != null)
+            Memory.copyFromArray(valueData, 0, record + RECORD_HEADER_SIZE + keyData.length, valueSize);
+
+        return offset;
+    }
+
+    /**
+     * Doubles the slot array, moving every entry over using its stored hash.
+     */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY)
+            return;
+
+        final long oldSlotOffset = slotOffset;
+        final int oldCapacity = capacity;
+
+        setCapacity(capacity << 1, allocateSlots(capacity << 1));
+
+        final int mask = capacity - 1;
+
+        for (long oldIndex = 0; oldIndex < oldCapacity; oldIndex++) {
+            final long oldSlot = getAddress(oldSlotOffset + oldIndex * SLOT_SIZE);
+
+            if (getRecordOffset(oldSlot) == 0)
+                continue;
+
+            int index = ProbingBOHMap.spread(unsafe.getInt(oldSlot)) & mask;
+            while (getRecordOffset(getSlot(index)) != 0) {
+                index = (index + 1) & mask;
+            }
+
+            unsafe.copyMemory(oldSlot, getSlot(index), SLOT_SIZE);
+        }
+
+        garbage += (long) oldCapacity * SLOT_SIZE;
+    }
+
+    /**
+     * Empties the slot at the given index, shifting any following entries
+     * that were displaced from their home slot back into the gap.
+     */
+    private void removeSlot(int index) {
+        final int mask = capacity - 1;
+
+        int hole = index;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            final long nextSlot = getSlot(next);
+
+            if (getRecordOffset(nextSlot) == 0)
+                break;
+
+            final int home = ProbingBOHMap.spread(unsafe.getInt(nextSlot)) & mask;
+
+            // Only move the entry if the hole lies between its home slot and
+            // where it currently is
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                unsafe.copyMemory(nextSlot, getSlot(hole), SLOT_SIZE);
+                hole = next;
+            }
+        }
+
+        unsafe.setMemory(getSlot(hole), SLOT_SIZE, (byte) 0);
+    }
+
+    /**
+     * Writes all changes through to the file, and marks the file as
+     * consistent, so it can be opened again.
+     *
+     * @throws IOException If writing the file fails
+     */
+    public void force() throws IOException {
+        checkOpen();
+
+        writeHeader();
+
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+
+        // Only mark the file as clean once everything else is written
+        unsafe.putInt(getAddress(STATE_OFFSET), CLEAN);
+        chunks.get(0).force();
+
+        modified = false;
+    }
+
+    /**
+     * Forces all changes through to the file and unmaps it. The map can't
+     * be used after this. Closing an already closed map has no effect.
+     *
+     * @throws IOException If writing or closing the file fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+
+        try {
+            if (modified)
+                force();
+        } finally {
+            for (MappedByteBuffer chunk : chunks) {
+                Memory.unmap(chunk);
+            }
+
+            chunks.clear();
+            chunkAddresses = null;
+
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the file mapped into memory.
+     *
+     * @return Mapped bytes
+     */
+    public long getAllocatedBytes() {
+        return (long) chunks.size() << chunkShift;
+    }
+
+    /**
+     * Returns the number of bytes of the file in use by the header, slot
+     * array and live entries, including any padding between them.
+     *
+     * @return Used bytes
+     */
+    public long getUsedBytes() {
+        return dataEnd - garbage;
+    }
+
+    /**
+     * Returns the number of slots in the slot array.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int size() {
+        checkOpen();
+
+        if (itemCount > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+
+        return (int) itemCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        checkOpen();
+
+        return itemCount == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof Binary))
+            return false;
+
+        final byte[] keyData = ((Binary) key).getValue();
+
+        return findSlot(keyData, hash(keyData)) >= 0;
+    }
+
+    @Override
+    public Binary get(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int index = findSlot(keyData, hash(keyData));
+
+        if (index < 0)
+            return null;
+
+        return readValue(getAddress(getRecordOffset(getSlot(index))));
+    }
+
+    @Override
+    public Binary put(Binary key, Binary value) {
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = findSlot(keyData, hash);
+
+        // Keep a slot empty, as that's what ends the probe for a missing key
+        if (index < 0 && itemCount + 1 >= capacity)
+            throw new IllegalStateException("Map is full");
+
+        markModified();
+
+        if (index >= 0) {
+            final long slot = getSlot(index);
+            final long record = getAddress(getRecordOffset(slot));
+
+            final Binary oldValue = readValue(record);
+
+            // Same size values are replaced in place..
+            if (value != null && oldValue != null && value.getValue().length == oldValue.getValue().length) {
+                Memory.copyFromArray(value.getValue(), 0, record + RECORD_HEADER_SIZE + keyData.length, value.getValue().length);
+
+                return oldValue;
+            }
+
+            // ..anything else is written to a new record
+            garbage += getRecordSize(record);
+
+            unsafe.putLong(slot + Integer.BYTES * 2, writeRecord(keyData, value));
+
+            return oldValue;
+        }
+
+        // Existing entry not found on key, insert new in the empty slot.
+        // Write the record first, as it may need to map a new chunk
+        final long recordOffset = writeRecord(keyData, value);
+        final long slot = getSlot(-(index + 1));
+
+        unsafe.putInt(slot, hash);
+        unsafe.putInt(slot + Integer.BYTES, keyData.length);
+        unsafe.putLong(slot + Integer.BYTES * 2, recordOffset);
+
+        itemCount++;
+
+        if (itemCount > growThreshold)
+            grow();
+
+        return null;
+    }
+
+    @Override
+    public Binary remove(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int index = findSlot(keyData, hash(keyData));
+
+        if (index < 0)
+            return null;
+
+        markModified();
+
+        final long record = getAddress(getRecordOffset(getSlot(index)));
+        final Binary removedValue = readValue(record);
+
+        garbage += getRecordSize(record);
+
+        removeSlot(index);
+
+        itemCount--;
+
+        return removedValue;
+    }
+
+    @Override
+    public void clear() {
+        checkOpen();
+        markModified();
+
+        // Start over with an empty slot array of the same size
+        itemCount = 0;
+        garbage = 0;
+        dataEnd = HEADER_SIZE;
+
+        setCapacity(capacity, allocateSlots(capacity));
+    }
+
+    @Override
+    public Set<Binary> keySet() {
+        return new AbstractSet<Binary>() {
+            @Override
+            public int size() {
+                return MappedBOHMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!containsKey(o))
+                    return false;
+
+                MappedBOHMap.this.remove(o);
+
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                MappedBOHMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Binary> iterator() {
+                return new SlotIterator<Binary>() {
+                    @Override
+                    protected Binary read(long record) {
+                        return readKey(record);
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Binary, Binary>> entrySet() {
+        return new AbstractSet<Entry<Binary, Binary>>() {
+            @Override
+            public int size() {
+                return MappedBOHMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                MappedBOHMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Entry<Binary, Binary>> iterator() {
+                return new SlotIterator<Entry<Binary, Binary>>() {
+                    @Override
+                    protected Entry<Binary, Binary> read(long record) {
+                        return new SimpleImmutableEntry<>(readKey(record), readValue(record));
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Walks every occupied slot in the slot array.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private long index;
+
+        /**
+         * Moves forward to the next occupied slot, returning the address of
+         * its record, or zero if no more.
+         */
+        private long seek() {
+            checkOpen();
+
+            for (; index < capacity; index++) {
+                final long recordOffset = getRecordOffset(getSlot(index));
+
+                if (recordOffset != 0)
+                    return getAddress(recordOffset);
+            }
+
+            return 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return seek() != 0;
+        }
+
+        @Override
+        public T next() {
+            final long record = seek();
+
+            if (record == 0)
+                throw new NoSuchElementException();
+
+            index++;
+
+            return read(record);
+        }
+
+        /**
+         * Reads the entry with the record at the given address.
+         */
+        protected abstract T read(long record);
+    }
+}
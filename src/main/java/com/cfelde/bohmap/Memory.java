@@ -0,0 +1,241 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+
+import sun.misc.Unsafe;
+
+/**
+ * Shared helpers for copying and comparing off-heap memory.
+ *
+ * Copies between byte arrays and off-heap memory use Unsafe.copyMemory,
+ * split into chunks of at most 1 MB so a large copy doesn't hold back a
+ * safepoint for too long. Comparisons read 8 bytes at a time, and only
+ * compare byte by byte for the last few bytes.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class Memory {
+    static final Unsafe UNSAFE = getUnsafe();
+
+    static final long BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+
+    // Offset of the native address field of a direct buffer
+    private static final long BUFFER_ADDRESS_OFFSET = getFieldOffset(Buffer.class, "address");
+
+    // Offsets of the backing array and array offset fields of a heap buffer,
+    // read directly as read-only heap buffers don't expose their array
+    private static final long BUFFER_ARRAY_OFFSET = getFieldOffset(ByteBuffer.class, "hb");
+    private static final long BUFFER_ARRAY_BASE_OFFSET = getFieldOffset(ByteBuffer.class, "offset");
+
+    private static final long COPY_THRESHOLD = 1024 * 1024;
+
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    private Memory() {
+    }
+
+    private static Unsafe getUnsafe() {
+        try {
+            Field singleoneInstanceField = Unsafe.class.getDeclaredField("theUnsafe");
+            singleoneInstanceField.setAccessible(true);
+            return (Unsafe) singleoneInstanceField.get(null);
+        } catch (IllegalArgumentException | SecurityException | NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static long getFieldOffset(Class<?> type, String name) {
+        try {
+            return UNSAFE.objectFieldOffset(type.getDeclaredField(name));
+        } catch (NoSuchFieldException | SecurityException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies bytes between two locations, each given as a base object and
+     * offset (or a null base and an absolute address), in chunks.
+     */
+    static void copy(Object srcBase, long srcOffset, Object destBase, long destOffset, long length) {
+        while (length > 0) {
+            final long size = Math.min(length, COPY_THRESHOLD);
+
+            UNSAFE.copyMemory(srcBase, srcOffset, destBase, destOffset, size);
+
+            length -= size;
+            srcOffset += size;
+            destOffset += size;
+        }
+    }
+
+    /**
+     * Copies from off-heap memory into a byte array.
+     */
+    static void copyToArray(long address, byte[] dest, int destOffset, int length) {
+        copy(null, address, dest, BYTE_ARRAY_OFFSET + destOffset, length);
+    }
+
+    /**
+     * Copies from a byte array into off-heap memory.
+     */
+    static void copyFromArray(byte[] src, int srcOffset, long address, int length) {
+        copy(src, BYTE_ARRAY_OFFSET + srcOffset, null, address, length);
+    }
+
+    /**
+     * Copies from off-heap memory into a heap or direct byte buffer, at its
+     * current position, moving the position past the copied bytes.
+     *
+     * @throws ReadOnlyBufferException If the buffer is read-only
+     * @throws BufferOverflowException If fewer than length bytes remain in
+     * the buffer, in which case nothing is copied
+     */
+    static void copyToBuffer(long address, ByteBuffer dest, int length) {
+        if (dest.isReadOnly())
+            throw new ReadOnlyBufferException();
+
+        if (length > dest.remaining())
+            throw new BufferOverflowException();
+
+        copy(null, address, getBase(dest), getOffset(dest), length);
+
+        dest.position(dest.position() + length);
+    }
+
+    /**
+     * Returns the base object of the given buffer for use with Unsafe, which
+     * is the backing array of a heap buffer and null for a direct buffer.
+     */
+    static Object getBase(ByteBuffer buffer) {
+        return buffer.isDirect() ? null : UNSAFE.getObject(buffer, BUFFER_ARRAY_OFFSET);
+    }
+
+    /**
+     * Returns the offset of the current position of the given buffer for use
+     * with Unsafe, relative to the buffer base object. For a direct buffer
+     * this is an absolute address.
+     */
+    static long getOffset(ByteBuffer buffer) {
+        if (buffer.isDirect())
+            return UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET) + buffer.position();
+
+        return BYTE_ARRAY_OFFSET + UNSAFE.getInt(buffer, BUFFER_ARRAY_BASE_OFFSET) + buffer.position();
+    }
+
+    /**
+     * Unmaps a mapped buffer right away, rather than whenever it's garbage
+     * collected. The buffer must not be used afterwards. If unmapping isn't
+     * possible on this JVM it's left to the garbage collector.
+     */
+    static void unmap(ByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                final Method invokeCleaner = Unsafe.class.getMethod("invokeCleaner", ByteBuffer.class);
+                invokeCleaner.invoke(UNSAFE, buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (NoSuchMethodException | SecurityException | IllegalAccessException | InvocationTargetException e) {
+            // Leave it to the garbage collector
+        }
+    }
+
+    /**
+     * Reads 8 bytes at the given location as a little-endian long.
+     */
+    static long getLongLE(Object base, long offset) {
+        final long value = UNSAFE.getLong(base, offset);
+
+        return BIG_ENDIAN ? Long.reverseBytes(value) : value;
+    }
+
+    /**
+     * Reads 4 bytes at the given location as a little-endian unsigned int.
+     */
+    static long getIntLE(Object base, long offset) {
+        final int value = UNSAFE.getInt(base, offset);
+
+        return (BIG_ENDIAN ? Integer.reverseBytes(value) : value) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Reads the byte at the given location as an unsigned value.
+     */
+    static long getByte(Object base, long offset) {
+        return UNSAFE.getByte(base, offset) & 0xFFL;
+    }
+
+    /**
+     * Returns the same hash code as Arrays.hashCode would for a byte array
+     * holding the bytes at the given location.
+     */
+    static int hashCode(Object base, long offset, int length) {
+        int result = 1;
+
+        for (int index = 0; index < length; index++) {
+            result = 31 * result + UNSAFE.getByte(base, offset + index);
+        }
+
+        return result;
+    }
+
+    /**
+     * Compares bytes at two locations, each given as a base object and
+     * offset (or a null base and an absolute address).
+     */
+    static boolean equals(Object base1, long offset1, Object base2, long offset2, int length) {
+        int index = 0;
+
+        // Compare 8 bytes at a time..
+        for (; index <= length - Long.BYTES; index += Long.BYTES) {
+            if (UNSAFE.getLong(base1, offset1 + index) != UNSAFE.getLong(base2, offset2 + index))
+                return false;
+        }
+
+        // ..and then whatever is left
+        for (; index < length; index++) {
+            if (UNSAFE.getByte(base1, offset1 + index) != UNSAFE.getByte(base2, offset2 + index))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compares a byte array with the same number of bytes at the given
+     * off-heap address.
+     */
+    static boolean equals(byte[] data, long address) {
+        return equals(data, BYTE_ARRAY_OFFSET, null, address, data.length);
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+/**
+ * Base for hashers reading keys through Unsafe, so the same code hashes a
+ * byte array and off-heap memory.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+abstract class MemoryHasher implements BinaryHasher {
+    @Override
+    public final long hash(byte[] data, int offset, int length) {
+        // Unsafe doesn't check bounds, so do it here
+        if ((offset | length | (data.length - offset - length)) < 0)
+            throw new ArrayIndexOutOfBoundsException("offset " + offset + ", length " + length + ", size " + data.length);
+
+        return hash(data, Memory.BYTE_ARRAY_OFFSET + offset, length);
+    }
+
+    @Override
+    public final long hash(long address, int length) {
+        return hash(null, address, length);
+    }
+
+    /**
+     * Returns the hash of the given number of bytes at the given base and
+     * offset, or null base and address.
+     */
+    abstract long hash(Object base, long offset, int length);
+}
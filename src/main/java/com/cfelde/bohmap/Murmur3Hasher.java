@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3, reading 16 bytes per step as two
+ * 8 byte halves, and returning the first 64 bits of the 128-bit hash. Gives
+ * the same hashes as the reference implementation.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public final class Murmur3Hasher extends MemoryHasher {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long seed;
+
+    /**
+     * Create a new MurmurHash3 hasher with a zero seed.
+     */
+    public Murmur3Hasher() {
+        this(0);
+    }
+
+    /**
+     * Create a new MurmurHash3 hasher with the given seed. Only the low 32
+     * bits are used, as with the reference implementation.
+     *
+     * @param seed Seed mixed into every hash
+     */
+    public Murmur3Hasher(long seed) {
+        this.seed = seed & 0xFFFFFFFFL;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+
+    @Override
+    long hash(Object base, long offset, int length) {
+        final long end = offset + length;
+
+        long h1 = seed;
+        long h2 = seed;
+
+        for (; offset <= end - 16; offset += 16) {
+            h1 ^= mixK1(Memory.getLongLE(base, offset));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(Memory.getLongLE(base, offset + 8));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Up to 15 remaining bytes, little-endian into k1 and then k2
+        final int tail = (int) (end - offset);
+
+        if (tail > 0) {
+            long k1 = 0;
+            long k2 = 0;
+
+            for (int i = tail - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | Memory.getByte(base, offset + i);
+            }
+
+            for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | Memory.getByte(base, offset + i);
+            }
+
+            if (tail > 8)
+                h2 ^= mixK2(k2);
+
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+
+        return h1 + h2;
+    }
+}
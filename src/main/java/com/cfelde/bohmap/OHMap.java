@@ -16,7 +16,9 @@
  */
 package com.cfelde.bohmap;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
@@ -27,12 +29,14 @@ import java.util.function.Function;
  * A serialization wrapper map around {@code BOHMap}, allowing you to easily
  * put and get any serializable Java object.
  *
+ * Closing the wrapper closes the underlying map, if it can be closed.
+ *
  * @author cfelde (Christian Felde, cfelde.com)
  * @param <K> Key type
  * @param <V> Value type
  */
-public class OHMap<K extends Serializable, V extends Serializable> implements Map<K, V> {
-    private final BOHMap map;
+public class OHMap<K extends Serializable, V extends Serializable> implements Map<K, V>, AutoCloseable {
+    private final Map<Binary, Binary> map;
     
     private final Function<Object, Binary> keySerializer;
     private final Function<Binary, Object> keyDeserializer;
@@ -54,15 +58,16 @@ public class OHMap<K extends Serializable, V extends Serializable> implements Ma
      * Create a new map wrapper around a {@code BOHMap} with the given
      * partition count. Constructor allows you to define what serialization
      * methods to use, in addition to explicitly passing in the underlying
-     * {@code BOHMap} instance used by the wrapper.
+     * binary map instance used by the wrapper, such as a {@code BOHMap} or
+     * a {@code ProbingBOHMap}.
      * 
-     * @param map Underlying {@code BOHMap}
+     * @param map Underlying binary map
      * @param keySerializer Serialization method for keys
      * @param keyDeserializer Deserialization method for keys
      * @param valueSerializer Serialization method for values
      * @param valueDeserializer Deserialization method for values
      */
-    public OHMap(BOHMap map, Function<Object, Binary> keySerializer, Function<Binary, Object> keyDeserializer, Function<Object, Binary> valueSerializer, Function<Binary, Object> valueDeserializer) {
+    public OHMap(Map<Binary, Binary> map, Function<Object, Binary> keySerializer, Function<Binary, Object> keyDeserializer, Function<Object, Binary> valueSerializer, Function<Binary, Object> valueDeserializer) {
         this.map = map;
         this.keySerializer = keySerializer;
         this.keyDeserializer = keyDeserializer;
@@ -115,6 +120,28 @@ public class OHMap<K extends Serializable, V extends Serializable> implements Ma
         map.clear();
     }
 
+    /**
+     * Closes the underlying map, freeing its memory right away, if it's
+     * AutoCloseable. Otherwise does nothing.
+     *
+     * @throws UncheckedIOException If closing the underlying map fails
+     */
+    @Override
+    public void close() {
+        if (!(map instanceof AutoCloseable))
+            return;
+
+        try {
+            ((AutoCloseable) map).close();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public Set<K> keySet() {
         return new KeySet(map.keySet());
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Releases the off-heap memory of maps that become unreachable without
+ * having been closed.
+ *
+ * Java 8 has no java.lang.ref.Cleaner, so this is a small stand-in for it.
+ * Each registered object gets a phantom reference, and a daemon thread runs
+ * the release action of every object the GC finds unreachable. Unlike with
+ * finalize, the object itself is never brought back to life, so the action
+ * must not refer to it, or it will never become unreachable.
+ *
+ * The action can also be run explicitly, as done on close, after which it
+ * won't be run again.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class OffHeapCleaner {
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+
+    // References must stay reachable themselves until enqueued
+    private static final Set<Cleanable> CLEANABLES = ConcurrentHashMap.newKeySet();
+
+    static {
+        final Thread thread = new Thread(OffHeapCleaner::run, "BOHMap cleaner");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private OffHeapCleaner() {
+    }
+
+    /**
+     * A registered release action, run at most once.
+     */
+    static final class Cleanable extends PhantomReference<Object> {
+        private final Runnable action;
+
+        private Cleanable(Object referent, Runnable action) {
+            super(referent, QUEUE);
+
+            this.action = action;
+        }
+
+        /**
+         * Runs the release action, unless already run.
+         */
+        void clean() {
+            if (CLEANABLES.remove(this)) {
+                clear();
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Registers the given action to be run once the given object becomes
+     * unreachable.
+     *
+     * @param referent Object to watch
+     * @param action Action to run, which must not refer to the object
+     * @return Handle for running the action explicitly
+     */
+    static Cleanable register(Object referent, Runnable action) {
+        final Cleanable cleanable = new Cleanable(referent, action);
+
+        CLEANABLES.add(cleanable);
+
+        return cleanable;
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                ((Cleanable) QUEUE.remove()).clean();
+            } catch (InterruptedException e) {
+                // Only stops with the JVM
+            } catch (RuntimeException e) {
+                // A failing action must not stop the others
+            }
+        }
+    }
+}
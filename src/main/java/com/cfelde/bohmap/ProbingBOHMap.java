@@ -0,0 +1,702 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+import sun.misc.Unsafe;
+
+/**
+ * An alternative to {@code BOHMap} using open addressing with linear probing
+ * on a single contiguous off-heap slot array.
+ *
+ * The internal memory structure is as follows:
+ *
+ * The slot address points to an array of slots, where the number of slots
+ * is always a power of two. Each slot holds the key hash (an int), the key
+ * size (an int), the address of the entry key and the address of the entry
+ * value. A key address of zero marks an empty slot.
+ *
+ * A key is placed in the slot given by its hash, or if taken, the next
+ * free slot after it. Lookups scan from that slot until the key or an empty
+ * slot is found. Because the hash and key size are kept inline, slots
+ * belonging to other keys can almost always be skipped without touching key
+ * memory, so most lookups touch one or two cache lines of the slot array.
+ *
+ * On remove, following entries are shifted back into the freed slot where
+ * possible, so no tombstones are needed.
+ *
+ * When the number of entries exceeds the number of slots times the load
+ * factor, the slot array is doubled in size. The stored hashes are used
+ * when moving entries over, so no keys are rehashed.
+ *
+ * At the entry key and entry value locations, an int is used to announce the
+ * size (in bytes) of either the key or value, like with {@code BOHMap}. All
+ * memory is taken from the map's {@code Allocator}.
+ *
+ * As with {@code BOHMap}, the map should be closed once no longer needed,
+ * freeing all its memory right away rather than once garbage collected.
+ *
+ * No attampts are made at making this map implementation thread-safe, but
+ * concurrent read operations will not cause any concurrency issues.
+ *
+ * The map accepts null values but not null keys.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class ProbingBOHMap extends AbstractMap<Binary, Binary> implements AutoCloseable {
+    /**
+     * Default fraction of slots in use before the slot array grows.
+     */
+    public static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final Unsafe unsafe;
+    private final int addressSize;
+    private final int slotSize;
+    private final float loadFactor;
+    private final BinaryHasher hasher;
+    private final Allocator allocator;
+    private final Resources resources;
+    private final OffHeapCleaner.Cleanable cleanable;
+
+    private int capacity;
+    private long slotAddress;
+    private long growThreshold;
+
+    private long itemCount;
+
+    /**
+     * Create a new open addressing binary off-heap hash map, with room for
+     * at least the given number of entries before it needs to grow.
+     *
+     * The default Arrays::hashCode method is used to calculate key hashes.
+     *
+     * @param expectedSize Expected number of entries
+     */
+    public ProbingBOHMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, new UnsafeAllocator());
+    }
+
+    /**
+     * Create a new open addressing binary off-heap hash map, with room for
+     * at least the given number of entries before it needs to grow.
+     *
+     * @param expectedSize Expected number of entries
+     * @param loadFactor Fraction of slots in use before growing, between 0 and 1
+     * @param hashFunction Hash function to use when calculating key hashes
+     */
+    public ProbingBOHMap(int expectedSize, float loadFactor, Function<byte[], Integer> hashFunction) {
+        this(expectedSize, loadFactor, hashFunction, new UnsafeAllocator());
+    }
+
+    /**
+     * Create a new open addressing binary off-heap hash map, with room for
+     * at least the given number of entries before it needs to grow, taking
+     * all its memory from the given allocator.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param expectedSize Expected number of entries
+     * @param loadFactor Fraction of slots in use before growing, between 0 and 1
+     * @param hashFunction Hash function to use when calculating key hashes
+     * @param allocator Allocator used for keys, values and the slot array
+     */
+    public ProbingBOHMap(int expectedSize, float loadFactor, Function<byte[], Integer> hashFunction, Allocator allocator) {
+        this(expectedSize, loadFactor, BinaryHasher.fromFunction(hashFunction), allocator);
+    }
+
+    /**
+     * Create a new open addressing binary off-heap hash map, with room for
+     * at least the given number of entries before it needs to grow, using the
+     * given hasher to calculate key hashes and taking all its memory from the
+     * given allocator.
+     *
+     * The allocator is owned by the map from here on, and must not be shared
+     * with other maps.
+     *
+     * @param expectedSize Expected number of entries
+     * @param loadFactor Fraction of slots in use before growing, between 0 and 1
+     * @param hasher Hasher to use when calculating key hashes
+     * @param allocator Allocator used for keys, values and the slot array
+     */
+    public ProbingBOHMap(int expectedSize, float loadFactor, BinaryHasher hasher, Allocator allocator) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("expectedSize must not be negative");
+
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("loadFactor must be between 0 and 1");
+
+        this.unsafe = Memory.UNSAFE;
+        this.addressSize = unsafe.addressSize();
+        this.slotSize = Integer.BYTES * 2 + addressSize * 2;
+        this.loadFactor = loadFactor;
+        this.hasher = hasher;
+        this.allocator = allocator;
+
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * (double) loadFactor < expectedSize) {
+            capacity <<= 1;
+        }
+
+        this.capacity = capacity;
+        this.slotAddress = allocate((long) capacity * slotSize, true);
+        this.growThreshold = getGrowThreshold(capacity);
+
+        this.resources = new Resources(allocator, addressSize, slotSize);
+        this.cleanable = OffHeapCleaner.register(this, resources);
+
+        trackSlots();
+    }
+
+    /**
+     * Everything needed to free the memory of a map, without referring to
+     * the map itself, so it can be run by the cleaner once the map is
+     * unreachable.
+     */
+    private static final class Resources implements Runnable {
+        private final Allocator allocator;
+        private final int addressSize;
+        private final int slotSize;
+
+        // Copies of the slot array fields of the map
+        private long slotAddress;
+        private int capacity;
+
+        private Resources(Allocator allocator, int addressSize, int slotSize) {
+            this.allocator = allocator;
+            this.addressSize = addressSize;
+            this.slotSize = slotSize;
+        }
+
+        @Override
+        public void run() {
+            final Unsafe unsafe = Memory.UNSAFE;
+
+            // Free each key and value..
+            for (long index = 0; index < capacity; index++) {
+                final long slot = slotAddress + (index * slotSize);
+                final long keyAddress = unsafe.getAddress(slot + Integer.BYTES * 2);
+
+                if (keyAddress == 0)
+                    continue;
+
+                free(keyAddress);
+                free(unsafe.getAddress(slot + Integer.BYTES * 2 + addressSize));
+            }
+
+            // ..then the slot array itself..
+            allocator.free(slotAddress, (long) capacity * slotSize);
+
+            // ..and anything the allocator still holds on to
+            allocator.release();
+        }
+
+        private void free(long address) {
+            if (address != 0)
+                allocator.free(address, Integer.BYTES + Memory.UNSAFE.getInt(address));
+        }
+    }
+
+    /**
+     * Keeps the copies of the slot array fields used by the cleaner up to
+     * date. Called whenever the slot array is replaced.
+     */
+    private void trackSlots() {
+        resources.slotAddress = slotAddress;
+        resources.capacity = capacity;
+    }
+
+    /**
+     * Fails fast on any use of a closed map, rather than touching memory
+     * already freed.
+     */
+    private void checkOpen() {
+        if (slotAddress == 0)
+            throw new IllegalStateException("Map is closed");
+    }
+
+    private long allocate(long size, boolean init) {
+        final long address = allocator.allocate(size);
+
+        if (init)
+            unsafe.setMemory(address, size, (byte) 0);
+
+        return address;
+    }
+
+    /**
+     * Frees the key or value at the given address, if not a null value.
+     */
+    private void freeBinary(long address) {
+        if (address != 0)
+            allocator.free(address, Integer.BYTES + unsafe.getInt(address));
+    }
+
+    private long getGrowThreshold(int capacity) {
+        return capacity >= MAX_CAPACITY ? capacity - 1 : (long) (capacity * (double) loadFactor);
+    }
+
+    /**
+     * Spreads the bits of the key hash, so that keys with similar hashes
+     * don't end up in neighbouring slots.
+     */
+    static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+
+    private int hash(byte[] keyData) {
+        return BinaryHasher.toInt(hasher.hash(keyData, 0, keyData.length));
+    }
+
+    private long getSlot(int index) {
+        return slotAddress + ((long) index * slotSize);
+    }
+
+    private long getKeyAddress(long slot) {
+        return unsafe.getAddress(slot + Integer.BYTES * 2);
+    }
+
+    private long getValueAddress(long slot) {
+        return unsafe.getAddress(slot + Integer.BYTES * 2 + addressSize);
+    }
+
+    /**
+     * Returns the index of the slot holding the given key, or if not found,
+     * -(index + 1) where index is the empty slot the key would go in.
+     */
+    private int findSlot(byte[] keyData, int hash) {
+        checkOpen();
+
+        final int keySize = keyData.length;
+        final int mask = capacity - 1;
+
+        for (int index = spread(hash) & mask; ; index = (index + 1) & mask) {
+            final long slot = getSlot(index);
+
+            final long keyAddress = getKeyAddress(slot);
+
+            // An empty slot ends the probe
+            if (keyAddress == 0)
+                return -(index + 1);
+
+            // Skip entries with a different hash or key size
+            if (unsafe.getInt(slot) != hash || unsafe.getInt(slot + Integer.BYTES) != keySize)
+                continue;
+
+            // Compare key content past the size int, 8 bytes at a time
+            if (Memory.equals(keyData, keyAddress + Integer.BYTES))
+                return index;
+        }
+    }
+
+    /**
+     * Reads the key or value at the given address, where a zero address
+     * represents a null value.
+     */
+    private Binary readBinary(long address) {
+        if (address == 0)
+            return null;
+
+        final int size = unsafe.getInt(address);
+
+        byte[] data = new byte[size];
+
+        // Copy everything past the size int in one go
+        Memory.copyToArray(address + Integer.BYTES, data, 0, size);
+
+        return new Binary(data);
+    }
+
+    /**
+     * Allocates and copies the given key or value, returning its address.
+     * A null value is represented by a zero address.
+     */
+    private long writeBinary(Binary binary) {
+        if (binary == null)
+            return 0;
+
+        final byte[] data = binary.getValue();
+        final int size = data.length;
+
+        final long address = allocate(Integer.BYTES + size, false);
+
+        unsafe.putInt(address, size);
+        Memory.copyFromArray(data, 0, address + Integer.BYTES, size);
+
+        return address;
+    }
+
+    /**
+     * Doubles the slot array, moving every entry over using its stored hash.
+     */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY)
+            return;
+
+        final long oldSlotAddress = slotAddress;
+        final int oldCapacity = capacity;
+
+        capacity = capacity << 1;
+        slotAddress = allocate((long) capacity * slotSize, true);
+        growThreshold = getGrowThreshold(capacity);
+
+        final int mask = capacity - 1;
+
+        for (long oldIndex = 0; oldIndex < oldCapacity; oldIndex++) {
+            final long oldSlot = oldSlotAddress + (oldIndex * slotSize);
+
+            if (getKeyAddress(oldSlot) == 0)
+                continue;
+
+            int index = spread(unsafe.getInt(oldSlot)) & mask;
+            while (getKeyAddress(getSlot(index)) != 0) {
+                index = (index + 1) & mask;
+            }
+
+            unsafe.copyMemory(oldSlot, getSlot(index), slotSize);
+        }
+
+        allocator.free(oldSlotAddress, (long) oldCapacity * slotSize);
+
+        trackSlots();
+    }
+
+    /**
+     * Empties the slot at the given index, shifting any following entries
+     * that were displaced from their home slot back into the gap.
+     */
+    private void removeSlot(int index) {
+        final int mask = capacity - 1;
+
+        int hole = index;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            final long nextSlot = getSlot(next);
+
+            if (getKeyAddress(nextSlot) == 0)
+                break;
+
+            final int home = spread(unsafe.getInt(nextSlot)) & mask;
+
+            // Only move the entry if the hole lies between its home slot and
+            // where it currently is
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                unsafe.copyMemory(nextSlot, getSlot(hole), slotSize);
+                hole = next;
+            }
+        }
+
+        unsafe.setMemory(getSlot(hole), slotSize, (byte) 0);
+    }
+
+    /**
+     * Returns the number of bytes the allocator of this map has reserved
+     * from the system, including any memory it holds on to for reuse.
+     *
+     * @return Allocated off-heap bytes
+     */
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of bytes currently used for keys, values and the
+     * slot array.
+     *
+     * @return Used off-heap bytes
+     */
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * Returns the number of slots in the slot array.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int size() {
+        checkOpen();
+
+        if (itemCount > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+
+        return (int) itemCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        checkOpen();
+
+        return itemCount == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof Binary))
+            return false;
+
+        final byte[] keyData = ((Binary) key).getValue();
+
+        return findSlot(keyData, hash(keyData)) >= 0;
+    }
+
+    @Override
+    public Binary get(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int index = findSlot(keyData, hash(keyData));
+
+        if (index < 0)
+            return null;
+
+        return readBinary(getValueAddress(getSlot(index)));
+    }
+
+    @Override
+    public Binary put(Binary key, Binary value) {
+        final byte[] keyData = key.getValue();
+        final int hash = hash(keyData);
+        final int index = findSlot(keyData, hash);
+
+        if (index >= 0) {
+            final long valuePointer = getSlot(index) + Integer.BYTES * 2 + addressSize;
+            final long valueAddress = unsafe.getAddress(valuePointer);
+
+            // Read old value if we have one, and free it
+            final Binary oldValue = readBinary(valueAddress);
+
+            freeBinary(valueAddress);
+
+            unsafe.putAddress(valuePointer, writeBinary(value));
+
+            return oldValue;
+        }
+
+        // Keep a slot empty, as that's what ends the probe for a missing key
+        if (itemCount + 1 >= capacity)
+            throw new IllegalStateException("Map is full");
+
+        // Existing entry not found on key, insert new in the empty slot
+        final long slot = getSlot(-(index + 1));
+
+        unsafe.putInt(slot, hash);
+        unsafe.putInt(slot + Integer.BYTES, keyData.length);
+        unsafe.putAddress(slot + Integer.BYTES * 2, writeBinary(key));
+        unsafe.putAddress(slot + Integer.BYTES * 2 + addressSize, writeBinary(value));
+
+        itemCount++;
+
+        if (itemCount > growThreshold)
+            grow();
+
+        return null;
+    }
+
+    @Override
+    public Binary remove(Object key) {
+        if (!(key instanceof Binary))
+            return null;
+
+        final byte[] keyData = ((Binary) key).getValue();
+        final int index = findSlot(keyData, hash(keyData));
+
+        if (index < 0)
+            return null;
+
+        final long slot = getSlot(index);
+        final long valueAddress = getValueAddress(slot);
+
+        final Binary removedValue = readBinary(valueAddress);
+
+        // Free key and value
+        freeBinary(getKeyAddress(slot));
+        freeBinary(valueAddress);
+
+        removeSlot(index);
+
+        itemCount--;
+
+        return removedValue;
+    }
+
+    @Override
+    public void clear() {
+        checkOpen();
+
+        for (long index = 0; index < capacity; index++) {
+            final long slot = slotAddress + (index * slotSize);
+            final long keyAddress = getKeyAddress(slot);
+
+            if (keyAddress == 0)
+                continue;
+
+            freeBinary(keyAddress);
+            freeBinary(getValueAddress(slot));
+        }
+
+        unsafe.setMemory(slotAddress, (long) capacity * slotSize, (byte) 0);
+
+        // Reset item counter
+        itemCount = 0;
+    }
+
+    /**
+     * Frees every key and value along with the slot array, and hands
+     * anything the allocator still holds on to back to the system. Any
+     * later use of the map throws an IllegalStateException. Closing an
+     * already closed map has no effect.
+     */
+    @Override
+    public void close() {
+        if (slotAddress == 0)
+            return;
+
+        cleanable.clean();
+
+        slotAddress = 0;
+        itemCount = 0;
+    }
+
+    @Override
+    public Set<Binary> keySet() {
+        return new AbstractSet<Binary>() {
+            @Override
+            public int size() {
+                return ProbingBOHMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!containsKey(o))
+                    return false;
+
+                ProbingBOHMap.this.remove(o);
+
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                ProbingBOHMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Binary> iterator() {
+                return new SlotIterator<Binary>() {
+                    @Override
+                    protected Binary read(long slot) {
+                        return readBinary(getKeyAddress(slot));
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Binary, Binary>> entrySet() {
+        return new AbstractSet<Entry<Binary, Binary>>() {
+            @Override
+            public int size() {
+                return ProbingBOHMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                ProbingBOHMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Entry<Binary, Binary>> iterator() {
+                return new SlotIterator<Entry<Binary, Binary>>() {
+                    @Override
+                    protected Entry<Binary, Binary> read(long slot) {
+                        return new SimpleImmutableEntry<>(readBinary(getKeyAddress(slot)), readBinary(getValueAddress(slot)));
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Walks every occupied slot in the slot array.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private long index;
+
+        /**
+         * Moves forward to the next occupied slot, returning its address, or
+         * zero if no more.
+         */
+        private long seek() {
+            checkOpen();
+
+            for (; index < capacity; index++) {
+                final long slot = slotAddress + (index * slotSize);
+
+                if (getKeyAddress(slot) != 0)
+                    return slot;
+            }
+
+            return 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return seek() != 0;
+        }
+
+        @Override
+        public T next() {
+            final long slot = seek();
+
+            if (slot == 0)
+                throw new NoSuchElementException();
+
+            index++;
+
+            return read(slot);
+        }
+
+        /**
+         * Reads the entry in the given slot.
+         */
+        protected abstract T read(long slot);
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+
+import sun.misc.Unsafe;
+
+/**
+ * An allocator which carves small blocks out of large chunks of memory,
+ * avoiding a malloc call (and malloc's per-block overhead) for every key
+ * and value.
+ *
+ * Small blocks are rounded up to a size class. Sizes up to 64 bytes use
+ * classes 8 bytes apart, after which each power of two is split into four
+ * classes, so at most 25% is lost to rounding. New blocks are taken from the
+ * current chunk by moving a pointer forward, and a new chunk is allocated
+ * once the current one is used up.
+ *
+ * Freed small blocks are kept on a free list per size class, with the
+ * address of the next free block stored in the first 8 bytes of each free
+ * block, and are reused before any new chunk memory. Chunks are only given
+ * back to the system on release.
+ *
+ * Blocks larger than the max block size are allocated directly, with a
+ * small header linking them together so they can also be freed on release.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class SlabAllocator implements Allocator {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 4096;
+
+    // Previous and next address of a large block
+    private static final int LARGE_HEADER_SIZE = Long.BYTES * 2;
+
+    private final Unsafe unsafe;
+    private final int chunkSize;
+    private final int maxBlockSize;
+    private final long[] freeLists;
+
+    private long[] chunks = new long[16];
+    private int chunkCount;
+    private long chunkPosition, chunkEnd;
+
+    private long largeHead;
+
+    private long allocatedBytes, usedBytes;
+
+    /**
+     * Create a new slab allocator using 1 MB chunks, for blocks up to 4 KB.
+     */
+    public SlabAllocator() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Create a new slab allocator.
+     *
+     * @param chunkSize Size of each chunk allocated from the system
+     * @param maxBlockSize Largest block taken from a chunk, larger blocks are
+     *                     allocated directly
+     */
+    public SlabAllocator(int chunkSize, int maxBlockSize) {
+        if (maxBlockSize < Long.BYTES)
+            throw new IllegalArgumentException("maxBlockSize must be at least " + Long.BYTES);
+
+        if (getClassSize(getSizeClass(maxBlockSize)) > chunkSize)
+            throw new IllegalArgumentException("chunkSize must fit at least one block of maxBlockSize");
+
+        this.unsafe = Memory.UNSAFE;
+        this.chunkSize = chunkSize;
+        this.maxBlockSize = maxBlockSize;
+        this.freeLists = new long[getSizeClass(maxBlockSize) + 1];
+    }
+
+    /**
+     * Returns the size class a block of the given size belongs to.
+     */
+    static int getSizeClass(long size) {
+        if (size <= 64)
+            return (int) ((Math.max(size, Long.BYTES) + 7) >>> 3) - 1;
+
+        // Where 2^log < size <= 2^(log + 1), split into four classes
+        final int log = 63 - Long.numberOfLeadingZeros(size - 1);
+
+        return 8 + (log - 6) * 4 + (int) ((size - 1 - (1L << log)) >>> (log - 2));
+    }
+
+    /**
+     * Returns the size of the blocks in the given size class.
+     */
+    static long getClassSize(int sizeClass) {
+        if (sizeClass < 8)
+            return (sizeClass + 1) * 8L;
+
+        final int log = 6 + (sizeClass - 8) / 4;
+
+        return (1L << log) + (((sizeClass - 8) % 4) + 1) * (1L << (log - 2));
+    }
+
+    private void allocateChunk() {
+        if (chunkCount == chunks.length)
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+
+        final long chunk = unsafe.allocateMemory(chunkSize);
+
+        chunks[chunkCount++] = chunk;
+        chunkPosition = chunk;
+        chunkEnd = chunk + chunkSize;
+
+        allocatedBytes += chunkSize;
+    }
+
+    private long allocateLarge(long size) {
+        final long block = unsafe.allocateMemory(LARGE_HEADER_SIZE + size);
+
+        // Link in as the new head
+        unsafe.putAddress(block, 0);
+        unsafe.putAddress(block + Long.BYTES, largeHead);
+
+        if (largeHead != 0)
+            unsafe.putAddress(largeHead, block);
+
+        largeHead = block;
+
+        allocatedBytes += LARGE_HEADER_SIZE + size;
+
+        return block + LARGE_HEADER_SIZE;
+    }
+
+    private void freeLarge(long address, long size) {
+        final long block = address - LARGE_HEADER_SIZE;
+        final long prev = unsafe.getAddress(block);
+        final long next = unsafe.getAddress(block + Long.BYTES);
+
+        // Unlink
+        if (prev != 0)
+            unsafe.putAddress(prev + Long.BYTES, next);
+        else
+            largeHead = next;
+
+        if (next != 0)
+            unsafe.putAddress(next, prev);
+
+        unsafe.freeMemory(block);
+
+        allocatedBytes -= LARGE_HEADER_SIZE + size;
+    }
+
+    @Override
+    public long allocate(long size) {
+        final long address;
+
+        if (size > maxBlockSize) {
+            address = allocateLarge(size);
+        } else {
+            final int sizeClass = getSizeClass(size);
+
+            if (freeLists[sizeClass] != 0) {
+                // Reuse a freed block
+                address = freeLists[sizeClass];
+                freeLists[sizeClass] = unsafe.getAddress(address);
+            } else {
+                // Carve a new block out of the current chunk
+                final long classSize = getClassSize(sizeClass);
+
+                if (chunkPosition + classSize > chunkEnd)
+                    allocateChunk();
+
+                address = chunkPosition;
+                chunkPosition += classSize;
+            }
+        }
+
+        usedBytes += size;
+
+        return address;
+    }
+
+    @Override
+    public long reallocate(long address, long oldSize, long newSize) {
+        // Nothing to move if staying within the same size class
+        if (oldSize <= maxBlockSize && newSize <= maxBlockSize && getSizeClass(oldSize) == getSizeClass(newSize)) {
+            usedBytes += newSize - oldSize;
+
+            return address;
+        }
+
+        final long newAddress = allocate(newSize);
+
+        unsafe.copyMemory(address, newAddress, Math.min(oldSize, newSize));
+
+        free(address, oldSize);
+
+        return newAddress;
+    }
+
+    @Override
+    public void free(long address, long size) {
+        if (size > maxBlockSize) {
+            freeLarge(address, size);
+        } else {
+            // Push onto the free list of its size class
+            final int sizeClass = getSizeClass(size);
+
+            unsafe.putAddress(address, freeLists[sizeClass]);
+            freeLists[sizeClass] = address;
+        }
+
+        usedBytes -= size;
+    }
+
+    @Override
+    public void release() {
+        for (int i = 0; i < chunkCount; i++) {
+            unsafe.freeMemory(chunks[i]);
+        }
+
+        while (largeHead != 0) {
+            final long next = unsafe.getAddress(largeHead + Long.BYTES);
+            unsafe.freeMemory(largeHead);
+            largeHead = next;
+        }
+
+        Arrays.fill(freeLists, 0);
+        chunkCount = 0;
+        chunkPosition = chunkEnd = 0;
+        allocatedBytes = usedBytes = 0;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads map entries from a channel, as written by {@code SnapshotWriter}.
+ *
+ * Blocks are read into a direct buffer, and their checksums verified if
+ * the snapshot has them, before any entry in the block is handed out.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class SnapshotReader {
+    // Largest block size accepted, so a damaged header can't ask for more
+    private static final int MAX_BLOCK_SIZE = 1 << 28;
+
+    private final ReadableByteChannel channel;
+    private final long entryCount;
+    private final int blockSize;
+    private final CRC32 checksum;
+
+    private ByteBuffer buffer;
+    private long bufferAddress;
+
+    private boolean finished;
+
+    SnapshotReader(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+
+        buffer = ByteBuffer.allocateDirect(SnapshotWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        read(SnapshotWriter.HEADER_SIZE);
+
+        if (buffer.getLong() != SnapshotWriter.MAGIC)
+            throw new IOException("Not a BOHMap snapshot");
+
+        final int version = buffer.getInt();
+        if (version != SnapshotWriter.VERSION)
+            throw new IOException("Unsupported snapshot version " + version + ", expected " + SnapshotWriter.VERSION);
+
+        final int flags = buffer.getInt();
+
+        this.blockSize = buffer.getInt();
+        this.entryCount = buffer.getLong();
+
+        // Checked before the entry count is trusted to size anything
+        if (buffer.getInt() != SnapshotWriter.getHeaderChecksum(buffer))
+            throw new IOException("Snapshot header checksum mismatch");
+
+        this.checksum = (flags & SnapshotWriter.FLAG_CHECKSUMS) != 0 ? new CRC32() : null;
+
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || entryCount < 0)
+            throw new IOException("Invalid snapshot header");
+
+        buffer = ByteBuffer.allocateDirect(blockSize + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bufferAddress = Memory.getOffset(buffer);
+        buffer.limit(0);
+    }
+
+    /**
+     * Reads exactly the given number of bytes into the start of the buffer,
+     * leaving them between its position and limit.
+     */
+    private void read(int length) throws IOException {
+        buffer.clear().limit(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Unexpected end of snapshot");
+        }
+
+        buffer.flip();
+    }
+
+    /**
+     * Reads the next block into the buffer, returning false if it's the
+     * empty block ending the snapshot.
+     */
+    private boolean readBlock() throws IOException {
+        read(Integer.BYTES);
+
+        final int payloadSize = buffer.getInt();
+        if (payloadSize < 0 || payloadSize > blockSize)
+            throw new IOException("Invalid snapshot block size " + payloadSize);
+
+        read(payloadSize + (checksum == null ? 0 : Integer.BYTES));
+
+        if (checksum != null) {
+            final int expected = buffer.getInt(payloadSize);
+
+            buffer.limit(payloadSize);
+
+            checksum.reset();
+            checksum.update(buffer.duplicate());
+
+            if ((int) checksum.getValue() != expected)
+                throw new IOException("Snapshot block checksum mismatch");
+        }
+
+        return payloadSize > 0;
+    }
+
+    /**
+     * Makes sure the current block has unread payload left.
+     */
+    private void ensureRemaining() throws IOException {
+        if (!buffer.hasRemaining() && (finished || !readBlock())) {
+            finished = true;
+
+            throw new IOException("Unexpected end of snapshot");
+        }
+    }
+
+    /**
+     * Returns the number of entries in the snapshot.
+     */
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    int readInt() throws IOException {
+        ensureRemaining();
+
+        if (buffer.remaining() < Integer.BYTES)
+            throw new IOException("Invalid snapshot block");
+
+        return buffer.getInt();
+    }
+
+    /**
+     * Copies the given number of bytes into memory at the given address,
+     * reading more blocks as needed.
+     */
+    void readBytes(long address, int length) throws IOException {
+        while (length > 0) {
+            ensureRemaining();
+
+            final int size = Math.min(length, buffer.remaining());
+
+            Memory.UNSAFE.copyMemory(bufferAddress + buffer.position(), address, size);
+            buffer.position(buffer.position() + size);
+
+            address += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Checks that the snapshot ends after the last entry.
+     */
+    void finish() throws IOException {
+        if (buffer.hasRemaining() || (!finished && readBlock()))
+            throw new IOException("Snapshot holds more than " + entryCount + " entries");
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Writes map entries to a channel in the snapshot format read by
+ * {@code SnapshotReader}.
+ *
+ * A snapshot starts with a header holding a magic number, the format
+ * version, flags, the block size, the number of entries and a CRC32
+ * checksum of the header fields before it (an int). The entries
+ * follow in blocks, each holding the payload size (an int), the payload,
+ * and if enabled by the flags, a CRC32 checksum of the payload (an int). A
+ * block with an empty payload ends the snapshot.
+ *
+ * The payload of all blocks together is a stream of entries, each holding
+ * the key size and value size (both ints, with a value size of -1 for a
+ * null value), followed by the value bytes and then the key bytes. The
+ * sizes never span two blocks, but the bytes may. All ints are stored
+ * little-endian.
+ *
+ * Blocks are gathered in a direct buffer, so entries are copied straight
+ * from off-heap memory into the buffer, and from there into the channel.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class SnapshotWriter {
+    static final long MAGIC = 0x50414E53484F4231L;
+    static final int VERSION = 2;
+    static final int FLAG_CHECKSUMS = 1;
+    // Header fields covered by the header checksum, which follows them
+    static final int HEADER_FIELDS_SIZE = Long.BYTES + Integer.BYTES * 3 + Long.BYTES;
+    static final int HEADER_SIZE = HEADER_FIELDS_SIZE + Integer.BYTES;
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final long bufferAddress;
+    private final int blockSize;
+    private final CRC32 checksum;
+
+    SnapshotWriter(WritableByteChannel channel, long entryCount, int blockSize, boolean checksums) throws IOException {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(HEADER_SIZE, Integer.BYTES + blockSize + Integer.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+        this.bufferAddress = Memory.getOffset(buffer);
+        this.checksum = checksums ? new CRC32() : null;
+
+        buffer.putLong(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(checksums ? FLAG_CHECKSUMS : 0);
+        buffer.putInt(blockSize);
+        buffer.putLong(entryCount);
+        buffer.putInt(getHeaderChecksum(buffer));
+        buffer.flip();
+
+        write();
+
+        startBlock();
+    }
+
+    /**
+     * Returns the CRC32 checksum of the header fields at the start of the
+     * given buffer.
+     */
+    static int getHeaderChecksum(ByteBuffer buffer) {
+        final ByteBuffer fields = buffer.duplicate();
+        fields.position(0).limit(HEADER_FIELDS_SIZE);
+
+        final CRC32 crc = new CRC32();
+        crc.update(fields);
+
+        return (int) crc.getValue();
+    }
+
+    private void write() throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private void startBlock() {
+        // Room for the payload size, filled in once the block is full
+        buffer.position(Integer.BYTES);
+    }
+
+    private int getRemaining() {
+        return Integer.BYTES + blockSize - buffer.position();
+    }
+
+    private void writeBlock() throws IOException {
+        final int payloadSize = buffer.position() - Integer.BYTES;
+
+        buffer.putInt(0, payloadSize);
+
+        if (checksum != null) {
+            final ByteBuffer payload = buffer.duplicate();
+            payload.position(Integer.BYTES).limit(Integer.BYTES + payloadSize);
+
+            checksum.reset();
+            checksum.update(payload);
+
+            buffer.putInt((int) checksum.getValue());
+        }
+
+        buffer.flip();
+
+        write();
+
+        startBlock();
+    }
+
+    private void writeInt(int value) throws IOException {
+        if (getRemaining() < Integer.BYTES)
+            writeBlock();
+
+        buffer.putInt(value);
+    }
+
+    /**
+     * Copies the given number of bytes at the given address into the
+     * blocks, starting new blocks as needed.
+     */
+    private void writeBytes(long address, int length) throws IOException {
+        while (length > 0) {
+            if (getRemaining() == 0)
+                writeBlock();
+
+            final int size = Math.min(length, getRemaining());
+
+            Memory.UNSAFE.copyMemory(address, bufferAddress + buffer.position(), size);
+            buffer.position(buffer.position() + size);
+
+            address += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Writes an entry, given the addresses and sizes of its key and value.
+     * A value size of -1 is a null value.
+     */
+    void writeEntry(long keyAddress, int keySize, long valueAddress, int valueSize) throws IOException {
+        writeInt(keySize);
+        writeInt(valueSize);
+
+        if (valueSize > 0)
+            writeBytes(valueAddress, valueSize);
+
+        writeBytes(keyAddress, keySize);
+    }
+
+    /**
+     * Writes the last block and the empty block ending the snapshot. The
+     * channel is left open.
+     */
+    void finish() throws IOException {
+        if (buffer.position() > Integer.BYTES)
+            writeBlock();
+
+        writeBlock();
+    }
+}
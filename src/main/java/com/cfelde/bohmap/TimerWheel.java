@@ -0,0 +1,197 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timer wheel, keeping track of when map entries expire so
+ * that only the entries due are looked at, rather than the whole map.
+ *
+ * Each level has 64 buckets, each covering a span of time 64 times longer
+ * than a bucket of the level below, starting at 16 ms and going up to about
+ * 200 days. A timer goes in the lowest level with room for it. Buckets of
+ * the lowest level are expired once their span has passed, while buckets
+ * of higher levels are emptied as soon as their span starts, putting each
+ * timer back into a lower level, closer to its expiry. So however far off,
+ * a timer is expired at most one lowest level span late.
+ *
+ * Timers are kept as records of entry address, key hash and expiry time in
+ * plain long arrays, so no objects are allocated per timer. Records are
+ * never removed when their entry is, so a record may well be stale by the
+ * time it's due. It's up to the caller to check the entry is still there,
+ * and still expired, before removing it. Rather than setting a new timer
+ * each time an entry is given a later expiry time, the caller may have its
+ * timer moved on to the later time once it's due.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class TimerWheel {
+    private static final int BUCKET_BITS = 6;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int[] SHIFTS = {4, 10, 16, 22, 28, 34};
+
+    // Longs per record: entry address, key hash and expiry time
+    private static final int RECORD_SIZE = 3;
+
+    /**
+     * Told about each timer that's due.
+     */
+    interface Expirer {
+        /**
+         * Called for a timer due at or before the current time.
+         *
+         * @param address Address of the entry the timer was set for
+         * @param hash Hash of the key
+         * @param expiry Expiry time the timer was set for
+         * @return A later expiry time to move the timer on to, or zero
+         */
+        long expire(long address, int hash, long expiry);
+    }
+
+    private final long[][][] buckets = new long[SHIFTS.length][BUCKETS][];
+    private final int[][] sizes = new int[SHIFTS.length][BUCKETS];
+
+    private long time;
+    private long recordCount;
+
+    TimerWheel(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Returns the number of timers, including stale ones.
+     */
+    long size() {
+        return recordCount;
+    }
+
+    /**
+     * Sets a timer for the entry at the given address.
+     */
+    void schedule(long address, int hash, long expiry) {
+        // Timers already due go in the current bucket, up next
+        final long due = Math.max(expiry, time);
+
+        int level = 0;
+        long ticks = due >>> SHIFTS[0];
+
+        while (ticks - (time >>> SHIFTS[level]) >= BUCKETS) {
+            if (level == SHIFTS.length - 1) {
+                // Beyond the top level, placed in its last bucket for now
+                ticks = (time >>> SHIFTS[level]) + BUCKETS - 1;
+                break;
+            }
+
+            ticks = due >>> SHIFTS[++level];
+        }
+
+        add(level, (int) ticks & (BUCKETS - 1), address, hash, expiry);
+    }
+
+    private void add(int level, int index, long address, int hash, long expiry) {
+        long[] bucket = buckets[level][index];
+        final int size = sizes[level][index];
+
+        if (bucket == null) {
+            bucket = buckets[level][index] = new long[RECORD_SIZE * 4];
+        } else if (size == bucket.length) {
+            bucket = buckets[level][index] = Arrays.copyOf(bucket, size * 2);
+        }
+
+        bucket[size] = address;
+        bucket[size + 1] = hash;
+        bucket[size + 2] = expiry;
+
+        sizes[level][index] = size + RECORD_SIZE;
+        recordCount++;
+    }
+
+    /**
+     * Moves the wheel forward to the given time, passing every timer due
+     * by then to the given expirer. A timer may have been due for up to a
+     * bucket span of the lowest level before being passed on.
+     */
+    void advance(long now, Expirer expirer) {
+        if (now <= time)
+            return;
+
+        final long previousTime = time;
+
+        // Timers put back into the wheel are placed relative to the new time
+        time = now;
+
+        for (int level = 0; level < SHIFTS.length; level++) {
+            final long previousTicks = previousTime >>> SHIFTS[level];
+            final long currentTicks = now >>> SHIFTS[level];
+
+            // Nothing more to do once a level hasn't moved
+            if (currentTicks == previousTicks)
+                break;
+
+            // The lowest level from the bucket just passed, the others from
+            // the bucket just started
+            final long firstTick = level == 0 ? previousTicks : previousTicks + 1;
+            final long tickCount = Math.min(currentTicks - previousTicks, BUCKETS);
+
+            for (long tick = firstTick; tick < firstTick + tickCount; tick++) {
+                expire(level, (int) tick & (BUCKETS - 1), now, expirer);
+            }
+        }
+    }
+
+    private void expire(int level, int index, long now, Expirer expirer) {
+        final long[] bucket = buckets[level][index];
+        final int size = sizes[level][index];
+
+        if (size == 0)
+            return;
+
+        // Detach the records first, as some may go back into this bucket
+        buckets[level][index] = null;
+        sizes[level][index] = 0;
+        recordCount -= size / RECORD_SIZE;
+
+        for (int i = 0; i < size; i += RECORD_SIZE) {
+            long expiry = bucket[i + 2];
+
+            if (expiry <= now) {
+                // A timer moved on to a time also due is passed on again
+                do {
+                    expiry = expirer.expire(bucket[i], (int) bucket[i + 1], expiry);
+                } while (expiry != 0 && expiry <= now);
+
+                if (expiry == 0)
+                    continue;
+            }
+
+            schedule(bucket[i], (int) bucket[i + 1], expiry);
+        }
+    }
+
+    /**
+     * Removes every timer.
+     */
+    void clear() {
+        for (int level = 0; level < SHIFTS.length; level++) {
+            Arrays.fill(buckets[level], null);
+            Arrays.fill(sizes[level], 0);
+        }
+
+        recordCount = 0;
+    }
+}
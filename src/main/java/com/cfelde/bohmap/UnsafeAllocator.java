@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import sun.misc.Unsafe;
+
+/**
+ * The default allocator, which passes every allocation straight on to
+ * Unsafe (i.e., the system malloc).
+ *
+ * Any overhead added by malloc itself is not visible to this allocator, so
+ * allocated and used bytes will always be the same.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public class UnsafeAllocator implements Allocator {
+    private final Unsafe unsafe;
+
+    private long usedBytes;
+
+    public UnsafeAllocator() {
+        this.unsafe = Memory.UNSAFE;
+    }
+
+    @Override
+    public long allocate(long size) {
+        final long address = unsafe.allocateMemory(size);
+
+        usedBytes += size;
+
+        return address;
+    }
+
+    @Override
+    public long reallocate(long address, long oldSize, long newSize) {
+        address = unsafe.reallocateMemory(address, newSize);
+
+        usedBytes += newSize - oldSize;
+
+        return address;
+    }
+
+    @Override
+    public void free(long address, long size) {
+        unsafe.freeMemory(address);
+
+        usedBytes -= size;
+    }
+
+    @Override
+    public void release() {
+        // Every block is freed individually, nothing held here
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,517 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of map operations, written to segment files by a
+ * writer thread of its own.
+ *
+ * Records are appended to a direct buffer, without allocating anything.
+ * The writer thread swaps in a second buffer and writes the first one out
+ * as a single batch, so every operation appended while a batch is being
+ * written goes out in the next one, and shares a single fsync with it.
+ *
+ * A segment file starts with a header holding a magic number, the format
+ * version and the segment number. Batches follow, each holding the payload
+ * size (an int), the payload, and a CRC32 checksum of the payload (an int).
+ * A batch only counts once it's complete with a matching checksum, so a
+ * batch cut short by a crash is dropped on replay, along with everything
+ * after it. The payload is a sequence of records, each holding the record
+ * type (a byte), key size and value size (both ints, with a value size of
+ * -1 for a null value), followed by the key and value bytes. All ints are
+ * stored little-endian.
+ *
+ * Positions count every byte appended since the log was opened, across
+ * segments, and are used to wait for a given record to be written.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+final class WriteAheadLog implements Closeable {
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR = 3;
+
+    private static final long MAGIC = 0x4C4157504D484F42L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES * 2 + Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 1 + Integer.BYTES * 2;
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    // Largest batch accepted on replay, so a damaged size can't ask for more
+    private static final int MAX_BATCH_SIZE = 1 << 30;
+
+    /**
+     * Receives the records of a log on replay. The key and value are given
+     * as addresses, valid only during the call, with a zero value address
+     * for a null value.
+     */
+    interface Replay {
+        void apply(byte type, long keyAddress, int keySize, long valueAddress, int valueSize) throws IOException;
+    }
+
+    private final Path directory;
+    private final DurableBOHMap.SyncPolicy policy;
+    private final long syncIntervalMillis;
+    private final Thread writer;
+    private final CRC32 checksum = new CRC32();
+
+    private FileChannel channel;
+    private long segment;
+
+    // Buffer records are appended to, and the one the writer hands back
+    private ByteBuffer active, spare;
+
+    private long appendedPosition, durablePosition;
+
+    // Syncs are numbered, so a caller can wait for the one it asked for
+    private long syncRequested, syncCompleted;
+
+    private boolean flushRequested, closed;
+    private IOException failure;
+
+    /**
+     * Starts a new log in the given segment, which must not exist yet.
+     */
+    WriteAheadLog(Path directory, long segment, DurableBOHMap.SyncPolicy policy, long syncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.syncIntervalMillis = syncIntervalMillis;
+
+        this.active = allocateBuffer(DEFAULT_BUFFER_SIZE);
+        this.spare = allocateBuffer(DEFAULT_BUFFER_SIZE);
+
+        openSegment(segment);
+
+        this.writer = new Thread(this::run, "BOHMap WAL writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Returns the file name of the given segment.
+     */
+    static String getSegmentName(long segment) {
+        return String.format("wal-%020d.log", segment);
+    }
+
+    /**
+     * Returns the segment number of the given file name, or -1 if it's not
+     * a segment.
+     */
+    static long getSegment(String name) {
+        if (!name.matches("wal-\\d{20}\\.log"))
+            return -1;
+
+        return Long.parseLong(name.substring(4, 24));
+    }
+
+    /**
+     * Syncs the given directory, so files just created or renamed in it are
+     * sure to be found after a crash. Not all platforms allow this, in which
+     * case it's skipped.
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform
+        }
+    }
+
+    private static ByteBuffer allocateBuffer(int size) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Room for the payload size, filled in by the writer
+        buffer.position(Integer.BYTES);
+
+        return buffer;
+    }
+
+    private void openSegment(long segment) throws IOException {
+        final FileChannel newChannel = FileChannel.open(directory.resolve(getSegmentName(segment)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(VERSION).putInt(0).putLong(segment).flip();
+
+            while (header.hasRemaining()) {
+                newChannel.write(header);
+            }
+
+            newChannel.force(true);
+
+            syncDirectory(directory);
+        } catch (IOException e) {
+            newChannel.close();
+
+            throw e;
+        }
+
+        this.channel = newChannel;
+        this.segment = segment;
+    }
+
+    /**
+     * Appends a record, returning the position right after it. The key and
+     * value are each given as a base object and offset, or a null base and
+     * an address, with a value size of -1 for a null value.
+     *
+     * @throws UncheckedIOException If writing the log has failed
+     */
+    synchronized long append(byte type, Object keyBase, long keyOffset, int keySize, Object valueBase, long valueOffset, int valueSize) {
+        final int recordSize = RECORD_HEADER_SIZE + keySize + Math.max(valueSize, 0);
+
+        // Wait for the writer to take the buffer if this record doesn't fit,
+        // keeping room for the checksum at the end
+        while (failure == null && !closed && active.remaining() - Integer.BYTES < recordSize) {
+            if (active.position() == Integer.BYTES) {
+                // Larger than the whole buffer, so grow it
+                active = allocateBuffer(Integer.BYTES * 2 + recordSize);
+                break;
+            }
+
+            flushRequested = true;
+            notifyAll();
+
+            waitUninterruptibly(0);
+        }
+
+        checkState();
+
+        final long address = Memory.getOffset(active);
+
+        active.put(type);
+        active.putInt(keySize);
+        active.putInt(valueSize);
+
+        Memory.copy(keyBase, keyOffset, null, address + RECORD_HEADER_SIZE, keySize);
+
+        if (valueSize > 0)
+            Memory.copy(valueBase, valueOffset, null, address + RECORD_HEADER_SIZE + keySize, valueSize);
+
+        active.position(active.position() + keySize + Math.max(valueSize, 0));
+
+        appendedPosition += recordSize;
+
+        if (policy == DurableBOHMap.SyncPolicy.EVERY_OPERATION)
+            notifyAll();
+
+        return appendedPosition;
+    }
+
+    private void checkState() {
+        if (failure != null)
+            throw new UncheckedIOException("Write-ahead log failed", failure);
+
+        if (closed)
+            throw new IllegalStateException("Write-ahead log is closed");
+    }
+
+    private void waitUninterruptibly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until everything up to the given position is written, and
+     * synced if the policy syncs.
+     *
+     * @throws UncheckedIOException If writing the log has failed
+     */
+    synchronized void awaitDurable(long position) {
+        while (durablePosition < position && failure == null) {
+            waitUninterruptibly(0);
+        }
+
+        if (durablePosition < position)
+            checkState();
+    }
+
+    /**
+     * Writes and syncs everything appended so far, whatever the policy.
+     *
+     * @throws UncheckedIOException If writing the log has failed
+     */
+    synchronized void sync() {
+        checkState();
+
+        final long ticket = ++syncRequested;
+        notifyAll();
+
+        while (syncCompleted < ticket && failure == null) {
+            waitUninterruptibly(0);
+        }
+
+        checkState();
+    }
+
+    /**
+     * Syncs everything appended so far, and moves on to the next segment,
+     * returning its number. Must not be called while records are being
+     * appended.
+     */
+    synchronized long rotate() throws IOException {
+        sync();
+
+        // The writer is idle now, so the channel can be swapped
+        channel.close();
+
+        try {
+            openSegment(segment + 1);
+        } catch (IOException e) {
+            failure = e;
+
+            throw e;
+        }
+
+        return segment;
+    }
+
+    /**
+     * Returns true if there's something the writer should do right away.
+     */
+    private boolean isDue(long lastWrite) {
+        final boolean pending = active.position() > Integer.BYTES;
+
+        if (closed || flushRequested || syncRequested > syncCompleted)
+            return true;
+
+        if (!pending)
+            return false;
+
+        return policy == DurableBOHMap.SyncPolicy.EVERY_OPERATION || System.currentTimeMillis() - lastWrite >= syncIntervalMillis;
+    }
+
+    private void run() {
+        long lastWrite = System.currentTimeMillis();
+
+        while (true) {
+            final ByteBuffer batch;
+            final long position;
+            final long syncTicket;
+            final boolean sync;
+
+            synchronized (this) {
+                while (!isDue(lastWrite)) {
+                    final long timeout = active.position() > Integer.BYTES ? syncIntervalMillis - (System.currentTimeMillis() - lastWrite) : syncIntervalMillis;
+
+                    waitUninterruptibly(Math.max(1, timeout));
+                }
+
+                if (failure != null || (closed && active.position() == Integer.BYTES && syncCompleted >= syncRequested))
+                    return;
+
+                batch = active;
+                active = spare;
+                position = appendedPosition;
+                syncTicket = syncRequested;
+                sync = syncTicket > syncCompleted || policy != DurableBOHMap.SyncPolicy.NONE;
+
+                flushRequested = false;
+            }
+
+            IOException error = null;
+
+            try {
+                write(batch, sync);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lastWrite = System.currentTimeMillis();
+
+            synchronized (this) {
+                batch.clear().position(Integer.BYTES);
+                spare = batch;
+
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durablePosition = position;
+                    syncCompleted = syncTicket;
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the given buffer as a batch, if it holds any records, and syncs
+     * the segment if asked to.
+     */
+    private void write(ByteBuffer batch, boolean sync) throws IOException {
+        final int payloadSize = batch.position() - Integer.BYTES;
+
+        if (payloadSize > 0) {
+            batch.putInt(0, payloadSize);
+
+            batch.flip().position(Integer.BYTES);
+            checksum.reset();
+            checksum.update(batch);
+
+            batch.limit(batch.capacity());
+            batch.putInt((int) checksum.getValue());
+            batch.flip();
+
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+        }
+
+        if (sync)
+            channel.force(false);
+    }
+
+    /**
+     * Writes and syncs everything appended so far, and stops the writer.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            closed = true;
+            syncRequested++;
+            notifyAll();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        channel.close();
+
+        synchronized (this) {
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * Replays every complete batch in the given segment file. A damaged or
+     * incomplete batch ends the replay, and if allowed, is cut off the file
+     * along with anything after it.
+     *
+     * @throws IOException If the segment can't be read, or is damaged and
+     * truncating isn't allowed
+     */
+    static void replay(Path file, boolean truncate, Replay replay) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (!read(channel, buffer, HEADER_SIZE) || buffer.getLong() != MAGIC)
+                throw new IOException("Not a write-ahead log segment: " + file);
+
+            final int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported write-ahead log version " + version + ", expected " + VERSION);
+
+            long validEnd = HEADER_SIZE;
+
+            while (read(channel, buffer, Integer.BYTES)) {
+                final int payloadSize = buffer.getInt();
+
+                if (payloadSize <= 0 || payloadSize > MAX_BATCH_SIZE)
+                    break;
+
+                if (buffer.capacity() < payloadSize + Integer.BYTES)
+                    buffer = ByteBuffer.allocateDirect(payloadSize + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+                if (!read(channel, buffer, payloadSize + Integer.BYTES))
+                    break;
+
+                final int expected = buffer.getInt(payloadSize);
+                final CRC32 checksum = new CRC32();
+
+                buffer.limit(payloadSize);
+                checksum.update(buffer.duplicate());
+
+                if ((int) checksum.getValue() != expected)
+                    break;
+
+                applyBatch(buffer, replay);
+
+                validEnd += Integer.BYTES + payloadSize + Integer.BYTES;
+            }
+
+            if (validEnd < channel.size()) {
+                if (!truncate)
+                    throw new IOException("Write-ahead log segment is damaged: " + file);
+
+                channel.truncate(validEnd);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Reads exactly the given number of bytes into the start of the buffer,
+     * returning false if the file ends first.
+     */
+    private static boolean read(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                return false;
+        }
+
+        buffer.flip();
+
+        return true;
+    }
+
+    private static void applyBatch(ByteBuffer payload, Replay replay) throws IOException {
+        final long address = Memory.getOffset(payload);
+
+        while (payload.hasRemaining()) {
+            if (payload.remaining() < RECORD_HEADER_SIZE)
+                throw new IOException("Invalid write-ahead log record");
+
+            final byte type = payload.get();
+            final int keySize = payload.getInt();
+            final int valueSize = payload.getInt();
+
+            if (keySize < 0 || valueSize < -1 || (long) keySize + Math.max(valueSize, 0) > payload.remaining())
+                throw new IOException("Invalid write-ahead log record");
+
+            final long keyAddress = address + payload.position();
+            final long valueAddress = valueSize < 0 ? 0 : keyAddress + keySize;
+
+            replay.apply(type, keyAddress, keySize, valueAddress, valueSize);
+
+            payload.position(payload.position() + keySize + Math.max(valueSize, 0));
+        }
+    }
+}
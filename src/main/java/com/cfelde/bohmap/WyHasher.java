@@ -0,0 +1,129 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+/**
+ * The wyhash algorithm (final version 4), reading 8 bytes per step.
+ *
+ * Built around a 64 x 64 to 128-bit multiply, folding the high half back
+ * into the low half, which makes it one of the fastest hashes with good
+ * quality for short keys. Keys longer than 48 bytes are consumed over three
+ * independent lanes. Uses the default secret of the reference
+ * implementation, and gives the same hashes.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public final class WyHasher extends MemoryHasher {
+    private static final long SECRET0 = 0x2d358dccaa6c78a5L;
+    private static final long SECRET1 = 0x8bb84b93962eacc9L;
+    private static final long SECRET2 = 0x4b33a62ed433d4a3L;
+    private static final long SECRET3 = 0x4d5a2da51de1aa47L;
+
+    private final long seed;
+
+    /**
+     * Create a new wyhash hasher with a zero seed.
+     */
+    public WyHasher() {
+        this(0);
+    }
+
+    /**
+     * Create a new wyhash hasher with the given seed.
+     *
+     * @param seed Seed mixed into every hash
+     */
+    public WyHasher(long seed) {
+        this.seed = seed ^ mix(seed ^ SECRET0, SECRET1);
+    }
+
+    /**
+     * Returns the high 64 bits of the unsigned 128-bit product of x and y.
+     */
+    static long multiplyHigh(long x, long y) {
+        final long x0 = x & 0xFFFFFFFFL;
+        final long x1 = x >>> 32;
+        final long y0 = y & 0xFFFFFFFFL;
+        final long y1 = y >>> 32;
+
+        final long p01 = x0 * y1;
+        final long middle = x1 * y0 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+
+        return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+    }
+
+    /**
+     * Multiplies x and y into 128 bits, and xors the two halves.
+     */
+    private static long mix(long x, long y) {
+        return x * y ^ multiplyHigh(x, y);
+    }
+
+    @Override
+    long hash(Object base, long offset, int length) {
+        long seed = this.seed;
+        long a, b;
+
+        if (length <= 16) {
+            if (length >= 4) {
+                // Two possibly overlapping 4 byte reads from each end
+                final int shift = (length >>> 3) << 2;
+
+                a = (Memory.getIntLE(base, offset) << 32) | Memory.getIntLE(base, offset + shift);
+                b = (Memory.getIntLE(base, offset + length - 4) << 32) | Memory.getIntLE(base, offset + length - 4 - shift);
+            } else if (length > 0) {
+                a = (Memory.getByte(base, offset) << 16) | (Memory.getByte(base, offset + (length >>> 1)) << 8) | Memory.getByte(base, offset + length - 1);
+                b = 0;
+            } else {
+                a = b = 0;
+            }
+        } else {
+            int remaining = length;
+
+            if (remaining > 48) {
+                long seed1 = seed;
+                long seed2 = seed;
+
+                // Three lanes of 16 bytes each
+                do {
+                    seed = mix(Memory.getLongLE(base, offset) ^ SECRET1, Memory.getLongLE(base, offset + 8) ^ seed);
+                    seed1 = mix(Memory.getLongLE(base, offset + 16) ^ SECRET2, Memory.getLongLE(base, offset + 24) ^ seed1);
+                    seed2 = mix(Memory.getLongLE(base, offset + 32) ^ SECRET3, Memory.getLongLE(base, offset + 40) ^ seed2);
+                    offset += 48;
+                    remaining -= 48;
+                } while (remaining > 48);
+
+                seed ^= seed1 ^ seed2;
+            }
+
+            while (remaining > 16) {
+                seed = mix(Memory.getLongLE(base, offset) ^ SECRET1, Memory.getLongLE(base, offset + 8) ^ seed);
+                offset += 16;
+                remaining -= 16;
+            }
+
+            // The last 16 bytes, possibly overlapping with those already read
+            a = Memory.getLongLE(base, offset + remaining - 16);
+            b = Memory.getLongLE(base, offset + remaining - 8);
+        }
+
+        a ^= SECRET1;
+        b ^= seed;
+
+        return mix(a * b ^ SECRET0 ^ length, multiplyHigh(a, b) ^ SECRET1);
+    }
+}
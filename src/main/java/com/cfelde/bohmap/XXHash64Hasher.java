@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+/**
+ * The 64-bit xxHash algorithm (XXH64), reading 8 bytes per step.
+ *
+ * Keys of 32 bytes or more are consumed 32 bytes at a time over four
+ * independent lanes, before the remaining 8, 4 and single bytes are mixed
+ * in. Gives the same hashes as the reference implementation.
+ *
+ * @author cfelde (Christian Felde, cfelde.com)
+ */
+public final class XXHash64Hasher extends MemoryHasher {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private final long seed;
+
+    /**
+     * Create a new xxHash64 hasher with a zero seed.
+     */
+    public XXHash64Hasher() {
+        this(0);
+    }
+
+    /**
+     * Create a new xxHash64 hasher with the given seed.
+     *
+     * @param seed Seed mixed into every hash
+     */
+    public XXHash64Hasher(long seed) {
+        this.seed = seed;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+
+        return acc * PRIME1 + PRIME4;
+    }
+
+    @Override
+    long hash(Object base, long offset, int length) {
+        final long end = offset + length;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+
+            // Four lanes of 8 bytes each
+            do {
+                v1 = round(v1, Memory.getLongLE(base, offset));
+                v2 = round(v2, Memory.getLongLE(base, offset + 8));
+                v3 = round(v3, Memory.getLongLE(base, offset + 16));
+                v4 = round(v4, Memory.getLongLE(base, offset + 24));
+                offset += 32;
+            } while (offset <= end - 32);
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+
+        hash += length;
+
+        for (; offset <= end - 8; offset += 8) {
+            hash ^= round(0, Memory.getLongLE(base, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+
+        if (offset <= end - 4) {
+            hash ^= Memory.getIntLE(base, offset) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+
+        for (; offset < end; offset++) {
+            hash ^= Memory.getByte(base, offset) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        // Final avalanche
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+
+        return hash;
+    }
+}
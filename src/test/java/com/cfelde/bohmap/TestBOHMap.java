@@ -16,6 +16,14 @@
  */
 package com.cfelde.bohmap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -63,7 +71,7 @@ public class TestBOHMap {
 
     @After
     public void tearDown() {
-        map.clear();
+        map.close();
     }
 
     @Test
@@ -105,6 +113,649 @@ public class TestBOHMap {
         assertTrue(map.containsValue(null));
     }
 
+    @Test
+    public void getIntoBuffer() {
+        byte[] key = new byte[8];
+        byte[] value = new byte[100];
+
+        random.nextBytes(key);
+        random.nextBytes(value);
+
+        map.put(new Binary(key), new Binary(value));
+
+        for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(128), ByteBuffer.allocateDirect(128)}) {
+            buffer.position(10);
+
+            assertEquals(value.length, map.get(new Binary(key), buffer));
+            assertEquals(10 + value.length, buffer.position());
+
+            byte[] copy = new byte[value.length];
+            buffer.position(10);
+            buffer.get(copy);
+            assertArrayEquals(value, copy);
+
+            // Doesn't fit, buffer left as it was
+            buffer.position(100);
+            try {
+                map.get(new Binary(key), buffer);
+                fail();
+            } catch (BufferOverflowException e) {
+                assertEquals(100, buffer.position());
+            }
+
+            try {
+                map.get(new Binary(key), buffer.asReadOnlyBuffer());
+                fail();
+            } catch (ReadOnlyBufferException e) {
+            }
+        }
+
+        // Copies into a slice start at the slice offset
+        ByteBuffer slice = ByteBuffer.allocate(256);
+        slice.position(50);
+        slice = slice.slice();
+        assertEquals(value.length, map.get(new Binary(key), slice));
+        assertArrayEquals(value, Arrays.copyOfRange(slice.array(), 50, 50 + value.length));
+
+        // No value, nothing copied
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        map.put(new Binary(value), null);
+        assertEquals(-1, map.get(new Binary(value), buffer));
+        assertEquals(-1, map.get(new Binary(new byte[3]), buffer));
+        assertEquals(0, buffer.position());
+
+        map.put(new Binary(value), new Binary(new byte[0]));
+        assertEquals(0, map.get(new Binary(value), buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void bufferAndAddressKeys() {
+        for (BOHMap keyMap : new BOHMap[] {map, new BOHMap(13, data -> data.length == 0 ? 0 : (int) data[0])}) {
+            byte[] key = new byte[20];
+            byte[] value = new byte[30];
+
+            random.nextBytes(key);
+            random.nextBytes(value);
+
+            keyMap.put(new Binary(key), new Binary(value));
+
+            ByteBuffer heapKey = ByteBuffer.allocate(40);
+            heapKey.position(5);
+            heapKey.put(key);
+            heapKey.flip().position(5);
+
+            ByteBuffer directKey = ByteBuffer.allocateDirect(20);
+            directKey.put(key).flip();
+
+            for (ByteBuffer buffer : new ByteBuffer[] {heapKey, directKey, heapKey.asReadOnlyBuffer(), heapKey.slice()}) {
+                int position = buffer.position();
+
+                assertTrue(keyMap.containsKey(buffer));
+                assertEquals(new Binary(value), keyMap.get(buffer));
+
+                ByteBuffer dst = ByteBuffer.allocate(30);
+                assertEquals(30, keyMap.get(buffer, dst));
+                assertArrayEquals(value, dst.array());
+
+                assertEquals(position, buffer.position());
+            }
+
+            long address = Memory.UNSAFE.allocateMemory(key.length + value.length);
+            try {
+                Memory.copyFromArray(key, 0, address, key.length);
+
+                assertTrue(keyMap.containsKey(address, key.length));
+                assertFalse(keyMap.containsKey(address, key.length - 1));
+                assertEquals(new Binary(value), keyMap.get(address, key.length));
+                assertEquals(30, keyMap.get(address, key.length, ByteBuffer.allocate(30)));
+
+                // Replace the value from off-heap memory
+                byte[] newValue = new byte[10];
+                random.nextBytes(newValue);
+                Memory.copyFromArray(newValue, 0, address + key.length, newValue.length);
+
+                assertTrue(keyMap.put(address, key.length, address + key.length, newValue.length));
+                assertEquals(new Binary(newValue), keyMap.get(new Binary(key)));
+
+                assertTrue(keyMap.remove(address, key.length));
+                assertFalse(keyMap.remove(address, key.length));
+                assertFalse(keyMap.containsKey(new Binary(key)));
+            } finally {
+                Memory.UNSAFE.freeMemory(address);
+            }
+
+            // Insert and remove through buffers
+            assertFalse(keyMap.put(directKey, ByteBuffer.wrap(value)));
+            assertTrue(keyMap.put(heapKey, null));
+            assertTrue(keyMap.containsKey(new Binary(key)));
+            assertNull(keyMap.get(new Binary(key)));
+            assertEquals(-1, keyMap.get(directKey, ByteBuffer.allocate(0)));
+
+            assertTrue(keyMap.remove(directKey));
+            assertFalse(keyMap.remove(heapKey));
+            assertTrue(keyMap.isEmpty());
+        }
+    }
+
+    private byte[] writeSnapshot(BOHMap snapshotMap, boolean checksums) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshotMap.writeSnapshot(Channels.newChannel(out), checksums);
+
+        return out.toByteArray();
+    }
+
+    private BOHMap readSnapshot(byte[] snapshot) throws IOException {
+        BOHMap snapshotMap = new BOHMap(1);
+        snapshotMap.readSnapshot(Channels.newChannel(new ByteArrayInputStream(snapshot)));
+
+        return snapshotMap;
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        // Values larger than a snapshot block, nulls and an empty key
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = new byte[1 + random.nextInt(20)];
+            byte[] value = new byte[random.nextInt(i % 1000 == 0 ? 3 << 20 : 100)];
+
+            random.nextBytes(key);
+            random.nextBytes(value);
+
+            expected.put(new Binary(key), i % 10 == 0 ? null : new Binary(value));
+        }
+
+        expected.put(new Binary(new byte[0]), new Binary(new byte[0]));
+
+        map.putAll(expected);
+
+        // Snapshot while partitions are still being moved over
+        for (int i = 0; !map.isGrowing(); i++) {
+            Binary key = new Binary(ByteBuffer.allocate(8).putInt(-1).putInt(i).array());
+
+            expected.put(key, key);
+            map.put(key, key);
+        }
+
+        for (boolean checksums : new boolean[] {true, false}) {
+            BOHMap restored = readSnapshot(writeSnapshot(map, checksums));
+
+            // Presized up front, so no growing while loading
+            assertFalse(restored.isGrowing());
+            assertTrue(restored.getPartitionCount() >= expected.size());
+            assertEquals(expected, restored);
+
+            // Loading again replaces the entries already there
+            assertEquals(expected.size(), restored.readSnapshot(Channels.newChannel(new ByteArrayInputStream(writeSnapshot(map, checksums)))));
+            assertEquals(expected, restored);
+
+            restored.clear();
+        }
+
+        assertTrue(readSnapshot(writeSnapshot(new BOHMap(1), true)).isEmpty());
+    }
+
+    @Test
+    public void damagedSnapshot() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            map.put(new Binary(new byte[] {(byte) i, (byte) (i >> 8)}), new Binary(new byte[100]));
+        }
+
+        byte[] snapshot = writeSnapshot(map, true);
+
+        byte[] flipped = snapshot.clone();
+        flipped[flipped.length / 2] ^= 1;
+
+        byte[] version = snapshot.clone();
+        version[8]++;
+
+        // Entry count flipped to 2^29
+        byte[] count = snapshot.clone();
+        count[23] ^= 0x20;
+
+        for (byte[] damaged : new byte[][] {flipped, version, count, Arrays.copyOf(snapshot, snapshot.length - 10), new byte[100]}) {
+            try {
+                readSnapshot(damaged);
+                fail();
+            } catch (IOException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void forgedSnapshotCount() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            map.put(new Binary(new byte[] {(byte) i, (byte) (i >> 8)}), new Binary(new byte[100]));
+        }
+
+        // Entry count of 2^29 with a matching header checksum
+        ByteBuffer forged = ByteBuffer.wrap(writeSnapshot(map, true)).order(ByteOrder.LITTLE_ENDIAN);
+        forged.putLong(SnapshotWriter.HEADER_FIELDS_SIZE - Long.BYTES, 1L << 29);
+        forged.putInt(SnapshotWriter.HEADER_FIELDS_SIZE, SnapshotWriter.getHeaderChecksum(forged));
+
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        BOHMap restored = new BOHMap(1, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, allocator);
+
+        try {
+            restored.readSnapshot(Channels.newChannel(new ByteArrayInputStream(forged.array())));
+            fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+
+        // Entries read are kept, but the table is no larger than they need
+        assertEquals(1000, restored.size());
+        assertTrue(restored.getPartitionCount() <= 1024);
+        assertEquals(restored.getStats().getTotalBytes(), allocator.getUsedBytes());
+        assertTrue(restored.getStats().getTableBytes() <= 1024 * Long.BYTES);
+
+        restored.close();
+    }
+
+    /**
+     * Fills a map taking memory from the given allocator, and leaves it for
+     * GC without closing it.
+     */
+    private static void leakMap(Allocator allocator) {
+        BOHMap leaked = new BOHMap(4, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, allocator);
+
+        for (int i = 0; i < 1000 || !leaked.isGrowing(); i++) {
+            Binary key = new Binary(ByteBuffer.allocate(4).putInt(i).array());
+            leaked.put(key, key);
+        }
+    }
+
+    @Test
+    public void close() {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        BOHMap closing = new BOHMap(4, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, allocator);
+
+        // Close while partitions are still being moved over
+        for (int i = 0; i < 1000 || !closing.isGrowing(); i++) {
+            Binary key = new Binary(ByteBuffer.allocate(4).putInt(i).array());
+            closing.put(key, i % 10 == 0 ? null : key);
+        }
+
+        Iterator<Binary> keys = closing.keySet().iterator();
+        keys.next();
+
+        closing.close();
+        assertEquals(0, allocator.getUsedBytes());
+
+        // Closing again does nothing, anything else fails
+        closing.close();
+
+        Binary key = new Binary(new byte[4]);
+        List<Runnable> uses = Arrays.asList(
+                () -> closing.get(key),
+                () -> closing.get(ByteBuffer.allocate(4)),
+                () -> closing.put(key, key),
+                () -> closing.put(ByteBuffer.allocate(4), null),
+                () -> closing.remove(key),
+                () -> closing.containsKey(key),
+                () -> closing.containsValue(key),
+                () -> closing.size(),
+                () -> closing.clear(),
+                () -> keys.hasNext(),
+                () -> closing.entrySet().iterator().hasNext());
+
+        for (Runnable use : uses) {
+            try {
+                use.run();
+                fail();
+            } catch (IllegalStateException ex) {
+                // Expected
+            }
+        }
+
+        assertEquals(0, allocator.getUsedBytes());
+    }
+
+    @Test
+    public void cleanerReleasesLeakedMap() throws InterruptedException {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+
+        leakMap(allocator);
+        assertTrue(allocator.getUsedBytes() > 0);
+
+        for (int i = 0; i < 100 && allocator.getUsedBytes() != 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, allocator.getUsedBytes());
+    }
+
+    @Test
+    public void memoryBudget() {
+        final long maxBytes = 64 * 1024;
+
+        Map<Binary, Binary> evicted = new HashMap<>();
+        BOHMap bounded = new BOHMap(16, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, new UnsafeAllocator(), maxBytes, evicted::put);
+
+        Map<Binary, Binary> expected = new HashMap<>();
+        Binary hot = new Binary(new byte[] {-1});
+
+        bounded.put(hot, hot);
+        expected.put(hot, hot);
+
+        for (int i = 0; i < 10000; i++) {
+            Binary key = new Binary(ByteBuffer.allocate(4).putInt(i).array());
+            byte[] value = new byte[100];
+            random.nextBytes(value);
+
+            bounded.put(key, new Binary(value));
+            expected.put(key, new Binary(value));
+
+            assertTrue(bounded.getUsedBytes() <= maxBytes);
+
+            // Looked up all the time, so never evicted
+            assertEquals(hot, bounded.get(hot));
+        }
+
+        assertTrue(bounded.getEvictionCount() > 0);
+        assertEquals(evicted.size(), bounded.getEvictionCount());
+        assertEquals(expected.size(), bounded.size() + evicted.size());
+
+        // Each entry is either still there, or was evicted along with its value
+        expected.forEach((k, v) -> assertEquals(v, evicted.containsKey(k) ? evicted.get(k) : bounded.get(k)));
+        evicted.keySet().forEach(k -> assertFalse(bounded.containsKey(k)));
+
+        // An entry too large to ever fit is evicted right away, on its own
+        final int size = bounded.size();
+        Binary large = new Binary(new byte[(int) maxBytes]);
+
+        assertEquals(hot, bounded.put(hot, large));
+        assertEquals(large, evicted.get(hot));
+        assertFalse(bounded.containsKey(hot));
+        assertEquals(size - 1, bounded.size());
+
+        bounded.close();
+    }
+
+    @Test
+    public void valueUpdatedInPlace() {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        BOHMap records = new BOHMap(16, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, allocator);
+
+        // Too large to ever be held inline
+        Binary key = sizedBinary(24);
+
+        records.put(key, new Binary(new byte[100]));
+        final long usedBytes = allocator.getUsedBytes();
+
+        // Same size, or at least half the room, is written in place
+        Binary value = sizedBinary(100);
+        assertEquals(new Binary(new byte[100]), records.put(key, value));
+        assertEquals(usedBytes, allocator.getUsedBytes());
+        assertEquals(value, records.get(key));
+
+        value = sizedBinary(50);
+        records.put(key, value);
+        assertEquals(usedBytes, allocator.getUsedBytes());
+        assertEquals(value, records.get(key));
+        assertTrue(records.containsValue(value));
+
+        // Growing, or shrinking to less than half, moves the record
+        value = sizedBinary(10);
+        records.put(key, value);
+        assertEquals(usedBytes - 90, allocator.getUsedBytes());
+        assertEquals(value, records.get(key));
+
+        value = sizedBinary(200);
+        records.put(key, value);
+        assertEquals(usedBytes + 100, allocator.getUsedBytes());
+        assertEquals(value, records.get(key));
+
+        records.put(key, null);
+        assertEquals(usedBytes - 100, allocator.getUsedBytes());
+        assertNull(records.get(key));
+        assertTrue(records.containsKey(key));
+        assertTrue(records.containsValue(null));
+
+        assertNull(records.put(key, value));
+        assertEquals(key, records.keySet().iterator().next());
+        assertEquals(value, records.remove(key));
+        assertTrue(records.isEmpty());
+
+        records.close();
+    }
+
+    @Test
+    public void smallRecordsInline() throws IOException {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        BOHMap small = new BOHMap(1, Float.POSITIVE_INFINITY, BinaryHasher.DEFAULT, allocator);
+        final long tableBytes = allocator.getUsedBytes();
+
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        // Key and value of up to 23 bytes together take no memory of their own
+        for (int i = 0; i < 100; i++) {
+            Binary key = sizedBinary(8 + i % 9);
+            Binary value = i % 10 == 0 ? null : sizedBinary(i % 8);
+
+            small.put(key, value);
+            expected.put(key, value);
+        }
+
+        final long inlineBytes = allocator.getUsedBytes();
+
+        assertEquals(expected.size(), small.size());
+        expected.forEach((k, v) -> {
+            assertEquals(v, small.get(k));
+            assertTrue(small.containsKey(k));
+            assertTrue(small.containsValue(v));
+        });
+
+        // Moved out to a record once the value grows, and back in as it shrinks
+        Binary key = expected.keySet().iterator().next();
+        Binary large = sizedBinary(100);
+
+        small.put(key, large);
+        assertTrue(allocator.getUsedBytes() > inlineBytes);
+        assertEquals(large, small.get(key));
+
+        Binary value = sizedBinary(4);
+        assertEquals(large, small.put(key, value));
+        assertEquals(inlineBytes, allocator.getUsedBytes());
+        assertEquals(value, small.get(key));
+        expected.put(key, value);
+
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        assertEquals(4, small.get(key, dst));
+        assertArrayEquals(value.getValue(), Arrays.copyOf(dst.array(), 4));
+
+        // Snapshots, iteration and removal see no difference
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        small.writeSnapshot(Channels.newChannel(out));
+
+        BOHMap restored = new BOHMap(16);
+        restored.readSnapshot(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+
+        Map<Binary, Binary> entries = new HashMap<>();
+        for (Entry<Binary, Binary> entry : restored.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(expected, entries);
+
+        for (Binary k : expected.keySet()) {
+            assertEquals(expected.get(k), small.remove(k));
+        }
+
+        assertTrue(small.isEmpty());
+        assertEquals(tableBytes, allocator.getUsedBytes());
+
+        restored.close();
+        small.close();
+    }
+
+    @Test
+    public void recordsNotInlined() {
+        BOHMap inlined = new BOHMap(1, Float.POSITIVE_INFINITY, BinaryHasher.DEFAULT, new UnsafeAllocator());
+        BOHMap recordsOnly = new BOHMap(1, Float.POSITIVE_INFINITY, BinaryHasher.DEFAULT, new UnsafeAllocator(), Long.MAX_VALUE, null, false);
+
+        Map<Binary, Binary> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            expected.put(sizedBinary(8), sizedBinary(i % 8));
+        }
+
+        expected.forEach((k, v) -> {
+            inlined.put(k, v);
+            recordsOnly.put(k, v, 60_000);
+        });
+
+        // Every record allocated, in return for smaller entries
+        assertEquals(0, inlined.getStats().getRecordHeaderBytes());
+        assertEquals(100 * 12, recordsOnly.getStats().getRecordHeaderBytes());
+        assertEquals(inlined.getStats().getPartitionBytes() * 24 / 40, recordsOnly.getStats().getPartitionBytes(), 8);
+
+        expected.forEach((k, v) -> assertEquals(v, recordsOnly.get(k)));
+
+        inlined.close();
+        recordsOnly.close();
+    }
+
+    @Test
+    public void partitionRoomKept() {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        BOHMap single = new BOHMap(1, Float.POSITIVE_INFINITY, BinaryHasher.DEFAULT, allocator);
+        final long tableBytes = allocator.getUsedBytes();
+
+        for (int i = 0; i < 8; i++) {
+            single.put(intKey(i), intKey(i));
+        }
+
+        final long fullBytes = allocator.getUsedBytes();
+
+        // Taking one out and putting it back leaves the partition as is
+        for (int i = 0; i < 10; i++) {
+            assertEquals(intKey(7), single.remove(intKey(7)));
+            assertEquals(fullBytes, allocator.getUsedBytes());
+
+            single.put(intKey(7), intKey(7));
+            assertEquals(fullBytes, allocator.getUsedBytes());
+        }
+
+        // Only shrinks once mostly empty
+        for (int i = 7; i >= 2; i--) {
+            single.remove(intKey(i));
+        }
+
+        assertTrue(allocator.getUsedBytes() < fullBytes);
+        assertEquals(intKey(0), single.get(intKey(0)));
+        assertEquals(intKey(1), single.get(intKey(1)));
+
+        single.clear();
+        assertEquals(tableBytes, allocator.getUsedBytes());
+
+        single.close();
+    }
+
+    private Binary sizedBinary(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+
+        return new Binary(data);
+    }
+
+    private static Binary intKey(int i) {
+        return new Binary(ByteBuffer.allocate(4).putInt(i).array());
+    }
+
+    @Test
+    public void timeToLive() throws InterruptedException {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        BOHMap expiring = new BOHMap(16, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, allocator);
+
+        Binary permanent = intKey(-1);
+        expiring.put(permanent, permanent);
+
+        for (int i = 0; i < 1000; i++) {
+            expiring.put(intKey(i), intKey(i), 50);
+        }
+
+        // Putting without a ttl makes an entry permanent again
+        expiring.put(intKey(0), intKey(0));
+        assertEquals(intKey(1), expiring.put(intKey(1), intKey(1), 60_000));
+
+        Thread.sleep(100);
+
+        // Expired entries are gone as far as reads go, but not yet reclaimed
+        assertEquals(1001, expiring.size());
+        assertNull(expiring.get(intKey(2)));
+        assertFalse(expiring.containsKey(intKey(2)));
+        assertFalse(expiring.containsValue(intKey(2)));
+        assertEquals(permanent, expiring.get(permanent));
+        assertEquals(intKey(0), expiring.get(intKey(0)));
+        assertEquals(intKey(1), expiring.get(intKey(1)));
+
+        List<Binary> keys = new ArrayList<>();
+        for (Binary key : expiring.keySet()) {
+            keys.add(key);
+        }
+        assertEquals(3, keys.size());
+        assertTrue(keys.containsAll(Arrays.asList(permanent, intKey(0), intKey(1))));
+
+        final long usedBytes = allocator.getUsedBytes();
+        expiring.expire();
+        assertEquals(3, expiring.size());
+        assertTrue(allocator.getUsedBytes() < usedBytes);
+
+        // An expired entry counts as missing when put or removed
+        expiring.put(intKey(2), intKey(2), 50);
+        expiring.put(intKey(3), intKey(3), 50);
+        Thread.sleep(100);
+
+        assertNull(expiring.put(intKey(2), intKey(4)));
+        assertEquals(intKey(4), expiring.get(intKey(2)));
+        assertNull(expiring.remove(intKey(3)));
+        assertEquals(4, expiring.size());
+
+        try {
+            expiring.put(permanent, permanent, 0);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        expiring.close();
+    }
+
+    @Test
+    public void refreshKeepsTimer() throws InterruptedException {
+        BOHMap expiring = new BOHMap(16);
+
+        // Held inline, and in a record of its own
+        Binary small = intKey(1);
+        Binary large = new Binary(new byte[100]);
+
+        // Refreshed for several times the ttl, spanning many timer ticks
+        final long end = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < end) {
+            expiring.put(small, small, 50);
+            expiring.put(large, large, 50);
+
+            assertEquals(2, expiring.getTimerCount());
+
+            Thread.sleep(1);
+        }
+
+        assertEquals(small, expiring.get(small));
+        assertEquals(large, expiring.get(large));
+
+        Thread.sleep(100);
+
+        // Reclaimed as the timer wheel moves on
+        expiring.put(intKey(0), intKey(0));
+        assertEquals(1, expiring.size());
+        assertEquals(0, expiring.getTimerCount());
+
+        expiring.close();
+    }
+
     @Test
     public void putRemove1() {
         byte[] key = new byte[8];
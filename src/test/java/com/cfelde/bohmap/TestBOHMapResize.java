@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests related to growing the partition table
+ *
+ * @author cfelde
+ */
+public class TestBOHMapResize {
+    private BOHMap map;
+
+    @Before
+    public void setUp() {
+        map = new BOHMap(13);
+    }
+
+    @After
+    public void tearDown() {
+        map.clear();
+    }
+
+    private static Binary binary(long l) {
+        return new Binary(ByteBuffer.allocate(Long.BYTES).putLong(l).array());
+    }
+
+    @Test
+    public void invalidArguments() {
+        try {
+            new BOHMap(0);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        try {
+            new BOHMap(13, 0f, Arrays::hashCode);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        try {
+            new BOHMap(13, Float.NaN, Arrays::hashCode);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void noGrowth() {
+        BOHMap fixed = new BOHMap(13, Float.POSITIVE_INFINITY, Arrays::hashCode);
+
+        for (long i = 0; i < 1000; i++) {
+            fixed.put(binary(i), binary(i));
+        }
+
+        assertEquals(13, fixed.getPartitionCount());
+        assertFalse(fixed.isGrowing());
+        assertEquals(binary(500), fixed.get(binary(500)));
+
+        fixed.clear();
+    }
+
+    @Test
+    public void growWhilePutRemoveGet() {
+        for (long i = 0; i < 10000; i++) {
+            assertNull(map.put(binary(i), binary(i)));
+
+            // Remove every third entry again
+            if (i % 3 == 0)
+                assertEquals(binary(i), map.remove(binary(i)));
+
+            // Every entry should be found wherever it currently lives
+            if (map.isGrowing()) {
+                for (long j = Math.max(0, i - 100); j <= i; j++) {
+                    assertEquals(j % 3 != 0, map.containsKey(binary(j)));
+                }
+            }
+        }
+
+        assertTrue(map.getPartitionCount() > 13);
+        assertEquals(6666, map.size());
+
+        for (long i = 0; i < 10000; i++) {
+            if (i % 3 == 0)
+                assertNull(map.get(binary(i)));
+            else
+                assertEquals(binary(i), map.get(binary(i)));
+        }
+    }
+
+    @Test
+    public void growWithoutRehashing() {
+        AtomicLong hashCalls = new AtomicLong();
+        BOHMap counting = new BOHMap(13, BOHMap.DEFAULT_LOAD_FACTOR, data -> {
+            hashCalls.incrementAndGet();
+            return Arrays.hashCode(data);
+        });
+
+        for (long i = 0; i < 10000; i++) {
+            counting.put(binary(i), binary(i));
+        }
+
+        // Stored hashes are used when moving entries, so one call per put
+        assertTrue(counting.getPartitionCount() > 13);
+        assertEquals(10000, hashCalls.get());
+
+        counting.clear();
+    }
+
+    @Test
+    public void iterateWhileGrowing() {
+        long i = 0;
+        while (!map.isGrowing()) {
+            map.put(binary(i++), null);
+        }
+
+        Set<Binary> keys = new HashSet<>();
+        map.keySet().iterator().forEachRemaining(keys::add);
+
+        assertEquals(i, keys.size());
+        assertEquals(i, map.entrySet().toArray().length);
+        assertEquals(i, map.values().toArray().length);
+        assertTrue(map.containsValue(null));
+
+        for (long j = 0; j < i; j++) {
+            assertTrue(keys.contains(binary(j)));
+        }
+    }
+
+    @Test
+    public void clearWhileGrowing() {
+        long i = 0;
+        while (!map.isGrowing()) {
+            map.put(binary(i), binary(i));
+            i++;
+        }
+
+        map.clear();
+
+        assertFalse(map.isGrowing());
+        assertTrue(map.isEmpty());
+        assertFalse(map.keySet().iterator().hasNext());
+
+        map.put(binary(1), binary(2));
+        assertEquals(binary(2), map.get(binary(1)));
+    }
+
+    @Test
+    public void partitionsScaleWithEntries() {
+        // The average number of entries scanned per lookup is bounded by the
+        // load factor, so it should stay flat as the map grows.
+        long count = 0;
+        for (long target = 1000; target <= 1000000; target *= 10) {
+            for (; count < target; count++) {
+                map.put(binary(count), binary(count));
+            }
+
+            double entriesPerPartition = (double) map.size() / map.getPartitionCount();
+            assertTrue("Too many entries per partition at " + target + ": " + entriesPerPartition,
+                    entriesPerPartition <= BOHMap.DEFAULT_LOAD_FACTOR);
+
+            assertEquals(binary(target / 2), map.get(binary(target / 2)));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests related to map statistics and their JMX view
+ *
+ * @author cfelde
+ */
+public class TestBOHMapStats {
+    private UnsafeAllocator allocator;
+    private BOHMap map;
+
+    @Before
+    public void setUp() {
+        allocator = new UnsafeAllocator();
+        map = new BOHMap(64, Float.POSITIVE_INFINITY, BinaryHasher.DEFAULT, allocator);
+    }
+
+    @After
+    public void tearDown() {
+        map.close();
+    }
+
+    private static Binary binary(long l) {
+        return new Binary(ByteBuffer.allocate(Long.BYTES).putLong(l).array());
+    }
+
+    private static long getPartitions(BOHMapStats stats) {
+        long partitions = 0;
+        for (long count : stats.getOccupancyHistogram()) {
+            partitions += count;
+        }
+
+        return partitions;
+    }
+
+    @Test
+    public void occupancyBuckets() {
+        assertEquals(0, BOHMapStats.getOccupancyBucket(0));
+        assertEquals(1, BOHMapStats.getOccupancyBucket(1));
+        assertEquals(2, BOHMapStats.getOccupancyBucket(2));
+        assertEquals(2, BOHMapStats.getOccupancyBucket(4));
+        assertEquals(3, BOHMapStats.getOccupancyBucket(5));
+        assertEquals(3, BOHMapStats.getOccupancyBucket(8));
+        assertEquals(4, BOHMapStats.getOccupancyBucket(9));
+
+        for (int bucket = 0; bucket < BOHMapStats.getOccupancyBucket(Integer.MAX_VALUE); bucket++) {
+            final int lower = BOHMapStats.getOccupancyLowerBound(bucket);
+            final int upper = BOHMapStats.getOccupancyUpperBound(bucket);
+
+            assertEquals(bucket, BOHMapStats.getOccupancyBucket(lower));
+            assertEquals(bucket, BOHMapStats.getOccupancyBucket(upper));
+            assertEquals(bucket + 1, BOHMapStats.getOccupancyBucket(upper + 1));
+        }
+    }
+
+    @Test
+    public void emptyMap() {
+        BOHMapStats stats = map.getStats();
+
+        assertEquals(0, stats.getEntryCount());
+        assertEquals(64, stats.getPartitionCount());
+        assertEquals(allocator.getUsedBytes(), stats.getTotalBytes());
+        assertEquals(stats.getTableBytes(), stats.getTotalBytes());
+        assertArrayEquals(new long[] {64}, stats.getOccupancyHistogram());
+        assertEquals(0, stats.getLongestPartition());
+        assertEquals(0, stats.getAveragePartitionLength(), 0);
+    }
+
+    @Test
+    public void bytesAddUp() {
+        for (int i = 0; i < 1000; i++) {
+            // Every other value too large to be held inline
+            map.put(binary(i), new Binary(new byte[i % 2 == 0 ? 4 : 100]));
+        }
+
+        BOHMapStats stats = map.getStats();
+
+        assertEquals(1000, stats.getEntryCount());
+        assertEquals(allocator.getUsedBytes(), stats.getTotalBytes());
+        assertEquals(500 * Long.BYTES, stats.getKeyBytes());
+        assertEquals(500 * 100, stats.getValueBytes());
+        assertTrue(stats.getRecordHeaderBytes() > 0);
+        assertTrue(stats.getPartitionBytes() > 0);
+
+        long partitions = 0;
+        for (long count : stats.getOccupancyHistogram()) {
+            partitions += count;
+        }
+        assertEquals(64, partitions);
+        assertEquals(BOHMapStats.getOccupancyBucket(stats.getLongestPartition()) + 1, stats.getOccupancyHistogram().length);
+        assertTrue(stats.getLongestPartition() >= 1000 / 64);
+    }
+
+    @Test
+    public void bytesAddUpWhileGrowing() {
+        BOHMap growing = new BOHMap(4, 1, BinaryHasher.DEFAULT, allocator);
+
+        for (int i = 0; i < 100; i++) {
+            growing.put(binary(i), new Binary(new byte[100]));
+
+            assertEquals(allocator.getUsedBytes() - map.getStats().getTotalBytes(), growing.getStats().getTotalBytes());
+        }
+
+        assertTrue(growing.getStats().getGrowCount() > 0);
+
+        growing.close();
+    }
+
+    @Test
+    public void occupancyWhileGrowing() {
+        BOHMap growing = new BOHMap(64, 1, BinaryHasher.DEFAULT, allocator);
+
+        int i = 0;
+        while (!growing.isGrowing()) {
+            growing.put(binary(i++), binary(i));
+        }
+
+        // Old partitions not yet moved, and the new partitions moved to
+        BOHMapStats stats = growing.getStats();
+        assertEquals(128, stats.getPartitionCount());
+        assertTrue(getPartitions(stats) >= 64);
+        assertTrue(getPartitions(stats) < 128);
+
+        while (growing.isGrowing()) {
+            growing.put(binary(i++), binary(i));
+        }
+
+        assertEquals(128, getPartitions(growing.getStats()));
+
+        growing.close();
+    }
+
+    @Test
+    public void operationCounts() {
+        map.get(binary(1));
+        assertEquals(0, map.getStats().getLookupCount());
+
+        map.setLookupCounting(true);
+
+        for (int i = 0; i < 10; i++) {
+            map.put(binary(i), binary(i));
+        }
+
+        map.get(binary(1));
+        map.get(binary(100));
+        map.containsKey(binary(2));
+        map.remove(binary(3));
+        map.remove(binary(100));
+
+        BOHMapStats stats = map.getStats();
+
+        assertEquals(10, stats.getPutCount());
+        assertEquals(3, stats.getLookupCount());
+        assertEquals(2, stats.getLookupHitCount());
+        assertEquals(2, stats.getRemoveCount());
+        assertEquals(0, stats.getEvictionCount());
+        assertEquals(0, stats.getExpirationCount());
+        assertEquals(0, stats.getGrowCount());
+    }
+
+    @Test
+    public void expirationsCounted() throws InterruptedException {
+        map.put(binary(1), binary(1), 1);
+        map.put(binary(2), binary(2), 1);
+
+        // Allow for the timer wheel's 16 ms resolution
+        Thread.sleep(50);
+
+        // Both reclaimed as the timer wheel moves on the next write
+        assertNull(map.remove(binary(1)));
+        assertEquals(2, map.getStats().getExpirationCount());
+        assertEquals(0, map.getStats().getEntryCount());
+    }
+
+    @Test
+    public void jmxAttributes() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            map.put(binary(i), binary(i));
+        }
+
+        BOHMapMonitor monitor = new BOHMapMonitor(map::getStats, 0);
+        monitor.register("test");
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = BOHMapMonitor.getObjectName("test");
+
+            assertEquals(100L, server.getAttribute(name, "EntryCount"));
+            assertEquals(64, server.getAttribute(name, "PartitionCount"));
+            assertEquals(allocator.getUsedBytes(), server.getAttribute(name, "TotalBytes"));
+            assertArrayEquals(map.getStats().getOccupancyHistogram(), (long[]) server.getAttribute(name, "OccupancyHistogram"));
+
+            String[] buckets = (String[]) server.getAttribute(name, "OccupancyBuckets");
+            assertEquals("0", buckets[0]);
+            assertEquals("1", buckets[1]);
+            assertEquals("2-4", buckets[2]);
+
+            map.put(binary(1000), binary(1000));
+            assertEquals(101L, server.getAttribute(name, "EntryCount"));
+            assertEquals(101L, server.getAttribute(name, "PutCount"));
+        } finally {
+            monitor.unregister();
+        }
+
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(BOHMapMonitor.getObjectName("test")));
+    }
+
+    @Test
+    public void snapshotReused() {
+        BOHMapMonitor monitor = new BOHMapMonitor(map::getStats, 60000);
+
+        assertEquals(0, monitor.getEntryCount());
+
+        map.put(binary(1), binary(1));
+        assertEquals(0, monitor.getEntryCount());
+
+        monitor.refresh();
+        assertEquals(1, monitor.getEntryCount());
+    }
+}
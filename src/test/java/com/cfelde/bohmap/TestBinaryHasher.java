@@ -0,0 +1,226 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestBinaryHasher {
+    private final Random random = new Random();
+
+    private static final BinaryHasher[] HASHERS = {
+            new XXHash64Hasher(), new WyHasher(), new Murmur3Hasher(),
+            new XXHash64Hasher(42), new WyHasher(42), new Murmur3Hasher(42)
+    };
+
+    /**
+     * Checks the array, array range and address variants of the given hasher
+     * all agree, returning the hash.
+     */
+    private long checkVariants(BinaryHasher hasher, byte[] data) {
+        final long hash = hasher.hash(data);
+
+        byte[] padded = new byte[data.length + 10];
+        System.arraycopy(data, 0, padded, 3, data.length);
+        assertEquals(hash, hasher.hash(padded, 3, data.length));
+
+        long address = Memory.UNSAFE.allocateMemory(Math.max(data.length, 1));
+        try {
+            Memory.copyFromArray(data, 0, address, data.length);
+            assertEquals(hash, hasher.hash(address, data.length));
+        } finally {
+            Memory.UNSAFE.freeMemory(address);
+        }
+
+        return hash;
+    }
+
+    @Test
+    public void defaultMatchesArraysHashCode() {
+        for (int size = 0; size <= 40; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            assertEquals(Arrays.hashCode(data), BinaryHasher.toInt(checkVariants(BinaryHasher.DEFAULT, data)));
+        }
+    }
+
+    @Test
+    public void fromFunction() {
+        AtomicInteger calls = new AtomicInteger();
+        BinaryHasher hasher = BinaryHasher.fromFunction(data -> {
+            calls.incrementAndGet();
+            return -data.length;
+        });
+
+        for (int size = 0; size <= 40; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            assertEquals(-size, BinaryHasher.toInt(checkVariants(hasher, data)));
+        }
+
+        assertEquals(41 * 3, calls.get());
+    }
+
+    @Test
+    public void mapsUseHasher() {
+        // Everything in one bucket still works
+        BinaryHasher constant = new BinaryHasher() {
+            @Override
+            public long hash(byte[] data, int offset, int length) {
+                return 42;
+            }
+
+            @Override
+            public long hash(long address, int length) {
+                return 42;
+            }
+        };
+
+        BOHMap map = new BOHMap(16, constant);
+        ProbingBOHMap probingMap = new ProbingBOHMap(16, ProbingBOHMap.DEFAULT_LOAD_FACTOR, constant, new UnsafeAllocator());
+        ConcurrentBOHMap concurrentMap = new ConcurrentBOHMap(16, 4, BOHMap.DEFAULT_LOAD_FACTOR, constant, UnsafeAllocator::new);
+
+        for (int i = 0; i < 100; i++) {
+            Binary key = new Binary(new byte[] {(byte) i});
+            map.put(key, key);
+            probingMap.put(key, key);
+            concurrentMap.put(key, key);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Binary key = new Binary(new byte[] {(byte) i});
+            assertEquals(key, map.get(key));
+            assertEquals(key, probingMap.get(key));
+            assertEquals(key, concurrentMap.get(key));
+        }
+
+        map.clear();
+        probingMap.clear();
+        concurrentMap.clear();
+    }
+
+    @Test
+    public void knownHashes() {
+        byte[] empty = new byte[0];
+        byte[] abc = "abc".getBytes(StandardCharsets.US_ASCII);
+        byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+
+        assertEquals(0xef46db3751d8e999L, new XXHash64Hasher().hash(empty));
+        assertEquals(0x44bc2cf5ad770999L, new XXHash64Hasher().hash(abc));
+        assertEquals(0x0b242d361fda71bcL, new XXHash64Hasher().hash(fox));
+
+        assertEquals(0x93228a4de0eec5a2L, new WyHasher().hash(empty));
+        assertEquals(0x989b4a209c1011c9L, new WyHasher().hash(abc));
+        assertEquals(0x08e445df107bb587L, new WyHasher().hash(fox));
+
+        assertEquals(0x0000000000000000L, new Murmur3Hasher().hash(empty));
+        assertEquals(0xb4963f3f3fad7867L, new Murmur3Hasher().hash(abc));
+        assertEquals(0xe34bbc7bbc071b6cL, new Murmur3Hasher().hash(fox));
+    }
+
+    @Test
+    public void variantsAgree() {
+        // Covers every tail length, and each hasher's block loops
+        for (BinaryHasher hasher : HASHERS) {
+            for (int size = 0; size <= 200; size++) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+
+                checkVariants(hasher, data);
+            }
+
+            try {
+                hasher.hash(new byte[10], 5, 6);
+                fail();
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                // Expected
+            }
+        }
+
+        assertNotEquals(new WyHasher().hash(new byte[8]), new WyHasher(1).hash(new byte[8]));
+    }
+
+    @Test
+    public void multiplyHigh() {
+        assertEquals(0, WyHasher.multiplyHigh(-1, 1));
+        assertEquals(-2, WyHasher.multiplyHigh(-1, -1));
+        assertEquals(1, WyHasher.multiplyHigh(1L << 32, 1L << 32));
+        assertEquals(0x7FFFFFFFFFFFFFFFL, WyHasher.multiplyHigh(Long.MIN_VALUE, -1));
+    }
+
+    @Test
+    public void distribution() {
+        final int partitions = 1024;
+        final int keys = 100 * partitions;
+
+        // Similar keys, as ids with a common prefix tend to be
+        for (BinaryHasher hasher : HASHERS) {
+            int[] counts = new int[partitions];
+
+            for (int i = 0; i < keys; i++) {
+                byte[] key = ("7c9e6679-7425-40de-944b-" + i).getBytes(StandardCharsets.US_ASCII);
+                counts[Integer.remainderUnsigned(BinaryHasher.toInt(hasher.hash(key)), partitions)]++;
+            }
+
+            // Chi-square with 1023 degrees of freedom has a mean of 1023,
+            // and a standard deviation of about 45
+            final double expected = (double) keys / partitions;
+            double chiSquare = 0;
+            for (int count : counts) {
+                chiSquare += (count - expected) * (count - expected) / expected;
+            }
+
+            assertTrue(hasher.getClass().getSimpleName() + ": " + chiSquare, chiSquare < partitions + 6 * 45);
+        }
+    }
+
+    @Test
+    public void avalanche() {
+        final int samples = 2000;
+
+        // Flipping any single input bit should flip about half the output bits
+        for (BinaryHasher hasher : HASHERS) {
+            long flipped = 0;
+
+            for (int i = 0; i < samples; i++) {
+                byte[] data = new byte[1 + random.nextInt(64)];
+                random.nextBytes(data);
+
+                final long hash = hasher.hash(data);
+                final int bit = random.nextInt(data.length * 8);
+                data[bit >>> 3] ^= 1 << (bit & 7);
+
+                flipped += Long.bitCount(hash ^ hasher.hash(data));
+            }
+
+            final double average = (double) flipped / samples;
+            assertTrue(hasher.getClass().getSimpleName() + ": " + average, average > 31 && average < 33);
+        }
+    }
+}
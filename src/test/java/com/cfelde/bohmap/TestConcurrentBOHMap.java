@@ -0,0 +1,458 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestConcurrentBOHMap {
+    private static final int THREADS = 8;
+
+    private Random random;
+    private ConcurrentBOHMap map;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        random = new Random();
+        map = new ConcurrentBOHMap(16, 4);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        map.close();
+    }
+
+    private Binary randomBinary(int maxSize) {
+        byte[] data = new byte[random.nextInt(maxSize)];
+        random.nextBytes(data);
+
+        return new Binary(data);
+    }
+
+    private static Binary intBinary(int value) {
+        return new Binary(ByteBuffer.allocate(Integer.BYTES).putInt(value).array());
+    }
+
+    private static int binaryInt(Binary binary) {
+        return ByteBuffer.wrap(binary.getValue()).getInt();
+    }
+
+    @Test
+    public void randomOperations() {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        for (int i = 0; i < 20000; i++) {
+            Binary key = new Binary(new byte[] {(byte) random.nextInt(64), (byte) random.nextInt(64)});
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Binary value = randomBinary(32);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(expected, new HashMap<>(map));
+    }
+
+    @Test
+    public void compoundOperations() {
+        Binary key = randomBinary(16);
+        Binary value1 = randomBinary(16);
+        Binary value2 = randomBinary(16);
+
+        assertNull(map.putIfAbsent(key, value1));
+        assertEquals(value1, map.putIfAbsent(key, value2));
+        assertEquals(value1, map.get(key));
+
+        assertFalse(map.replace(key, value2, value1));
+        assertTrue(map.replace(key, value1, value2));
+        assertEquals(value2, map.replace(key, value1));
+        assertNull(map.replace(randomBinary(16), value1));
+
+        assertFalse(map.remove(key, value2));
+        assertTrue(map.remove(key, value1));
+        assertFalse(map.containsKey(key));
+
+        // A key mapped to null counts as absent..
+        map.put(key, null);
+        assertNull(map.getOrDefault(key, value1));
+        assertNull(map.putIfAbsent(key, value1));
+        assertEquals(value1, map.get(key));
+
+        // ..and a null result removes the entry
+        assertNull(map.computeIfPresent(key, (k, v) -> null));
+        assertFalse(map.containsKey(key));
+
+        assertEquals(value1, map.computeIfAbsent(key, k -> value1));
+        assertEquals(value1, map.computeIfAbsent(key, k -> value2));
+        assertEquals(value2, map.compute(key, (k, v) -> value2));
+        assertNull(map.compute(key, (k, v) -> null));
+        assertFalse(map.containsKey(key));
+
+        assertEquals(intBinary(1), map.merge(key, intBinary(1), (a, b) -> intBinary(binaryInt(a) + binaryInt(b))));
+        assertEquals(intBinary(3), map.merge(key, intBinary(2), (a, b) -> intBinary(binaryInt(a) + binaryInt(b))));
+        assertNull(map.merge(key, intBinary(3), (a, b) -> null));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void concurrentMerge() throws Exception {
+        final int keys = 100;
+        final int increments = 10000;
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < increments; i++) {
+                    map.merge(intBinary(i % keys), intBinary(1), (a, b) -> intBinary(binaryInt(a) + binaryInt(b)));
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertEquals(keys, map.size());
+        for (int i = 0; i < keys; i++) {
+            assertEquals(THREADS * increments / keys, binaryInt(map.get(intBinary(i))));
+        }
+    }
+
+    @Test
+    public void concurrentPutGetRemoveWhileGrowing() throws Exception {
+        final int keysPerThread = 20000;
+
+        // Each thread owns its own keys, while reading the keys of the others
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+
+            futures.add(executor.submit(() -> {
+                Random threadRandom = new Random(thread);
+
+                for (int i = 0; i < keysPerThread; i++) {
+                    Binary key = intBinary(thread * keysPerThread + i);
+
+                    assertNull(map.put(key, key));
+                    assertEquals(key, map.get(key));
+
+                    // Values read for other threads keys must be intact
+                    Binary other = intBinary(threadRandom.nextInt(THREADS * keysPerThread));
+                    Binary value = map.get(other);
+                    assertTrue(value == null || value.equals(other));
+
+                    if (i % 2 == 1)
+                        assertEquals(key, map.remove(key));
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertEquals(THREADS * keysPerThread / 2, map.size());
+        for (int i = 0; i < THREADS * keysPerThread; i++) {
+            Binary key = intBinary(i);
+            assertEquals(i % 2 == 0 ? key : null, map.get(key));
+        }
+    }
+
+    @Test
+    public void iterateWhileUpdating() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            map.put(intBinary(i), intBinary(i));
+        }
+
+        Future<?> writer = executor.submit(() -> {
+            for (int i = 10000; i < 50000; i++) {
+                map.put(intBinary(i), intBinary(i));
+                map.remove(intBinary(i - 1));
+            }
+        });
+
+        // Every entry seen is consistent, and all untouched entries are seen
+        int untouched = 0;
+        for (Map.Entry<Binary, Binary> entry : map.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue());
+
+            if (binaryInt(entry.getKey()) < 9999)
+                untouched++;
+        }
+
+        writer.get();
+
+        assertEquals(9999, untouched);
+        assertEquals(10000, map.size());
+
+        Iterator<Binary> iterator = map.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (binaryInt(iterator.next()) % 2 == 0)
+                iterator.remove();
+        }
+
+        assertEquals(5000, map.size());
+    }
+
+    @Test
+    public void optimisticReadsWhileReplacing() throws Exception {
+        final int keys = 64;
+        final long endTime = System.currentTimeMillis() + 1000;
+
+        // A slab allocator reuses freed blocks right away, so a reader
+        // looking at memory freed too early would likely see other values
+        map = new ConcurrentBOHMap(4, 2, BOHMap.DEFAULT_LOAD_FACTOR, Arrays::hashCode, SlabAllocator::new);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final boolean writer = t < 2;
+            final Random threadRandom = new Random(t);
+
+            futures.add(executor.submit(() -> {
+                while (System.currentTimeMillis() < endTime) {
+                    int key = threadRandom.nextInt(keys);
+
+                    if (writer) {
+                        // Values are the key repeated a random number of times
+                        ByteBuffer value = ByteBuffer.allocate(Integer.BYTES * (1 + threadRandom.nextInt(64)));
+                        while (value.hasRemaining()) {
+                            value.putInt(key);
+                        }
+
+                        if (threadRandom.nextInt(4) == 0)
+                            map.remove(intBinary(key));
+                        else
+                            map.put(intBinary(key), new Binary(value.array()));
+                    } else {
+                        Binary value = map.get(intBinary(key));
+
+                        if (value != null) {
+                            ByteBuffer buffer = ByteBuffer.wrap(value.getValue());
+                            assertEquals(0, buffer.remaining() % Integer.BYTES);
+                            while (buffer.hasRemaining()) {
+                                assertEquals(key, buffer.getInt());
+                            }
+                        }
+
+                        map.containsKey(intBinary(key));
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    @Test
+    public void optimisticReadsWhileUpdatingInPlace() throws Exception {
+        final int keys = 16;
+        final long endTime = System.currentTimeMillis() + 1000;
+
+        // Values of the same size are written over the old value in place
+        for (int i = 0; i < keys; i++) {
+            map.put(intBinary(i), new Binary(new byte[256]));
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final boolean writer = t < 2;
+            final Random threadRandom = new Random(t);
+
+            futures.add(executor.submit(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+
+                while (System.currentTimeMillis() < endTime) {
+                    Binary key = intBinary(threadRandom.nextInt(keys));
+
+                    if (writer) {
+                        byte[] value = new byte[256];
+                        Arrays.fill(value, (byte) threadRandom.nextInt());
+
+                        map.put(key, new Binary(value));
+                    } else {
+                        // A value read halfway through an update would mix bytes
+                        byte[] value = map.get(key).getValue();
+                        for (byte b : value) {
+                            assertEquals(value[0], b);
+                        }
+
+                        buffer.clear();
+                        assertEquals(256, map.get(key, buffer));
+                        for (int i = 0; i < 256; i++) {
+                            assertEquals(buffer.get(0), buffer.get(i));
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    @Test
+    public void retiredMemoryWaitsForReaders() {
+        EpochTracker epochs = new EpochTracker();
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        DeferredAllocator deferred = new DeferredAllocator(allocator, epochs);
+
+        long address = deferred.allocate(100);
+        assertEquals(100, allocator.getUsedBytes());
+
+        // A reader entering before the free holds it back..
+        epochs.enter();
+        deferred.free(address, 100);
+        deferred.reclaim(epochs.advance());
+        assertEquals(1, deferred.getRetiredCount());
+        assertEquals(100, allocator.getUsedBytes());
+
+        // ..until it exits
+        epochs.exit();
+        deferred.reclaim(epochs.advance());
+        assertEquals(0, deferred.getRetiredCount());
+        assertEquals(0, allocator.getUsedBytes());
+
+        // A reallocate never happens in place
+        address = deferred.allocate(100);
+        Memory.UNSAFE.putLong(address, 42);
+        long newAddress = deferred.reallocate(address, 100, 200);
+        assertNotEquals(address, newAddress);
+        assertEquals(42, Memory.UNSAFE.getLong(newAddress));
+        assertEquals(1, deferred.getRetiredCount());
+
+        deferred.free(newAddress, 200);
+        deferred.release();
+        assertEquals(0, allocator.getUsedBytes());
+    }
+
+    @Test
+    public void closeWhileReading() throws Exception {
+        List<UnsafeAllocator> allocators = new ArrayList<>();
+        map = new ConcurrentBOHMap(16, 4, BOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, () -> {
+            UnsafeAllocator allocator = new UnsafeAllocator();
+            allocators.add(allocator);
+            return allocator;
+        });
+
+        for (int i = 0; i < 10000; i++) {
+            map.put(intBinary(i), intBinary(i));
+        }
+
+        // Readers either see intact values or find the map closed
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random threadRandom = new Random(t);
+
+            futures.add(executor.submit(() -> {
+                try {
+                    while (true) {
+                        Binary key = intBinary(threadRandom.nextInt(10000));
+                        assertEquals(key, map.get(key));
+                    }
+                } catch (IllegalStateException ex) {
+                    // Expected once closed
+                }
+            }));
+        }
+
+        Thread.sleep(100);
+        map.close();
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        for (UnsafeAllocator allocator : allocators) {
+            assertEquals(0, allocator.getUsedBytes());
+        }
+
+        try {
+            map.put(intBinary(0), intBinary(0));
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+
+        map.close();
+    }
+
+    @Test
+    public void getIntoBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+
+        for (int i = 0; i < 1000; i++) {
+            map.put(intBinary(i), intBinary(-i));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            buffer.clear();
+            assertEquals(Integer.BYTES, map.get(intBinary(i), buffer));
+            assertEquals(-i, buffer.getInt(0));
+        }
+
+        assertEquals(-1, map.get(intBinary(1000), buffer));
+    }
+
+    @Test
+    public void segments() {
+        assertEquals(ConcurrentBOHMap.DEFAULT_CONCURRENCY_LEVEL, new ConcurrentBOHMap(1).getSegmentCount());
+        assertEquals(8, new ConcurrentBOHMap(1, 5).getSegmentCount());
+
+        ConcurrentBOHMap segmented = new ConcurrentBOHMap(1024, 4, BOHMap.DEFAULT_LOAD_FACTOR, Arrays::hashCode, SlabAllocator::new);
+        for (int i = 0; i < 1000; i++) {
+            segmented.put(intBinary(i), intBinary(i));
+        }
+
+        assertEquals(1000, segmented.size());
+        assertTrue(segmented.getUsedBytes() > 0);
+        assertTrue(segmented.getAllocatedBytes() >= segmented.getUsedBytes());
+
+        segmented.clear();
+        assertTrue(segmented.isEmpty());
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestDurableBOHMap {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Random random;
+    private Path directory;
+    private DurableBOHMap map;
+
+    @Before
+    public void setUp() throws IOException {
+        random = new Random();
+        directory = folder.getRoot().toPath();
+        map = new DurableBOHMap(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        map.close();
+    }
+
+    private DurableBOHMap reopen(DurableBOHMap.SyncPolicy policy) throws IOException {
+        map.close();
+        map = new DurableBOHMap(directory, new BOHMap(16), policy, 5);
+
+        return map;
+    }
+
+    private Binary randomBinary(int maxSize) {
+        byte[] data = new byte[random.nextInt(maxSize)];
+        random.nextBytes(data);
+
+        return new Binary(data);
+    }
+
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void randomOperations(Map<Binary, Binary> expected, int count) {
+        for (int i = 0; i < count; i++) {
+            Binary key = new Binary(new byte[] {(byte) random.nextInt(64), (byte) random.nextInt(64)});
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Binary value = random.nextInt(10) == 0 ? null : randomBinary(100);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+    }
+
+    @Test
+    public void replay() throws IOException {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        for (DurableBOHMap.SyncPolicy policy : DurableBOHMap.SyncPolicy.values()) {
+            randomOperations(expected, 2000);
+
+            reopen(policy);
+            assertEquals(expected, map);
+        }
+
+        map.clear();
+        expected.clear();
+
+        // Buffer operations, including a value larger than the log buffer
+        ByteBuffer key = ByteBuffer.allocateDirect(4);
+        key.putInt(0, 42);
+        assertFalse(map.put(key, ByteBuffer.allocate(3 << 20)));
+        assertTrue(map.put(key.duplicate(), ByteBuffer.wrap(new byte[] {1, 2, 3})));
+        expected.put(new Binary(new byte[] {0, 0, 0, 42}), new Binary(new byte[] {1, 2, 3}));
+
+        key.putInt(0, 43);
+        assertFalse(map.put(key, null));
+        assertTrue(map.remove(key));
+        assertFalse(map.remove(key));
+
+        reopen(DurableBOHMap.SyncPolicy.EVERY_OPERATION);
+        assertEquals(expected, map);
+    }
+
+    @Test
+    public void checkpoint() throws IOException {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        randomOperations(expected, 2000);
+        map.checkpoint();
+        randomOperations(expected, 2000);
+
+        // Only the new snapshot and the segment after it are left
+        assertEquals(2, files().size());
+        assertTrue(files().get(0).startsWith("snapshot-"));
+
+        reopen(DurableBOHMap.SyncPolicy.INTERVAL);
+        assertEquals(expected, map);
+
+        map.checkpoint();
+        map.checkpoint();
+        reopen(DurableBOHMap.SyncPolicy.NONE);
+        assertEquals(expected, map);
+
+        // Reopening starts another segment
+        assertEquals(3, files().size());
+        assertTrue(files().get(0).startsWith("snapshot-"));
+    }
+
+    @Test
+    public void damagedTail() throws IOException {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        randomOperations(expected, 1000);
+        map.close();
+
+        // A batch cut short by a crash is dropped..
+        Path segment = directory.resolve(files().get(files().size() - 1));
+        long size = Files.size(segment);
+        Files.write(segment, new byte[] {100, 0, 0, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        map = new DurableBOHMap(directory);
+        assertEquals(expected, map);
+        assertEquals(size, Files.size(segment));
+
+        // ..but damage before the last segment is refused
+        map.close();
+        Files.write(segment, new byte[] {100, 0, 0, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try {
+            map = new DurableBOHMap(directory);
+            fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        final int threads = 8;
+        final int keysPerThread = 500;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // Each put waits for its own sync, shared with the other threads
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        Binary key = new Binary(ByteBuffer.allocate(8).putInt(thread).putInt(i).array());
+                        map.put(key, key);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        reopen(DurableBOHMap.SyncPolicy.EVERY_OPERATION);
+        assertEquals(threads * keysPerThread, map.size());
+
+        for (Map.Entry<Binary, Binary> entry : map.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue());
+        }
+    }
+}
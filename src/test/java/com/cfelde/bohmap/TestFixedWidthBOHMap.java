@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestFixedWidthBOHMap {
+    private Random random;
+    private FixedWidthBOHMap map;
+
+    @Before
+    public void setUp() {
+        random = new Random();
+        map = new FixedWidthBOHMap(16, 24, 13);
+    }
+
+    @After
+    public void tearDown() {
+        map.close();
+    }
+
+    private Binary randomBinary(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+
+        return new Binary(data);
+    }
+
+    private static Binary uuidKey(UUID uuid) {
+        return new Binary(ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array());
+    }
+
+    @Test
+    public void putGetRemove() {
+        Binary key = uuidKey(UUID.randomUUID());
+        Binary value = randomBinary(24);
+
+        assertNull(map.put(key, value));
+        assertEquals(value, map.get(key));
+        assertTrue(map.containsKey(key));
+        assertEquals(1, map.size());
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(24);
+        assertEquals(24, map.get(key, dst));
+        assertEquals(0, dst.remaining());
+
+        assertEquals(value, map.put(key, null));
+        assertNull(map.get(key));
+        assertTrue(map.containsKey(key));
+        assertTrue(map.containsValue(null));
+        assertEquals(-1, map.get(key, ByteBuffer.allocate(24)));
+
+        assertNull(map.remove(key));
+        assertFalse(map.containsKey(key));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void wrongWidth() {
+        // Never found, and never put
+        assertFalse(map.containsKey(randomBinary(15)));
+        assertNull(map.get(randomBinary(17)));
+        assertNull(map.remove(randomBinary(8)));
+
+        try {
+            map.put(randomBinary(15), randomBinary(24));
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        try {
+            map.put(randomBinary(16), randomBinary(23));
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void randomOperations() {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        for (int i = 0; i < 100000; i++) {
+            Binary key = uuidKey(new UUID(0, random.nextInt(256)));
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    Binary value = random.nextInt(10) == 0 ? null : randomBinary(24);
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+        }
+
+        assertEquals(expected, map);
+        assertEquals(expected.keySet(), map.keySet());
+    }
+
+    @Test
+    public void dense() {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        FixedWidthBOHMap dense = new FixedWidthBOHMap(16, 24, 0, FixedWidthBOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, allocator);
+        int initialCapacity = dense.getCapacity();
+
+        Map<Binary, Binary> expected = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            Binary key = uuidKey(UUID.randomUUID());
+            Binary value = randomBinary(24);
+
+            expected.put(key, value);
+            dense.put(key, value);
+        }
+
+        assertTrue(dense.getCapacity() > initialCapacity);
+        assertEquals(expected, dense);
+
+        // Entries live in the slot array alone, 48 bytes a slot
+        assertEquals((long) dense.getCapacity() * 48, allocator.getUsedBytes());
+
+        dense.clear();
+        assertTrue(dense.isEmpty());
+        assertFalse(dense.keySet().iterator().hasNext());
+
+        dense.close();
+        assertEquals(0, allocator.getUsedBytes());
+
+        try {
+            dense.size();
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+}
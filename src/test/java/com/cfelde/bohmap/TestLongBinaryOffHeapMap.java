@@ -0,0 +1,166 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestLongBinaryOffHeapMap {
+    private Random random;
+    private LongBinaryOffHeapMap map;
+
+    @Before
+    public void setUp() {
+        random = new Random();
+        map = new LongBinaryOffHeapMap(13);
+    }
+
+    @After
+    public void tearDown() {
+        map.close();
+    }
+
+    private Binary randomBinary(int maxSize) {
+        byte[] data = new byte[random.nextInt(maxSize)];
+        random.nextBytes(data);
+
+        return new Binary(data);
+    }
+
+    @Test
+    public void putGetRemove() {
+        Binary value = randomBinary(16);
+
+        assertNull(map.put(42, value));
+        assertEquals(value, map.get(42));
+        assertTrue(map.containsKey(42));
+        assertEquals(1, map.size());
+
+        assertEquals(value, map.put(42, (Binary) null));
+        assertNull(map.get(42));
+        assertTrue(map.containsKey(42));
+
+        assertNull(map.remove(42));
+        assertFalse(map.containsKey(42));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void buffers() {
+        ByteBuffer value = ByteBuffer.allocateDirect(8);
+        value.putLong(0, 1234);
+
+        for (long key : new long[] {0, 1}) {
+            assertFalse(map.put(key, value));
+            assertTrue(map.put(key, value));
+            assertEquals(0, value.position());
+
+            ByteBuffer dst = ByteBuffer.allocate(16);
+            assertEquals(8, map.get(key, dst));
+            assertEquals(8, dst.position());
+            assertEquals(1234, dst.getLong(0));
+
+            assertTrue(map.put(key, (ByteBuffer) null));
+            assertEquals(-1, map.get(key, dst));
+            assertEquals(-1, map.get(key + 2, dst));
+        }
+    }
+
+    @Test
+    public void randomOperations() {
+        Map<Long, Binary> expected = new HashMap<>();
+
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(256) - 128;
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    Binary value = random.nextInt(10) == 0 ? null : randomBinary(32);
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+
+        Map<Long, Binary> entries = new HashMap<>();
+        map.forEach(entries::put);
+        assertEquals(expected, entries);
+    }
+
+    @Test
+    public void grow() {
+        int initialCapacity = map.getCapacity();
+
+        for (long key = 0; key < 10000; key++) {
+            map.put(key, new Binary(ByteBuffer.allocate(8).putLong(key).array()));
+        }
+
+        assertTrue(map.getCapacity() > initialCapacity);
+        assertEquals(10000, map.size());
+
+        for (long key = 0; key < 10000; key++) {
+            assertEquals(key, ByteBuffer.wrap(map.get(key).getValue()).getLong());
+        }
+    }
+
+    @Test
+    public void close() {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        LongBinaryOffHeapMap closing = new LongBinaryOffHeapMap(0, LongBinaryOffHeapMap.DEFAULT_LOAD_FACTOR, allocator);
+
+        for (int i = 0; i < 1000; i++) {
+            closing.put(i, i % 10 == 0 ? null : randomBinary(32));
+        }
+
+        closing.clear();
+        assertTrue(closing.isEmpty());
+
+        for (int i = 0; i < 1000; i++) {
+            closing.put(i, randomBinary(32));
+        }
+
+        closing.close();
+        closing.close();
+        assertEquals(0, allocator.getUsedBytes());
+
+        try {
+            closing.get(1);
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+}
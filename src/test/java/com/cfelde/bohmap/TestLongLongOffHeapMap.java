@@ -0,0 +1,165 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestLongLongOffHeapMap {
+    private Random random;
+    private LongLongOffHeapMap map;
+
+    @Before
+    public void setUp() {
+        random = new Random();
+        map = new LongLongOffHeapMap(13);
+    }
+
+    @After
+    public void tearDown() {
+        map.close();
+    }
+
+    @Test
+    public void putGetRemove() {
+        assertFalse(map.put(42, 7));
+        assertEquals(7, map.getOrDefault(42, -1));
+        assertTrue(map.containsKey(42));
+        assertEquals(1, map.size());
+
+        assertTrue(map.put(42, 8));
+        assertEquals(8, map.getOrDefault(42, -1));
+        assertEquals(1, map.size());
+
+        assertTrue(map.remove(42));
+        assertFalse(map.remove(42));
+        assertFalse(map.containsKey(42));
+        assertEquals(-1, map.getOrDefault(42, -1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void zeroKey() {
+        assertFalse(map.containsKey(0));
+
+        assertFalse(map.put(0, 0));
+        assertTrue(map.containsKey(0));
+        assertEquals(0, map.getOrDefault(0, -1));
+        assertEquals(1, map.size());
+
+        assertEquals(5, map.addTo(0, 5));
+        assertEquals(5, map.getOrDefault(0, -1));
+
+        assertTrue(map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void randomOperations() {
+        Map<Long, Long> expected = new HashMap<>();
+
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(256) - 128;
+
+            switch (random.nextInt(4)) {
+                case 0:
+                    long value = random.nextLong();
+                    assertEquals(expected.put(key, value) != null, map.put(key, value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+                    break;
+                case 2:
+                    assertEquals((long) expected.merge(key, 3L, Long::sum), map.addTo(key, 3));
+                    break;
+                default:
+                    assertEquals((long) expected.getOrDefault(key, -1L), map.getOrDefault(key, -1));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+
+        Map<Long, Long> entries = new HashMap<>();
+        map.forEach(entries::put);
+        assertEquals(expected, entries);
+    }
+
+    @Test
+    public void grow() {
+        int initialCapacity = map.getCapacity();
+
+        // Sequential keys, which the hash must spread out
+        for (long key = 1; key <= 10000; key++) {
+            map.put(key, -key);
+        }
+
+        assertTrue(map.getCapacity() > initialCapacity);
+        assertTrue(map.size() <= map.getCapacity() * LongLongOffHeapMap.DEFAULT_LOAD_FACTOR);
+        assertEquals(10000, map.size());
+
+        for (long key = 1; key <= 10000; key++) {
+            assertEquals(-key, map.getOrDefault(key, 0));
+        }
+
+        // Entries live in the slot array alone
+        assertEquals((long) map.getCapacity() * Long.BYTES * 2, map.getUsedBytes());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(1));
+    }
+
+    @Test
+    public void close() {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        LongLongOffHeapMap closing = new LongLongOffHeapMap(0, LongLongOffHeapMap.DEFAULT_LOAD_FACTOR, allocator);
+
+        for (int i = 0; i < 1000; i++) {
+            closing.put(random.nextLong(), i);
+        }
+
+        closing.close();
+        closing.close();
+        assertEquals(0, allocator.getUsedBytes());
+
+        try {
+            closing.getOrDefault(1, 0);
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+
+        try {
+            closing.containsKey(0);
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestMappedBOHMap {
+    private static final int CHUNK_SIZE = MappedBOHMap.MIN_CHUNK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Random random;
+    private Path path;
+    private MappedBOHMap map;
+
+    @Before
+    public void setUp() throws IOException {
+        random = new Random();
+        path = new File(folder.getRoot(), "map").toPath();
+        map = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        map.close();
+    }
+
+    private MappedBOHMap open() throws IOException {
+        // Small chunks, so entries and slot arrays end up across several
+        return new MappedBOHMap(path, 13, ProbingBOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, CHUNK_SIZE);
+    }
+
+    private Binary randomBinary(int maxSize) {
+        byte[] data = new byte[random.nextInt(maxSize)];
+        random.nextBytes(data);
+
+        return new Binary(data);
+    }
+
+    @Test
+    public void putGetRemove() {
+        Binary key = randomBinary(16);
+        Binary value = new Binary(new byte[] {1, 2, 3});
+
+        assertNull(map.put(key, value));
+        assertEquals(value, map.get(key));
+        assertTrue(map.containsKey(key));
+        assertEquals(1, map.size());
+
+        // Same size values are replaced in place
+        long usedBytes = map.getUsedBytes();
+        assertEquals(value, map.put(key, new Binary(new byte[] {4, 5, 6})));
+        assertEquals(new Binary(new byte[] {4, 5, 6}), map.get(key));
+        assertEquals(usedBytes, map.getUsedBytes());
+
+        assertEquals(new Binary(new byte[] {4, 5, 6}), map.put(key, null));
+        assertNull(map.get(key));
+        assertTrue(map.containsKey(key));
+        assertTrue(map.containsValue(null));
+
+        assertNull(map.remove(key));
+        assertFalse(map.containsKey(key));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void randomOperations() {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        for (int i = 0; i < 20000; i++) {
+            Binary key = new Binary(new byte[] {(byte) random.nextInt(64), (byte) random.nextInt(64)});
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Binary value = random.nextInt(10) == 0 ? null : randomBinary(600);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(expected, new HashMap<>(map));
+        assertTrue(map.getAllocatedBytes() > 10 * CHUNK_SIZE);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(64 + 16L * map.getCapacity(), map.getUsedBytes());
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        for (int i = 0; i < 5000; i++) {
+            Binary key = randomBinary(32);
+            Binary value = randomBinary(100);
+
+            expected.put(key, value);
+            map.put(key, value);
+        }
+
+        final int capacity = map.getCapacity();
+        map.close();
+
+        map = open();
+        assertEquals(capacity, map.getCapacity());
+        assertEquals(expected, map);
+
+        // Changes after reopening are kept as well
+        Binary key = expected.keySet().iterator().next();
+        assertEquals(expected.remove(key), map.remove(key));
+        map.force();
+
+        MappedBOHMap forced = open();
+        try {
+            assertEquals(expected, forced);
+        } finally {
+            forced.close();
+        }
+    }
+
+    @Test
+    public void rejectIncompatibleFiles() throws IOException {
+        map.put(randomBinary(16), randomBinary(16));
+
+        // Modified and not yet forced
+        try {
+            open();
+            fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+
+        map.close();
+
+        try {
+            new MappedBOHMap(path, 13, ProbingBOHMap.DEFAULT_LOAD_FACTOR, new XXHash64Hasher(), CHUNK_SIZE);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        // A newer format version
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(8);
+            file.writeInt(Integer.reverseBytes(MappedBOHMap.FORMAT_VERSION + 1));
+        }
+
+        try {
+            open();
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("version"));
+        }
+
+        // Not a map at all
+        Path other = folder.newFile().toPath();
+        Files.write(other, new byte[100]);
+
+        try {
+            new MappedBOHMap(other);
+            fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void entryLargerThanChunk() {
+        try {
+            map.put(new Binary(new byte[1]), new Binary(new byte[CHUNK_SIZE]));
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        map.put(new Binary(new byte[1]), new Binary(new byte[CHUNK_SIZE - 16]));
+        assertTrue(Arrays.equals(new byte[CHUNK_SIZE - 16], map.get(new Binary(new byte[1])).getValue()));
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestMemory {
+    private final Random random = new Random();
+
+    @Test
+    public void copyRoundTrip() {
+        // Covers sizes both below and above the copy chunk size
+        for (int size : new int[] {0, 1, 7, 8, 9, 4096, 3 * 1024 * 1024 + 5}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            long address = Memory.UNSAFE.allocateMemory(Math.max(size, 1));
+            try {
+                Memory.copyFromArray(data, 0, address, size);
+
+                byte[] copy = new byte[size];
+                Memory.copyToArray(address, copy, 0, size);
+
+                assertArrayEquals(data, copy);
+                assertTrue(Memory.equals(data, address));
+            } finally {
+                Memory.UNSAFE.freeMemory(address);
+            }
+        }
+    }
+
+    @Test
+    public void equalsFindsEveryDifference() {
+        for (int size = 1; size <= 40; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            long address = Memory.UNSAFE.allocateMemory(size);
+            try {
+                Memory.copyFromArray(data, 0, address, size);
+                assertTrue(Memory.equals(data, address));
+
+                // Flip each byte in turn, covering both word and tail compares
+                for (int i = 0; i < size; i++) {
+                    Memory.UNSAFE.putByte(address + i, (byte) ~data[i]);
+                    assertFalse(Memory.equals(data, address));
+                    Memory.UNSAFE.putByte(address + i, data[i]);
+                }
+            } finally {
+                Memory.UNSAFE.freeMemory(address);
+            }
+        }
+    }
+
+    @Test
+    public void hashCodeMatchesArrays() {
+        for (int size = 0; size <= 40; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            assertEquals(Arrays.hashCode(data), Memory.hashCode(data, Memory.BYTE_ARRAY_OFFSET, size));
+        }
+    }
+}
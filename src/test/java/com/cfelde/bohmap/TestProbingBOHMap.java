@@ -0,0 +1,202 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestProbingBOHMap {
+    private Random random;
+    private ProbingBOHMap map;
+
+    @Before
+    public void setUp() {
+        random = new Random();
+        map = new ProbingBOHMap(13);
+    }
+
+    @After
+    public void tearDown() {
+        map.close();
+    }
+
+    private Binary randomBinary(int maxSize) {
+        byte[] data = new byte[random.nextInt(maxSize)];
+        random.nextBytes(data);
+
+        return new Binary(data);
+    }
+
+    @Test
+    public void putGetRemove() {
+        Binary key = randomBinary(16);
+        Binary value = randomBinary(16);
+
+        assertNull(map.put(key, value));
+        assertEquals(value, map.get(key));
+        assertTrue(map.containsKey(key));
+        assertEquals(1, map.size());
+
+        assertEquals(value, map.put(key, null));
+        assertNull(map.get(key));
+        assertTrue(map.containsKey(key));
+        assertTrue(map.containsValue(null));
+
+        assertNull(map.remove(key));
+        assertFalse(map.containsKey(key));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void randomOperations() {
+        Map<Binary, Binary> expected = new HashMap<>();
+
+        for (int i = 0; i < 100000; i++) {
+            Binary key = new Binary(new byte[] {(byte) random.nextInt(64), (byte) random.nextInt(64)});
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    Binary value = randomBinary(32);
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+        }
+
+        assertEquals(expected, map);
+        assertEquals(expected.keySet(), map.keySet());
+    }
+
+    @Test
+    public void collidingHashes() {
+        // All keys share one hash, so every entry ends up in one probe run
+        ProbingBOHMap colliding = new ProbingBOHMap(0, 0.75f, data -> 42);
+
+        Map<Binary, Binary> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            Binary key = randomBinary(8);
+            Binary value = randomBinary(8);
+
+            expected.put(key, value);
+            colliding.put(key, value);
+
+            if (i % 4 == 0) {
+                Binary removeKey = expected.keySet().iterator().next();
+                assertEquals(expected.remove(removeKey), colliding.remove(removeKey));
+            }
+        }
+
+        assertEquals(expected.size(), colliding.size());
+        expected.forEach((k, v) -> assertEquals(v, colliding.get(k)));
+
+        colliding.clear();
+    }
+
+    @Test
+    public void grow() {
+        int initialCapacity = map.getCapacity();
+
+        Set<Binary> keys = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            Binary key = randomBinary(32);
+            keys.add(key);
+            map.put(key, key);
+        }
+
+        assertTrue(map.getCapacity() > initialCapacity);
+        assertTrue(map.size() <= map.getCapacity() * ProbingBOHMap.DEFAULT_LOAD_FACTOR);
+        assertEquals(keys.size(), map.size());
+        assertEquals(keys, map.keySet());
+
+        keys.forEach(k -> assertEquals(k, map.get(k)));
+    }
+
+    @Test
+    public void keySetRemove() {
+        Binary key = randomBinary(16);
+
+        map.put(key, null);
+
+        assertTrue(map.keySet().remove(key));
+        assertFalse(map.keySet().remove(key));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void close() {
+        UnsafeAllocator allocator = new UnsafeAllocator();
+        ProbingBOHMap closing = new ProbingBOHMap(0, ProbingBOHMap.DEFAULT_LOAD_FACTOR, BinaryHasher.DEFAULT, allocator);
+
+        for (int i = 0; i < 1000; i++) {
+            closing.put(randomBinary(32), i % 10 == 0 ? null : randomBinary(32));
+        }
+
+        closing.close();
+        closing.close();
+        assertEquals(0, allocator.getUsedBytes());
+
+        try {
+            closing.get(randomBinary(16));
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+
+        try {
+            closing.keySet().iterator().hasNext();
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void wrappedByOHMap() {
+        OHMap<String, String> ohMap = new OHMap<>(map, JavaSerializer::serialize, JavaSerializer::deserialize, JavaSerializer::serialize, JavaSerializer::deserialize);
+
+        assertNull(ohMap.put("Key", "Value"));
+        assertEquals("Value", ohMap.get("Key"));
+        assertEquals(1, map.size());
+
+        // Closing the wrapper closes the map
+        ohMap.close();
+
+        try {
+            map.size();
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+}
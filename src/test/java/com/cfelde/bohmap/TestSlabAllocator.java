@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import sun.misc.Unsafe;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestSlabAllocator {
+    private Random random;
+    private Unsafe unsafe;
+    private SlabAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception {
+        Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        unsafe = (Unsafe) unsafeField.get(null);
+
+        random = new Random();
+        allocator = new SlabAllocator(64 * 1024, 1024);
+    }
+
+    @After
+    public void tearDown() {
+        allocator.release();
+    }
+
+    @Test
+    public void sizeClasses() {
+        assertEquals(8, SlabAllocator.getClassSize(SlabAllocator.getSizeClass(0)));
+        assertEquals(8, SlabAllocator.getClassSize(SlabAllocator.getSizeClass(8)));
+        assertEquals(16, SlabAllocator.getClassSize(SlabAllocator.getSizeClass(9)));
+        assertEquals(64, SlabAllocator.getClassSize(SlabAllocator.getSizeClass(64)));
+        assertEquals(80, SlabAllocator.getClassSize(SlabAllocator.getSizeClass(65)));
+        assertEquals(128, SlabAllocator.getClassSize(SlabAllocator.getSizeClass(128)));
+        assertEquals(160, SlabAllocator.getClassSize(SlabAllocator.getSizeClass(129)));
+
+        // Classes are in order and never lose more than 25% to rounding
+        for (int size = 1; size <= 4096; size++) {
+            int sizeClass = SlabAllocator.getSizeClass(size);
+            long classSize = SlabAllocator.getClassSize(sizeClass);
+
+            assertTrue(classSize >= size);
+            assertTrue(size <= 8 || classSize <= size * 1.25 + 8);
+            assertTrue(sizeClass == 0 || SlabAllocator.getClassSize(sizeClass - 1) < size);
+        }
+    }
+
+    @Test
+    public void reuseFreedBlocks() {
+        long address = allocator.allocate(20);
+        allocator.free(address, 20);
+
+        // Same size class, so the freed block is handed out again
+        assertEquals(address, allocator.allocate(24));
+        assertEquals(24, allocator.getUsedBytes());
+        assertEquals(64 * 1024, allocator.getAllocatedBytes());
+    }
+
+    @Test
+    public void largeBlocks() {
+        long address = allocator.allocate(10000);
+        assertEquals(10000, allocator.getUsedBytes());
+        assertTrue(allocator.getAllocatedBytes() >= 10000);
+
+        address = allocator.reallocate(address, 10000, 20000);
+        assertEquals(20000, allocator.getUsedBytes());
+
+        allocator.free(address, 20000);
+        assertEquals(0, allocator.getUsedBytes());
+        assertEquals(0, allocator.getAllocatedBytes());
+
+        // Left for release to clean up
+        allocator.allocate(5000);
+        allocator.allocate(6000);
+    }
+
+    @Test
+    public void reallocateKeepsContent() {
+        long address = allocator.allocate(16);
+        for (int i = 0; i < 16; i++) {
+            unsafe.putByte(address + i, (byte) i);
+        }
+
+        address = allocator.reallocate(address, 16, 2000);
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i, unsafe.getByte(address + i));
+        }
+
+        allocator.free(address, 2000);
+        assertEquals(0, allocator.getUsedBytes());
+    }
+
+    @Test
+    public void bohMapWithSlabAllocator() {
+        BOHMap map = new BOHMap(13, BOHMap.DEFAULT_LOAD_FACTOR, Arrays::hashCode, allocator);
+        assertEquals(13L * unsafe.addressSize(), map.getUsedBytes());
+
+        Map<Binary, Binary> expected = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            byte[] key = new byte[1 + random.nextInt(32)];
+            byte[] value = new byte[random.nextInt(2000)];
+            random.nextBytes(key);
+            random.nextBytes(value);
+
+            expected.put(new Binary(key), new Binary(value));
+            map.put(new Binary(key), new Binary(value));
+
+            if (i % 3 == 0) {
+                Binary removeKey = expected.keySet().iterator().next();
+                assertEquals(expected.remove(removeKey), map.remove(removeKey));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        expected.forEach((k, v) -> assertEquals(v, map.get(k)));
+        assertTrue(map.getAllocatedBytes() >= map.getUsedBytes());
+
+        map.clear();
+
+        // Only the partition table is left, which will have grown
+        assertEquals((long) map.getPartitionCount() * unsafe.addressSize(), map.getUsedBytes());
+    }
+}
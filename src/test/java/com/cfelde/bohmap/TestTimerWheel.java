@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 Christian Felde (cfelde [at] cfelde [dot] com)
+ * <p>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cfelde.bohmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author cfelde
+ */
+public class TestTimerWheel {
+    private final Random random = new Random();
+
+    @Test
+    public void expiresOnTime() {
+        final long start = random.nextLong() >>> 2;
+        TimerWheel wheel = new TimerWheel(start);
+
+        // From a few milliseconds up to about a year out
+        Map<Long, Long> expiries = new HashMap<>();
+        for (long address = 1; address <= 10000; address++) {
+            final long expiry = start + (random.nextLong() >>> (29 + random.nextInt(35)));
+
+            expiries.put(address, expiry);
+            wheel.schedule(address, (int) address, expiry);
+        }
+
+        assertEquals(expiries.size(), wheel.size());
+
+        long previous = start;
+        while (!expiries.isEmpty()) {
+            final long now = previous + 1 + (random.nextLong() >>> (24 + random.nextInt(40)));
+            final long last = previous;
+
+            wheel.advance(now, (address, hash, expiry) -> {
+                assertEquals(expiry, (long) expiries.remove(address));
+                assertEquals((int) address, hash);
+
+                // Due by now, but not yet due as of the last advance
+                assertTrue(expiry <= now);
+                assertTrue(expiry >>> 4 >= last >>> 4);
+
+                return 0;
+            });
+
+            assertEquals(expiries.size(), wheel.size());
+            previous = now;
+        }
+    }
+
+    @Test
+    public void pastAndClear() {
+        TimerWheel wheel = new TimerWheel(1000);
+
+        wheel.schedule(1, 1, 0);
+        wheel.schedule(2, 2, 10_000);
+        wheel.advance(1020, (address, hash, expiry) -> {
+            assertEquals(1, address);
+
+            return 0;
+        });
+        assertEquals(1, wheel.size());
+
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        wheel.advance(20_000, (address, hash, expiry) -> {
+            fail();
+
+            return 0;
+        });
+    }
+
+    @Test
+    public void movedOn() {
+        TimerWheel wheel = new TimerWheel(1000);
+        List<Long> expired = new ArrayList<>();
+
+        wheel.schedule(1, 1, 1100);
+
+        // Moved on twice, the second time to a time already due
+        wheel.advance(1200, (address, hash, expiry) -> {
+            expired.add(expiry);
+
+            return expiry == 1100 ? 1150 : expiry == 1150 ? 5000 : 0;
+        });
+        assertEquals(Arrays.asList(1100L, 1150L), expired);
+        assertEquals(1, wheel.size());
+
+        wheel.advance(5100, (address, hash, expiry) -> {
+            expired.add(expiry);
+
+            return 0;
+        });
+        assertEquals(Arrays.asList(1100L, 1150L, 5000L), expired);
+        assertEquals(0, wheel.size());
+    }
+}